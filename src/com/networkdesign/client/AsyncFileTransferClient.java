@@ -0,0 +1,394 @@
+package com.networkdesign.client;
+
+import com.networkdesign.protocol.FileMetadata;
+import com.networkdesign.protocol.FileTransferProtocol;
+import com.networkdesign.protocol.ListingDelta;
+import com.networkdesign.protocol.Tlv;
+import com.networkdesign.transport.TlsContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * 异步文件传输客户端
+ * 与 FileTransferClient 使用相同的协议，但所有操作立即返回 CompletableFuture，
+ * 由共享的 TransferEventLoop 以非阻塞方式驱动。对返回的 future 调用 cancel 会关闭套接字并中断传输。
+ *
+ * 进度回调在事件循环线程中调用，只会调用 onProgress；完成和失败通过返回的 future 通知
+ */
+public class AsyncFileTransferClient {
+    private final String serverAddress;
+    private final int serverPort;
+    private final TransferEventLoop eventLoop;
+    private volatile TlsContext tlsContext;
+
+    public AsyncFileTransferClient(String serverAddress, int serverPort) {
+        this(serverAddress, serverPort, TransferEventLoop.shared());
+    }
+
+    public AsyncFileTransferClient(String serverAddress, int serverPort, TransferEventLoop eventLoop) {
+        this.serverAddress = serverAddress;
+        this.serverPort = serverPort;
+        this.eventLoop = eventLoop;
+    }
+
+    /**
+     * 使用 TLS 连接服务器，握手在事件循环中以非阻塞方式完成
+     * @param context TLS 配置，为 null 表示明文连接
+     */
+    public void setTls(TlsContext context) {
+        this.tlsContext = context;
+    }
+
+    /**
+     * 获取服务器上的文件列表（与 FileTransferClient 共用本地缓存，列表没有变化时服务器只返回 NOT_MODIFIED）
+     */
+    public CompletableFuture<String[]> getFileList() {
+        return submit(new ListTransfer(address(), serverAddress + ":" + serverPort));
+    }
+
+    /**
+     * 上传文件，服务器上已存在同名文件时失败
+     * @param callback 进度回调，可以为 null
+     */
+    public CompletableFuture<Void> uploadFile(String filePath, FileTransferClient.ProgressCallback callback) {
+        return uploadFile(filePath, false, callback);
+    }
+
+    /**
+     * 上传文件
+     * @param replace 为 true 时原子地替换服务器上的同名文件
+     * @param callback 进度回调，可以为 null
+     */
+    public CompletableFuture<Void> uploadFile(String filePath, boolean replace, FileTransferClient.ProgressCallback callback) {
+        File file = new File(filePath);
+        if (!file.isFile()) {
+            return notifyCallback(CompletableFuture.failedFuture(new IOException("文件不存在: " + filePath)),
+                    callback, "上传文件失败: ");
+        }
+        return notifyCallback(submit(new UploadTransfer(address(), file.toPath(), file.length(), replace, callback)),
+                callback, "上传文件失败: ");
+    }
+
+    /**
+     * 下载指定文件到 saveDir
+     * @param callback 进度回调，可以为 null
+     */
+    public CompletableFuture<Void> downloadSpecificFile(String fileName, String saveDir,
+                                                         FileTransferClient.ProgressCallback callback) {
+        return notifyCallback(submit(new DownloadTransfer(address(), fileName, Paths.get(saveDir), callback)),
+                callback, "下载文件失败: ");
+    }
+
+    /**
+     * 传输结束时回调 onComplete 或 onError（ProgressReporter 随之关闭）
+     */
+    private static <T> CompletableFuture<T> notifyCallback(CompletableFuture<T> future,
+                                                           FileTransferClient.ProgressCallback callback, String prefix) {
+        if (callback != null) {
+            future.whenComplete((result, error) -> {
+                if (error == null) {
+                    callback.onComplete();
+                } else {
+                    Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                    callback.onError(prefix + (cause instanceof CancellationException ? "已取消" : cause.getMessage()));
+                }
+            });
+        }
+        return future;
+    }
+
+    private InetSocketAddress address() {
+        return new InetSocketAddress(serverAddress, serverPort);
+    }
+
+    private <T> CompletableFuture<T> submit(AsyncTransfer<T> transfer) {
+        transfer.useTls(tlsContext);
+        eventLoop.register(transfer);
+        return transfer.future();
+    }
+
+    /**
+     * 文件列表请求
+     */
+    private static final class ListTransfer extends AsyncTransfer<String[]> {
+        private final String server;
+        private ListingCache cached;
+
+        ListTransfer(InetSocketAddress address, String server) {
+            super(address);
+            this.server = server;
+        }
+
+        @Override
+        protected void onConnected() {
+            cached = ListingCache.get(server);
+            send(FileTransferProtocol.REQUEST_FILE_LIST,
+                    ListingCache.condition(cached).encode(version()));
+        }
+
+        @Override
+        protected void onMessage(byte type, byte[] payload) throws IOException {
+            if (type == FileTransferProtocol.ERROR) {
+                throw new IOException(payload != null ? text(payload) : "服务器错误");
+            }
+            if (type == FileTransferProtocol.NOT_MODIFIED || type == FileTransferProtocol.FILE_LIST_DELTA) {
+                ListingDelta delta = ListingDelta.decode(payload, version());
+                complete(ListingCache.update(server, cached, type, delta).toArray(new String[0]));
+                return;
+            }
+            if (type != FileTransferProtocol.FILE_LIST) {
+                throw new IOException("获取文件列表时收到意外消息类型: " + type);
+            }
+            if (payload == null) {
+                complete(new String[0]);
+                return;
+            }
+            if (version() >= FileTransferProtocol.VERSION_2) {
+                List<String> names = new ArrayList<>();
+                Tlv.Reader reader = new Tlv.Reader(payload);
+                while (reader.next()) {
+                    if (reader.tag() == FileTransferProtocol.TAG_NAME) {
+                        names.add(reader.stringValue());
+                    }
+                }
+                complete(names.toArray(new String[0]));
+                return;
+            }
+            complete(Arrays.stream(new String(payload).split("\\|"))
+                    .filter(name -> !name.isEmpty())
+                    .toArray(String[]::new));
+        }
+    }
+
+    /**
+     * 文件上传
+     */
+    private static final class UploadTransfer extends AsyncTransfer<Void> {
+        private static final int CHUNK_SIZE = FileTransferProtocol.MAX_PACKET_SIZE - FileTransferProtocol.HEADER_SIZE;
+        private static final int FRAMES_PER_WRITE = 8;   // 每次发送队列清空后最多读入的数据包数
+
+        private final Path path;
+        private final long fileSize;
+        private final boolean replace;
+        private final FileTransferClient.ProgressCallback callback;
+        private FileChannel fileIn;
+        private long bytesSent;
+        private boolean awaitingReady = true;
+        private boolean streaming;
+
+        UploadTransfer(InetSocketAddress address, Path path, long fileSize, boolean replace,
+                       FileTransferClient.ProgressCallback callback) {
+            super(address);
+            this.path = path;
+            this.fileSize = fileSize;
+            this.replace = replace;
+            this.callback = callback;
+        }
+
+        @Override
+        protected void onConnected() throws IOException {
+            String name = path.getFileName().toString();
+            byte[] fileInfo;
+            if (version() >= FileTransferProtocol.VERSION_2) {
+                fileInfo = new FileMetadata(name, fileSize, -1, null, replace ? FileMetadata.FLAG_REPLACE : 0,
+                        Collections.emptyList()).encode();
+            } else if (replace) {
+                throw new IOException("服务器只支持协议版本 1，无法替换同名文件: " + name);
+            } else {
+                fileInfo = (name + "|" + fileSize).getBytes();
+            }
+            send(FileTransferProtocol.FILE_INFO, fileInfo);
+        }
+
+        @Override
+        protected void onMessage(byte type, byte[] payload) throws IOException {
+            if (type == FileTransferProtocol.ERROR) {
+                throw new IOException(payload != null ? text(payload) : "服务器错误");
+            }
+            if (type != FileTransferProtocol.TRANSFER_COMPLETE) {
+                throw new IOException("上传时收到意外消息类型: " + type);
+            }
+            if (awaitingReady) {
+                // 服务器已准备好接收数据
+                awaitingReady = false;
+                streaming = true;
+                fileIn = FileChannel.open(path, StandardOpenOption.READ);
+                produce();
+            } else if (!streaming) {
+                // 服务器确认上传完成
+                complete(null);
+            } else {
+                throw new IOException("数据发送完成前收到服务器的完成消息");
+            }
+        }
+
+        @Override
+        protected void onWritable() throws IOException {
+            if (streaming) {
+                produce();
+            }
+        }
+
+        /**
+         * 从文件读取下一批数据包放入发送队列
+         */
+        private void produce() throws IOException {
+            for (int i = 0; i < FRAMES_PER_WRITE && streaming; i++) {
+                int chunk = (int) Math.min(CHUNK_SIZE, fileSize - bytesSent);
+                if (chunk == 0) {
+                    streaming = false;
+                    fileIn.close();
+                    send(FileTransferProtocol.TRANSFER_COMPLETE, null);
+                    return;
+                }
+                ByteBuffer frame = allocateFrame(FileTransferProtocol.FILE_DATA, chunk);
+                while (frame.hasRemaining()) {
+                    if (fileIn.read(frame) == -1) {
+                        throw new IOException("文件在上传过程中被截断: " + path);
+                    }
+                }
+                frame.flip();
+                sendFrame(frame);
+
+                bytesSent += chunk;
+                if (callback != null) {
+                    callback.onProgress(bytesSent, fileSize);
+                }
+            }
+        }
+
+        @Override
+        protected void onClosed(boolean success) {
+            closeQuietly(fileIn);
+        }
+    }
+
+    /**
+     * 文件下载
+     */
+    private static final class DownloadTransfer extends AsyncTransfer<Void> {
+        private final String fileName;
+        private final Path saveDir;
+        private final FileTransferClient.ProgressCallback callback;
+        private Path filePath;
+        private FileChannel fileOut;
+        private long fileSize = -1;
+        private long bytesReceived;
+
+        DownloadTransfer(InetSocketAddress address, String fileName, Path saveDir, FileTransferClient.ProgressCallback callback) {
+            super(address);
+            this.fileName = fileName;
+            this.saveDir = saveDir;
+            this.callback = callback;
+        }
+
+        @Override
+        protected void onConnected() {
+            send(FileTransferProtocol.REQUEST_FILE, encodeText(fileName));
+        }
+
+        @Override
+        protected void onMessage(byte type, byte[] payload) throws IOException {
+            if (type == FileTransferProtocol.ERROR) {
+                throw new IOException(payload != null ? text(payload) : "服务器错误");
+            }
+            if (fileSize < 0) {
+                if (type != FileTransferProtocol.FILE_INFO || payload == null) {
+                    throw new IOException("下载时收到意外消息类型: " + type);
+                }
+                openTarget(payload);
+            } else if (bytesReceived < fileSize) {
+                if (type != FileTransferProtocol.FILE_DATA || payload == null) {
+                    throw new IOException("接收文件数据时收到意外消息类型: " + type);
+                }
+                int count = (int) Math.min(payload.length, fileSize - bytesReceived);
+                ByteBuffer data = ByteBuffer.wrap(payload, 0, count);
+                while (data.hasRemaining()) {
+                    fileOut.write(data);
+                }
+                bytesReceived += count;
+                if (callback != null) {
+                    callback.onProgress(bytesReceived, fileSize);
+                }
+            } else {
+                if (type != FileTransferProtocol.TRANSFER_COMPLETE) {
+                    // 与阻塞客户端一致：数据已完整接收，只给出警告
+                    System.err.println("未收到服务器的传输完成消息，收到类型: " + type);
+                }
+                fileOut.close();
+                complete(null);
+            }
+        }
+
+        /**
+         * 解析文件信息并创建目标文件
+         */
+        private void openTarget(byte[] payload) throws IOException {
+            String receivedFileName;
+            long size;
+            if (version() >= FileTransferProtocol.VERSION_2) {
+                FileMetadata metadata = FileMetadata.decode(payload);
+                receivedFileName = metadata.getName();
+                size = metadata.getSize();
+            } else {
+                String fileInfo = new String(payload);
+                int separator = fileInfo.lastIndexOf('|');
+                if (separator < 0) {
+                    throw new IOException("无效的文件信息格式从服务器: " + fileInfo);
+                }
+                receivedFileName = fileInfo.substring(0, separator);
+                try {
+                    size = Long.parseLong(fileInfo.substring(separator + 1));
+                } catch (NumberFormatException e) {
+                    throw new IOException("无效的文件信息格式从服务器: " + fileInfo);
+                }
+            }
+            if (!receivedFileName.equals(fileName)) {
+                throw new IOException("服务器返回的文件名与请求不匹配: 请求=" + fileName + ", 接收=" + receivedFileName);
+            }
+
+            Files.createDirectories(saveDir);
+            filePath = saveDir.resolve(fileName);
+            fileOut = FileChannel.open(filePath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            fileSize = size;
+        }
+
+        @Override
+        protected void onClosed(boolean success) {
+            closeQuietly(fileOut);
+            if (!success && filePath != null) {
+                try {
+                    Files.deleteIfExists(filePath); // 删除部分传输的文件
+                } catch (IOException ignored) {
+                    // 忽略删除失败
+                }
+            }
+        }
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // 忽略关闭时的异常
+            }
+        }
+    }
+}
@@ -0,0 +1,488 @@
+package com.networkdesign.client;
+
+import com.networkdesign.protocol.FileTransferProtocol;
+import com.networkdesign.protocol.Varint;
+import com.networkdesign.transport.TlsChannel;
+import com.networkdesign.transport.TlsContext;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 非阻塞传输的基类
+ * 在事件循环线程中完成连接、TLS 握手（启用时）、协议版本协商、协议帧的拆包和发送，子类只需处理完整的消息。
+ * 与 FileTransferClient 一样先发送 HELLO 协商版本 2，但不声明任何可选能力；版本 1 的服务器拒绝后按版本 1 重新连接。
+ * 除 cancel 外，所有方法都只在所属的选择器线程中调用
+ */
+abstract class AsyncTransfer<T> {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    /** 服务器（主机:端口）协商的协议版本，已知支持版本 2 时请求紧跟 HELLO 发出，不等待响应 */
+    private static final Map<String, Integer> SERVER_VERSIONS = new ConcurrentHashMap<>();
+
+    private final InetSocketAddress address;
+    private final String serverKey;
+    private final TransferFuture future = new TransferFuture();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<>();
+    private TransferEventLoop.Worker worker;
+    private SocketChannel channel;
+    private TlsContext tlsContext;
+    private TlsChannel tls;          // 为 null 表示明文连接
+    private SelectionKey key;
+    private byte payloadType;
+    private ByteBuffer payload;      // 正在接收的消息数据，为 null 表示正在等待消息头
+    private int version = FileTransferProtocol.VERSION_2;   // 当前连接使用的协议版本
+    private boolean awaitingHello;   // HELLO 的响应尚未收到（它总是使用版本 1 的消息头）
+    private boolean helloPipelined;  // 请求已按缓存的版本发出
+    private boolean reconnect;       // 服务器拒绝了 HELLO，需要按版本 1 重新连接
+    private boolean closed;
+
+    AsyncTransfer(InetSocketAddress address) {
+        this.address = address;
+        this.serverKey = address.getHostString() + ":" + address.getPort();
+    }
+
+    CompletableFuture<T> future() {
+        return future;
+    }
+
+    void bind(TransferEventLoop.Worker worker) {
+        this.worker = worker;
+    }
+
+    /**
+     * 启动前设置 TLS 配置，为 null 表示明文连接
+     */
+    void useTls(TlsContext context) {
+        this.tlsContext = context;
+    }
+
+    /**
+     * 发起非阻塞连接
+     */
+    void start() {
+        if (future.isDone()) {
+            return; // 启动前已被取消
+        }
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            boolean connected = channel.connect(address);
+            key = channel.register(worker.selector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+            if (connected) {
+                onTransportConnected();
+            }
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * 处理选择器就绪事件
+     */
+    void handle(SelectionKey readyKey) {
+        try {
+            if (readyKey.isValid() && readyKey.isConnectable()) {
+                channel.finishConnect();
+                readyKey.interestOps(SelectionKey.OP_READ);
+                onTransportConnected();
+                return;
+            }
+            if (tls != null && !tls.isHandshakeComplete()) {
+                continueHandshake();
+                return;
+            }
+            if (readyKey.isValid() && readyKey.isWritable()) {
+                flush();
+            }
+            if (readyKey.isValid() && readyKey.isReadable()) {
+                readMessages();
+            }
+        } catch (Exception e) {
+            fail(e);
+        }
+    }
+
+    private void onTransportConnected() throws IOException {
+        if (tlsContext == null) {
+            openSession();
+            return;
+        }
+        channel.socket().setTcpNoDelay(true); // 排队的帧已合并成记录后才写出
+        tls = TlsChannel.client(tlsContext, address.getHostString(), address.getPort(), channel, channel);
+        continueHandshake();
+    }
+
+    /**
+     * 推进 TLS 握手，完成后才通知子类连接已建立
+     */
+    private void continueHandshake() throws IOException {
+        if (tls.handshake()) {
+            key.interestOps(SelectionKey.OP_READ);
+            openSession();
+            if (tls.hasBufferedInput()) {
+                readMessages(); // 握手的最后一批数据可能已经带上了服务器的响应
+            }
+            return;
+        }
+        key.interestOps(tls.hasPendingOutput() ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+    }
+
+    /**
+     * 发送 HELLO 协商协议版本，协商完成（或已知服务器支持版本 2）后通知子类连接已建立
+     */
+    private void openSession() throws IOException {
+        Integer known = SERVER_VERSIONS.get(serverKey);
+        if (known != null && known < FileTransferProtocol.VERSION_2) {
+            version = FileTransferProtocol.VERSION_1;
+        }
+        if (version < FileTransferProtocol.VERSION_2) {
+            onConnected();
+            return;
+        }
+        FileTransferProtocol.Message hello = new FileTransferProtocol.Hello(version, 0).toMessage();
+        sendFrame(frame(hello.getType(), hello.getPayload(), FileTransferProtocol.VERSION_1));
+        awaitingHello = true;
+        if (known != null) {
+            helloPipelined = true;
+            onConnected();
+        }
+    }
+
+    /**
+     * 处理 HELLO 的响应
+     */
+    private void onHello(byte type, byte[] data) throws IOException {
+        awaitingHello = false;
+        if (type == FileTransferProtocol.ERROR) {
+            SERVER_VERSIONS.put(serverKey, FileTransferProtocol.VERSION_1);
+            if (helloPipelined) {
+                throw new IOException("服务器不支持协议版本 " + version + "，请重试");
+            }
+            // 版本 1 的服务器以 ERROR 拒绝 HELLO 并关闭连接，重新连接后按版本 1 通信
+            version = FileTransferProtocol.VERSION_1;
+            reconnect = true;
+            return;
+        }
+        int agreed = FileTransferProtocol.Hello.parse(new FileTransferProtocol.Message(type, data)).getVersion();
+        if (helloPipelined && agreed != version) {
+            SERVER_VERSIONS.remove(serverKey);
+            throw new IOException("服务器不支持协议版本 " + version + "，请重试");
+        }
+        version = agreed;
+        SERVER_VERSIONS.put(serverKey, agreed);
+        if (!helloPipelined) {
+            onConnected();
+        }
+    }
+
+    /**
+     * 关闭被拒绝的连接，按版本 1 重新连接
+     */
+    private void restart() {
+        reconnect = false;
+        if (tls != null) {
+            tls.close();
+            tls = null;
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // 忽略关闭时的异常
+        }
+        readBuffer.clear();
+        payload = null;
+        writeQueue.clear();
+        start();
+    }
+
+    /**
+     * 连接建立后调用，子类在此发送请求
+     */
+    protected abstract void onConnected() throws IOException;
+
+    /**
+     * 收到一条完整消息
+     * @param payload 消息数据，长度为0时为 null（与 ProtocolUtil.readMessage 一致）
+     */
+    protected abstract void onMessage(byte type, byte[] payload) throws IOException;
+
+    /**
+     * 发送队列已清空时调用，子类可在此继续产生数据（上传时用于背压）
+     */
+    protected void onWritable() throws IOException {
+    }
+
+    /**
+     * 传输结束（成功、失败或取消）后调用，用于释放文件等资源
+     */
+    protected void onClosed(boolean success) {
+    }
+
+    /**
+     * 连接协商的协议版本，onConnected 之后才确定
+     */
+    protected int version() {
+        return version;
+    }
+
+    /**
+     * 文本负载的编码：版本 2 固定为 UTF-8，版本 1 沿用平台默认字符集
+     */
+    protected byte[] encodeText(String text) {
+        return version >= FileTransferProtocol.VERSION_2 ? text.getBytes(StandardCharsets.UTF_8) : text.getBytes();
+    }
+
+    protected String text(byte[] payload) {
+        if (payload == null) {
+            return "";
+        }
+        return version >= FileTransferProtocol.VERSION_2
+                ? new String(payload, StandardCharsets.UTF_8) : new String(payload);
+    }
+
+    /**
+     * 发送一条协议消息
+     */
+    protected void send(byte type, byte[] data) {
+        sendFrame(frame(type, data, version));
+    }
+
+    /**
+     * 分配一个已写好消息头的帧，位置在数据起始处；调用方填满数据后 flip 再交给 sendFrame
+     */
+    protected ByteBuffer allocateFrame(byte type, int length) {
+        return allocateFrame(type, length, version);
+    }
+
+    private static ByteBuffer allocateFrame(byte type, int length, int version) {
+        if (version < FileTransferProtocol.VERSION_2) {
+            return ByteBuffer.allocate(FileTransferProtocol.HEADER_SIZE + length).put(type).putInt(length);
+        }
+        byte[] header = new byte[1 + Varint.size(length)];
+        header[0] = type;
+        Varint.write(length, header, 1);
+        return ByteBuffer.allocate(header.length + length).put(header);
+    }
+
+    private static ByteBuffer frame(byte type, byte[] data, int version) {
+        ByteBuffer frame = allocateFrame(type, data != null ? data.length : 0, version);
+        if (data != null) {
+            frame.put(data);
+        }
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * 发送已编码好的消息帧
+     */
+    protected void sendFrame(ByteBuffer frame) {
+        writeQueue.add(frame);
+        if (key.isValid()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    protected void complete(T value) {
+        if (future.complete(value)) {
+            close(true);
+        }
+    }
+
+    void fail(Throwable error) {
+        if (future.completeExceptionally(error)) {
+            close(false);
+        }
+    }
+
+    private void flush() throws IOException {
+        while (true) {
+            if (!drainQueue()) {
+                return; // 套接字发送缓冲区已满，等待下次可写
+            }
+            onWritable();
+            if (writeQueue.isEmpty() || future.isDone()) {
+                break;
+            }
+        }
+        if (key.isValid()) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * 发送排队的消息帧
+     * @return 全部发出时返回 true
+     */
+    private boolean drainQueue() throws IOException {
+        if (tls != null) {
+            // 一次交给 TLS 通道，排队的多个帧合并成较大的记录
+            if (!writeQueue.isEmpty()) {
+                tls.write(writeQueue.toArray(new ByteBuffer[0]));
+                while (!writeQueue.isEmpty() && !writeQueue.peek().hasRemaining()) {
+                    writeQueue.poll();
+                }
+            }
+            return writeQueue.isEmpty() && tls.flush();
+        }
+        while (!writeQueue.isEmpty()) {
+            ByteBuffer head = writeQueue.peek();
+            channel.write(head);
+            if (head.hasRemaining()) {
+                return false;
+            }
+            writeQueue.poll();
+        }
+        return true;
+    }
+
+    private void readMessages() throws IOException {
+        // TLS 通道可能已经读入了不止一个记录，这部分数据不会再触发选择器，需要一直读到通道内没有剩余
+        boolean progressed;
+        do {
+            progressed = readChunk();
+        } while (progressed && tls != null && tls.hasBufferedInput() && !future.isDone());
+    }
+
+    /**
+     * 读取一次并处理其中完整的消息
+     * @return 读到了数据时返回 true
+     */
+    private boolean readChunk() throws IOException {
+        int n = tls != null ? tls.read(readBuffer) : channel.read(readBuffer);
+        if (n == -1) {
+            throw new EOFException("连接已被服务器关闭");
+        }
+        readBuffer.flip();
+        while (!future.isDone() && !reconnect) {
+            if (payload == null) {
+                long length = readHeader(awaitingHello ? FileTransferProtocol.VERSION_1 : version);
+                if (length < 0) {
+                    break;
+                }
+                if (length > FileTransferProtocol.maxPayloadSize(payloadType)) {
+                    throw new ProtocolException("无效的消息长度: 类型 " + payloadType + "，" + length + " 字节");
+                }
+                if (length == 0) {
+                    dispatch(payloadType, null);
+                    continue;
+                }
+                payload = ByteBuffer.allocate((int) length);
+            }
+            int count = Math.min(readBuffer.remaining(), payload.remaining());
+            if (count == 0) {
+                break;
+            }
+            ByteBuffer chunk = readBuffer.duplicate();
+            chunk.limit(chunk.position() + count);
+            payload.put(chunk);
+            readBuffer.position(readBuffer.position() + count);
+            if (!payload.hasRemaining()) {
+                byte[] data = payload.array();
+                payload = null;
+                dispatch(payloadType, data);
+            }
+        }
+        readBuffer.compact();
+        if (reconnect) {
+            restart();
+            return false;
+        }
+        return n > 0;
+    }
+
+    /**
+     * 从接收缓冲区解析消息头
+     * @param headerVersion 消息头的格式（版本 2 的长度为变长整数）
+     * @return 消息长度，消息头尚未完整到达时返回 -1 且不移动缓冲区位置
+     */
+    private long readHeader(int headerVersion) throws ProtocolException {
+        if (headerVersion < FileTransferProtocol.VERSION_2) {
+            if (readBuffer.remaining() < FileTransferProtocol.HEADER_SIZE) {
+                return -1;
+            }
+            payloadType = readBuffer.get();
+            return readBuffer.getInt() & 0xFFFFFFFFL;
+        }
+        int start = readBuffer.position();
+        if (readBuffer.remaining() < 2) {
+            return -1;
+        }
+        byte type = readBuffer.get();
+        long length = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (shift > 28) {
+                throw new ProtocolException("无效的消息长度");
+            }
+            if (!readBuffer.hasRemaining()) {
+                readBuffer.position(start);
+                return -1;
+            }
+            byte b = readBuffer.get();
+            length |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        payloadType = type;
+        return length;
+    }
+
+    private void dispatch(byte type, byte[] data) throws IOException {
+        if (awaitingHello) {
+            onHello(type, data);
+        } else {
+            onMessage(type, data);
+        }
+    }
+
+    /**
+     * 关闭连接，释放资源；必须在选择器线程中调用
+     */
+    private void close(boolean success) {
+        if (worker != null && !worker.inLoop()) {
+            worker.execute(() -> close(success));
+            return;
+        }
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (tls != null) {
+            tls.close();
+        }
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException ignored) {
+            // 忽略关闭时的异常
+        }
+        onClosed(success);
+    }
+
+    /**
+     * 取消时关闭套接字，使正在进行的传输立即中断
+     */
+    private final class TransferFuture extends CompletableFuture<T> {
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                close(false);
+            }
+            return cancelled;
+        }
+    }
+}
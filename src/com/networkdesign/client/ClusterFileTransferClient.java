@@ -0,0 +1,159 @@
+package com.networkdesign.client;
+
+import com.networkdesign.util.HashRing;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * 集群客户端
+ * 缓存集群的哈希环，上传和下载直接发往文件的归属节点；节点返回 NOT_OWNER 时
+ * 用其携带的新环更新缓存后重试。列表请求并行发往所有节点后合并去重。
+ * 集群保存多个副本时，下载同时从所有副本获取文件的不同分段（见 MultiSourceDownloader）
+ */
+public class ClusterFileTransferClient {
+    private static final int MAX_REDIRECTS = 3;
+
+    private final List<String> seeds;
+    private volatile HashRing ring;
+
+    /**
+     * @param seedNodes 用于获取哈希环的节点地址（主机:端口），至少一个
+     */
+    public ClusterFileTransferClient(String... seedNodes) {
+        if (seedNodes.length == 0) {
+            throw new IllegalArgumentException("至少需要一个种子节点");
+        }
+        this.seeds = Arrays.asList(seedNodes);
+    }
+
+    /**
+     * 从种子节点（以及已知的节点）重新获取哈希环
+     */
+    public HashRing refreshRing() throws IOException {
+        List<String> candidates = new ArrayList<>(seeds);
+        HashRing known = ring;
+        if (known != null) {
+            candidates.addAll(known.getNodes());
+        }
+        IOException last = null;
+        for (String node : candidates) {
+            try {
+                update(HashRing.decode(client(node).getRingMap()));
+                return ring;
+            } catch (IOException e) {
+                last = e;
+            }
+        }
+        throw new IOException("无法从任何节点获取哈希环", last);
+    }
+
+    /**
+     * 上传文件到其归属节点
+     */
+    public void uploadFile(String filePath, boolean replace, FileTransferClient.ProgressCallback callback) throws IOException {
+        String name = new File(filePath).getName();
+        route(name, callback, (current, quiet) -> client(current.owner(name)).uploadFile(filePath, replace, quiet));
+    }
+
+    /**
+     * 下载文件：单副本时从归属节点下载，多副本时从所有副本并行下载并校验内容哈希
+     */
+    public void downloadSpecificFile(String fileName, String saveDir, FileTransferClient.ProgressCallback callback) throws IOException {
+        route(fileName, callback, (current, quiet) -> {
+            if (current.getReplicas() > 1) {
+                new MultiSourceDownloader(current.owners(fileName)).download(fileName, saveDir, quiet);
+            } else {
+                client(current.owner(fileName)).downloadSpecificFile(fileName, saveDir, quiet);
+            }
+        });
+    }
+
+    /**
+     * 获取所有节点上的文件列表（重新平衡期间同一文件可能暂时位于两个节点，合并时去重）
+     */
+    public String[] getFileList() throws IOException {
+        HashRing current = currentRing();
+        Set<String> merged = new TreeSet<>();
+        try {
+            current.getNodes().parallelStream().map(node -> {
+                try {
+                    return client(node).getFileList();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }).forEachOrdered(files -> merged.addAll(Arrays.asList(files)));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return merged.toArray(new String[0]);
+    }
+
+    public HashRing getRing() {
+        return ring;
+    }
+
+    private void route(String name, FileTransferClient.ProgressCallback callback, Operation operation) throws IOException {
+        // 重定向导致的失败不通知调用方，只有最终失败才回调 onError
+        FileTransferClient.ProgressCallback quiet = new FileTransferClient.ProgressCallback() {
+            @Override
+            public void onProgress(long bytesTransferred, long totalBytes) {
+                callback.onProgress(bytesTransferred, totalBytes);
+            }
+
+            @Override
+            public void onComplete() {
+                callback.onComplete();
+            }
+
+            @Override
+            public void onError(String error) {
+            }
+        };
+        HashRing current = currentRing();
+        for (int attempt = 0; ; attempt++) {
+            try {
+                operation.run(current, quiet);
+                return;
+            } catch (NotOwnerException e) {
+                if (attempt >= MAX_REDIRECTS) {
+                    callback.onError(e.getMessage());
+                    throw e;
+                }
+                update(HashRing.decode(e.getRingMap()));
+                current = ring;
+            } catch (IOException e) {
+                callback.onError(e.getMessage());
+                throw e;
+            }
+        }
+    }
+
+    private HashRing currentRing() throws IOException {
+        HashRing current = ring;
+        return current != null ? current : refreshRing();
+    }
+
+    /**
+     * 只接受更新的环
+     */
+    private synchronized void update(HashRing candidate) {
+        if (ring == null || candidate.getEpoch() > ring.getEpoch()) {
+            ring = candidate;
+        }
+    }
+
+    private static FileTransferClient client(String node) {
+        return new FileTransferClient(HashRing.host(node), HashRing.port(node));
+    }
+
+    private interface Operation {
+        void run(HashRing ring, FileTransferClient.ProgressCallback callback) throws IOException;
+    }
+}
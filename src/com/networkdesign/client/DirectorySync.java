@@ -0,0 +1,582 @@
+package com.networkdesign.client;
+
+import com.networkdesign.util.ContentHash;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * 目录同步：把本地目录中的文件持续推送到服务器（单向，本地为准）
+ * 启动时与服务器的文件列表对账，只推送服务器上没有的和内容不同的文件；之后用 WatchService 监视目录，
+ * 一批变化在安静 quietMillis（或最早的变化已等待 maxDelayMillis）后一起处理，写文件过程中的多次修改只推送一次。
+ * 推送按大小从小到大排列，由 parallelism 个工作线程分担，每个工作线程在整批推送中复用同一个客户端。
+ *
+ * 本地清单（SyncManifest，保存在同步目录中）记录每个文件的大小、修改时间和内容哈希，
+ * 没有变化的文件不必重新计算哈希；清单还记录服务器上已确认的哈希，已同步的文件不再连接服务器核对。
+ * 服务器的文件名没有目录层次，只同步目录中的普通文件，子目录被忽略；本地删除的文件不会从服务器删除
+ */
+public class DirectorySync implements Closeable {
+    private static final long DEFAULT_QUIET_MILLIS = 500;
+    private static final long DEFAULT_MAX_DELAY_MILLIS = 5000;
+    private static final long RETRY_MILLIS = 10_000;    // 推送失败的文件在这段时间后重试
+
+    private static final FileTransferClient.ProgressCallback NO_PROGRESS = new FileTransferClient.ProgressCallback() {
+        @Override
+        public void onProgress(long bytesTransferred, long totalBytes) {
+        }
+
+        @Override
+        public void onComplete() {
+        }
+
+        @Override
+        public void onError(String error) {
+        }
+    };
+
+    /**
+     * 同步结果的监听器，在同步线程或推送线程中调用
+     */
+    public interface Listener {
+        void filePushed(String name, long size);
+
+        void fileFailed(String name, Exception error);
+
+        void roundFinished(Result result);
+    }
+
+    private final Path directory;
+    private final String serverAddress;
+    private final int serverPort;
+    private final SyncManifest manifest;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private volatile Consumer<FileTransferClient> clientOptions = client -> { };
+    private volatile int parallelism = 4;
+    private volatile long quietMillis = DEFAULT_QUIET_MILLIS;
+    private volatile long maxDelayMillis = DEFAULT_MAX_DELAY_MILLIS;
+    private ExecutorService pushers;
+    private WatchService watchService;
+    private Thread watcher;
+    private volatile boolean running;
+
+    /**
+     * 读取目录中的本地清单（不存在时下次保存时创建）
+     */
+    public DirectorySync(Path directory, String serverAddress, int serverPort) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            throw new IOException("不是目录: " + directory);
+        }
+        this.directory = directory.toAbsolutePath();
+        this.serverAddress = serverAddress;
+        this.serverPort = serverPort;
+        this.manifest = SyncManifest.load(this.directory.resolve(SyncManifest.FILE_NAME),
+                serverAddress + ":" + serverPort);
+    }
+
+    /**
+     * 创建客户端之后对其进行的设置（传输方式、TLS 等）
+     */
+    public void setClientOptions(Consumer<FileTransferClient> clientOptions) {
+        this.clientOptions = clientOptions;
+    }
+
+    /**
+     * 同时推送的文件数（start 之前设置）
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("并发数必须大于0: " + parallelism);
+        }
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * 设置合并变化的等待时间
+     * @param quietMillis 目录安静这么久之后处理积累的变化
+     * @param maxDelayMillis 目录一直在变化时，最早的变化最多等待这么久
+     */
+    public void setDebounce(long quietMillis, long maxDelayMillis) {
+        if (quietMillis < 0 || maxDelayMillis < quietMillis) {
+            throw new IllegalArgumentException("无效的等待时间: " + quietMillis + " / " + maxDelayMillis);
+        }
+        this.quietMillis = quietMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * 开始监视目录：先在后台完成一次完整对账，之后持续推送变化，直到 close
+     */
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        watchService = directory.getFileSystem().newWatchService();
+        directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                StandardWatchEventKinds.ENTRY_DELETE);
+        running = true;
+        watcher = new Thread(this::watchLoop, "directory-sync");
+        watcher.setDaemon(true);
+        watcher.start();
+        System.out.println("开始同步目录: " + directory + " -> " + serverAddress + ":" + serverPort);
+    }
+
+    /**
+     * 停止监视，等待正在进行的推送结束并保存清单
+     */
+    @Override
+    public void close() {
+        Thread thread = null;
+        synchronized (this) {
+            if (running) {
+                running = false;
+                thread = watcher;
+                try {
+                    watchService.close();
+                } catch (IOException ignored) {
+                    // 监视线程随后退出
+                }
+            }
+        }
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            System.out.println("已停止同步目录: " + directory);
+        }
+        synchronized (this) {
+            if (pushers != null) {
+                pushers.shutdown();
+                pushers = null;
+            }
+        }
+        saveManifest();
+    }
+
+    /**
+     * 完整对账一次：扫描整个目录（大小和修改时间没有变化的文件使用清单中的哈希），
+     * 与服务器的文件列表比较后推送服务器上没有的和内容不同的文件。
+     * 清单认为已经同步、但服务器上已被删除的文件也会重新推送
+     */
+    public Result syncAll() throws IOException {
+        Set<String> names = new LinkedHashSet<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path path : stream) {
+                names.add(path.getFileName().toString());
+            }
+        }
+        for (String name : manifest.names()) {
+            if (!names.contains(name)) {
+                manifest.remove(name);
+            }
+        }
+        return sync(names, true);
+    }
+
+    /**
+     * 只处理指定的文件（监视到变化的文件）
+     */
+    public Result sync(Collection<String> names) throws IOException {
+        return sync(names, false);
+    }
+
+    /**
+     * @param fullCheck 为 true 时总是获取服务器的文件列表，清单认为已同步的文件也与列表核对
+     */
+    private Result sync(Collection<String> names, boolean fullCheck) throws IOException {
+        long start = System.nanoTime();
+        List<Candidate> locals = new ArrayList<>();
+        Result result = new Result();
+        for (String name : names) {
+            if (isIgnored(name)) {
+                continue;
+            }
+            try {
+                Candidate local = scan(name);
+                if (local != null) {
+                    locals.add(local);
+                }
+            } catch (IOException e) {
+                result.fail(name);
+                fireFailed(name, e);
+            }
+        }
+
+        // 清单认为已经同步的文件只在完整对账时与服务器的列表核对（服务器上已不存在时清除记录的服务器哈希）；
+        // 其余文件按服务器的列表分为新文件和需要核对哈希的文件
+        Set<String> remote = fullCheck && !locals.isEmpty()
+                ? new HashSet<>(Arrays.asList(newClient().getFileList())) : null;
+        List<Candidate> pending = new ArrayList<>();
+        for (Candidate local : locals) {
+            if (local.entry.isSynced() && remote != null && !remote.contains(local.name)) {
+                local = new Candidate(local.name, local.entry.withRemoteHash(null));
+                manifest.put(local.name, local.entry);
+            }
+            if (local.entry.isSynced()) {
+                result.unchanged.incrementAndGet();
+            } else {
+                pending.add(local);
+            }
+        }
+        if (!pending.isEmpty()) {
+            if (remote == null) {
+                remote = new HashSet<>(Arrays.asList(newClient().getFileList()));
+            }
+            for (Candidate candidate : pending) {
+                // 服务器上没有记录哈希的同名文件先核对内容，相同则不推送
+                candidate.verify = remote.contains(candidate.name) && candidate.entry.remoteHash == null;
+            }
+            push(pending, result);
+        }
+        saveManifest();
+        result.elapsedNanos = System.nanoTime() - start;
+        for (Listener listener : listeners) {
+            listener.roundFinished(result);
+        }
+        return result;
+    }
+
+    /**
+     * 读取文件的当前状态，必要时重新计算哈希
+     * @return 文件已不存在或不是普通文件时返回 null
+     */
+    private Candidate scan(String name) throws IOException {
+        Path path = directory.resolve(name);
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (NoSuchFileException e) {
+            manifest.remove(name);
+            return null;
+        }
+        if (!attributes.isRegularFile()) {
+            manifest.remove(name);
+            return null;
+        }
+        long size = attributes.size();
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        SyncManifest.Entry entry = manifest.get(name);
+        if (entry == null || !entry.matches(size, lastModified)) {
+            long hashedAt = System.currentTimeMillis();
+            String hash;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                hash = ContentHash.of(channel);
+            }
+            // 服务器哈希属于服务器上的文件，与本地是否修改无关，保留下来
+            entry = new SyncManifest.Entry(size, lastModified, hashedAt, hash, entry != null ? entry.remoteHash : null);
+            manifest.put(name, entry);
+        }
+        return new Candidate(name, entry);
+    }
+
+    /**
+     * 由工作线程推送一批文件，小文件优先；每个工作线程复用一个客户端
+     */
+    private void push(List<Candidate> candidates, Result result) {
+        candidates.sort(Comparator.comparingLong(c -> c.entry.size));
+        ConcurrentLinkedQueue<Candidate> queue = new ConcurrentLinkedQueue<>(candidates);
+        int workers = Math.min(parallelism, candidates.size());
+        List<Future<?>> futures = new ArrayList<>();
+        ExecutorService executor = pushers();
+        for (int i = 0; i < workers; i++) {
+            futures.add(executor.submit(() -> {
+                FileTransferClient client = newClient();
+                Candidate candidate;
+                while ((candidate = queue.poll()) != null) {
+                    pushOne(client, candidate, result);
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                System.err.println("推送文件时发生错误: " + e.getCause());
+            }
+        }
+    }
+
+    private void pushOne(FileTransferClient client, Candidate candidate, Result result) {
+        String name = candidate.name;
+        SyncManifest.Entry entry = candidate.entry;
+        try {
+            if (candidate.verify) {
+                String remoteHash = client.downloadRange(name, 0, 0, null).getContentHash();
+                if (entry.hash.equals(remoteHash)) {
+                    manifest.put(name, entry.withRemoteHash(remoteHash));
+                    result.unchanged.incrementAndGet();
+                    return;
+                }
+            }
+            Path path = directory.resolve(name);
+            client.uploadFile(path.toString(), true, NO_PROGRESS);
+            // 推送期间文件又被修改时，服务器上的内容与清单中的哈希不一定相同，留给下一批处理
+            if (Files.size(path) == entry.size && Files.getLastModifiedTime(path).toMillis() == entry.lastModified) {
+                manifest.put(name, entry.withRemoteHash(entry.hash));
+            }
+            result.pushed.incrementAndGet();
+            result.bytes.addAndGet(entry.size);
+            for (Listener listener : listeners) {
+                listener.filePushed(name, entry.size);
+            }
+        } catch (IOException | RuntimeException e) {
+            result.fail(name);
+            fireFailed(name, e);
+        }
+    }
+
+    /**
+     * 监视线程：完整对账一次，然后合并目录变化并分批处理，失败的文件稍后重试
+     */
+    private void watchLoop() {
+        Set<String> changed = new LinkedHashSet<>();
+        Set<String> retry = new LinkedHashSet<>();
+        boolean rescan = true;
+        boolean retryRescan = false;
+        long firstChange = System.currentTimeMillis();
+        long lastChange = firstChange - quietMillis;
+        long retryAt = 0;
+        try {
+            while (running) {
+                long now = System.currentTimeMillis();
+                if (retryAt > 0 && now >= retryAt) {
+                    if (!rescan && changed.isEmpty()) {
+                        firstChange = now;
+                        lastChange = now - quietMillis;
+                    }
+                    changed.addAll(retry);
+                    rescan |= retryRescan;
+                    retry.clear();
+                    retryRescan = false;
+                    retryAt = 0;
+                }
+                boolean pending = rescan || !changed.isEmpty();
+                if (pending && (now - lastChange >= quietMillis || now - firstChange >= maxDelayMillis)) {
+                    try {
+                        Result result = rescan ? syncAll() : sync(changed);
+                        retry.addAll(result.getFailed());
+                    } catch (IOException e) {
+                        // 服务器不可用等：整批稍后重试
+                        System.err.println("同步目录失败: " + e.getMessage());
+                        retryRescan |= rescan;
+                        retry.addAll(changed);
+                    }
+                    rescan = false;
+                    changed.clear();
+                    if (retryAt == 0 && (retryRescan || !retry.isEmpty())) {
+                        retryAt = System.currentTimeMillis() + RETRY_MILLIS;
+                    }
+                    continue;
+                }
+
+                // 等待下一个事件，有积累的变化时最多等到应当处理的时刻
+                long deadline = pending ? Math.min(lastChange + quietMillis, firstChange + maxDelayMillis)
+                        : retryAt > 0 ? retryAt : 0;
+                WatchKey key = deadline == 0 ? watchService.take()
+                        : watchService.poll(Math.max(1, deadline - now), TimeUnit.MILLISECONDS);
+                if (key == null) {
+                    continue;
+                }
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        rescan = true;      // 丢失了事件，重新扫描整个目录
+                    } else if (!isIgnored(event.context().toString())) {
+                        changed.add(event.context().toString());
+                    }
+                }
+                now = System.currentTimeMillis();
+                if (!pending) {
+                    firstChange = now;
+                }
+                lastChange = now;
+                if (!key.reset()) {
+                    System.err.println("同步目录已不可访问，停止同步: " + directory);
+                    return;
+                }
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            // close 结束监视
+        }
+    }
+
+    private boolean isIgnored(String name) {
+        return name == null || name.startsWith(SyncManifest.FILE_NAME) || name.indexOf('\n') >= 0
+                || name.indexOf('\r') >= 0;
+    }
+
+    private void saveManifest() {
+        try {
+            manifest.save();
+        } catch (IOException e) {
+            System.err.println("保存同步清单失败: " + e.getMessage());
+        }
+    }
+
+    private void fireFailed(String name, Exception error) {
+        for (Listener listener : listeners) {
+            listener.fileFailed(name, error);
+        }
+    }
+
+    private synchronized ExecutorService pushers() {
+        if (pushers == null) {
+            AtomicInteger counter = new AtomicInteger();
+            pushers = Executors.newFixedThreadPool(parallelism, r -> {
+                Thread thread = new Thread(r, "directory-sync-push-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return pushers;
+    }
+
+    private FileTransferClient newClient() {
+        FileTransferClient client = new FileTransferClient(serverAddress, serverPort);
+        clientOptions.accept(client);
+        return client;
+    }
+
+    /**
+     * 待处理的本地文件
+     */
+    private static final class Candidate {
+        final String name;
+        final SyncManifest.Entry entry;
+        boolean verify;     // 服务器上有同名文件但哈希未知，推送前先核对
+
+        Candidate(String name, SyncManifest.Entry entry) {
+            this.name = name;
+            this.entry = entry;
+        }
+    }
+
+    /**
+     * 一次同步的结果
+     */
+    public static final class Result {
+        private final AtomicInteger pushed = new AtomicInteger();
+        private final AtomicInteger unchanged = new AtomicInteger();
+        private final AtomicLong bytes = new AtomicLong();
+        private final Set<String> failed = new HashSet<>();
+        private long elapsedNanos;
+
+        private synchronized void fail(String name) {
+            failed.add(name);
+        }
+
+        public int getPushed() {
+            return pushed.get();
+        }
+
+        public int getUnchanged() {
+            return unchanged.get();
+        }
+
+        public long getBytes() {
+            return bytes.get();
+        }
+
+        public synchronized Set<String> getFailed() {
+            return new HashSet<>(failed);
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format("推送 %d 个文件（%.1f KB），未变化 %d 个，失败 %d 个，用时 %.1f ms", pushed.get(),
+                    bytes.get() / 1024.0, unchanged.get(), failed.size(), elapsedNanos / 1e6);
+        }
+    }
+
+    /**
+     * 命令行同步
+     * 用法: java com.networkdesign.client.DirectorySync --dir=目录 [--host=localhost] [--port=8888]
+     *        [--parallelism=4] [--debounce=500] [--max-delay=5000] [--once=true]
+     */
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("无效参数: " + arg + "（格式: --名称=值）");
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        if (!options.containsKey("dir")) {
+            throw new IllegalArgumentException("缺少参数: --dir=目录");
+        }
+        DirectorySync sync = new DirectorySync(Paths.get(options.get("dir")), options.getOrDefault("host", "localhost"),
+                Integer.parseInt(options.getOrDefault("port", "8888")));
+        sync.setParallelism(Integer.parseInt(options.getOrDefault("parallelism", "4")));
+        sync.setDebounce(Long.parseLong(options.getOrDefault("debounce", String.valueOf(DEFAULT_QUIET_MILLIS))),
+                Long.parseLong(options.getOrDefault("max-delay", String.valueOf(DEFAULT_MAX_DELAY_MILLIS))));
+        sync.addListener(new Listener() {
+            @Override
+            public void filePushed(String name, long size) {
+                System.out.println("已推送: " + name + " (" + size + " 字节)");
+            }
+
+            @Override
+            public void fileFailed(String name, Exception error) {
+                System.err.println("推送失败: " + name + ": " + error.getMessage());
+            }
+
+            @Override
+            public void roundFinished(Result result) {
+                System.out.println("同步完成: " + result);
+            }
+        });
+        if (Boolean.parseBoolean(options.getOrDefault("once", "false"))) {
+            sync.syncAll();
+            sync.close();
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(sync::close));
+        sync.start();
+        Thread.currentThread().join();
+    }
+}
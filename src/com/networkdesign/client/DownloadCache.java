@@ -0,0 +1,297 @@
+package com.networkdesign.client;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 客户端的下载缓存
+ * 下载的文件按内容哈希保存在 objects 目录中（同样内容的不同文件名只存一份），
+ * 索引记录 服务器 + 文件名 -> 内容哈希、服务器上的大小和修改时间，按最近使用的顺序保存在 index 文件中。
+ * 下载前把缓存的哈希发给服务器，内容没有变化时服务器不发送文件数据，直接从缓存恢复到保存目录。
+ *
+ * 缓存文件优先以硬链接放到保存目录（不占额外空间，与缓存位于不同文件系统时改为复制）。
+ * 硬链接与缓存共用同一个文件，保存目录中的文件被原地修改时缓存也随之改变：
+ * 索引记录了缓存文件的大小和修改时间，不一致的条目视为失效，重新下载。
+ * 总大小超过上限时淘汰最久未使用的条目。命中只在内存中调整访问顺序，加入或丢弃条目以及 close 时才写入索引
+ * （进程异常退出时只丢失最近的访问顺序）。索引只在进程内同步，多个进程不能同时使用同一个缓存目录
+ */
+public class DownloadCache implements Closeable {
+    private static final String INDEX_FILE = "index";
+    private static final String OBJECTS_DIR = "objects";
+    private static final String TEMP_PREFIX = "download-";
+
+    private final Path directory;
+    private final Path objects;
+    private final long maxBytes;
+    // 服务器|文件名 -> 条目，按访问顺序排列（最久未使用的在前）
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Integer> references = new HashMap<>();  // 内容哈希 -> 引用它的条目数
+    private long totalBytes;
+    private boolean orderChanged;   // 命中改变了访问顺序，尚未写入索引
+
+    /**
+     * 打开（不存在时创建）缓存目录，丢弃缓存文件已丢失或被修改的条目和上次运行遗留的临时文件
+     * @param maxBytes 缓存文件总大小的上限
+     */
+    public DownloadCache(Path directory, long maxBytes) throws IOException {
+        this.directory = directory;
+        this.objects = directory.resolve(OBJECTS_DIR);
+        this.maxBytes = maxBytes;
+        Files.createDirectories(objects);
+        load();
+    }
+
+    /**
+     * 查找缓存的文件
+     * @param server 服务器（主机:端口）
+     * @return 缓存仍然可用时返回内容哈希，否则返回 null
+     */
+    public synchronized String lookup(String server, String name) throws IOException {
+        String key = key(server, name);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (!entry.isIntact(objects)) {
+            System.err.println("缓存文件已被修改或删除，丢弃: " + name);
+            remove(key);
+            save();
+            return null;
+        }
+        orderChanged = true;
+        return entry.hash;
+    }
+
+    /**
+     * 为一次下载创建临时文件，下载完成后交给 store
+     */
+    public Path newTempFile() throws IOException {
+        return Files.createTempFile(directory, TEMP_PREFIX, ".part");
+    }
+
+    /**
+     * 把下载完成的临时文件加入缓存
+     * @param hash 临时文件的内容哈希
+     * @param size 文件大小
+     * @param lastModified 服务器上的修改时间，-1 表示未知
+     * @return 缓存文件；文件本身超过缓存上限（或文件名含换行，无法写入索引）时不缓存，返回 null（临时文件保持不变）
+     */
+    public synchronized Path store(String server, String name, Path temp, String hash, long size, long lastModified)
+            throws IOException {
+        if (size > maxBytes || name.indexOf('\n') >= 0 || name.indexOf('\r') >= 0) {
+            return null;
+        }
+        Path object = objects.resolve(hash);
+        String key = key(server, name);
+        remove(key);    // 先移除旧条目，内容相同时缓存文件随之删除，下面重新放入
+        if (references.containsKey(hash) && Files.exists(object)) {
+            Files.delete(temp);     // 其他文件名已经缓存了同样的内容
+        } else {
+            Files.move(temp, object, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        add(key, new Entry(server, name, hash, size, lastModified, Files.getLastModifiedTime(object).toMillis()));
+        evict(key);
+        save();
+        return object;
+    }
+
+    /**
+     * 把缓存的内容放到 target：优先硬链接，不支持时复制；target 已经是该缓存文件的链接时不做任何事
+     * @return 是否以硬链接完成
+     */
+    public synchronized boolean materialize(String hash, Path target) throws IOException {
+        Path object = objects.resolve(hash);
+        if (Files.exists(target) && Files.isSameFile(target, object)) {
+            return true;
+        }
+        // 先在目标目录中完成链接或复制，再原子地替换，失败时不留下不完整的文件
+        Path temp = target.resolveSibling(target.getFileName() + ".cache-tmp");
+        Files.deleteIfExists(temp);
+        boolean linked;
+        try {
+            Files.createLink(temp, object);
+            linked = true;
+        } catch (UnsupportedOperationException | IOException e) {
+            copy(object, temp);
+            linked = false;
+        }
+        try {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        return linked;
+    }
+
+    /**
+     * 缓存文件的总大小
+     */
+    public synchronized long size() {
+        return totalBytes;
+    }
+
+    /**
+     * 写入尚未保存的访问顺序
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (orderChanged) {
+            save();
+        }
+    }
+
+    private static void copy(Path source, Path target) throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                position += in.transferTo(position, size - position, out);
+            }
+        }
+    }
+
+    private void add(String key, Entry entry) {
+        entries.put(key, entry);
+        if (references.merge(entry.hash, 1, Integer::sum) == 1) {
+            totalBytes += entry.size;
+        }
+    }
+
+    private void remove(String key) throws IOException {
+        Entry entry = entries.remove(key);
+        if (entry == null) {
+            return;
+        }
+        if (references.merge(entry.hash, -1, Integer::sum) == 0) {
+            references.remove(entry.hash);
+            totalBytes -= entry.size;
+            Files.deleteIfExists(objects.resolve(entry.hash));
+        }
+    }
+
+    /**
+     * 淘汰最久未使用的条目，直到总大小不超过上限
+     * @param keep 不淘汰的条目（刚加入的）
+     */
+    private void evict(String keep) throws IOException {
+        while (totalBytes > maxBytes) {
+            String oldest = null;
+            for (String key : entries.keySet()) {
+                if (!key.equals(keep)) {
+                    oldest = key;
+                    break;
+                }
+            }
+            if (oldest == null) {
+                return;
+            }
+            remove(oldest);
+        }
+    }
+
+    private static String key(String server, String name) {
+        return server + "|" + name;
+    }
+
+    /**
+     * 读取索引：每行一个条目（内容哈希、大小、服务器修改时间、缓存文件修改时间、服务器、文件名，以制表符分隔），
+     * 最久未使用的在前
+     */
+    private void load() throws IOException {
+        Path index = directory.resolve(INDEX_FILE);
+        if (Files.exists(index)) {
+            for (String line : Files.readAllLines(index, StandardCharsets.UTF_8)) {
+                String[] fields = line.split("\t", 6);
+                if (fields.length != 6) {
+                    continue;
+                }
+                Entry entry;
+                try {
+                    entry = new Entry(fields[4], fields[5], fields[0], Long.parseLong(fields[1]),
+                            Long.parseLong(fields[2]), Long.parseLong(fields[3]));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                if (entry.isIntact(objects)) {
+                    add(key(entry.server, entry.name), entry);
+                }
+            }
+        }
+        // 删除没有条目引用的缓存文件和中断的下载
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(objects)) {
+            for (Path object : stream) {
+                if (!references.containsKey(object.getFileName().toString())) {
+                    Files.deleteIfExists(object);
+                }
+            }
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, TEMP_PREFIX + "*")) {
+            for (Path temp : stream) {
+                Files.deleteIfExists(temp);
+            }
+        }
+        evict(null);
+        save();
+    }
+
+    /**
+     * 写入索引（先写临时文件再替换，中途崩溃不会留下损坏的索引）
+     */
+    private void save() throws IOException {
+        Path temp = directory.resolve(INDEX_FILE + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            for (Entry entry : entries.values()) {
+                writer.write(entry.hash + "\t" + entry.size + "\t" + entry.lastModified + "\t"
+                        + entry.objectModified + "\t" + entry.server + "\t" + entry.name);
+                writer.newLine();
+            }
+        }
+        Files.move(temp, directory.resolve(INDEX_FILE), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        orderChanged = false;
+    }
+
+    /**
+     * 索引中的一个条目
+     */
+    private static final class Entry {
+        final String server;
+        final String name;
+        final String hash;
+        final long size;
+        final long lastModified;     // 服务器上的修改时间
+        final long objectModified;   // 缓存文件的修改时间，用于发现经由硬链接的修改
+
+        Entry(String server, String name, String hash, long size, long lastModified, long objectModified) {
+            this.server = server;
+            this.name = name;
+            this.hash = hash;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.objectModified = objectModified;
+        }
+
+        boolean isIntact(Path objects) throws IOException {
+            Path object = objects.resolve(hash);
+            try {
+                return Files.size(object) == size && Files.getLastModifiedTime(object).toMillis() == objectModified;
+            } catch (NoSuchFileException e) {
+                return false;
+            }
+        }
+    }
+}
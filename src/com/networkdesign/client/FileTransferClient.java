@@ -1,27 +1,79 @@
 package com.networkdesign.client;
 
+import com.networkdesign.protocol.FileMetadata;
 import com.networkdesign.protocol.FileTransferProtocol;
+import com.networkdesign.protocol.ListingDelta;
+import com.networkdesign.protocol.MessageFrame;
+import com.networkdesign.protocol.Tlv;
+import com.networkdesign.transport.Impairment;
+import com.networkdesign.transport.SocketTuner;
+import com.networkdesign.transport.TlsChannel;
+import com.networkdesign.transport.TlsContext;
+import com.networkdesign.transport.Transport;
+import com.networkdesign.transport.TransportProfile;
+import com.networkdesign.transport.UdpSocket;
+import com.networkdesign.util.AsyncDiskWriter;
+import com.networkdesign.util.ContentHash;
 import com.networkdesign.util.ProtocolUtil;
+import com.networkdesign.util.TransferEvents;
 
 import javax.swing.*;
 import java.awt.*;
 import java.io.*;
 import java.lang.reflect.InvocationTargetException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * 文件传输客户端
  * 处理文件上传和下载
  */
 public class FileTransferClient {
+    private static final int DISK_WRITE_DEPTH = 8;               // 下载写盘缓冲区个数
+    private static final int DISK_WRITE_BUFFER_SIZE = 64 * 1024; // 每个写盘缓冲区的大小
+    private static final ExecutorService DISK_WRITER_POOL = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "disk-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // 已知的服务器协议版本和能力（主机:端口）：第一次连接等待 HELLO 响应，之后请求紧跟 HELLO 发送，不多等一个往返
+    private static final Map<String, FileTransferProtocol.Hello> SERVER_VERSIONS = new ConcurrentHashMap<>();
+
     private final String serverAddress;
     private final int serverPort;
-    private Socket socket;
+    private volatile Closeable connection;  // 其他线程可以调用 disconnect 中止正在进行的传输
+    private volatile Transport transport = Transport.TCP;
+    private volatile Impairment impairment = Impairment.NONE;
+    private volatile TlsContext tlsContext;  // 为 null 表示明文连接
+    private volatile SocketTuner socketTuner = new SocketTuner(TransportProfile.AUTO);
+    private volatile SocketTuner.Settings socketSettings;  // 最近一次 TCP 连接实际使用的套接字设置
+    private volatile int maxProtocolVersion = FileTransferProtocol.LATEST_VERSION;
+    private volatile DownloadCache downloadCache;  // 为 null 表示不使用下载缓存
+    private volatile int listInlineLimit;   // 列表响应附带内容的文件大小上限，0 表示不附带
     private InputStream in;
     private OutputStream out;
+    private int version;            // 当前连接使用的协议版本
+    private long capabilities;      // 当前连接协商的可选能力
+    private boolean helloPending;   // HELLO 的响应尚未读取
 
     public FileTransferClient(String serverAddress, int serverPort) {
         this.serverAddress = serverAddress;
@@ -29,49 +81,151 @@ public class FileTransferClient {
     }
 
     /**
-     * 上传文件
+     * 设置传输方式，UDP 传输需要服务器启用 UDP 监听
+     */
+    public void setTransport(Transport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * 设置 UDP 传输时本端发出数据包的链路损伤（测试用）
+     */
+    public void setImpairment(Impairment impairment) {
+        this.impairment = impairment;
+    }
+
+    /**
+     * 使用 TLS 连接服务器
+     * 每次操作都重新连接，多个客户端共用同一个 TlsContext 才能在重连时恢复会话、跳过完整握手
+     * @param context TLS 配置，为 null 表示明文连接
+     */
+    public void setTls(TlsContext context) {
+        this.tlsContext = context;
+    }
+
+    /**
+     * 设置 TCP 套接字配置方案（默认 AUTO：按测得的往返时间和带宽设置缓冲区）
+     */
+    public void setTransportProfile(TransportProfile profile) {
+        this.socketTuner = new SocketTuner(profile);
+    }
+
+    /**
+     * 限制使用的最高协议版本，默认为最新版本；连接版本 1 的服务器时自动改用版本 1
+     */
+    public void setProtocolVersion(int version) {
+        if (version < FileTransferProtocol.VERSION_1 || version > FileTransferProtocol.LATEST_VERSION) {
+            throw new IllegalArgumentException("不支持的协议版本: " + version);
+        }
+        this.maxProtocolVersion = version;
+    }
+
+    /**
+     * 设置下载缓存，多个客户端可以共用同一个缓存
+     * @param cache 为 null 表示不使用缓存
+     */
+    public void setDownloadCache(DownloadCache cache) {
+        this.downloadCache = cache;
+    }
+
+    /**
+     * 请求列表响应附带不超过 bytes 的新增小文件的内容（需要服务器支持，服务器另有自己的上限），
+     * 之后短时间内下载这些文件不再连接服务器
+     * @param bytes 文件大小上限，0 表示不附带（默认）
+     */
+    public void setListInlineLimit(int bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("无效的内联大小上限: " + bytes);
+        }
+        this.listInlineLimit = bytes;
+    }
+
+    /**
+     * 最近一次连接使用的协议版本
+     */
+    public int getProtocolVersion() {
+        return version;
+    }
+
+    /**
+     * 最近一次 TCP 连接实际使用的套接字设置，尚未建立过 TCP 连接时为 null
+     */
+    public SocketTuner.Settings getSocketSettings() {
+        return socketSettings;
+    }
+
+    /**
+     * 上传文件，服务器上已存在同名文件时失败
      */
     public void uploadFile(String filePath, ProgressCallback callback) throws IOException {
+        uploadFile(filePath, false, callback);
+    }
+
+    /**
+     * 上传文件
+     * 服务器支持乐观上传时发送文件信息后立即发送数据，不等待就绪信号（节省一个往返）；
+     * 服务器提前拒绝时停止发送，最后以服务器的提交确认（带内容哈希）为准
+     * @param replace 为 true 时原子地替换服务器上的同名文件（正在进行的下载不受影响）
+     */
+    public void uploadFile(String filePath, boolean replace, ProgressCallback callback) throws IOException {
         File file = new File(filePath);
         if (!file.exists()) {
+            callback.onError("上传文件失败: 文件不存在: " + filePath);
             throw new IOException("文件不存在: " + filePath);
         }
 
+        // 本进程刚上传的文件不能再使用之前随列表预取的内容
+        ListingCache.takePrefetched(serverKey(), file.getName());
+        TransferEvents.TransferEvent transfer = TransferEvents.beginTransfer("client-upload");
+        long totalBytesSent = 0;
+        boolean completed = false;
         try {
             connect();
             
             // 发送文件信息
-            String fileInfo = file.getName() + "|" + file.length();
+            byte[] fileInfo;
+            if (version >= FileTransferProtocol.VERSION_2) {
+                fileInfo = new FileMetadata(file.getName(), file.length(), -1, null,
+                        replace ? FileMetadata.FLAG_REPLACE : 0, Collections.emptyList()).encode();
+            } else if (replace) {
+                throw new IOException("服务器只支持协议版本 1，无法替换同名文件: " + file.getName());
+            } else {
+                fileInfo = (file.getName() + "|" + file.length()).getBytes();
+            }
             FileTransferProtocol.Message infoMessage = new FileTransferProtocol.Message(
                 FileTransferProtocol.FILE_INFO,
-                fileInfo.getBytes()
+                fileInfo
             );
-            ProtocolUtil.writeMessage(out, infoMessage);
-
-            // 读取服务器响应
-            FileTransferProtocol.Message response = ProtocolUtil.readMessage(in);
-            if (response.getType() == FileTransferProtocol.ERROR) {
-                throw new IOException(new String(response.getPayload()));
+            send(infoMessage);
+
+            // 读取服务器响应（乐观上传没有就绪信号）
+            boolean optimistic = (capabilities & FileTransferProtocol.CAP_OPTIMISTIC_UPLOAD) != 0;
+            FileTransferProtocol.Message response;
+            if (!optimistic) {
+                response = receive();
+                checkUploadRejected(response);
             }
+            long startNanos = System.nanoTime();
+            MessageDigest digest = optimistic ? ContentHash.newDigest() : null;
 
             // 发送文件数据
             try (FileInputStream fileIn = new FileInputStream(file)) {
                 byte[] buffer = new byte[FileTransferProtocol.MAX_PACKET_SIZE - FileTransferProtocol.HEADER_SIZE];
                 int bytesRead;
-                long totalBytesSent = 0;
 
                 while ((bytesRead = fileIn.read(buffer)) != -1) {
-                    byte[] data = new byte[bytesRead];
-                    System.arraycopy(buffer, 0, data, 0, bytesRead);
-                    
-                    FileTransferProtocol.Message dataMessage = new FileTransferProtocol.Message(
-                        FileTransferProtocol.FILE_DATA,
-                        data
-                    );
-                    ProtocolUtil.writeMessage(out, dataMessage);
-                    
+                    ProtocolUtil.writeMessage(out, FileTransferProtocol.FILE_DATA, buffer, 0, bytesRead, version);
+                    if (digest != null) {
+                        digest.update(buffer, 0, bytesRead);
+                    }
+
                     totalBytesSent += bytesRead;
                     callback.onProgress(totalBytesSent, file.length());
+                    if (optimistic && (response = pollResponse()) != null) {
+                        // 服务器在数据到达之前就拒绝了上传
+                        checkUploadRejected(response);
+                        throw new IOException("上传时收到意外消息类型: " + response.getType());
+                    }
                 }
             }
 
@@ -80,46 +234,104 @@ public class FileTransferClient {
                 FileTransferProtocol.TRANSFER_COMPLETE,
                 null
             );
-            ProtocolUtil.writeMessage(out, completeMessage);
+            send(completeMessage);
 
             // 等待服务器确认
-            response = ProtocolUtil.readMessage(in);
-            if (response.getType() == FileTransferProtocol.ERROR) {
-                throw new IOException(new String(response.getPayload()));
+            response = receive();
+            checkUploadRejected(response);
+            if (optimistic) {
+                if (response.getType() != FileTransferProtocol.UPLOAD_COMMITTED) {
+                    throw new IOException("未收到服务器的提交确认，收到类型: " + response.getType());
+                }
+                String hash = FileMetadata.decode(response.getPayload()).getContentHash();
+                if (!ContentHash.hex(digest.digest()).equals(hash)) {
+                    throw new IOException("服务器保存的文件内容哈希与本地不一致: " + file.getName());
+                }
             }
+            recordThroughput(file.length(), startNanos);
 
             callback.onComplete();
+            completed = true;
+        } catch (IOException | RuntimeException e) {
+            // 通知回调传输结束（ProgressReporter 在 onError 中关闭）
+            callback.onError("上传文件失败: " + e.getMessage());
+            throw e;
         } finally {
+            transfer.finish(file.getName(), totalBytesSent, completed);
             disconnect();
         }
     }
 
     /**
      * 获取服务器上的文件列表
+     * 请求附带本地缓存的目录版本，列表没有变化时服务器只返回 NOT_MODIFIED，有变化时只返回变化的部分
      * @return 文件名数组，如果获取失败或没有文件则返回空数组
      */
     public String[] getFileList() throws IOException {
         try {
             connect();
 
-            // 请求文件列表
+            // 请求文件列表（不认识目录版本的服务器忽略负载，返回完整列表）
+            ListingCache cached = ListingCache.get(serverKey());
+            byte[] condition = ListingCache.condition(cached).encode(version);
+            int inlineLimit = listInlineLimit;
+            if (inlineLimit > 0 && (capabilities & FileTransferProtocol.CAP_INLINE_DATA) != 0) {
+                byte[] limit = new Tlv.Writer().putLong(FileTransferProtocol.TAG_INLINE_LIMIT, inlineLimit).toByteArray();
+                condition = Arrays.copyOf(condition, condition.length + limit.length);
+                System.arraycopy(limit, 0, condition, condition.length - limit.length, limit.length);
+            }
             FileTransferProtocol.Message request = new FileTransferProtocol.Message(
                 FileTransferProtocol.REQUEST_FILE_LIST,
-                null
+                condition
             );
-            ProtocolUtil.writeMessage(out, request);
+            send(request);
 
             // 读取文件列表
-            FileTransferProtocol.Message response = ProtocolUtil.readMessage(in);
+            FileTransferProtocol.Message response = receive();
             if (response.getType() == FileTransferProtocol.ERROR) {
-                String errorMsg = new String(response.getPayload());
+                String errorMsg = text(response.getPayload());
                 System.err.println("从服务器获取文件列表时发生错误: " + errorMsg);
                 throw new IOException(errorMsg);
             }
 
-            String fileListPayload = new String(response.getPayload());
-            System.out.println("从服务器接收到的文件列表原始字符串: " + fileListPayload);
-            String[] files = fileListPayload.split("\\|");
+            if (response.getType() == FileTransferProtocol.NOT_MODIFIED
+                    || response.getType() == FileTransferProtocol.FILE_LIST_DELTA) {
+                ListingDelta delta = ListingDelta.decode(response.getPayload(), version);
+                if (delta.isReset() && (capabilities & FileTransferProtocol.CAP_CHUNKED_LIST) != 0) {
+                    // 完整列表以分块列表的形式跟在后面
+                    Map<String, byte[]> contents = new HashMap<>();
+                    delta = new ListingDelta(delta.getEpoch(), delta.getVersion(), true,
+                            readChunkedList(receive(), contents), Collections.emptyList(), contents);
+                }
+                List<String> names = ListingCache.update(serverKey(), cached, response.getType(), delta);
+                ListingCache.prefetch(serverKey(), delta.getContents());
+                if (response.getType() == FileTransferProtocol.NOT_MODIFIED) {
+                    System.out.println("文件列表未变化（目录版本 " + delta + "），使用本地缓存，共 " + names.size() + " 个文件");
+                } else if (delta.isReset()) {
+                    System.out.println("收到完整文件列表（目录版本 " + delta + "），共 " + names.size() + " 个文件");
+                } else {
+                    System.out.println("文件列表已更新到目录版本 " + delta + "：新增 " + delta.getAdded().size()
+                            + " 个，删除 " + delta.getRemoved().size() + " 个，共 " + names.size() + " 个文件");
+                }
+                return names.toArray(new String[0]);
+            }
+
+            String[] files;
+            if ((capabilities & FileTransferProtocol.CAP_CHUNKED_LIST) != 0) {
+                files = readChunkedList(response, new HashMap<>()).toArray(new String[0]);
+            } else if (response.getPayload() == null) {
+                 // 服务器上没有文件时负载为空
+                 System.out.println("服务器上没有可用的文件");
+                 return new String[0];
+            } else if (version >= FileTransferProtocol.VERSION_2) {
+                List<String> names = new ArrayList<>();
+                readNames(response.getPayload(), names, new HashMap<>());
+                files = names.toArray(new String[0]);
+            } else {
+                String fileListPayload = new String(response.getPayload());
+                System.out.println("从服务器接收到的文件列表原始字符串: " + fileListPayload);
+                files = fileListPayload.split("\\|");
+            }
 
             System.out.println("解析后的文件列表数组，长度: " + files.length);
             for (int i = 0; i < files.length; i++) {
@@ -137,37 +349,148 @@ public class FileTransferClient {
         }
     }
 
+    /**
+     * 读取分块的列表：若干 FILE_LIST 消息，以 TRANSFER_COMPLETE 结束
+     * @param response 第一个消息
+     * @param contents 放入列表附带的小文件内容
+     */
+    private List<String> readChunkedList(FileTransferProtocol.Message response, Map<String, byte[]> contents)
+            throws IOException {
+        List<String> names = new ArrayList<>();
+        while (response.getType() == FileTransferProtocol.FILE_LIST) {
+            readNames(response.getPayload(), names, contents);
+            response = receive();
+        }
+        if (response.getType() != FileTransferProtocol.TRANSFER_COMPLETE) {
+            throw new IOException(response.getType() == FileTransferProtocol.ERROR ? text(response.getPayload())
+                    : "接收文件列表时收到意外消息类型: " + response.getType());
+        }
+        return names;
+    }
+
+    private static void readNames(byte[] payload, List<String> names, Map<String, byte[]> contents)
+            throws IOException {
+        Tlv.Reader reader = new Tlv.Reader(payload);
+        while (reader.next()) {
+            if (reader.tag() == FileTransferProtocol.TAG_NAME) {
+                names.add(reader.stringValue());
+            } else if (reader.tag() == FileTransferProtocol.TAG_CONTENT && !names.isEmpty()) {
+                contents.put(names.get(names.size() - 1), reader.bytesValue());
+            }
+        }
+    }
+
+    /**
+     * 获取集群哈希环（只有集群模式的服务器支持）
+     * @return HashRing.encode 格式的字符串
+     */
+    public String getRingMap() throws IOException {
+        try {
+            connect();
+            send(new FileTransferProtocol.Message(FileTransferProtocol.REQUEST_RING, null));
+            FileTransferProtocol.Message response = receive();
+            if (response.getType() != FileTransferProtocol.RING_MAP || response.getPayload() == null) {
+                throw new IOException(response.getPayload() != null ? text(response.getPayload()) : "服务器未返回哈希环");
+            }
+            return text(response.getPayload());
+        } finally {
+            disconnect();
+        }
+    }
+
     /**
      * 下载指定文件
+     * 设置了下载缓存时请求附带缓存的内容哈希，服务器上的文件没有变化时不传输数据，从缓存恢复；
+     * 小文件的内容直接包含在服务器的文件信息中，刚刚随文件列表预取过的文件不连接服务器
      */
     public void downloadSpecificFile(String fileName, String saveDir, ProgressCallback callback) throws IOException {
+        DownloadCache cache = downloadCache;
+        Path cacheTemp = null;  // 下载到缓存目录中的临时文件，加入缓存后为 null
+        TransferEvents.TransferEvent transfer = TransferEvents.beginTransfer("client-download");
+        long transferred = 0;   // 实际经网络收到的文件数据
+        boolean completed = false;
          try {
+            byte[] prefetched = ListingCache.takePrefetched(serverKey(), fileName);
+            if (prefetched != null) {
+                saveContent(fileName, saveDir, prefetched, null, -1);
+                System.out.println("使用随文件列表预取的内容: " + fileName + " (" + prefetched.length + " bytes)");
+                callback.onProgress(prefetched.length, prefetched.length);
+                callback.onComplete();
+                completed = true;
+                return;
+            }
+            String cachedHash = cache != null ? cache.lookup(serverKey(), fileName) : null;
             connect();
 
              // 请求文件
             System.out.println("向服务器请求下载文件: " + fileName);
+            byte[] requestPayload;
+            if ((capabilities & FileTransferProtocol.CAP_CONDITIONAL_FETCH) != 0) {
+                Tlv.Writer writer = new Tlv.Writer().putString(FileTransferProtocol.TAG_NAME, fileName);
+                if (cachedHash != null) {
+                    writer.putBytes(FileTransferProtocol.TAG_HASH, ContentHash.unhex(cachedHash));
+                }
+                requestPayload = writer.toByteArray();
+            } else {
+                requestPayload = encodeText(fileName);
+            }
             FileTransferProtocol.Message request = new FileTransferProtocol.Message(
                 FileTransferProtocol.REQUEST_FILE,
-                fileName.getBytes()
+                requestPayload
             );
-            ProtocolUtil.writeMessage(out, request);
+            send(request);
 
             // 读取文件信息
-            FileTransferProtocol.Message response = ProtocolUtil.readMessage(in);
+            FileTransferProtocol.Message response = receive();
             if (response.getType() == FileTransferProtocol.ERROR) {
-                String errorMsg = new String(response.getPayload());
+                String errorMsg = text(response.getPayload());
                  System.err.println("从服务器获取文件信息时发生错误: " + errorMsg);
                 throw new IOException(errorMsg);
             }
+            checkOwner(response);
+
+            if (response.getType() == FileTransferProtocol.NOT_MODIFIED && cachedHash != null) {
+                FileMetadata metadata = FileMetadata.decode(response.getPayload());
+                Files.createDirectories(Paths.get(saveDir));
+                boolean linked = cache.materialize(cachedHash, Paths.get(saveDir, fileName));
+                System.out.println("文件未变化，从下载缓存" + (linked ? "链接" : "复制") + "到保存目录: "
+                        + fileName + " (" + metadata.getSize() + " bytes)");
+                callback.onProgress(metadata.getSize(), metadata.getSize());
+                callback.onComplete();
+                completed = true;
+                return;
+            }
 
-            String[] fileInfo = new String(response.getPayload()).split("\\|");
-             if (fileInfo.length != 2) {
-                 String errorMsg = "无效的文件信息格式从服务器: " + new String(response.getPayload());
-                 System.err.println(errorMsg);
-                 throw new IOException(errorMsg);
-             }
-            String receivedFileName = fileInfo[0];
-            long fileSize = Long.parseLong(fileInfo[1]);
+            String receivedFileName;
+            long fileSize;
+            long lastModified = -1;
+            String expectedHash = null;
+            if (version >= FileTransferProtocol.VERSION_2) {
+                FileMetadata metadata = FileMetadata.decode(response.getPayload());
+                receivedFileName = metadata.getName();
+                fileSize = metadata.getSize();
+                lastModified = metadata.getLastModified();
+                expectedHash = metadata.getContentHash();
+                if (metadata.getContent() != null && receivedFileName.equals(fileName)) {
+                    // 小文件：内容已经在文件信息中，没有数据消息和传输完成消息
+                    saveContent(fileName, saveDir, metadata.getContent(), expectedHash, lastModified);
+                    System.out.println("收到内联的文件内容: " + fileName + " (" + fileSize + " bytes)");
+                    callback.onProgress(fileSize, fileSize);
+                    callback.onComplete();
+                    transferred = fileSize;
+                    completed = true;
+                    return;
+                }
+            } else {
+                String[] fileInfo = new String(response.getPayload()).split("\\|");
+                 if (fileInfo.length != 2) {
+                     String errorMsg = "无效的文件信息格式从服务器: " + new String(response.getPayload());
+                     System.err.println(errorMsg);
+                     throw new IOException(errorMsg);
+                 }
+                receivedFileName = fileInfo[0];
+                fileSize = Long.parseLong(fileInfo[1]);
+            }
              System.out.println("接收到的文件信息 - 文件名: " + receivedFileName + ", 大小: " + fileSize + " bytes");
 
              if (!receivedFileName.equals(fileName)) {
@@ -180,45 +503,68 @@ public class FileTransferClient {
             // 创建保存目录
             Files.createDirectories(Paths.get(saveDir));
 
-            // 下载文件
+            // 下载文件（使用缓存时先下载到缓存目录，同时计算内容哈希）
+            long startNanos = System.nanoTime();
             Path filePath = Paths.get(saveDir, fileName);
+            MessageDigest digest = null;
+            if (cache != null) {
+                cacheTemp = cache.newTempFile();
+                digest = ContentHash.newDigest();
+            }
+            Path downloadPath = cacheTemp != null ? cacheTemp : filePath;
              System.out.println("开始下载文件到: " + filePath.toString());
-            try (OutputStream fileOut = Files.newOutputStream(filePath)) {
-                long totalBytesReceived = 0;
-
-                while (totalBytesReceived < fileSize) {
-                    response = ProtocolUtil.readMessage(in);
-
-                    if (response.getType() == FileTransferProtocol.FILE_DATA) {
-                        // 避免因接收到比预期更多的数据而导致的无限循环
-                        long bytesToRead = Math.min(response.getPayload().length, fileSize - totalBytesReceived);
-                        fileOut.write(response.getPayload(), 0, (int) bytesToRead);
-                        totalBytesReceived += bytesToRead;
-
-                         // 如果接收到的数据量不足预期，说明可能传输有问题
-                        if (bytesToRead < response.getPayload().length) {
-                             System.err.println("警告: 接收到的文件数据包大小超出预期，已截断");
+            try (FileChannel fileOut = FileChannel.open(downloadPath,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                // 套接字读取与写盘解耦：磁盘短暂卡顿时继续接收，缓冲区全部占满才阻塞
+                AsyncDiskWriter writer = new AsyncDiskWriter(fileOut, DISK_WRITE_DEPTH, DISK_WRITE_BUFFER_SIZE, DISK_WRITER_POOL);
+                try {
+                    long totalBytesReceived = 0;
+                    byte[] packet = new byte[FileTransferProtocol.MAX_PACKET_SIZE]; // 数据包读入同一个缓冲区，写盘阶段会复制
+
+                    while (totalBytesReceived < fileSize) {
+                        MessageFrame frame = receiveFrame();
+
+                        if (frame.getType() == FileTransferProtocol.FILE_DATA) {
+                            int packetLength = frame.readPayload(packet);
+                            // 避免因接收到比预期更多的数据而导致的无限循环
+                            long bytesToRead = Math.min(packetLength, fileSize - totalBytesReceived);
+                            writer.write(packet, 0, (int) bytesToRead);
+                            if (digest != null) {
+                                digest.update(packet, 0, (int) bytesToRead);
+                            }
+                            totalBytesReceived += bytesToRead;
+                            transferred = totalBytesReceived;
+
+                             // 如果接收到的数据量不足预期，说明可能传输有问题
+                            if (bytesToRead < packetLength) {
+                                 System.err.println("警告: 接收到的文件数据包大小超出预期，已截断");
+                            }
+
+                            callback.onProgress(totalBytesReceived, fileSize);
+                        } else if (frame.getType() == FileTransferProtocol.ERROR) {
+                            String errorMsg = text(frame.readPayload());
+                             System.err.println("接收文件数据时服务器报告错误: " + errorMsg);
+                             Files.deleteIfExists(downloadPath); // 出现错误时删除部分传输的文件
+                            throw new IOException(errorMsg);
+                        } else {
+                            String errorMsg = "接收文件数据时收到意外消息类型: " + frame.getType();
+                             System.err.println(errorMsg);
+                             Files.deleteIfExists(downloadPath); // 出现错误时删除部分传输的文件
+                            throw new IOException(errorMsg);
                         }
-
-                        callback.onProgress(totalBytesReceived, fileSize);
-                    } else if (response.getType() == FileTransferProtocol.ERROR) {
-                        String errorMsg = new String(response.getPayload());
-                         System.err.println("接收文件数据时服务器报告错误: " + errorMsg);
-                         Files.deleteIfExists(filePath); // 出现错误时删除部分传输的文件
-                        throw new IOException(errorMsg);
-                    } else {
-                        String errorMsg = "接收文件数据时收到意外消息类型: " + response.getType();
-                         System.err.println(errorMsg);
-                         Files.deleteIfExists(filePath); // 出现错误时删除部分传输的文件
-                        throw new IOException(errorMsg);
                     }
+                    writer.close();
+                } catch (IOException e) {
+                    writer.abort();
+                    throw e;
                 }
-                 System.out.println("文件数据接收完成");
+                 System.out.println("文件数据接收完成 (" + writer + ")");
             }
+            recordThroughput(fileSize, startNanos);
 
 
              // 接收到传输完成消息
-            response = ProtocolUtil.readMessage(in);
+            response = receive();
             if (response.getType() != FileTransferProtocol.TRANSFER_COMPLETE) {
                  String errorMsg = "未收到服务器的传输完成消息，收到类型: " + response.getType();
                  System.err.println(errorMsg);
@@ -228,8 +574,24 @@ public class FileTransferClient {
                  System.out.println("接收到服务器的传输完成消息");
             }
 
+            if (cacheTemp != null) {
+                String hash = ContentHash.hex(digest.digest());
+                if (expectedHash != null && !expectedHash.equals(hash)) {
+                    throw new IOException("下载的文件内容哈希与服务器不一致: " + fileName);
+                }
+                Path object = cache.store(serverKey(), fileName, cacheTemp, hash, fileSize, lastModified);
+                if (object != null) {
+                    cacheTemp = null;
+                    cache.materialize(hash, filePath);
+                } else {
+                    Files.move(cacheTemp, filePath, StandardCopyOption.REPLACE_EXISTING);
+                    cacheTemp = null;
+                }
+            }
+
 
             callback.onComplete();
+            completed = true;
              System.out.println("文件下载完成");
          } catch (IOException e) {
              System.err.println("下载指定文件时发生IO错误: " + e.getMessage());
@@ -242,11 +604,109 @@ public class FileTransferClient {
             throw new IOException(e); // 封装为IOException抛出
         }
          finally {
+            transfer.finish(fileName, transferred, completed);
             disconnect();
+            if (cacheTemp != null) {
+                Files.deleteIfExists(cacheTemp);
+            }
              System.out.println("下载连接已断开");
         }
     }
 
+    /**
+     * 保存完整收到的小文件内容（内联在文件信息中或随文件列表预取），设置了下载缓存时同时加入缓存
+     * @param expectedHash 服务器给出的内容哈希，未知时为 null
+     */
+    private void saveContent(String fileName, String saveDir, byte[] content, String expectedHash, long lastModified)
+            throws IOException {
+        String hash = ContentHash.hex(ContentHash.newDigest().digest(content));
+        if (expectedHash != null && !expectedHash.equals(hash)) {
+            throw new IOException("下载的文件内容哈希与服务器不一致: " + fileName);
+        }
+        Files.createDirectories(Paths.get(saveDir));
+        Path filePath = Paths.get(saveDir, fileName);
+        DownloadCache cache = downloadCache;
+        Path temp = cache != null ? cache.newTempFile() : filePath.resolveSibling(fileName + ".part");
+        try {
+            Files.write(temp, content);
+            if (cache != null && cache.store(serverKey(), fileName, temp, hash, content.length, lastModified) != null) {
+                cache.materialize(hash, filePath);
+            } else {
+                Files.move(temp, filePath, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * 下载文件的一段，按文件中的位置写入 target
+     * 服务器在文件信息中附带内容哈希，多源下载据此确认各个副本的内容一致
+     * @param length 长度，超出文件末尾的部分被忽略；为0时只获取文件信息
+     * @param target 写入的文件，length 为0时可以为 null
+     * @return 服务器上的文件信息
+     */
+    public RemoteFile downloadRange(String fileName, long offset, long length, FileChannel target) throws IOException {
+        try {
+            connect();
+            byte[] range;
+            if (version >= FileTransferProtocol.VERSION_2) {
+                range = new Tlv.Writer()
+                        .putString(FileTransferProtocol.TAG_NAME, fileName)
+                        .putLong(FileTransferProtocol.TAG_OFFSET, offset)
+                        .putLong(FileTransferProtocol.TAG_LENGTH, length)
+                        .toByteArray();
+            } else {
+                range = (fileName + "|" + offset + "|" + length).getBytes();
+            }
+            send(new FileTransferProtocol.Message(FileTransferProtocol.REQUEST_FILE_RANGE, range));
+
+            FileTransferProtocol.Message response = receive();
+            if (response.getType() == FileTransferProtocol.ERROR) {
+                throw new IOException(text(response.getPayload()));
+            }
+            checkOwner(response);
+            if (response.getType() != FileTransferProtocol.FILE_INFO || response.getPayload() == null) {
+                throw new IOException("无效的分段响应，消息类型: " + response.getType());
+            }
+            RemoteFile file;
+            if (version >= FileTransferProtocol.VERSION_2) {
+                FileMetadata metadata = FileMetadata.decode(response.getPayload());
+                file = new RemoteFile(metadata.getName(), metadata.getSize(), metadata.getContentHash());
+            } else {
+                String[] fileInfo = new String(response.getPayload()).split("\\|");
+                if (fileInfo.length != 3) {
+                    throw new IOException("无效的分段响应: " + new String(response.getPayload()));
+                }
+                file = new RemoteFile(fileInfo[0], Long.parseLong(fileInfo[1]), fileInfo[2]);
+            }
+
+            long position = offset;
+            byte[] packet = new byte[FileTransferProtocol.MAX_PACKET_SIZE];
+            ByteBuffer buffer = ByteBuffer.wrap(packet);
+            MessageFrame frame;
+            while ((frame = receiveFrame()).getType() == FileTransferProtocol.FILE_DATA) {
+                // 按位置写入：多源下载时各段乱序到达，位置可能超出文件当前长度，不能用 transferFrom
+                buffer.clear().limit(frame.readPayload(packet));
+                while (buffer.hasRemaining()) {
+                    position += target.write(buffer, position);
+                }
+            }
+            if (frame.getType() != FileTransferProtocol.TRANSFER_COMPLETE) {
+                byte[] payload = frame.readPayload();
+                throw new IOException(payload != null ? text(payload)
+                        : "接收文件分段时收到意外消息类型: " + frame.getType());
+            }
+            long expected = Math.max(0, Math.min(length, file.getSize() - offset));
+            if (position - offset != expected) {
+                throw new IOException("文件分段不完整: 期望 " + expected + " 字节，收到 " + (position - offset) + " 字节");
+            }
+            return file;
+        } finally {
+            disconnect();
+        }
+    }
+
     /**
      * 显示文件选择对话框
      * @param files 文件列表
@@ -307,14 +767,168 @@ public class FileTransferClient {
         return selectedFile[0];
     }
 
+    /**
+     * 上传被拒绝（错误或文件不归该节点所有）时抛出异常
+     */
+    private void checkUploadRejected(FileTransferProtocol.Message response) throws IOException {
+        if (response.getType() == FileTransferProtocol.ERROR) {
+            throw new IOException(text(response.getPayload()));
+        }
+        checkOwner(response);
+    }
+
+    /**
+     * 不阻塞地检查服务器是否已经发来消息（乐观上传期间的提前拒绝）
+     * @return 没有可读的消息时返回 null
+     */
+    private FileTransferProtocol.Message pollResponse() throws IOException {
+        if (helloPending && in.available() > 0) {
+            awaitPendingHello();
+        }
+        return !helloPending && in.available() > 0 ? receive() : null;
+    }
+
+    /**
+     * 集群模式下请求发到了非归属节点
+     */
+    private void checkOwner(FileTransferProtocol.Message response) throws NotOwnerException {
+        if (response.getType() == FileTransferProtocol.NOT_OWNER) {
+            throw new NotOwnerException(text(response.getPayload()));
+        }
+    }
+
     /**
      * 连接到服务器
      */
     private void connect() throws IOException {
-        socket = new Socket(serverAddress, serverPort);
-        in = socket.getInputStream();
-        out = socket.getOutputStream();
-         System.out.println("已连接到服务器: " + serverAddress + ":" + serverPort);
+        openConnection();
+        version = FileTransferProtocol.VERSION_1;
+        capabilities = 0;
+        helloPending = false;
+        int maxVersion = maxProtocolVersion;
+        FileTransferProtocol.Hello known = SERVER_VERSIONS.get(serverKey());
+        if (maxVersion >= FileTransferProtocol.VERSION_2
+                && (known == null || known.getVersion() >= FileTransferProtocol.VERSION_2)) {
+            send(new FileTransferProtocol.Hello(maxVersion, FileTransferProtocol.CAPABILITIES).toMessage());
+            if (known != null) {
+                version = Math.min(known.getVersion(), maxVersion);
+                capabilities = known.getCapabilities();
+                helloPending = true;
+            } else if (!awaitHello()) {
+                // 版本 1 的服务器以 ERROR 拒绝 HELLO 并关闭连接，重新连接后按版本 1 通信
+                SERVER_VERSIONS.put(serverKey(), new FileTransferProtocol.Hello(FileTransferProtocol.VERSION_1, 0));
+                disconnect();
+                openConnection();
+            }
+        }
+         System.out.println("已连接到服务器: " + serverAddress + ":" + serverPort
+                 + (transport == Transport.TCP ? "（" + socketSettings + "）" : ""));
+    }
+
+    private void openConnection() throws IOException {
+        if (transport == Transport.UDP) {
+            UdpSocket socket = UdpSocket.connect(new InetSocketAddress(serverAddress, serverPort), impairment);
+            connection = socket;
+            in = socket.getInputStream();
+            out = socket.getOutputStream();
+        } else {
+            SocketTuner tuner = socketTuner;
+            Socket socket = tuner.connect(serverAddress, serverPort);
+            connection = socket;
+            socketSettings = tuner.describe(socket, serverAddress, serverPort);
+            in = socket.getInputStream();
+            out = socket.getOutputStream();
+        }
+        TlsContext tls = tlsContext;
+        if (tls != null) {
+            try {
+                TlsChannel channel = TlsChannel.connect(tls, in, out, serverAddress, serverPort);
+                in = channel.getInputStream();
+                out = channel.getOutputStream();
+            } catch (IOException e) {
+                connection.close();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * 读取服务器对 HELLO 的响应（HELLO 总是使用版本 1 的消息头）
+     * @return 服务器不支持 HELLO（版本 1）时返回 false
+     */
+    private boolean awaitHello() throws IOException {
+        FileTransferProtocol.Message reply = ProtocolUtil.readMessage(in);
+        if (reply.getType() == FileTransferProtocol.ERROR) {
+            return false;
+        }
+        FileTransferProtocol.Hello agreed = FileTransferProtocol.Hello.parse(reply);
+        version = agreed.getVersion();
+        capabilities = agreed.getCapabilities();
+        SERVER_VERSIONS.put(serverKey(), agreed);
+        return true;
+    }
+
+    private void send(FileTransferProtocol.Message message) throws IOException {
+        ProtocolUtil.writeMessage(out, message, version);
+    }
+
+    /**
+     * 读取服务器的下一个消息（负载整体读入内存）
+     */
+    private FileTransferProtocol.Message receive() throws IOException {
+        return receiveFrame().toMessage();
+    }
+
+    /**
+     * 读取服务器下一个消息的消息头，HELLO 的响应尚未读取时先读取它
+     */
+    private MessageFrame receiveFrame() throws IOException {
+        if (helloPending) {
+            awaitPendingHello();
+        }
+        return ProtocolUtil.readFrame(in, version);
+    }
+
+    /**
+     * 读取按缓存的版本提前发出请求时尚未读取的 HELLO 响应，核对缓存的版本和能力仍然适用
+     */
+    private void awaitPendingHello() throws IOException {
+        helloPending = false;
+        int assumed = version;
+        long assumedCapabilities = capabilities;
+        // 请求已按缓存的版本和能力编码，服务器升级或降级后不再适用
+        if (!awaitHello() || version != assumed || (capabilities & assumedCapabilities) != assumedCapabilities) {
+            SERVER_VERSIONS.remove(serverKey());
+            throw new IOException("服务器不支持协议版本 " + assumed + " 或所需的能力，请重试");
+        }
+    }
+
+    /**
+     * 文本负载的编码：版本 2 固定为 UTF-8，版本 1 沿用平台默认字符集
+     */
+    private byte[] encodeText(String text) {
+        return version >= FileTransferProtocol.VERSION_2 ? text.getBytes(StandardCharsets.UTF_8) : text.getBytes();
+    }
+
+    private String text(byte[] payload) {
+        if (payload == null) {
+            return "";
+        }
+        return version >= FileTransferProtocol.VERSION_2
+                ? new String(payload, StandardCharsets.UTF_8) : new String(payload);
+    }
+
+    private String serverKey() {
+        return serverAddress + ":" + serverPort;
+    }
+
+    /**
+     * 记录一次传输的速度，AUTO 方案据此估计带宽、设置之后连接的缓冲区
+     */
+    private void recordThroughput(long bytes, long startNanos) {
+        if (transport == Transport.TCP) {
+            socketTuner.recordThroughput(serverAddress, serverPort, bytes, System.nanoTime() - startNanos);
+        }
     }
 
     /**
@@ -324,7 +938,7 @@ public class FileTransferClient {
         try {
             if (in != null) in.close();
             if (out != null) out.close();
-            if (socket != null) socket.close();
+            if (connection != null) connection.close();
              System.out.println("与服务器的连接已断开");
         } catch (IOException e) {
             System.err.println("关闭连接时发生错误: " + e.getMessage());
@@ -332,6 +946,36 @@ public class FileTransferClient {
         }
     }
 
+    /**
+     * 服务器上的文件信息（分段下载时返回）
+     */
+    public static final class RemoteFile {
+        private final String name;
+        private final long size;
+        private final String contentHash;
+
+        public RemoteFile(String name, long size, String contentHash) {
+            this.name = name;
+            this.size = size;
+            this.contentHash = contentHash;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * 文件内容的 SHA-256（十六进制）
+         */
+        public String getContentHash() {
+            return contentHash;
+        }
+    }
+
     /**
      * 进度回调接口
      */
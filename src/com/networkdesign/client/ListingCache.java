@@ -0,0 +1,109 @@
+package com.networkdesign.client;
+
+import com.networkdesign.protocol.FileTransferProtocol;
+import com.networkdesign.protocol.ListingDelta;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 客户端缓存的文件列表，按服务器（主机:端口）保存，同一进程中的阻塞和异步客户端共用
+ * 列表请求附带缓存的目录版本，服务器只返回 NOT_MODIFIED 或变化的部分。
+ * 列表响应附带的小文件内容也保存在这里，短时间内下载这些文件不必再连接服务器
+ */
+final class ListingCache {
+    private static final Map<String, ListingCache> CACHES = new ConcurrentHashMap<>();
+    private static final Map<String, Prefetched> PREFETCHED = new ConcurrentHashMap<>();
+    // 预取的内容只在这段时间内使用：目录版本只反映文件的增删，看不到原地替换
+    private static final long PREFETCH_TTL_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private final long epoch;
+    private final long version;
+    private final List<String> names;
+
+    private ListingCache(long epoch, long version, List<String> names) {
+        this.epoch = epoch;
+        this.version = version;
+        this.names = names;
+    }
+
+    /**
+     * @return 没有缓存时返回 null
+     */
+    static ListingCache get(String server) {
+        return CACHES.get(server);
+    }
+
+    /**
+     * 条件列表请求的负载；没有缓存时发送版本 0，服务器返回完整列表和当前版本
+     */
+    static ListingDelta condition(ListingCache cached) {
+        return cached != null ? ListingDelta.of(cached.epoch, cached.version) : ListingDelta.of(0, 0);
+    }
+
+    /**
+     * 按条件请求的响应更新缓存
+     * @param cached 发送请求时使用的缓存（变化是相对它计算的），可以为 null
+     * @param type NOT_MODIFIED 或 FILE_LIST_DELTA
+     * @return 最新的文件列表
+     * @throws IOException 响应与发送请求时的缓存不符
+     */
+    static List<String> update(String server, ListingCache cached, byte type, ListingDelta response)
+            throws IOException {
+        if (!response.isReset() && (cached == null || cached.epoch != response.getEpoch())) {
+            CACHES.remove(server);
+            throw new IOException("服务器返回的目录版本 " + response + " 与本地缓存不符，请重试");
+        }
+        if (type == FileTransferProtocol.NOT_MODIFIED) {
+            return cached.names;
+        }
+        ListingCache updated = new ListingCache(response.getEpoch(), response.getVersion(),
+                Collections.unmodifiableList(response.applyTo(cached != null ? cached.names : Collections.emptyList())));
+        // 并发的请求可能已经存入了更新的版本
+        CACHES.merge(server, updated, (old, fresh) ->
+                old.epoch == fresh.epoch && old.version > fresh.version ? old : fresh);
+        return updated.names;
+    }
+
+    /**
+     * 保存列表响应附带的小文件内容，替换该服务器之前预取的内容
+     */
+    static void prefetch(String server, Map<String, byte[]> contents) {
+        if (contents.isEmpty()) {
+            PREFETCHED.remove(server);
+        } else {
+            PREFETCHED.put(server, new Prefetched(new ConcurrentHashMap<>(contents),
+                    System.nanoTime() + PREFETCH_TTL_NANOS));
+        }
+    }
+
+    /**
+     * 取出预取的文件内容（每份内容只使用一次）
+     * @return 没有预取或已经过期时返回 null
+     */
+    static byte[] takePrefetched(String server, String name) {
+        Prefetched prefetched = PREFETCHED.get(server);
+        if (prefetched == null) {
+            return null;
+        }
+        if (System.nanoTime() - prefetched.expiresAt > 0) {
+            PREFETCHED.remove(server, prefetched);
+            return null;
+        }
+        return prefetched.contents.remove(name);
+    }
+
+    private static final class Prefetched {
+        final Map<String, byte[]> contents;
+        final long expiresAt;   // System.nanoTime
+
+        Prefetched(Map<String, byte[]> contents, long expiresAt) {
+            this.contents = contents;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
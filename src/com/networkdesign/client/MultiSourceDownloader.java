@@ -0,0 +1,391 @@
+package com.networkdesign.client;
+
+import com.networkdesign.util.ContentHash;
+import com.networkdesign.util.HashRing;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 多源并行下载
+ * 文件按固定大小切分成若干段，每个副本节点同时只下载一段，完成后再领取下一段，较快的节点自然承担更多的段。
+ * 没有剩余的段可领取时，空闲节点对耗时明显超出常规的段发起对冲请求，先完成的一方生效，另一方被中止，
+ * 避免个别慢节点拖住整个下载的尾部。
+ * 开始前从每个副本获取文件大小和内容哈希，只使用与第一个可用副本（通常是归属节点）一致的副本，
+ * 全部完成后再校验整个文件的哈希
+ */
+public class MultiSourceDownloader {
+    private static final long DEFAULT_SEGMENT_SIZE = 4L * 1024 * 1024; // 默认分段大小
+    private static final long DEFAULT_HEDGE_DELAY_MILLIS = 500;        // 还没有已完成的段时使用的对冲等待时间
+    private static final long MIN_HEDGE_DELAY_MILLIS = 20;
+    private static final ExecutorService POOL = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "multi-source-download");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final List<String> sources;
+    private volatile long segmentSize = DEFAULT_SEGMENT_SIZE;
+    private volatile long hedgeDelayMillis = -1;
+
+    /**
+     * @param sources 保存该文件的节点地址（主机:端口），第一个的内容作为基准
+     */
+    public MultiSourceDownloader(List<String> sources) {
+        if (sources.isEmpty()) {
+            throw new IllegalArgumentException("至少需要一个下载源");
+        }
+        this.sources = new ArrayList<>(sources);
+    }
+
+    /**
+     * 设置分段大小（字节）
+     */
+    public void setSegmentSize(long bytes) {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("无效的分段大小");
+        }
+        this.segmentSize = bytes;
+    }
+
+    /**
+     * 设置对冲等待时间：某段下载超过该时间仍未完成时，由空闲节点再请求一次
+     * @param millis 毫秒，负数表示按已完成段耗时中位数的两倍自动调整（默认）
+     */
+    public void setHedgeDelay(long millis) {
+        this.hedgeDelayMillis = millis;
+    }
+
+    /**
+     * 下载文件到 saveDir，内容哈希校验失败时删除已下载的数据并抛出异常
+     */
+    public void download(String fileName, String saveDir, FileTransferClient.ProgressCallback callback) throws IOException {
+        try {
+            Map<String, FileTransferClient.RemoteFile> replicas = probe(fileName);
+            FileTransferClient.RemoteFile expected = replicas.values().iterator().next();
+
+            Files.createDirectories(Paths.get(saveDir));
+            Path filePath = Paths.get(saveDir, fileName);
+            boolean verified = false;
+            try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                new Session(fileName, expected.getSize(), channel, replicas.keySet(), callback).run();
+                channel.position(0);
+                String actual = ContentHash.of(channel);
+                if (!actual.equals(expected.getContentHash())) {
+                    throw new IOException("文件内容校验失败: 期望 " + expected.getContentHash() + "，实际 " + actual);
+                }
+                verified = true;
+            } finally {
+                if (!verified) {
+                    Files.deleteIfExists(filePath);
+                }
+            }
+            callback.onComplete();
+        } catch (IOException e) {
+            callback.onError("下载文件失败: " + e.getMessage());
+            throw e;
+        }
+    }
+
+    /**
+     * 并行向所有副本获取文件信息，返回内容与基准一致的副本（保持原有顺序）
+     * 第一个副本响应后，其余副本最多再等待一个对冲等待时间，响应过慢的不参与本次下载
+     */
+    private Map<String, FileTransferClient.RemoteFile> probe(String fileName) throws IOException {
+        int count = sources.size();
+        FileTransferClient[] clients = new FileTransferClient[count];
+        FileTransferClient.RemoteFile[] results = new FileTransferClient.RemoteFile[count];
+        IOException[] errors = new IOException[count];
+        boolean[] answered = new boolean[count];
+        CompletionService<Integer> probes = new ExecutorCompletionService<>(POOL);
+        for (int i = 0; i < count; i++) {
+            int index = i;
+            clients[i] = client(sources.get(i));
+            probes.submit(() -> {
+                try {
+                    results[index] = clients[index].downloadRange(fileName, 0, 0, null);
+                } catch (IOException e) {
+                    errors[index] = e;
+                }
+                return index;
+            });
+        }
+
+        IOException lastError = null;
+        long deadline = Long.MAX_VALUE;
+        try {
+            for (int received = 0; received < count; received++) {
+                Future<Integer> future = deadline == Long.MAX_VALUE ? probes.take()
+                        : probes.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (future == null) {
+                    break;
+                }
+                int index = future.get();
+                answered[index] = true;
+                if (errors[index] != null) {
+                    lastError = errors[index];
+                    System.err.println("副本 " + sources.get(index) + " 不可用: " + lastError.getMessage());
+                } else if (deadline == Long.MAX_VALUE) {
+                    long grace = hedgeDelayMillis >= 0 ? hedgeDelayMillis : DEFAULT_HEDGE_DELAY_MILLIS;
+                    deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(grace);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("下载被中断");
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+
+        Map<String, FileTransferClient.RemoteFile> replicas = new LinkedHashMap<>();
+        FileTransferClient.RemoteFile expected = null;
+        for (int i = 0; i < count; i++) {
+            if (!answered[i]) {
+                clients[i].disconnect();
+                System.err.println("副本 " + sources.get(i) + " 响应过慢，不参与本次下载");
+                continue;
+            }
+            FileTransferClient.RemoteFile file = results[i];
+            if (file == null) {
+                continue;
+            }
+            if (expected == null) {
+                expected = file;
+            }
+            if (file.getSize() == expected.getSize() && file.getContentHash().equals(expected.getContentHash())) {
+                replicas.put(sources.get(i), file);
+            } else {
+                System.err.println("副本 " + sources.get(i) + " 的内容与其他副本不一致，跳过");
+            }
+        }
+        if (replicas.isEmpty()) {
+            throw lastError != null ? lastError : new IOException("没有可用的副本: " + fileName);
+        }
+        return replicas;
+    }
+
+    private static FileTransferClient client(String node) {
+        return new FileTransferClient(HashRing.host(node), HashRing.port(node));
+    }
+
+    /**
+     * 一次下载的调度状态，只在调用 download 的线程中访问
+     */
+    private final class Session {
+        private final String fileName;
+        private final long fileSize;
+        private final FileChannel channel;
+        private final FileTransferClient.ProgressCallback callback;
+        private final long segment = segmentSize;
+        private final int segmentCount;
+        private final boolean[] done;
+        private final Deque<Integer> pending = new ArrayDeque<>();
+        private final Map<Integer, List<Attempt>> inFlight = new HashMap<>();
+        private final Set<String> idle;
+        private final Map<String, Integer> completedBySource = new TreeMap<>();
+        private final List<Long> durations = new ArrayList<>();
+        private final CompletionService<Attempt> completion = new ExecutorCompletionService<>(POOL);
+        private int remaining;
+        private long bytesDone;
+        private int hedges;
+
+        Session(String fileName, long fileSize, FileChannel channel, Set<String> sources,
+                FileTransferClient.ProgressCallback callback) {
+            this.fileName = fileName;
+            this.fileSize = fileSize;
+            this.channel = channel;
+            this.callback = callback;
+            this.segmentCount = (int) ((fileSize + segment - 1) / segment);
+            this.done = new boolean[segmentCount];
+            this.idle = new LinkedHashSet<>(sources);
+            this.remaining = segmentCount;
+            for (int i = 0; i < segmentCount; i++) {
+                pending.add(i);
+            }
+        }
+
+        void run() throws IOException {
+            IOException lastError = null;
+            try {
+                while (remaining > 0) {
+                    Iterator<String> it = idle.iterator();
+                    while (it.hasNext() && !pending.isEmpty()) {
+                        start(pending.poll(), it.next());
+                        it.remove();
+                    }
+                    long waitMillis = hedge();
+                    if (inFlight.isEmpty()) {
+                        throw new IOException("所有副本节点均下载失败", lastError);
+                    }
+
+                    Future<Attempt> future = completion.poll(waitMillis, TimeUnit.MILLISECONDS);
+                    if (future == null) {
+                        continue;
+                    }
+                    Attempt attempt = future.get();
+                    List<Attempt> attempts = inFlight.get(attempt.segment);
+                    attempts.remove(attempt);
+                    if (attempt.error == null) {
+                        idle.add(attempt.source);
+                        if (!done[attempt.segment]) {
+                            complete(attempt, attempts);
+                        }
+                    } else if (attempt.cancelled) {
+                        idle.add(attempt.source); // 对冲中落败的一方
+                    } else {
+                        // 该节点不再使用，段交给其他节点
+                        lastError = attempt.error;
+                        System.err.println("从副本 " + attempt.source + " 下载分段失败: " + attempt.error.getMessage());
+                        if (!done[attempt.segment] && attempts.isEmpty()) {
+                            pending.addFirst(attempt.segment);
+                        }
+                    }
+                    if (attempts.isEmpty()) {
+                        inFlight.remove(attempt.segment);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("下载被中断");
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            } finally {
+                for (List<Attempt> attempts : inFlight.values()) {
+                    for (Attempt attempt : attempts) {
+                        attempt.cancel();
+                    }
+                }
+            }
+            System.out.println("多源下载 " + fileName + " 完成: " + segmentCount + " 段，对冲请求 " + hedges
+                    + " 次，各副本完成段数 " + completedBySource);
+        }
+
+        private void start(int index, String source) {
+            Attempt attempt = new Attempt(index, source);
+            inFlight.computeIfAbsent(index, k -> new ArrayList<>()).add(attempt);
+            long offset = index * segment;
+            long length = Math.min(segment, fileSize - offset);
+            completion.submit(() -> {
+                try {
+                    attempt.client.downloadRange(fileName, offset, length, channel);
+                } catch (IOException e) {
+                    attempt.error = e;
+                }
+                attempt.elapsedNanos = System.nanoTime() - attempt.startNanos;
+                return attempt;
+            });
+        }
+
+        private void complete(Attempt attempt, List<Attempt> others) {
+            done[attempt.segment] = true;
+            remaining--;
+            for (Attempt other : others) {
+                other.cancel();
+            }
+            durations.add(attempt.elapsedNanos);
+            completedBySource.merge(attempt.source, 1, Integer::sum);
+            bytesDone += Math.min(segment, fileSize - attempt.segment * segment);
+            callback.onProgress(bytesDone, fileSize);
+        }
+
+        /**
+         * 没有待领取的段时，用空闲节点对最慢的在途段发起对冲请求
+         * @return 距离下一次可能需要对冲的时间（毫秒）
+         */
+        private long hedge() {
+            long delayNanos = TimeUnit.MILLISECONDS.toNanos(hedgeDelay());
+            long waitNanos = delayNanos;
+            if (!pending.isEmpty() || idle.isEmpty()) {
+                return TimeUnit.NANOSECONDS.toMillis(waitNanos) + 1;
+            }
+            List<Attempt> candidates = new ArrayList<>();
+            for (List<Attempt> attempts : inFlight.values()) {
+                if (attempts.size() == 1) {
+                    candidates.add(attempts.get(0));
+                }
+            }
+            candidates.sort((a, b) -> Long.compare(a.startNanos, b.startNanos));
+            long now = System.nanoTime();
+            Iterator<String> it = idle.iterator();
+            for (Attempt slow : candidates) {
+                long elapsed = now - slow.startNanos;
+                if (elapsed < delayNanos) {
+                    waitNanos = Math.min(waitNanos, delayNanos - elapsed);
+                    break;
+                }
+                if (!it.hasNext()) {
+                    break;
+                }
+                start(slow.segment, it.next());
+                it.remove();
+                hedges++;
+            }
+            return TimeUnit.NANOSECONDS.toMillis(waitNanos) + 1;
+        }
+
+        private long hedgeDelay() {
+            long configured = hedgeDelayMillis;
+            if (configured >= 0) {
+                return configured;
+            }
+            if (durations.isEmpty()) {
+                return DEFAULT_HEDGE_DELAY_MILLIS;
+            }
+            List<Long> sorted = new ArrayList<>(durations);
+            Collections.sort(sorted);
+            long median = TimeUnit.NANOSECONDS.toMillis(sorted.get(sorted.size() / 2));
+            return Math.max(MIN_HEDGE_DELAY_MILLIS, 2 * median);
+        }
+    }
+
+    /**
+     * 向某个副本下载某一段的一次请求
+     */
+    private static final class Attempt {
+        final int segment;
+        final String source;
+        final FileTransferClient client;
+        final long startNanos = System.nanoTime();
+        volatile long elapsedNanos;
+        volatile IOException error;
+        volatile boolean cancelled;
+
+        Attempt(int segment, String source) {
+            this.segment = segment;
+            this.source = source;
+            this.client = client(source);
+        }
+
+        /**
+         * 中止请求（关闭连接），已写入的数据与其他副本相同，不需要回滚
+         */
+        void cancel() {
+            cancelled = true;
+            client.disconnect();
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.networkdesign.client;
+
+import java.io.IOException;
+
+/**
+ * 集群模式下请求发到了不拥有该文件的节点，异常中带有该节点当前的哈希环，用于重新路由
+ */
+public class NotOwnerException extends IOException {
+    private final String ringMap;
+
+    public NotOwnerException(String ringMap) {
+        super("请求的节点不是文件的归属节点");
+        this.ringMap = ringMap;
+    }
+
+    /**
+     * 节点返回的哈希环（HashRing.encode 格式）
+     */
+    public String getRingMap() {
+        return ringMap;
+    }
+}
@@ -0,0 +1,130 @@
+package com.networkdesign.client;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * 合并限频的进度报告器
+ * 传输循环中的 onProgress 只更新一个原子计数器；共享的采样线程以固定频率（默认30Hz）
+ * 读取计数器并发布 ProgressSnapshot，进度没有变化时不发布。
+ *
+ * 监听器在采样线程中调用，应尽快返回；界面不要在监听器中逐个投递 EDT 任务，
+ * 而应像 TransferManagerPanel 那样只标记变化，由 Swing 定时器合并刷新。
+ * 传输失败时客户端会调用 onError，报告器随之关闭并从采样列表中移除
+ */
+public class ProgressReporter implements FileTransferClient.ProgressCallback, AutoCloseable {
+    /** 采样频率，可通过系统属性 networkdesign.progress.hz 调整 */
+    public static final int SAMPLE_RATE_HZ = Integer.getInteger("networkdesign.progress.hz", 30);
+    private static final double SMOOTHING_SECONDS = 2.0;   // 平滑速度的时间常数
+    private static final long STALL_PUBLISH_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static final Set<ProgressReporter> ACTIVE = ConcurrentHashMap.newKeySet();
+    private static final ScheduledExecutorService SAMPLER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "progress-sampler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        long periodNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, SAMPLE_RATE_HZ);
+        SAMPLER.scheduleAtFixedRate(ProgressReporter::sampleAll, periodNanos, periodNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private final Consumer<ProgressSnapshot> listener;
+    private final AtomicLong bytesTransferred = new AtomicLong();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private volatile long totalBytes = -1;
+    private final long startNanos = System.nanoTime();
+
+    // 以下字段只在采样线程（或 close 时持锁）中访问
+    private long lastSampleNanos = startNanos;
+    private long lastSampleBytes;
+    private long lastPublishedBytes = -1;
+    private double smoothedRate;
+
+    public ProgressReporter(Consumer<ProgressSnapshot> listener) {
+        this.listener = listener;
+        ACTIVE.add(this);
+    }
+
+    /**
+     * 传输循环调用：只记录当前进度
+     */
+    @Override
+    public void onProgress(long bytesTransferred, long totalBytes) {
+        if (this.totalBytes != totalBytes) {
+            this.totalBytes = totalBytes;
+        }
+        this.bytesTransferred.lazySet(bytesTransferred);
+    }
+
+    /**
+     * 增量更新进度
+     */
+    public void add(long delta) {
+        bytesTransferred.addAndGet(delta);
+    }
+
+    public void setTotalBytes(long totalBytes) {
+        this.totalBytes = totalBytes;
+    }
+
+    @Override
+    public void onComplete() {
+        close();
+    }
+
+    @Override
+    public void onError(String error) {
+        close();
+    }
+
+    /**
+     * 停止采样并立即发布最终快照
+     */
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            ACTIVE.remove(this);
+            sample(true);
+        }
+    }
+
+    private static void sampleAll() {
+        for (ProgressReporter reporter : ACTIVE) {
+            try {
+                reporter.sample(false);
+            } catch (RuntimeException e) {
+                System.err.println("发布传输进度时发生错误: " + e.getMessage());
+            }
+        }
+    }
+
+    private synchronized void sample(boolean finished) {
+        long now = System.nanoTime();
+        long bytes = bytesTransferred.get();
+        if (!finished && bytes == lastPublishedBytes && now - lastSampleNanos < STALL_PUBLISH_NANOS) {
+            return; // 没有变化，不发布；停滞时每秒发布一次以便速度和剩余时间逐渐更新
+        }
+
+        double dt = (now - lastSampleNanos) / 1e9;
+        double instantRate = dt > 0 ? (bytes - lastSampleBytes) / dt : 0;
+        if (lastPublishedBytes < 0) {
+            smoothedRate = instantRate;
+        } else if (dt > 0) {
+            double alpha = 1 - Math.exp(-dt / SMOOTHING_SECONDS);
+            smoothedRate += alpha * (instantRate - smoothedRate);
+        }
+        lastSampleNanos = now;
+        lastSampleBytes = bytes;
+        lastPublishedBytes = bytes;
+
+        listener.accept(new ProgressSnapshot(bytes, totalBytes, now - startNanos, instantRate, smoothedRate, finished));
+    }
+}
@@ -0,0 +1,80 @@
+package com.networkdesign.client;
+
+/**
+ * 传输进度快照
+ * 由 ProgressReporter 按固定频率采样生成，包含瞬时速度、平滑速度和预计剩余时间
+ */
+public final class ProgressSnapshot {
+    private final long bytesTransferred;
+    private final long totalBytes;
+    private final long elapsedNanos;
+    private final double instantBytesPerSecond;
+    private final double smoothedBytesPerSecond;
+    private final boolean finished;
+
+    ProgressSnapshot(long bytesTransferred, long totalBytes, long elapsedNanos,
+                     double instantBytesPerSecond, double smoothedBytesPerSecond, boolean finished) {
+        this.bytesTransferred = bytesTransferred;
+        this.totalBytes = totalBytes;
+        this.elapsedNanos = elapsedNanos;
+        this.instantBytesPerSecond = instantBytesPerSecond;
+        this.smoothedBytesPerSecond = smoothedBytesPerSecond;
+        this.finished = finished;
+    }
+
+    public long getBytesTransferred() {
+        return bytesTransferred;
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * 最近一个采样周期内的速度（字节/秒）
+     */
+    public double getInstantBytesPerSecond() {
+        return instantBytesPerSecond;
+    }
+
+    /**
+     * 指数加权平滑后的速度（字节/秒）
+     */
+    public double getSmoothedBytesPerSecond() {
+        return smoothedBytesPerSecond;
+    }
+
+    /**
+     * 完成比例（0-1），总大小为0时视为已完成，总大小未知（负数）时完成前为0
+     */
+    public double getFraction() {
+        if (totalBytes == 0) {
+            return 1.0;
+        }
+        if (totalBytes < 0) {
+            return finished ? 1.0 : 0.0;
+        }
+        return Math.min(1.0, (double) bytesTransferred / totalBytes);
+    }
+
+    /**
+     * 按平滑速度估算的剩余秒数，已完成或总大小为0时返回0，总大小未知或还没有速度时无法估算，返回 -1
+     */
+    public long getEtaSeconds() {
+        if (finished || totalBytes == 0) {
+            return 0;
+        }
+        if (totalBytes < 0 || smoothedBytesPerSecond <= 0) {
+            return -1;
+        }
+        return (long) Math.ceil(Math.max(0, totalBytes - bytesTransferred) / smoothedBytesPerSecond);
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+}
@@ -0,0 +1,141 @@
+package com.networkdesign.client;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 目录同步的本地清单：文件名 -> 大小、修改时间、内容哈希和服务器上已确认的内容哈希
+ * 大小和修改时间都没有变化的文件直接使用记录的哈希，启动时不必重新读取整个目录；
+ * 服务器哈希与本地哈希相同的文件已经同步，不再推送。
+ * 修改时间的精度有限，计算哈希时刚被修改过的文件之后仍会重新计算（同一时刻内的再次修改看不出来）。
+ * 首行记录服务器（主机:端口），换了服务器时服务器哈希全部作废
+ */
+final class SyncManifest {
+    static final String FILE_NAME = ".sync-manifest";
+    private static final String HEADER = "# sync ";
+    private static final long RACY_MILLIS = 2000;
+
+    private final Path file;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final String server;
+    private boolean modified;
+
+    private SyncManifest(Path file, String server) {
+        this.file = file;
+        this.server = server;
+    }
+
+    /**
+     * 读取清单，文件不存在或损坏的行被忽略
+     */
+    static SyncManifest load(Path file, String server) throws IOException {
+        SyncManifest manifest = new SyncManifest(file, server);
+        if (!Files.exists(file)) {
+            return manifest;
+        }
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        boolean sameServer = !lines.isEmpty() && lines.get(0).equals(HEADER + server);
+        for (String line : lines) {
+            if (line.startsWith("#")) {
+                continue;
+            }
+            // 大小、修改时间、计算哈希的时间、本地哈希、服务器哈希（未知为 -）、文件名
+            String[] fields = line.split("\t", 6);
+            if (fields.length != 6) {
+                continue;
+            }
+            try {
+                String remote = sameServer && !fields[4].equals("-") ? fields[4] : null;
+                manifest.entries.put(fields[5], new Entry(Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+                        Long.parseLong(fields[2]), fields[3], remote));
+            } catch (NumberFormatException e) {
+                // 忽略损坏的行
+            }
+        }
+        manifest.modified = !sameServer;
+        return manifest;
+    }
+
+    synchronized Entry get(String name) {
+        return entries.get(name);
+    }
+
+    synchronized void put(String name, Entry entry) {
+        entries.put(name, entry);
+        modified = true;
+    }
+
+    synchronized void remove(String name) {
+        if (entries.remove(name) != null) {
+            modified = true;
+        }
+    }
+
+    synchronized List<String> names() {
+        return new ArrayList<>(entries.keySet());
+    }
+
+    /**
+     * 有变化时写入清单（先写临时文件再替换）
+     */
+    synchronized void save() throws IOException {
+        if (!modified) {
+            return;
+        }
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            writer.write(HEADER + server);
+            writer.newLine();
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                Entry entry = e.getValue();
+                writer.write(entry.size + "\t" + entry.lastModified + "\t" + entry.hashedAt + "\t" + entry.hash
+                        + "\t" + (entry.remoteHash != null ? entry.remoteHash : "-") + "\t" + e.getKey());
+                writer.newLine();
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        modified = false;
+    }
+
+    /**
+     * 清单中的一个文件
+     */
+    static final class Entry {
+        final long size;
+        final long lastModified;
+        final long hashedAt;       // 计算哈希的时间（毫秒）
+        final String hash;
+        final String remoteHash;   // 服务器上已确认的内容哈希，未知时为 null
+
+        Entry(long size, long lastModified, long hashedAt, String hash, String remoteHash) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hashedAt = hashedAt;
+            this.hash = hash;
+            this.remoteHash = remoteHash;
+        }
+
+        /**
+         * 记录的哈希对当前的文件是否仍然有效
+         */
+        boolean matches(long size, long lastModified) {
+            return this.size == size && this.lastModified == lastModified && hashedAt - lastModified > RACY_MILLIS;
+        }
+
+        boolean isSynced() {
+            return hash.equals(remoteHash);
+        }
+
+        Entry withRemoteHash(String remoteHash) {
+            return new Entry(size, lastModified, hashedAt, hash, remoteHash);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.networkdesign.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 传输事件循环
+ * 固定数量的选择器线程，每个线程用一个 Selector 驱动多个非阻塞传输，
+ * 使大量并发传输只占用少量线程
+ */
+public class TransferEventLoop implements Closeable {
+    private static volatile TransferEventLoop shared;
+
+    private final Worker[] workers;
+    private final AtomicInteger nextWorker = new AtomicInteger();
+    private volatile boolean running = true;
+
+    /**
+     * @param threads 选择器线程数
+     */
+    public TransferEventLoop(int threads) throws IOException {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("线程数必须大于0");
+        }
+        workers = new Worker[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker(i);
+        }
+        for (Worker worker : workers) {
+            worker.thread.start();
+        }
+    }
+
+    /**
+     * 获取进程内共享的事件循环（线程数为 CPU 核数，最多4个）
+     */
+    public static TransferEventLoop shared() {
+        TransferEventLoop loop = shared;
+        if (loop == null) {
+            synchronized (TransferEventLoop.class) {
+                loop = shared;
+                if (loop == null) {
+                    try {
+                        loop = new TransferEventLoop(Math.min(4, Runtime.getRuntime().availableProcessors()));
+                    } catch (IOException e) {
+                        throw new IllegalStateException("无法创建传输事件循环", e);
+                    }
+                    shared = loop;
+                }
+            }
+        }
+        return loop;
+    }
+
+    /**
+     * 将传输分配给一个选择器线程并启动
+     */
+    void register(AsyncTransfer<?> transfer) {
+        if (!running) {
+            throw new IllegalStateException("事件循环已关闭");
+        }
+        Worker worker = workers[Math.floorMod(nextWorker.getAndIncrement(), workers.length)];
+        transfer.bind(worker);
+        worker.execute(transfer::start);
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        for (Worker worker : workers) {
+            worker.selector.wakeup();
+        }
+    }
+
+    /**
+     * 单个选择器线程
+     */
+    final class Worker implements Runnable {
+        final Selector selector;
+        final Thread thread;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        Worker(int index) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "transfer-loop-" + index);
+            this.thread.setDaemon(true);
+        }
+
+        /**
+         * 在选择器线程中执行任务
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (Thread.currentThread() != thread) {
+                selector.wakeup();
+            }
+        }
+
+        boolean inLoop() {
+            return Thread.currentThread() == thread;
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    // 处理就绪事件期间在本线程中提交的任务不会唤醒选择器，此时不能阻塞
+                    if (tasks.isEmpty()) {
+                        selector.select();
+                    } else {
+                        selector.selectNow();
+                    }
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        AsyncTransfer<?> transfer = (AsyncTransfer<?>) key.attachment();
+                        transfer.handle(key);
+                    }
+                } catch (ClosedSelectorException e) {
+                    break;
+                } catch (Exception e) {
+                    System.err.println("传输事件循环发生意外错误: " + e.getMessage());
+                    e.printStackTrace();
+                }
+            }
+
+            // 关闭时终止所有尚未结束的传输（先让排队中的传输完成注册）
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+            for (SelectionKey key : new ArrayList<>(selector.keys())) {
+                ((AsyncTransfer<?>) key.attachment()).fail(new IOException("事件循环已关闭"));
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+                // 忽略关闭时的异常
+            }
+        }
+    }
+}
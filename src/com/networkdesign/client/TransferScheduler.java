@@ -0,0 +1,211 @@
+package com.networkdesign.client;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 传输调度器
+ * 限制同时进行的传输数量，排队中的传输按优先级（高者优先）、再按大小（小者优先，
+ * 以降低平均完成时间）、最后按加入顺序调度。大小未知的下载排在同优先级已知大小的传输之后。
+ *
+ * 协议不支持断点续传，暂停运行中的传输会中断连接，继续时从头开始
+ */
+public class TransferScheduler {
+    private static final Comparator<TransferTask> ORDER = Comparator
+            .comparingInt((TransferTask t) -> -t.getPriority())
+            .thenComparingLong(t -> t.getSize() < 0 ? Long.MAX_VALUE : t.getSize())
+            .thenComparingLong(TransferTask::getId);
+
+    /**
+     * 任务状态或进度变化的监听器，可能在任意线程中调用
+     */
+    public interface Listener {
+        void taskChanged(TransferTask task);
+    }
+
+    private final PriorityQueue<TransferTask> queue = new PriorityQueue<>(ORDER);
+    private final List<TransferTask> tasks = new ArrayList<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicLong nextId = new AtomicLong();
+    private int maxConcurrent;
+    private int running;
+
+    public TransferScheduler(int maxConcurrent) {
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * 调整最大并发数；调小时不会中断已在运行的传输
+     */
+    public synchronized void setMaxConcurrent(int maxConcurrent) {
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        dispatch();
+    }
+
+    public synchronized int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    /**
+     * 加入上传任务
+     */
+    public synchronized TransferTask enqueueUpload(AsyncFileTransferClient client, File file, int priority) {
+        TransferTask task = new TransferTask(nextId.incrementAndGet(), client, TransferTask.Kind.UPLOAD,
+                file.getName(), file.getAbsolutePath(), file.length(), priority);
+        return add(task);
+    }
+
+    /**
+     * 加入下载任务
+     * @param size 文件大小，未知时传 -1
+     */
+    public synchronized TransferTask enqueueDownload(AsyncFileTransferClient client, String fileName, File saveDir,
+                                                     long size, int priority) {
+        TransferTask task = new TransferTask(nextId.incrementAndGet(), client, TransferTask.Kind.DOWNLOAD,
+                fileName, saveDir.getAbsolutePath(), size, priority);
+        return add(task);
+    }
+
+    /**
+     * 获取所有任务（按加入顺序）
+     */
+    public synchronized List<TransferTask> getTasks() {
+        return new ArrayList<>(tasks);
+    }
+
+    public synchronized void setPriority(TransferTask task, int priority) {
+        boolean queued = queue.remove(task);
+        task.setPriority(priority);
+        if (queued) {
+            queue.add(task);
+        }
+        fire(task);
+    }
+
+    public synchronized void pause(TransferTask task) {
+        if (task.getState() == TransferTask.State.QUEUED) {
+            queue.remove(task);
+            changeState(task, TransferTask.State.PAUSED);
+        } else if (task.getState() == TransferTask.State.RUNNING) {
+            changeState(task, TransferTask.State.PAUSED);
+            task.future.cancel(true);
+        }
+    }
+
+    public synchronized void resume(TransferTask task) {
+        if (task.getState() == TransferTask.State.PAUSED) {
+            requeue(task);
+        }
+    }
+
+    public synchronized void cancel(TransferTask task) {
+        TransferTask.State state = task.getState();
+        if (state == TransferTask.State.QUEUED || state == TransferTask.State.PAUSED) {
+            queue.remove(task);
+            changeState(task, TransferTask.State.CANCELLED);
+        } else if (state == TransferTask.State.RUNNING) {
+            changeState(task, TransferTask.State.CANCELLED);
+            task.future.cancel(true);
+        }
+    }
+
+    public synchronized void retry(TransferTask task) {
+        if (task.getState() == TransferTask.State.FAILED || task.getState() == TransferTask.State.CANCELLED) {
+            requeue(task);
+        }
+    }
+
+    /**
+     * 从列表中移除已结束的任务
+     */
+    public synchronized void clearFinished() {
+        tasks.removeIf(t -> t.getState() == TransferTask.State.COMPLETED
+                || t.getState() == TransferTask.State.CANCELLED);
+    }
+
+    private TransferTask add(TransferTask task) {
+        tasks.add(task);
+        queue.add(task);
+        fire(task);
+        dispatch();
+        return task;
+    }
+
+    private void requeue(TransferTask task) {
+        task.setError(null);
+        task.setProgress(null);
+        changeState(task, TransferTask.State.QUEUED);
+        queue.add(task);
+        dispatch();
+    }
+
+    /**
+     * 在并发数允许的范围内启动排队中的任务
+     */
+    private void dispatch() {
+        while (running < maxConcurrent && !queue.isEmpty()) {
+            start(queue.poll());
+        }
+    }
+
+    private void start(TransferTask task) {
+        running++;
+        task.incrementAttempts();
+        changeState(task, TransferTask.State.RUNNING);
+
+        ProgressReporter progress = new ProgressReporter(snapshot -> {
+            task.setProgress(snapshot);
+            fire(task);
+        });
+        if (task.getSize() >= 0) {
+            progress.setTotalBytes(task.getSize());
+        }
+        if (task.getKind() == TransferTask.Kind.UPLOAD) {
+            task.future = task.getClient().uploadFile(task.getLocalPath(), progress);
+        } else {
+            task.future = task.getClient().downloadSpecificFile(task.getName(), task.getLocalPath(), progress);
+        }
+        // future 已完成时（例如本地文件不存在）回调会在当前线程中立即执行
+        task.future.whenComplete((result, error) -> {
+            progress.close();
+            finished(task, error);
+        });
+    }
+
+    private synchronized void finished(TransferTask task, Throwable error) {
+        running--;
+        // 暂停或取消时状态已经被修改，不再覆盖
+        if (task.getState() == TransferTask.State.RUNNING) {
+            if (error == null) {
+                changeState(task, TransferTask.State.COMPLETED);
+            } else {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                task.setError(cause instanceof CancellationException ? "已取消" : cause.getMessage());
+                changeState(task, TransferTask.State.FAILED);
+            }
+        }
+        dispatch();
+    }
+
+    private void changeState(TransferTask task, TransferTask.State state) {
+        task.setState(state);
+        fire(task);
+    }
+
+    private void fire(TransferTask task) {
+        for (Listener listener : listeners) {
+            listener.taskChanged(task);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.networkdesign.client;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 传输队列中的一项
+ * 状态由 TransferScheduler 维护，界面只读取
+ */
+public class TransferTask {
+    /**
+     * 传输方向
+     */
+    public enum Kind { UPLOAD, DOWNLOAD }
+
+    /**
+     * 传输状态
+     */
+    public enum State { QUEUED, RUNNING, PAUSED, COMPLETED, FAILED, CANCELLED }
+
+    private final long id;
+    private final AsyncFileTransferClient client;
+    private final Kind kind;
+    private final String name;
+    private final String localPath;    // 上传时为本地文件路径，下载时为保存目录
+    private final long size;           // 未知时为 -1
+    private volatile int priority;
+    private volatile State state = State.QUEUED;
+    private volatile String error;
+    private volatile ProgressSnapshot progress;
+    private volatile int attempts;
+    CompletableFuture<Void> future;    // 运行中的传输，由调度器访问
+
+    TransferTask(long id, AsyncFileTransferClient client, Kind kind, String name, String localPath, long size, int priority) {
+        this.id = id;
+        this.client = client;
+        this.kind = kind;
+        this.name = name;
+        this.localPath = localPath;
+        this.size = size;
+        this.priority = priority;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    AsyncFileTransferClient getClient() {
+        return client;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getLocalPath() {
+        return localPath;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * 最近一次失败的原因
+     */
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * 最近一次进度快照，尚未开始时为 null
+     */
+    public ProgressSnapshot getProgress() {
+        return progress;
+    }
+
+    /**
+     * 已启动的次数（包括重试和暂停后继续）
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    void setPriority(int priority) {
+        this.priority = priority;
+    }
+
+    void setState(State state) {
+        this.state = state;
+    }
+
+    void setError(String error) {
+        this.error = error;
+    }
+
+    void setProgress(ProgressSnapshot progress) {
+        this.progress = progress;
+    }
+
+    void incrementAttempts() {
+        attempts++;
+    }
+}
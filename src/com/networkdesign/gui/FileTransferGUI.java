@@ -1,34 +1,42 @@
 package com.networkdesign.gui;
 
-import com.networkdesign.client.FileTransferClient;
+import com.networkdesign.client.AsyncFileTransferClient;
+import com.networkdesign.client.DirectorySync;
+import com.networkdesign.client.TransferScheduler;
+import com.networkdesign.client.TransferTask;
 import com.networkdesign.server.FileTransferServer;
 
 import javax.swing.*;
 import java.awt.*;
 import java.io.File;
 import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
-import java.nio.file.Files; // 导入 Files 类
-import java.nio.file.Paths; // 导入 Paths 类
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletionException;
 
 /**
  * 文件传输GUI主窗口
  * 提供文件上传和下载的图形界面
  */
 public class FileTransferGUI extends JFrame {
+    private static final int DEFAULT_CONCURRENT_TRANSFERS = 3;  // 默认同时进行的传输数
     private final JTextField serverAddressField;
     private final JTextField serverPortField;
     private final JButton uploadButton;
     private final JButton downloadButton;
     private final JButton serverButton;
+    private final JButton syncButton;
     private final JTextArea logArea;
+    private final TransferScheduler scheduler;
+    private final Map<TransferTask, Integer> reportedAttempts = new ConcurrentHashMap<>(); // 已记录结果的传输
     private FileTransferServer server; // GUI 持有服务器实例，用于启动/停止
+    private DirectorySync directorySync; // 正在同步的文件夹，为 null 表示未同步
 
     public FileTransferGUI() {
         // 设置窗口属性
         setTitle("文件传输系统");
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-        setSize(600, 400);
+        setSize(900, 600);
         setLocationRelativeTo(null);
 
         // 创建主面板
@@ -78,14 +86,27 @@ public class FileTransferGUI extends JFrame {
         gbc.gridy = 4;
         controlPanel.add(serverButton, gbc);
 
+        // 同步文件夹按钮：持续把文件夹中新增和修改的文件推送到服务器
+        syncButton = new JButton("同步文件夹");
+        syncButton.addActionListener(e -> toggleSync());
+        gbc.gridy = 5;
+        controlPanel.add(syncButton, gbc);
+
         // 创建日志区域
         logArea = new JTextArea();
         logArea.setEditable(false);
         JScrollPane scrollPane = new JScrollPane(logArea);
 
+        // 创建传输管理面板，所有上传和下载都在这里排队和显示
+        scheduler = new TransferScheduler(DEFAULT_CONCURRENT_TRANSFERS);
+        scheduler.addListener(this::logTransferResult);
+        TransferManagerPanel transferPanel = new TransferManagerPanel(scheduler);
+        JSplitPane splitPane = new JSplitPane(JSplitPane.VERTICAL_SPLIT, transferPanel, scrollPane);
+        splitPane.setResizeWeight(0.7);
+
         // 添加组件到主面板
         mainPanel.add(controlPanel, BorderLayout.WEST);
-        mainPanel.add(scrollPane, BorderLayout.CENTER);
+        mainPanel.add(splitPane, BorderLayout.CENTER);
 
         // 设置主面板
         add(mainPanel);
@@ -103,72 +124,14 @@ public class FileTransferGUI extends JFrame {
         }
 
         JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setMultiSelectionEnabled(true);
         if (fileChooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
-            File file = fileChooser.getSelectedFile();
-            String serverAddress = serverAddressField.getText();
-            int serverPort = Integer.parseInt(serverPortField.getText());
-
-            // 创建进度对话框
-            TransferProgressDialog progressDialog = new TransferProgressDialog(
-                    this, "上传文件", file.getName());
-
-            // 在新线程中执行上传
-            new Thread(() -> {
-                FileTransferClient client = null; // 线程内部创建客户端
-                try {
-                    client = new FileTransferClient(serverAddress, serverPort);
-                    client.uploadFile(file.getAbsolutePath(),
-                            new FileTransferClient.ProgressCallback() {
-                                @Override
-                                public void onProgress(long bytesTransferred, long totalBytes) {
-                                    // 在 EDT 中更新 GUI
-                                    SwingUtilities.invokeLater(() ->
-                                            progressDialog.updateProgress(bytesTransferred, totalBytes));
-                                }
-
-                                @Override
-                                public void onComplete() {
-                                    // 在 EDT 中更新 GUI
-                                    SwingUtilities.invokeLater(() -> {
-                                        progressDialog.dispose();
-                                        log("文件上传完成: " + file.getName());
-                                        JOptionPane.showMessageDialog(null, "文件上传完成: " + file.getName(), "提示", JOptionPane.INFORMATION_MESSAGE);
-                                    });
-                                }
-
-                                @Override
-                                public void onError(String error) {
-                                    // 在 EDT 中更新 GUI
-                                    SwingUtilities.invokeLater(() -> {
-                                        progressDialog.dispose();
-                                        log("上传错误: " + error);
-                                        JOptionPane.showMessageDialog(null, "上传错误: " + error, "错误", JOptionPane.ERROR_MESSAGE);
-                                    });
-                                }
-                            });
-                } catch (IOException e) {
-                    // 在 EDT 中更新 GUI
-                    SwingUtilities.invokeLater(() -> {
-                        progressDialog.dispose();
-                        log("上传IO错误: " + e.getMessage());
-                        JOptionPane.showMessageDialog(null, "上传IO错误: " + e.getMessage(), "错误", JOptionPane.ERROR_MESSAGE);
-                    });
-                } catch (Exception e) {
-                    // 在 EDT 中更新 GUI
-                    SwingUtilities.invokeLater(() -> {
-                        progressDialog.dispose();
-                        log("上传过程中发生意外错误: " + e.getMessage());
-                        e.printStackTrace(); // 打印堆栈跟踪以便调试
-                        JOptionPane.showMessageDialog(null, "上传过程中发生意外错误: " + e.getMessage(), "错误", JOptionPane.ERROR_MESSAGE);
-                    });
-                } finally {
-                    if (client != null) {
-                        client.disconnect(); // 确保连接关闭
-                    }
-                }
-            }).start();
-
-            progressDialog.setVisible(true); // 显示进度对话框
+            AsyncFileTransferClient client = createClient();
+            // 加入传输队列，由调度器控制并发
+            for (File file : fileChooser.getSelectedFiles()) {
+                scheduler.enqueueUpload(client, file, 0);
+                log("已加入上传队列: " + file.getName());
+            }
         }
     }
 
@@ -183,143 +146,124 @@ public class FileTransferGUI extends JFrame {
             return;
         }
 
-        String serverAddress = serverAddressField.getText();
-        int serverPort = Integer.parseInt(serverPortField.getText());
-
-        // 创建进度对话框 (先显示，表示正在获取文件列表)
-        TransferProgressDialog progressDialog = new TransferProgressDialog(
-                this, "下载文件", "正在获取文件列表...");
-        // progressDialog.setVisible(true); // 先不显示，获取到列表再显示
+        AsyncFileTransferClient client = createClient();
 
-        // 在新线程中执行下载流程（包括获取文件列表和文件选择）
-        new Thread(() -> {
-            File saveDir = null;
-            String selectedFile = null;
-            FileTransferClient client = null; // 线程内部创建客户端
-
-            try {
-                client = new FileTransferClient(serverAddress, serverPort);
+        // 1. 异步获取服务器文件列表，获取到后回到 EDT 让用户选择
+        client.getFileList().whenComplete((files, error) -> SwingUtilities.invokeLater(() -> {
+            if (error != null) {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                log("获取文件列表错误: " + cause.getMessage());
+                JOptionPane.showMessageDialog(this, "获取文件列表错误: " + cause.getMessage(), "错误", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            if (files.length == 0) {
+                log("服务器上没有可用的文件");
+                JOptionPane.showMessageDialog(this, "服务器上没有可用的文件", "提示", JOptionPane.INFORMATION_MESSAGE);
+                return;
+            }
 
-                // 1. 获取服务器文件列表
-                String[] files = client.getFileList();
-                client.disconnect(); // 获取完列表后立即断开连接
+            // 2. 显示文件选择对话框让用户选择文件
+            java.util.List<String> selectedFiles = showFileSelectionDialog(files);
+            if (selectedFiles.isEmpty()) {
+                log("用户取消了文件选择");
+                return;
+            }
 
-                if (files == null || files.length == 0) {
-                    SwingUtilities.invokeLater(() -> {
-                        JOptionPane.showMessageDialog(this, "服务器上没有可用的文件", "提示", JOptionPane.INFORMATION_MESSAGE);
-                        // 如果进度对话框已经显示了，需要确保它被关闭
-                        if(progressDialog.isVisible()) {
-                            progressDialog.dispose();
-                        }
-                        log("服务器上没有可用的文件"); // 在对话框显示后再更新日志
-                    });
-                    return; // 没有文件可下载
-                }
+            // 3. 显示保存目录选择对话框
+            File saveDir = showSaveDirectoryDialog();
+            if (saveDir == null) {
+                log("用户取消了保存位置选择");
+                return;
+            }
 
-                // 2. 在 EDT 中显示文件选择对话框让用户选择文件
-                // 注意：showFileSelectionDialogOnEDT 是阻塞的，当前线程会在这里等待用户操作对话框
-                selectedFile = showFileSelectionDialogOnEDT(files);
+            // 4. 加入传输队列（文件列表不含大小，按未知大小排队）
+            for (String fileName : selectedFiles) {
+                scheduler.enqueueDownload(client, fileName, saveDir, -1, 0);
+                log("已加入下载队列: " + fileName);
+            }
+        }));
+    }
 
-                if (selectedFile == null) {
-                    // 用户取消了文件选择
-                    SwingUtilities.invokeLater(() -> {
-                        // 如果进度对话框已经显示了，需要确保它被关闭
-                        if(progressDialog.isVisible()) {
-                            progressDialog.dispose();
-                        }
-                        log("用户取消了文件选择");
-                    });
-                    return;
+    /**
+     * 开始或停止同步文件夹
+     */
+    private void toggleSync() {
+        if (directorySync != null) {
+            DirectorySync sync = directorySync;
+            directorySync = null;
+            syncButton.setText("同步文件夹");
+            new Thread(() -> {
+                sync.close();
+                log("已停止同步文件夹: " + sync.getDirectory());
+            }).start();
+            return;
+        }
+        JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setDialogTitle("选择要同步的文件夹");
+        fileChooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+        if (fileChooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        try {
+            DirectorySync sync = new DirectorySync(fileChooser.getSelectedFile().toPath(),
+                    serverAddressField.getText(), Integer.parseInt(serverPortField.getText()));
+            sync.addListener(new DirectorySync.Listener() {
+                @Override
+                public void filePushed(String name, long size) {
+                    log("已同步: " + name);
                 }
 
-                // 3. 在 EDT 中显示保存目录选择对话框
-                // 注意：showSaveDirectoryDialogOnEDT 也是阻塞的
-                saveDir = showSaveDirectoryDialogOnEDT();
-
-                if (saveDir == null) {
-                    // 用户取消了保存目录选择
-                    SwingUtilities.invokeLater(() -> {
-                        // 如果进度对话框已经显示了，需要确保它被关闭
-                        if(progressDialog.isVisible()) {
-                            progressDialog.dispose();
-                        }
-                        log("用户取消了保存位置选择");
-                    });
-                    return;
+                @Override
+                public void fileFailed(String name, Exception error) {
+                    log("同步错误: " + name + " - " + error.getMessage());
                 }
 
-                // 4. 更新并显示进度对话框 (现在才显示，因为用户已经选择了文件和保存位置)
-                String finalSelectedFile = selectedFile; // 需要一个 final 变量在 lambda 中使用
-                SwingUtilities.invokeLater(() -> {
-                    progressDialog.setTitle("下载文件: " + finalSelectedFile);
-                    progressDialog.setFileName(finalSelectedFile);
-                    progressDialog.setVisible(true); // 现在显示进度对话框
-                });
-
-                // 5. 重新创建客户端连接并开始下载选定的文件
-                // 这里需要一个新的客户端实例来进行实际的文件数据传输
-                FileTransferClient downloadClient = null;
-                try {
-                    downloadClient = new FileTransferClient(serverAddress, serverPort);
-                    downloadClient.downloadSpecificFile(selectedFile, saveDir.getAbsolutePath(), // 调用下载指定文件的方法
-                            new FileTransferClient.ProgressCallback() {
-                                @Override
-                                public void onProgress(long bytesTransferred, long totalBytes) {
-                                    // 在 EDT 中更新 GUI
-                                    SwingUtilities.invokeLater(() ->
-                                            progressDialog.updateProgress(bytesTransferred, totalBytes));
-                                }
-
-                                @Override
-                                public void onComplete() {
-                                    // 在 EDT 中更新 GUI
-                                    SwingUtilities.invokeLater(() -> {
-                                        progressDialog.dispose();
-                                        log("文件下载完成: " + finalSelectedFile); // 使用 final 变量
-                                        JOptionPane.showMessageDialog(null, "文件下载完成: " + finalSelectedFile, "提示", JOptionPane.INFORMATION_MESSAGE); // 使用 final 变量
-                                    });
-                                }
-
-                                @Override
-                                public void onError(String error) {
-                                    // 在 EDT 中更新 GUI
-                                    SwingUtilities.invokeLater(() -> {
-                                        progressDialog.dispose();
-                                        log("下载错误: " + error);
-                                        JOptionPane.showMessageDialog(null, "下载错误: " + error, "错误", JOptionPane.ERROR_MESSAGE);
-                                    });
-                                }
-                            });
-                } finally {
-                    if (downloadClient != null) {
-                        downloadClient.disconnect(); // 确保下载连接关闭
+                @Override
+                public void roundFinished(DirectorySync.Result result) {
+                    if (result.getPushed() > 0 || !result.getFailed().isEmpty()) {
+                        log("同步完成: " + result);
                     }
                 }
+            });
+            sync.start();
+            directorySync = sync;
+            syncButton.setText("停止同步");
+            log("开始同步文件夹: " + sync.getDirectory());
+        } catch (NumberFormatException e) {
+            log("错误：端口号格式无效！");
+        } catch (IOException e) {
+            log("同步文件夹失败: " + e.getMessage());
+            JOptionPane.showMessageDialog(this, "同步文件夹失败: " + e.getMessage(), "错误", JOptionPane.ERROR_MESSAGE);
+        }
+    }
 
+    /**
+     * 根据界面输入创建异步客户端
+     */
+    private AsyncFileTransferClient createClient() {
+        String serverAddress = serverAddressField.getText();
+        int serverPort = Integer.parseInt(serverPortField.getText());
+        return new AsyncFileTransferClient(serverAddress, serverPort);
+    }
 
-            } catch (IOException e) {
-                SwingUtilities.invokeLater(() -> {
-                    if(progressDialog.isVisible()) {
-                        progressDialog.dispose();
-                    }
-                    log("下载IO错误: " + e.getMessage());
-                    JOptionPane.showMessageDialog(null, "下载IO错误: " + e.getMessage(), "错误", JOptionPane.ERROR_MESSAGE);
-                });
-            } catch (Exception e) {
-                SwingUtilities.invokeLater(() -> {
-                    if(progressDialog.isVisible()) {
-                        progressDialog.dispose();
-                    }
-                    log("下载过程中发生意外错误: " + e.getMessage());
-                    e.printStackTrace(); // 打印堆栈跟踪以便调试
-                    JOptionPane.showMessageDialog(null, "下载过程中发生意外错误: " + e.getMessage(), "错误", JOptionPane.ERROR_MESSAGE);
-                });
-            }
-            // Note: The initial 'client' used for getFileList is disconnected in its finally block.
-            // The 'downloadClient' is disconnected in its finally block.
-            // No need for a top-level finally here unless there's other shared cleanup.
-        }).start();
-        // progressDialog.setVisible(true); // 不在这里设置可见，在获取到文件列表并用户选择后才显示
+    /**
+     * 记录传输结果（每次尝试只记录一次，进度变化不记录）
+     */
+    private void logTransferResult(TransferTask task) {
+        TransferTask.State state = task.getState();
+        if (state != TransferTask.State.COMPLETED && state != TransferTask.State.FAILED) {
+            return;
+        }
+        Integer previous = reportedAttempts.put(task, task.getAttempts());
+        if (previous != null && previous == task.getAttempts()) {
+            return;
+        }
+        String action = task.getKind() == TransferTask.Kind.UPLOAD ? "上传" : "下载";
+        if (state == TransferTask.State.COMPLETED) {
+            log("文件" + action + "完成: " + task.getName());
+        } else {
+            log(action + "错误: " + task.getName() + " - " + task.getError());
+        }
     }
 
     /**
@@ -380,70 +324,61 @@ public class FileTransferGUI extends JFrame {
     }
 
     /**
-     * 在 EDT 中显示文件选择对话框
+     * 显示文件选择对话框（在 EDT 中调用，模态对话框关闭后返回）
      * @param files 文件列表
-     * @return 用户选择的文件名，如果取消则返回 null
+     * @return 用户选择的文件名，如果取消则返回空列表
      */
-    private String showFileSelectionDialogOnEDT(String[] files) throws InterruptedException, InvocationTargetException {
-        final String[] selected = {null};
-        // 使用 invokeAndWait 确保对话框在 EDT 中创建和显示，并且当前线程会等待对话框关闭
-        SwingUtilities.invokeAndWait(() -> {
-            JDialog dialog = new JDialog(this, "选择要下载的文件", true); // Modality makes it block input to other windows
-            dialog.setDefaultCloseOperation(JDialog.DISPOSE_ON_CLOSE);
-            dialog.setLayout(new BorderLayout());
-            dialog.setSize(300, 200);
-            dialog.setLocationRelativeTo(this); // Center relative to the main frame
-
-            JList<String> fileList = new JList<>(files);
-            fileList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
-            JScrollPane scrollPane = new JScrollPane(fileList);
-            dialog.add(scrollPane, BorderLayout.CENTER);
-
-            JPanel buttonPanel = new JPanel();
-            JButton downloadButton = new JButton("下载");
-            JButton cancelButton = new JButton("取消");
-
-            downloadButton.addActionListener(e -> {
-                if (!fileList.isSelectionEmpty()) {
-                    selected[0] = fileList.getSelectedValue();
-                }
-                dialog.dispose(); // Close the dialog
-            });
+    private java.util.List<String> showFileSelectionDialog(String[] files) {
+        final java.util.List<String> selected = new java.util.ArrayList<>();
+        JDialog dialog = new JDialog(this, "选择要下载的文件", true); // Modality makes it block input to other windows
+        dialog.setDefaultCloseOperation(JDialog.DISPOSE_ON_CLOSE);
+        dialog.setLayout(new BorderLayout());
+        dialog.setSize(300, 200);
+        dialog.setLocationRelativeTo(this); // Center relative to the main frame
+
+        JList<String> fileList = new JList<>(files);
+        fileList.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
+        JScrollPane scrollPane = new JScrollPane(fileList);
+        dialog.add(scrollPane, BorderLayout.CENTER);
+
+        JPanel buttonPanel = new JPanel();
+        JButton downloadButton = new JButton("下载");
+        JButton cancelButton = new JButton("取消");
+
+        downloadButton.addActionListener(e -> {
+            selected.addAll(fileList.getSelectedValuesList());
+            dialog.dispose(); // Close the dialog
+        });
 
-            cancelButton.addActionListener(e -> {
-                dialog.dispose(); // Close the dialog
-            });
+        cancelButton.addActionListener(e -> {
+            dialog.dispose(); // Close the dialog
+        });
 
-            buttonPanel.add(downloadButton);
-            buttonPanel.add(cancelButton);
-            dialog.add(buttonPanel, BorderLayout.SOUTH);
+        buttonPanel.add(downloadButton);
+        buttonPanel.add(cancelButton);
+        dialog.add(buttonPanel, BorderLayout.SOUTH);
 
-            dialog.setVisible(true); // Show the dialog and block until disposed
-        });
-        return selected[0];
+        dialog.setVisible(true); // Show the dialog and block until disposed
+        return selected;
     }
 
     /**
-     * 在 EDT 中显示保存目录选择对话框
+     * 显示保存目录选择对话框（在 EDT 中调用）
      * @return 用户选择的目录 File 对象，如果取消则返回 null
      */
-    private File showSaveDirectoryDialogOnEDT() throws InterruptedException, InvocationTargetException {
-        final File[] selectedDir = {null};
-        // 使用 invokeAndWait 确保对话框在 EDT 中创建和显示，并且当前线程会等待对话框关闭
-        SwingUtilities.invokeAndWait(() -> {
-            JFileChooser fileChooser = new JFileChooser();
-            fileChooser.setDialogTitle("选择保存下载文件的目录"); // 设置对话框标题
-            fileChooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY); // 只允许选择目录
-            // 可以设置默认目录，例如用户的下载目录
-            // fileChooser.setCurrentDirectory(new File(System.getProperty("user.home") + "/Downloads"));
-
-            int userSelection = fileChooser.showSaveDialog(this); // 显示保存对话框
-
-            if (userSelection == JFileChooser.APPROVE_OPTION) {
-                selectedDir[0] = fileChooser.getSelectedFile();
-            }
-        });
-        return selectedDir[0];
+    private File showSaveDirectoryDialog() {
+        JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setDialogTitle("选择保存下载文件的目录"); // 设置对话框标题
+        fileChooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY); // 只允许选择目录
+        // 可以设置默认目录，例如用户的下载目录
+        // fileChooser.setCurrentDirectory(new File(System.getProperty("user.home") + "/Downloads"));
+
+        int userSelection = fileChooser.showSaveDialog(this); // 显示保存对话框
+
+        if (userSelection == JFileChooser.APPROVE_OPTION) {
+            return fileChooser.getSelectedFile();
+        }
+        return null;
     }
 
 
@@ -0,0 +1,220 @@
+package com.networkdesign.gui;
+
+import com.networkdesign.client.ProgressSnapshot;
+import com.networkdesign.client.TransferScheduler;
+import com.networkdesign.client.TransferTask;
+
+import javax.swing.*;
+import javax.swing.table.AbstractTableModel;
+import javax.swing.table.TableCellRenderer;
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * 传输管理面板
+ * 在一个非模态视图中显示所有排队中和进行中的传输，并提供暂停、继续、取消、重试和优先级调整
+ */
+public class TransferManagerPanel extends JPanel {
+    private static final int REFRESH_INTERVAL_MS = 100;   // 表格刷新间隔，多次变化合并为一次刷新
+
+    private final TransferScheduler scheduler;
+    private final TaskTableModel tableModel = new TaskTableModel();
+    private final JTable table = new JTable(tableModel);
+    private final AtomicBoolean dirty = new AtomicBoolean(true);
+
+    public TransferManagerPanel(TransferScheduler scheduler) {
+        super(new BorderLayout());
+        this.scheduler = scheduler;
+
+        // 传输列表
+        table.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
+        table.getColumnModel().getColumn(4).setCellRenderer(new ProgressRenderer());
+        table.getColumnModel().getColumn(0).setPreferredWidth(180);
+        add(new JScrollPane(table), BorderLayout.CENTER);
+
+        // 操作按钮
+        JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        buttonPanel.add(actionButton("暂停", scheduler::pause));
+        buttonPanel.add(actionButton("继续", scheduler::resume));
+        buttonPanel.add(actionButton("取消", scheduler::cancel));
+        buttonPanel.add(actionButton("重试", scheduler::retry));
+        buttonPanel.add(actionButton("提高优先级", task -> scheduler.setPriority(task, task.getPriority() + 1)));
+        buttonPanel.add(actionButton("降低优先级", task -> scheduler.setPriority(task, task.getPriority() - 1)));
+
+        JButton clearButton = new JButton("清除已完成");
+        clearButton.addActionListener(e -> {
+            scheduler.clearFinished();
+            dirty.set(true);
+        });
+        buttonPanel.add(clearButton);
+
+        // 并发数设置
+        buttonPanel.add(new JLabel("并发数:"));
+        JSpinner concurrencySpinner = new JSpinner(new SpinnerNumberModel(scheduler.getMaxConcurrent(), 1, 32, 1));
+        concurrencySpinner.addChangeListener(e -> scheduler.setMaxConcurrent((Integer) concurrencySpinner.getValue()));
+        buttonPanel.add(concurrencySpinner);
+        add(buttonPanel, BorderLayout.SOUTH);
+
+        // 调度器的变化只标记为脏，由定时器在 EDT 中统一刷新
+        scheduler.addListener(task -> dirty.set(true));
+        new Timer(REFRESH_INTERVAL_MS, e -> {
+            if (dirty.getAndSet(false)) {
+                tableModel.refresh(scheduler.getTasks());
+            }
+        }).start();
+    }
+
+    /**
+     * 创建对所有选中任务执行操作的按钮
+     */
+    private JButton actionButton(String text, Consumer<TransferTask> action) {
+        JButton button = new JButton(text);
+        button.addActionListener(e -> {
+            for (int row : table.getSelectedRows()) {
+                action.accept(tableModel.getTask(table.convertRowIndexToModel(row)));
+            }
+        });
+        return button;
+    }
+
+    /**
+     * 传输列表的表格模型
+     */
+    private static class TaskTableModel extends AbstractTableModel {
+        private static final String[] COLUMNS = {"文件", "方向", "优先级", "大小", "进度", "速度", "剩余时间", "状态"};
+        private List<TransferTask> tasks = new ArrayList<>();
+
+        void refresh(List<TransferTask> tasks) {
+            boolean sameRows = tasks.equals(this.tasks);
+            this.tasks = tasks;
+            if (sameRows) {
+                if (!tasks.isEmpty()) {
+                    fireTableRowsUpdated(0, tasks.size() - 1); // 保留当前选中行
+                }
+            } else {
+                fireTableDataChanged();
+            }
+        }
+
+        TransferTask getTask(int row) {
+            return tasks.get(row);
+        }
+
+        @Override
+        public int getRowCount() {
+            return tasks.size();
+        }
+
+        @Override
+        public int getColumnCount() {
+            return COLUMNS.length;
+        }
+
+        @Override
+        public String getColumnName(int column) {
+            return COLUMNS[column];
+        }
+
+        @Override
+        public Object getValueAt(int row, int column) {
+            TransferTask task = tasks.get(row);
+            ProgressSnapshot progress = task.getProgress();
+            switch (column) {
+                case 0:
+                    return task.getName();
+                case 1:
+                    return task.getKind() == TransferTask.Kind.UPLOAD ? "上传" : "下载";
+                case 2:
+                    return task.getPriority();
+                case 3: {
+                    long size = progress != null && progress.getTotalBytes() >= 0 ? progress.getTotalBytes() : task.getSize();
+                    return size < 0 ? "未知" : formatSize(size);
+                }
+                case 4:
+                    if (task.getState() == TransferTask.State.COMPLETED) {
+                        return 100;
+                    }
+                    return progress == null ? 0 : (int) (progress.getFraction() * 100);
+                case 5:
+                    return task.getState() == TransferTask.State.RUNNING && progress != null
+                            ? formatSpeed((long) progress.getSmoothedBytesPerSecond()) : "";
+                case 6: {
+                    if (task.getState() != TransferTask.State.RUNNING || progress == null) {
+                        return "";
+                    }
+                    long eta = progress.getEtaSeconds();
+                    return eta < 0 ? "--" : String.format("%d:%02d", eta / 60, eta % 60);
+                }
+                case 7:
+                    return formatState(task);
+                default:
+                    return "";
+            }
+        }
+
+        private static String formatState(TransferTask task) {
+            switch (task.getState()) {
+                case QUEUED:
+                    return "排队中";
+                case RUNNING:
+                    return task.getAttempts() > 1 ? "传输中（第" + task.getAttempts() + "次）" : "传输中";
+                case PAUSED:
+                    return "已暂停";
+                case COMPLETED:
+                    return "已完成";
+                case FAILED:
+                    return "失败: " + task.getError();
+                case CANCELLED:
+                    return "已取消";
+                default:
+                    return "";
+            }
+        }
+    }
+
+    /**
+     * 进度列渲染为进度条
+     */
+    private static class ProgressRenderer extends JProgressBar implements TableCellRenderer {
+        ProgressRenderer() {
+            super(0, 100);
+            setStringPainted(true);
+        }
+
+        @Override
+        public Component getTableCellRendererComponent(JTable table, Object value, boolean isSelected,
+                                                       boolean hasFocus, int row, int column) {
+            setValue((Integer) value);
+            return this;
+        }
+    }
+
+    /**
+     * 格式化文件大小
+     */
+    static String formatSize(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        } else if (bytes < 1024 * 1024) {
+            return String.format("%.1f KB", bytes / 1024.0);
+        } else {
+            return String.format("%.1f MB", bytes / (1024.0 * 1024.0));
+        }
+    }
+
+    /**
+     * 格式化传输速度
+     */
+    static String formatSpeed(long bytesPerSecond) {
+        if (bytesPerSecond < 1024) {
+            return bytesPerSecond + " B/s";
+        } else if (bytesPerSecond < 1024 * 1024) {
+            return String.format("%.1f KB/s", bytesPerSecond / 1024.0);
+        } else {
+            return String.format("%.1f MB/s", bytesPerSecond / (1024.0 * 1024.0));
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.networkdesign.protocol;
+
+import com.networkdesign.util.ContentHash;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 协议版本 2 的 FILE_INFO 负载：上传请求、下载和分段下载响应中的文件信息
+ * 除文件名和大小外的字段都是可选的，未知时不编码
+ */
+public final class FileMetadata {
+    /** 替换同名文件 */
+    public static final int FLAG_REPLACE = 1;
+    /** 节点之间复制的副本，不检查归属 */
+    public static final int FLAG_REPLICA = 2;
+
+    private final String name;
+    private final long size;
+    private final long lastModified;
+    private final String contentHash;
+    private final int flags;
+    private final List<String> replicaChain;
+    private final byte[] content;
+
+    public FileMetadata(String name, long size) {
+        this(name, size, -1, null, 0, Collections.emptyList());
+    }
+
+    public FileMetadata(String name, long size, long lastModified, String contentHash, int flags,
+                        List<String> replicaChain) {
+        this(name, size, lastModified, contentHash, flags, replicaChain, null);
+    }
+
+    /**
+     * @param lastModified 修改时间（Unix 毫秒），负数表示未知
+     * @param contentHash 内容哈希（十六进制），null 表示未知
+     * @param flags 上传选项 FLAG_*
+     * @param replicaChain 副本链中的后续节点（节点之间复制时使用）
+     * @param content 内联的完整文件内容（小文件下载），null 表示内容随后以 FILE_DATA 发送
+     */
+    public FileMetadata(String name, long size, long lastModified, String contentHash, int flags,
+                        List<String> replicaChain, byte[] content) {
+        this.name = name;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.contentHash = contentHash;
+        this.flags = flags;
+        this.replicaChain = replicaChain;
+        this.content = content;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * 修改时间（Unix 毫秒），-1 表示未知
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * 内容哈希（十六进制），null 表示未知
+     */
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public boolean hasFlag(int flag) {
+        return (flags & flag) != 0;
+    }
+
+    public List<String> getReplicaChain() {
+        return replicaChain;
+    }
+
+    /**
+     * 内联的文件内容，没有内联时返回 null
+     */
+    public byte[] getContent() {
+        return content;
+    }
+
+    public byte[] encode() {
+        Tlv.Writer writer = new Tlv.Writer(name.length() + 48 + (content != null ? content.length : 0))
+                .putString(FileTransferProtocol.TAG_NAME, name)
+                .putLong(FileTransferProtocol.TAG_SIZE, size);
+        if (lastModified >= 0) {
+            writer.putLong(FileTransferProtocol.TAG_MTIME, lastModified);
+        }
+        if (contentHash != null) {
+            writer.putBytes(FileTransferProtocol.TAG_HASH, ContentHash.unhex(contentHash));
+        }
+        if (flags != 0) {
+            writer.putLong(FileTransferProtocol.TAG_FLAGS, flags);
+        }
+        for (String node : replicaChain) {
+            writer.putString(FileTransferProtocol.TAG_REPLICA_NODE, node);
+        }
+        if (content != null) {
+            writer.putBytes(FileTransferProtocol.TAG_CONTENT, content);
+        }
+        return writer.toByteArray();
+    }
+
+    /**
+     * @throws IOException 负载格式错误或缺少文件名、大小
+     */
+    public static FileMetadata decode(byte[] payload) throws IOException {
+        String name = null;
+        long size = -1;
+        long lastModified = -1;
+        String contentHash = null;
+        long flags = 0;
+        List<String> chain = Collections.emptyList();
+        byte[] content = null;
+        Tlv.Reader reader = new Tlv.Reader(payload);
+        while (reader.next()) {
+            switch (reader.tag()) {
+                case FileTransferProtocol.TAG_NAME:
+                    name = reader.stringValue();
+                    break;
+                case FileTransferProtocol.TAG_SIZE:
+                    size = reader.longValue();
+                    break;
+                case FileTransferProtocol.TAG_MTIME:
+                    lastModified = reader.longValue();
+                    break;
+                case FileTransferProtocol.TAG_HASH:
+                    contentHash = ContentHash.hex(reader.bytesValue());
+                    break;
+                case FileTransferProtocol.TAG_FLAGS:
+                    flags = reader.longValue();
+                    break;
+                case FileTransferProtocol.TAG_REPLICA_NODE:
+                    if (chain.isEmpty()) {
+                        chain = new ArrayList<>();
+                    }
+                    chain.add(reader.stringValue());
+                    break;
+                case FileTransferProtocol.TAG_CONTENT:
+                    content = reader.bytesValue();
+                    break;
+                default:
+                    break; // 新版本增加的字段
+            }
+        }
+        if (name == null || size < 0) {
+            throw new IOException("无效的文件信息: 缺少文件名或大小");
+        }
+        if (content != null && content.length != size) {
+            throw new IOException("无效的文件信息: 内联内容长度 " + content.length + " 与文件大小 " + size + " 不符");
+        }
+        return new FileMetadata(name, size, lastModified, contentHash, (int) flags, chain, content);
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + size + " bytes)";
+    }
+}
@@ -1,8 +1,18 @@
 package com.networkdesign.protocol;
 
+import java.io.IOException;
+
 /**
  * 文件传输协议
  * 定义消息类型和消息结构
+ *
+ * 版本 1：消息头为 1 字节类型 + 4 字节长度，负载是以 | 分隔的字符串。
+ * 版本 2：客户端先发送 HELLO（仍使用版本 1 的消息头，版本 1 的服务器会以 ERROR 拒绝），
+ * 之后的消息头为 1 字节类型 + 变长整数长度，负载为 Tlv 字段，字符串一律为 UTF-8。
+ * 没有发送 HELLO 的连接按版本 1 处理
+ *
+ * 条件文件列表：REQUEST_FILE_LIST 的负载为客户端缓存的目录版本（ListingDelta），两个版本的协议都适用。
+ * 服务器以 NOT_MODIFIED 或 FILE_LIST_DELTA 响应；不认识该负载的旧服务器忽略它，照常返回 FILE_LIST
  */
 public class FileTransferProtocol {
     // 消息类型常量
@@ -13,10 +23,68 @@ public class FileTransferProtocol {
     public static final byte FILE_DATA = 5;            // 文件数据
     public static final byte TRANSFER_COMPLETE = 6;    // 传输完成
     public static final byte ERROR = 7;                // 错误消息
+    public static final byte REQUEST_RING = 8;         // 请求集群哈希环
+    public static final byte RING_MAP = 9;             // 集群哈希环（响应，或节点之间推送新版本）
+    public static final byte NOT_OWNER = 10;           // 文件不归本节点所有，负载为当前哈希环
+    public static final byte REQUEST_FILE_RANGE = 11;  // 请求文件的一段（文件名|起始位置|长度），响应的 FILE_INFO 带内容哈希
+    public static final byte HELLO = 12;               // 协议握手：客户端声明支持的最高版本和能力，服务器回复选定的版本和共同能力
+    public static final byte NOT_MODIFIED = 13;        // 条件请求的响应：客户端缓存的列表（负载为 ListingDelta）或文件（负载为 FileMetadata）仍然有效
+    public static final byte FILE_LIST_DELTA = 14;     // 条件列表请求的响应：相对缓存版本的变化，或完整列表（reset）
+    public static final byte UPLOAD_COMMITTED = 15;    // 乐观上传的最终确认：文件已发布并按持久化策略落盘，负载为 FileMetadata（带内容哈希）
+
+    // 协议版本
+    public static final int VERSION_1 = 1;
+    public static final int VERSION_2 = 2;
+    public static final int LATEST_VERSION = VERSION_2;
+    // 可选能力（HELLO 中的位掩码）
+    public static final long CAP_CHUNKED_LIST = 1;     // 文件列表分成多个 FILE_LIST 消息发送，以 TRANSFER_COMPLETE 结束
+    public static final long CAP_CONDITIONAL_FETCH = 2; // REQUEST_FILE 的负载为 Tlv（文件名和客户端缓存的内容哈希），内容相同时以 NOT_MODIFIED 响应
+    public static final long CAP_INLINE_DATA = 4;      // 小文件的内容放在 FILE_INFO 中（TAG_CONTENT），不再发送 FILE_DATA 和 TRANSFER_COMPLETE
+    public static final long CAP_OPTIMISTIC_UPLOAD = 8; // 上传时 FILE_INFO 之后立即发送数据：服务器不发送就绪信号，拒绝时提前发送 ERROR 并丢弃已发出的数据，成功时以 UPLOAD_COMMITTED 确认
+    public static final long CAPABILITIES = CAP_CHUNKED_LIST | CAP_CONDITIONAL_FETCH | CAP_INLINE_DATA
+            | CAP_OPTIMISTIC_UPLOAD;  // 本实现支持的全部能力
+
+    // 版本 2 负载字段的标签（所有消息共用一套编号）
+    public static final int TAG_NAME = 1;              // 文件名（字符串；文件列表中每个文件一个）
+    public static final int TAG_SIZE = 2;              // 文件大小
+    public static final int TAG_MTIME = 3;             // 修改时间（Unix 毫秒）
+    public static final int TAG_HASH = 4;              // 内容哈希（SHA-256 原始字节）
+    public static final int TAG_FLAGS = 5;             // 上传选项（FileMetadata.FLAG_*）
+    public static final int TAG_REPLICA_NODE = 6;      // 副本链中的后续节点（每个节点一个）
+    public static final int TAG_OFFSET = 7;            // 分段起始位置
+    public static final int TAG_LENGTH = 8;            // 分段长度
+    public static final int TAG_VERSION = 9;           // 协议版本
+    public static final int TAG_CAPABILITIES = 10;     // 能力位掩码
+    public static final int TAG_CATALOG_EPOCH = 11;    // 目录版本的纪元（服务器每次启动时生成）
+    public static final int TAG_CATALOG_VERSION = 12;  // 目录版本号（文件列表每变化一次加一）
+    public static final int TAG_REMOVED_NAME = 13;     // 列表变化中被删除的文件名（每个文件一个）
+    public static final int TAG_CONTENT = 14;          // 小文件的完整内容（FILE_INFO 中，或列表中紧跟在对应的 TAG_NAME 之后）
+    public static final int TAG_INLINE_LIMIT = 15;     // 条件列表请求：希望在列表中附带内容的文件大小上限
 
     // 协议常量
     public static final int HEADER_SIZE = 5;           // 消息头大小（1字节类型 + 4字节长度）
     public static final int MAX_PACKET_SIZE = 8192;    // 最大数据包大小
+    public static final int MAX_CONTROL_PAYLOAD = 64 * 1024;           // 请求、文件信息、错误等控制消息负载的上限
+    public static final int MAX_LEGACY_LIST_PAYLOAD = 64 * 1024 * 1024; // 不分块的文件列表（版本 1）负载的上限
+    public static final int LIST_CHUNK_SIZE = 32 * 1024;               // 分块文件列表每个消息的目标大小
+    public static final int DEFAULT_INLINE_THRESHOLD = 16 * 1024;      // 不超过此大小的文件内容直接放在 FILE_INFO 中
+    public static final int MAX_INLINE_THRESHOLD = 32 * 1024;          // 内联阈值的上限（FILE_INFO 受控制消息负载上限约束）
+    public static final int MAX_LIST_INLINE_BYTES = 256 * 1024;        // 一次列表响应附带的文件内容总量上限
+
+    /**
+     * 消息负载的长度上限，读取消息头时检查，超出的消息在分配缓冲区之前就被拒绝
+     */
+    public static int maxPayloadSize(byte type) {
+        switch (type) {
+            case FILE_DATA:
+                return MAX_PACKET_SIZE;
+            case FILE_LIST:
+            case FILE_LIST_DELTA:
+                return MAX_LEGACY_LIST_PAYLOAD;
+            default:
+                return MAX_CONTROL_PAYLOAD;
+        }
+    }
 
     /**
      * 协议消息类
@@ -38,4 +106,59 @@ public class FileTransferProtocol {
             return payload;
         }
     }
+
+    /**
+     * HELLO 消息的内容
+     */
+    public static class Hello {
+        private final int version;
+        private final long capabilities;
+
+        public Hello(int version, long capabilities) {
+            this.version = version;
+            this.capabilities = capabilities;
+        }
+
+        public int getVersion() {
+            return version;
+        }
+
+        public long getCapabilities() {
+            return capabilities;
+        }
+
+        /**
+         * 按对端的 HELLO 选定双方都支持的版本和能力
+         */
+        public Hello negotiate(Hello peer) {
+            return new Hello(Math.min(version, peer.version), capabilities & peer.capabilities);
+        }
+
+        public Message toMessage() {
+            return new Message(HELLO, new Tlv.Writer()
+                    .putLong(TAG_VERSION, version)
+                    .putLong(TAG_CAPABILITIES, capabilities)
+                    .toByteArray());
+        }
+
+        public static Hello parse(Message message) throws IOException {
+            if (message.getType() != HELLO) {
+                throw new IOException("期望 HELLO 消息，收到类型: " + message.getType());
+            }
+            long version = 0;
+            long capabilities = 0;
+            Tlv.Reader reader = new Tlv.Reader(message.getPayload());
+            while (reader.next()) {
+                if (reader.tag() == TAG_VERSION) {
+                    version = reader.longValue();
+                } else if (reader.tag() == TAG_CAPABILITIES) {
+                    capabilities = reader.longValue();
+                }
+            }
+            if (version < VERSION_1 || version > Integer.MAX_VALUE) {
+                throw new IOException("无效的协议版本: " + version);
+            }
+            return new Hello((int) version, capabilities);
+        }
+    }
 } 
\ No newline at end of file
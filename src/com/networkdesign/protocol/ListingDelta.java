@@ -0,0 +1,193 @@
+package com.networkdesign.protocol;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 条件文件列表的负载：目录版本（纪元 + 版本号）和相对客户端缓存版本的变化
+ * 客户端在 REQUEST_FILE_LIST 中附带缓存的版本（不含文件名），服务器以 NOT_MODIFIED（只含版本）
+ * 或 FILE_LIST_DELTA（新增和删除的文件名；reset 表示客户端应丢弃缓存，added 为完整列表）响应。
+ * 纪元在服务器每次启动时重新生成，旧纪元的版本号没有意义。
+ *
+ * 版本 1 编码为 "纪元|版本|reset 或 delta|+新增文件|-删除文件..."，版本 2 为 Tlv 字段；
+ * 版本 2 还可以附带部分新增小文件的内容（TAG_CONTENT 紧跟在文件名之后）
+ */
+public final class ListingDelta {
+    private final long epoch;
+    private final long version;
+    private final boolean reset;
+    private final List<String> added;
+    private final List<String> removed;
+    private final Map<String, byte[]> contents;
+
+    public ListingDelta(long epoch, long version, boolean reset, List<String> added, List<String> removed) {
+        this(epoch, version, reset, added, removed, Collections.emptyMap());
+    }
+
+    /**
+     * @param contents 附带内容的新增文件（只有版本 2 编码）
+     */
+    public ListingDelta(long epoch, long version, boolean reset, List<String> added, List<String> removed,
+                        Map<String, byte[]> contents) {
+        this.epoch = epoch;
+        this.version = version;
+        this.reset = reset;
+        this.added = added;
+        this.removed = removed;
+        this.contents = contents;
+    }
+
+    /**
+     * 只含版本（条件请求和 NOT_MODIFIED 的负载）
+     */
+    public static ListingDelta of(long epoch, long version) {
+        return new ListingDelta(epoch, version, false, Collections.emptyList(), Collections.emptyList());
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public boolean isReset() {
+        return reset;
+    }
+
+    public List<String> getAdded() {
+        return added;
+    }
+
+    public List<String> getRemoved() {
+        return removed;
+    }
+
+    /**
+     * 附带了内容的新增文件：文件名 -> 完整内容
+     */
+    public Map<String, byte[]> getContents() {
+        return contents;
+    }
+
+    /**
+     * 把变化应用到缓存的列表，返回新列表（新增的文件排在末尾）
+     */
+    public List<String> applyTo(List<String> cached) {
+        Set<String> names = new LinkedHashSet<>(reset ? Collections.emptyList() : cached);
+        names.removeAll(removed);
+        names.addAll(added);
+        return new ArrayList<>(names);
+    }
+
+    public byte[] encode(int protocolVersion) {
+        if (protocolVersion >= FileTransferProtocol.VERSION_2) {
+            Tlv.Writer writer = new Tlv.Writer(32 + (added.size() + removed.size()) * 24)
+                    .putLong(FileTransferProtocol.TAG_CATALOG_EPOCH, epoch)
+                    .putLong(FileTransferProtocol.TAG_CATALOG_VERSION, version);
+            if (reset) {
+                writer.putLong(FileTransferProtocol.TAG_FLAGS, 1);
+            }
+            for (String name : added) {
+                writer.putString(FileTransferProtocol.TAG_NAME, name);
+                byte[] content = contents.get(name);
+                if (content != null) {
+                    writer.putBytes(FileTransferProtocol.TAG_CONTENT, content);
+                }
+            }
+            for (String name : removed) {
+                writer.putString(FileTransferProtocol.TAG_REMOVED_NAME, name);
+            }
+            return writer.toByteArray();
+        }
+        StringBuilder sb = new StringBuilder().append(epoch).append('|').append(version)
+                .append('|').append(reset ? "reset" : "delta");
+        for (String name : added) {
+            sb.append("|+").append(name);
+        }
+        for (String name : removed) {
+            sb.append("|-").append(name);
+        }
+        return sb.toString().getBytes(charset(protocolVersion));
+    }
+
+    /**
+     * @throws IOException 负载格式错误或缺少版本
+     */
+    public static ListingDelta decode(byte[] payload, int protocolVersion) throws IOException {
+        if (payload == null) {
+            throw new IOException("无效的目录版本: 负载为空");
+        }
+        long epoch = 0;
+        long version = -1;
+        boolean reset = false;
+        List<String> added = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        Map<String, byte[]> contents = new HashMap<>();
+        if (protocolVersion >= FileTransferProtocol.VERSION_2) {
+            Tlv.Reader reader = new Tlv.Reader(payload);
+            while (reader.next()) {
+                switch (reader.tag()) {
+                    case FileTransferProtocol.TAG_CATALOG_EPOCH:
+                        epoch = reader.longValue();
+                        break;
+                    case FileTransferProtocol.TAG_CATALOG_VERSION:
+                        version = reader.longValue();
+                        break;
+                    case FileTransferProtocol.TAG_FLAGS:
+                        reset = (reader.longValue() & 1) != 0;
+                        break;
+                    case FileTransferProtocol.TAG_NAME:
+                        added.add(reader.stringValue());
+                        break;
+                    case FileTransferProtocol.TAG_REMOVED_NAME:
+                        removed.add(reader.stringValue());
+                        break;
+                    case FileTransferProtocol.TAG_CONTENT:
+                        if (!added.isEmpty()) {
+                            contents.put(added.get(added.size() - 1), reader.bytesValue());
+                        }
+                        break;
+                    default:
+                        break; // 新版本增加的字段
+                }
+            }
+        } else {
+            String[] fields = new String(payload, charset(protocolVersion)).split("\\|");
+            try {
+                epoch = Long.parseLong(fields[0]);
+                version = fields.length > 1 ? Long.parseLong(fields[1]) : -1;
+            } catch (NumberFormatException e) {
+                throw new IOException("无效的目录版本: " + fields[0]);
+            }
+            reset = fields.length > 2 && fields[2].equals("reset");
+            for (int i = 3; i < fields.length; i++) {
+                if (fields[i].length() > 1) {
+                    (fields[i].charAt(0) == '-' ? removed : added).add(fields[i].substring(1));
+                }
+            }
+        }
+        if (version < 0) {
+            throw new IOException("无效的目录版本: 缺少版本号");
+        }
+        return new ListingDelta(epoch, version, reset, added, removed, contents);
+    }
+
+    private static Charset charset(int protocolVersion) {
+        return protocolVersion >= FileTransferProtocol.VERSION_2 ? StandardCharsets.UTF_8 : Charset.defaultCharset();
+    }
+
+    @Override
+    public String toString() {
+        return epoch + ":" + version;
+    }
+}
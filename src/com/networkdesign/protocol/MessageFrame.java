@@ -0,0 +1,182 @@
+package com.networkdesign.protocol;
+
+import com.networkdesign.util.TransferEvents;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 从连接上读取的一个消息：消息头已经读取，负载留在连接中按需读取
+ * 负载通过有界视图访问，读取量不会超过消息长度，调用方可以读入复用的缓冲区，
+ * 不必为每个消息分配一个负载大小的数组。读取下一个消息之前必须读完或丢弃本消息的负载
+ */
+public final class MessageFrame {
+    private final byte type;
+    private final int length;
+    private final PayloadStream payload;
+    private TransferEvents.SlowFrameEvent event;   // 负载读完时结束计时，为 null 表示不计时或已结束
+
+    public MessageFrame(byte type, int length, InputStream in) {
+        this(type, length, in, null);
+    }
+
+    /**
+     * @param event 读到消息头第一个字节时开始的计时，负载读完（或丢弃完）时结束并按阈值提交
+     */
+    public MessageFrame(byte type, int length, InputStream in, TransferEvents.SlowFrameEvent event) {
+        this.type = type;
+        this.length = length;
+        this.payload = new PayloadStream(in, length);
+        this.event = event;
+        if (length == 0) {
+            finish();
+        }
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    /**
+     * 负载长度
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * 负载的输入流视图，读到负载末尾时返回 -1；关闭时丢弃未读的部分（不关闭连接）
+     */
+    public InputStream getPayload() {
+        return payload;
+    }
+
+    /**
+     * 把整个负载读入调用方的缓冲区
+     * @return 负载长度
+     * @throws IOException 负载比缓冲区大，或连接在负载结束前关闭
+     */
+    public int readPayload(byte[] buffer) throws IOException {
+        if (length > buffer.length) {
+            throw new IOException("消息负载 (" + length + " 字节) 超过缓冲区大小 " + buffer.length);
+        }
+        readFully(buffer, length);
+        return length;
+    }
+
+    /**
+     * 把整个负载读入新数组（长度已受消息类型的上限约束）
+     * @return 负载为空时返回 null（与 Message 一致）
+     */
+    public byte[] readPayload() throws IOException {
+        if (length == 0) {
+            return null;
+        }
+        byte[] data = new byte[length];
+        readFully(data, length);
+        return data;
+    }
+
+    /**
+     * 丢弃未读的负载
+     */
+    public void skipPayload() throws IOException {
+        payload.close();
+    }
+
+    /**
+     * 读取负载，转换为 Message
+     */
+    public FileTransferProtocol.Message toMessage() throws IOException {
+        return new FileTransferProtocol.Message(type, readPayload());
+    }
+
+    private void readFully(byte[] buffer, int count) throws IOException {
+        int read = 0;
+        while (read < count) {
+            int n = payload.read(buffer, read, count - read);
+            if (n == -1) {
+                throw new EOFException("消息负载不完整");
+            }
+            read += n;
+        }
+    }
+
+    /**
+     * 负载已全部读出
+     */
+    private void finish() {
+        TransferEvents.SlowFrameEvent slow = event;
+        if (slow == null) {
+            return;
+        }
+        event = null;
+        slow.end();
+        if (slow.shouldCommit()) {
+            slow.messageType = type;
+            slow.length = length;
+            slow.commit();
+        }
+    }
+
+    /**
+     * 连接上只覆盖本消息负载的输入流
+     */
+    private final class PayloadStream extends InputStream {
+        private final InputStream in;
+        private int remaining;
+
+        PayloadStream(InputStream in, int length) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException("流已结束");
+            }
+            if (--remaining == 0) {
+                finish();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            if (count == 0) {
+                return 0;
+            }
+            int n = in.read(buffer, offset, Math.min(count, remaining));
+            if (n == -1) {
+                throw new EOFException("流已结束");
+            }
+            remaining -= n;
+            if (remaining == 0) {
+                finish();
+            }
+            return n;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return Math.min(in.available(), remaining);
+        }
+
+        @Override
+        public void close() throws IOException {
+            byte[] discard = new byte[Math.min(remaining, 8192)];
+            while (remaining > 0) {
+                read(discard, 0, discard.length);
+            }
+        }
+    }
+}
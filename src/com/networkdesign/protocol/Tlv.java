@@ -0,0 +1,178 @@
+package com.networkdesign.protocol;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * 协议版本 2 的消息负载编码：依次排列的 (标签, 长度, 值) 字段，标签和长度为变长整数
+ * 数值字段的值本身也是变长整数，字符串为 UTF-8。同一标签可以出现多次（如文件列表中的每个文件名）；
+ * 接收方跳过不认识的标签，因此新增字段不需要升级协议版本
+ */
+public final class Tlv {
+    private Tlv() {
+    }
+
+    /**
+     * 负载编码器
+     */
+    public static final class Writer {
+        private byte[] buffer;
+        private int size;
+
+        public Writer() {
+            this(64);
+        }
+
+        public Writer(int initialCapacity) {
+            this.buffer = new byte[Math.max(16, initialCapacity)];
+        }
+
+        /**
+         * 写入非负整数字段
+         */
+        public Writer putLong(int tag, long value) {
+            if (value < 0) {
+                throw new IllegalArgumentException("字段 " + tag + " 的值不能为负数: " + value);
+            }
+            ensure(2 * Varint.MAX_LENGTH);
+            size = Varint.write(tag, buffer, size);
+            size = Varint.write(Varint.size(value), buffer, size);
+            size = Varint.write(value, buffer, size);
+            return this;
+        }
+
+        /**
+         * 写入字符串字段（UTF-8）
+         */
+        public Writer putString(int tag, String value) {
+            return putBytes(tag, value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        /**
+         * 写入字节串字段
+         */
+        public Writer putBytes(int tag, byte[] value) {
+            ensure(2 * Varint.MAX_LENGTH + value.length);
+            size = Varint.write(tag, buffer, size);
+            size = Varint.write(value.length, buffer, size);
+            System.arraycopy(value, 0, buffer, size, value.length);
+            size += value.length;
+            return this;
+        }
+
+        /**
+         * 已编码的字节数
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * 清空已写入的字段，复用缓冲区
+         */
+        public void reset() {
+            size = 0;
+        }
+
+        public byte[] toByteArray() {
+            return Arrays.copyOf(buffer, size);
+        }
+
+        private void ensure(int extra) {
+            if (size + extra > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));
+            }
+        }
+    }
+
+    /**
+     * 负载解码器，用法: while (reader.next()) { switch (reader.tag()) { ... } }
+     */
+    public static final class Reader {
+        private final byte[] payload;
+        private int position;
+        private int tag;
+        private int valueOffset;
+        private int valueLength;
+
+        /**
+         * @param payload 消息负载，为 null 表示没有字段
+         */
+        public Reader(byte[] payload) {
+            this.payload = payload != null ? payload : new byte[0];
+        }
+
+        /**
+         * 移动到下一个字段
+         * @return 没有更多字段时返回 false
+         * @throws IOException 字段超出负载末尾
+         */
+        public boolean next() throws IOException {
+            if (position >= payload.length) {
+                return false;
+            }
+            long nextTag = readVarint();
+            long length = readVarint();
+            if (nextTag > Integer.MAX_VALUE || length > payload.length - position) {
+                throw new IOException("无效的消息负载: 字段超出负载末尾");
+            }
+            tag = (int) nextTag;
+            valueOffset = position;
+            valueLength = (int) length;
+            position += valueLength;
+            return true;
+        }
+
+        public int tag() {
+            return tag;
+        }
+
+        /**
+         * 当前字段的整数值
+         */
+        public long longValue() throws IOException {
+            long value = 0;
+            int end = valueOffset + valueLength;
+            for (int i = valueOffset, shift = 0; i < end; i++, shift += 7) {
+                if (shift >= 64) {
+                    throw new IOException("无效的整数字段: " + tag);
+                }
+                value |= (long) (payload[i] & 0x7F) << shift;
+                if ((payload[i] & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("无效的整数字段: " + tag);
+        }
+
+        /**
+         * 当前字段的字符串值（UTF-8）
+         */
+        public String stringValue() {
+            return new String(payload, valueOffset, valueLength, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * 当前字段的字节串值
+         */
+        public byte[] bytesValue() {
+            return Arrays.copyOfRange(payload, valueOffset, valueOffset + valueLength);
+        }
+
+        private long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (position >= payload.length) {
+                    throw new IOException("无效的消息负载: 变长整数不完整");
+                }
+                byte b = payload[position++];
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("无效的变长整数");
+        }
+    }
+}
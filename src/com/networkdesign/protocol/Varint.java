@@ -0,0 +1,61 @@
+package com.networkdesign.protocol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 变长整数（LEB128）：每字节低 7 位为数据，最高位表示后面还有字节
+ * 协议版本 2 的消息长度和负载字段都用它编码，小于 128 的值只占一个字节
+ */
+public final class Varint {
+    /** long 类型的变长整数最多占用的字节数 */
+    public static final int MAX_LENGTH = 10;
+
+    private Varint() {
+    }
+
+    /**
+     * 编码后的字节数
+     */
+    public static int size(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * 写入数组
+     * @return 写入后的位置
+     */
+    public static int write(long value, byte[] buffer, int offset) {
+        while ((value & ~0x7FL) != 0) {
+            buffer[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[offset++] = (byte) value;
+        return offset;
+    }
+
+    /**
+     * 从输入流读取
+     * @throws EOFException 流在变长整数结束前结束
+     */
+    public static long read(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException("流已结束");
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("无效的变长整数");
+    }
+}
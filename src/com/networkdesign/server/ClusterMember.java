@@ -0,0 +1,407 @@
+package com.networkdesign.server;
+
+import com.networkdesign.protocol.FileMetadata;
+import com.networkdesign.protocol.FileTransferProtocol;
+import com.networkdesign.protocol.Tlv;
+import com.networkdesign.server.storage.StagedFile;
+import com.networkdesign.server.storage.StorageBackend;
+import com.networkdesign.util.ContentHash;
+import com.networkdesign.util.HashRing;
+import com.networkdesign.util.ProtocolUtil;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.NoSuchFileException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 集群成员
+ * 多个服务器通过一致性哈希环划分文件名空间，每个文件只由其归属节点接收上传。
+ * 新节点加入时从种子节点取得当前环，加入自身后把新环推送给所有节点；
+ * 各节点安装新环后在后台把不再归自己所有的文件推送给新的归属节点（重新平衡），
+ * 迁移完成之前，新归属节点收到的下载请求如果本地没有该文件，会先从旧归属节点拉取过来。
+ *
+ * 副本数大于1时，每个文件还保存在环上归属节点之后的若干节点上：上传沿副本链逐级转发（见 ReplicaStream），
+ * 转发失败或重新平衡后由归属节点在后台补齐缺少的副本，副本之间以内容哈希校验是否一致。
+ *
+ * 节点加入需要逐个进行：同时加入的两个节点会生成 epoch 相同的两个环，只有先到达的会被采用
+ */
+class ClusterMember implements Closeable {
+    private final String self;
+    private final StorageBackend storage;
+    private final ContentHashes hashes;
+    private final ListingCatalog catalog;
+    private final ExecutorService rebalancer;
+    private volatile HashRing ring;
+    private volatile HashRing previousRing;
+
+    /**
+     * @param self 本节点地址（主机:端口），必须与环中的写法一致
+     * @param ring 初始哈希环，为 null 时需要调用 join 加入已有集群
+     */
+    ClusterMember(String self, StorageBackend storage, ContentHashes hashes, ListingCatalog catalog, HashRing ring) {
+        this.self = self;
+        this.storage = storage;
+        this.hashes = hashes;
+        this.catalog = catalog;
+        this.ring = ring;
+        this.rebalancer = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "cluster-rebalance");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (ring != null) {
+            // 以新的成员列表重启时，把不再归属本节点的文件交出去
+            rebalancer.execute(this::rebalance);
+        }
+    }
+
+    HashRing getRing() {
+        return ring;
+    }
+
+    boolean owns(String name) {
+        return ring.owner(name).equals(self);
+    }
+
+    /**
+     * 本节点是否保存该文件的副本（归属节点也算）
+     */
+    boolean isReplica(String name) {
+        return ring.owners(name).contains(self);
+    }
+
+    /**
+     * 归属节点收到上传时需要转发的副本链（不含本节点），副本数为1时为空
+     */
+    List<String> replicaChain(String name) {
+        List<String> chain = new ArrayList<>(ring.owners(name));
+        chain.remove(self);
+        return chain;
+    }
+
+    /**
+     * 在后台把文件推送给缺少它的副本节点（上传时链式转发失败后调用）
+     */
+    void repairLater(String name) {
+        rebalancer.execute(() -> {
+            for (String node : replicaChain(name)) {
+                try {
+                    push(name, node);
+                } catch (IOException e) {
+                    System.err.println("补齐文件 " + name + " 在节点 " + node + " 上的副本失败: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * 安装更新的哈希环（epoch 不大于当前环时忽略），并在后台重新平衡
+     * @return 是否安装
+     */
+    synchronized boolean install(HashRing newRing) {
+        HashRing current = ring;
+        if (current != null && newRing.getEpoch() <= current.getEpoch()) {
+            return false;
+        }
+        previousRing = current;
+        ring = newRing;
+        System.out.println("集群哈希环已更新: " + newRing);
+        rebalancer.execute(this::rebalance);
+        return true;
+    }
+
+    /**
+     * 通过种子节点加入集群
+     */
+    void join(String seed) throws IOException {
+        HashRing current = fetchRing(seed);
+        if (current.contains(self)) {
+            install(current); // 重启后重新加入
+            return;
+        }
+        HashRing next = current.withNode(self);
+        install(next);
+        for (String node : next.getNodes()) {
+            if (!node.equals(self)) {
+                try {
+                    pushRing(node, next);
+                } catch (IOException e) {
+                    System.err.println("向节点 " + node + " 推送哈希环失败: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * 本地没有某个应由本节点保存的文件时，尝试从上一个环中的归属节点（重新平衡尚未完成）
+     * 或当前环中的归属节点（副本尚未补齐）拉取
+     * @return 是否已拉取到本地
+     */
+    boolean handoff(String name) {
+        List<String> sources = new ArrayList<>();
+        HashRing previous = previousRing;
+        if (previous != null) {
+            sources.add(previous.owner(name));
+        }
+        sources.add(ring.owner(name));
+        for (String from : sources) {
+            if (from.equals(self)) {
+                continue;
+            }
+            try {
+                if (pull(name, from)) {
+                    return true;
+                }
+            } catch (IOException e) {
+                System.err.println("从节点 " + from + " 拉取文件 " + name + " 失败: " + e.getMessage());
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void close() {
+        rebalancer.shutdownNow();
+    }
+
+    /**
+     * 把不再由本节点保存的文件推送给新的副本节点后删除本地副本；
+     * 归属本节点的文件则检查其余副本节点是否缺少该文件
+     */
+    private void rebalance() {
+        HashRing target = ring;
+        int moved = 0;
+        try {
+            for (String name : storage.list()) {
+                if (ring != target || Thread.currentThread().isInterrupted()) {
+                    return; // 有更新的环，由下一轮处理
+                }
+                List<String> owners = target.owners(name);
+                boolean keep = owners.contains(self);
+                if (keep && !owners.get(0).equals(self)) {
+                    continue; // 副本由归属节点负责补齐
+                }
+                boolean complete = true;
+                for (String owner : owners) {
+                    if (owner.equals(self)) {
+                        continue;
+                    }
+                    try {
+                        push(name, owner);
+                    } catch (NoSuchFileException e) {
+                        complete = false; // 已被删除
+                        break;
+                    } catch (IOException e) {
+                        complete = false;
+                        System.err.println("迁移文件 " + name + " 到节点 " + owner + " 失败: " + e.getMessage());
+                    }
+                }
+                if (!keep && complete) {
+                    try {
+                        storage.delete(name);
+                        hashes.remove(name);
+                        catalog.removed(name);
+                        moved++;
+                    } catch (IOException e) {
+                        System.err.println("删除已迁移的文件 " + name + " 失败: " + e.getMessage());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("重新平衡时列出文件失败: " + e.getMessage());
+        }
+        if (moved > 0) {
+            System.out.println("重新平衡完成，迁出 " + moved + " 个文件");
+        }
+    }
+
+    /**
+     * 按上传协议把本地文件作为副本推送给另一节点（不再继续转发）；对方已有同名文件时视为成功，
+     * 对方确认中的内容哈希与本地不一致时失败
+     */
+    private void push(String name, String node) throws IOException {
+        try (SeekableByteChannel channel = storage.openRead(name);
+             Socket socket = connectPeer(node)) {
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            long size = channel.size();
+            FileMetadata info = new FileMetadata(name, size, -1, null, FileMetadata.FLAG_REPLICA,
+                Collections.emptyList());
+            ProtocolUtil.writeMessage(out, new FileTransferProtocol.Message(FileTransferProtocol.FILE_INFO,
+                info.encode()), FileTransferProtocol.VERSION_2);
+            if (alreadyPresent(ProtocolUtil.readMessage(in, FileTransferProtocol.VERSION_2))) {
+                return;
+            }
+
+            int packetSize = FileTransferProtocol.MAX_PACKET_SIZE - FileTransferProtocol.HEADER_SIZE;
+            ByteBuffer buffer = ByteBuffer.allocate(packetSize);
+            long sent = 0;
+            while (sent < size && channel.read(buffer) != -1) {
+                ProtocolUtil.writeMessage(out, FileTransferProtocol.FILE_DATA, buffer.array(), 0, buffer.position(),
+                    FileTransferProtocol.VERSION_2);
+                sent += buffer.position();
+                buffer.clear();
+            }
+            ProtocolUtil.writeMessage(out, new FileTransferProtocol.Message(FileTransferProtocol.TRANSFER_COMPLETE, null),
+                FileTransferProtocol.VERSION_2);
+            FileTransferProtocol.Message ack = ProtocolUtil.readMessage(in, FileTransferProtocol.VERSION_2);
+            if (!alreadyPresent(ack)) {
+                String expected = hashes.get(name);
+                String actual = ackHash(ack);
+                if (!expected.equals(actual)) {
+                    throw new IOException("节点 " + node + " 上的副本内容哈希不一致: " + actual);
+                }
+            }
+        }
+    }
+
+    /**
+     * 检查推送过程中对方的响应
+     * @return 对方已有同名文件
+     */
+    private boolean alreadyPresent(FileTransferProtocol.Message response) throws IOException {
+        if (response.getType() == FileTransferProtocol.ERROR) {
+            String text = text(response);
+            if (text.startsWith(FileTransferServer.FILE_EXISTS_ERROR)) {
+                return true;
+            }
+            throw new IOException(text);
+        }
+        return false;
+    }
+
+    /**
+     * 从另一节点下载文件并发布到本地存储
+     * @return 对方没有该文件时返回 false
+     */
+    private boolean pull(String name, String node) throws IOException {
+        try (Socket socket = connectPeer(node)) {
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            ProtocolUtil.writeMessage(out, new FileTransferProtocol.Message(
+                FileTransferProtocol.REQUEST_FILE, name.getBytes(StandardCharsets.UTF_8)), FileTransferProtocol.VERSION_2);
+            FileTransferProtocol.Message info = ProtocolUtil.readMessage(in, FileTransferProtocol.VERSION_2);
+            if (info.getType() != FileTransferProtocol.FILE_INFO) {
+                return false;
+            }
+            long size = FileMetadata.decode(info.getPayload()).getSize();
+
+            try (StagedFile staged = storage.stage(name, false)) {
+                SeekableByteChannel channel = staged.getChannel();
+                MessageDigest digest = ContentHash.newDigest();
+                long received = 0;
+                while (received < size) {
+                    FileTransferProtocol.Message data = ProtocolUtil.readMessage(in, FileTransferProtocol.VERSION_2);
+                    if (data.getType() != FileTransferProtocol.FILE_DATA || data.getPayload() == null) {
+                        throw new IOException("从节点 " + node + " 拉取文件时收到意外消息类型: " + data.getType());
+                    }
+                    digest.update(data.getPayload());
+                    ByteBuffer buffer = ByteBuffer.wrap(data.getPayload());
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    received += data.getPayload().length;
+                }
+                ProtocolUtil.readMessage(in, FileTransferProtocol.VERSION_2); // 传输完成消息
+                try {
+                    staged.publish(false);
+                    hashes.put(name, ContentHash.hex(digest.digest()));
+                    catalog.added(name);
+                } catch (FileAlreadyExistsException e) {
+                    // 重新平衡已把它推送过来
+                }
+            }
+            System.out.println("已从节点 " + node + " 接管文件: " + name);
+            return true;
+        }
+    }
+
+    /**
+     * 从某个节点获取其当前哈希环
+     */
+    static HashRing fetchRing(String node) throws IOException {
+        try (Socket socket = connect(node)) {
+            ProtocolUtil.writeMessage(socket.getOutputStream(),
+                new FileTransferProtocol.Message(FileTransferProtocol.REQUEST_RING, null));
+            return readRing(socket.getInputStream(), node);
+        }
+    }
+
+    /**
+     * 把哈希环推送给某个节点，返回对方安装后的当前环
+     */
+    static HashRing pushRing(String node, HashRing ring) throws IOException {
+        try (Socket socket = connect(node)) {
+            ProtocolUtil.writeMessage(socket.getOutputStream(),
+                new FileTransferProtocol.Message(FileTransferProtocol.RING_MAP, ring.encode().getBytes()));
+            return readRing(socket.getInputStream(), node);
+        }
+    }
+
+    private static HashRing readRing(InputStream in, String node) throws IOException {
+        FileTransferProtocol.Message response = ProtocolUtil.readMessage(in);
+        if (response.getType() != FileTransferProtocol.RING_MAP || response.getPayload() == null) {
+            String error = response.getPayload() != null ? new String(response.getPayload()) : "";
+            throw new IOException("节点 " + node + " 未返回哈希环: " + error);
+        }
+        return HashRing.decode(new String(response.getPayload()));
+    }
+
+    private static Socket connect(String node) throws IOException {
+        return new Socket(HashRing.host(node), HashRing.port(node));
+    }
+
+    /**
+     * 连接另一节点并协商协议版本 2，传输文件时文件名和副本链以 FileMetadata 传递（不受分隔符和平台字符集影响）
+     * 能力不协商：上传等待就绪信号，下载的内容总是以 FILE_DATA 发送
+     */
+    static Socket connectPeer(String node) throws IOException {
+        Socket socket = connect(node);
+        try {
+            ProtocolUtil.writeMessage(socket.getOutputStream(),
+                new FileTransferProtocol.Hello(FileTransferProtocol.VERSION_2, 0).toMessage());
+            FileTransferProtocol.Message reply = ProtocolUtil.readMessage(socket.getInputStream());
+            if (reply.getType() != FileTransferProtocol.HELLO
+                    || FileTransferProtocol.Hello.parse(reply).getVersion() < FileTransferProtocol.VERSION_2) {
+                throw new IOException("节点 " + node + " 不支持协议版本 2");
+            }
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 版本 2 连接上的文本负载（错误消息）
+     */
+    static String text(FileTransferProtocol.Message message) {
+        return message.getPayload() != null ? new String(message.getPayload(), StandardCharsets.UTF_8) : "";
+    }
+
+    /**
+     * 版本 2 的上传确认中的内容哈希
+     */
+    static String ackHash(FileTransferProtocol.Message ack) throws IOException {
+        Tlv.Reader reader = new Tlv.Reader(ack.getPayload());
+        while (reader.next()) {
+            if (reader.tag() == FileTransferProtocol.TAG_HASH) {
+                return ContentHash.hex(reader.bytesValue());
+            }
+        }
+        throw new IOException("上传确认中缺少内容哈希");
+    }
+}
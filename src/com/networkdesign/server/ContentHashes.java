@@ -0,0 +1,58 @@
+package com.networkdesign.server;
+
+import com.networkdesign.server.storage.StorageBackend;
+import com.networkdesign.util.ContentHash;
+
+import java.io.IOException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 文件内容哈希的缓存
+ * 上传的文件在接收数据时顺便计算哈希，发布后写入缓存；服务器启动前已有的文件在第一次需要时读一遍计算。
+ * 客户端和副本节点用它确认不同节点上的同名文件内容一致
+ */
+class ContentHashes {
+    private final StorageBackend storage;
+    private final Map<String, String> hashes = new ConcurrentHashMap<>();
+
+    ContentHashes(StorageBackend storage) {
+        this.storage = storage;
+    }
+
+    /**
+     * 获取文件的内容哈希，没有缓存时读取文件计算
+     */
+    String get(String name) throws IOException {
+        String hash = hashes.get(name);
+        if (hash != null) {
+            return hash;
+        }
+        String computed;
+        try (SeekableByteChannel channel = storage.openRead(name)) {
+            computed = ContentHash.of(channel);
+        }
+        // 计算期间文件被替换时，发布时写入的新哈希优先
+        String existing = hashes.putIfAbsent(name, computed);
+        return existing != null ? existing : computed;
+    }
+
+    /**
+     * 获取已知的内容哈希，没有缓存时返回 null（不读取文件）
+     */
+    String peek(String name) {
+        return hashes.get(name);
+    }
+
+    /**
+     * 记录新发布文件的哈希
+     */
+    void put(String name, String hash) {
+        hashes.put(name, hash);
+    }
+
+    void remove(String name) {
+        hashes.remove(name);
+    }
+}
@@ -0,0 +1,14 @@
+package com.networkdesign.server;
+
+/**
+ * 上传文件的持久化策略
+ * 服务器只有在所选策略的保证成立后才向客户端发送最终确认
+ */
+public enum Durability {
+    /** 不主动刷盘，数据留在页缓存中由操作系统择机写回（默认） */
+    NONE,
+    /** 每个上传完成时单独 fsync 文件及其所在目录 */
+    FSYNC,
+    /** 把一小段时间窗口内完成的上传合并成一批刷盘，同一目录只 fsync 一次 */
+    GROUP_COMMIT
+}
@@ -1,16 +1,47 @@
 package com.networkdesign.server;
 
+import com.networkdesign.protocol.FileMetadata;
 import com.networkdesign.protocol.FileTransferProtocol;
+import com.networkdesign.protocol.ListingDelta;
+import com.networkdesign.protocol.MessageFrame;
+import com.networkdesign.protocol.Tlv;
+import com.networkdesign.server.storage.DirectChannel;
+import com.networkdesign.server.storage.ShardedDirectoryStorage;
+import com.networkdesign.server.storage.StagedFile;
+import com.networkdesign.server.storage.StorageBackend;
+import com.networkdesign.server.storage.StorageBackends;
+import com.networkdesign.transport.Impairment;
+import com.networkdesign.transport.SocketTuner;
+import com.networkdesign.transport.TlsChannel;
+import com.networkdesign.transport.TlsContext;
+import com.networkdesign.transport.TransportProfile;
+import com.networkdesign.transport.UdpServerSocket;
+import com.networkdesign.transport.UdpSocket;
+import com.networkdesign.util.AsyncDiskWriter;
+import com.networkdesign.util.ContentHash;
+import com.networkdesign.util.HashRing;
 import com.networkdesign.util.ProtocolUtil;
+import com.networkdesign.util.TransferEvents;
 
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.ArrayList;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -19,19 +50,276 @@ import java.util.concurrent.Executors;
  * 处理客户端的文件上传和下载请求
  */
 public class FileTransferServer {
-    private static final String UPLOAD_DIR = "uploads";  // 文件上传目录
+    private static final String UPLOAD_DIR = "uploads";  // 默认文件上传目录
+    static final String FILE_EXISTS_ERROR = "文件已存在: ";   // 同名文件已存在时的错误消息前缀
+    private static final int MAX_LIST_INLINE_CANDIDATES = 1024;  // 列表附带小文件内容时最多检查的文件数
+    private static final int TLS_HANDSHAKE_RECORD = 0x16;     // TLS 握手记录的类型，与协议消息类型不冲突
+    private static final FileTransferProtocol.Hello SUPPORTED = new FileTransferProtocol.Hello(
+            FileTransferProtocol.LATEST_VERSION, FileTransferProtocol.CAPABILITIES);
+    private static final FileTransferProtocol.Hello VERSION_1 = new FileTransferProtocol.Hello(
+            FileTransferProtocol.VERSION_1, 0);   // 没有发送 HELLO 的连接
     private final int port;
+    private StorageBackend storage;
+    private final boolean ownsStorage;      // 使用默认存储时由服务器负责创建和关闭
     private ServerSocket serverSocket;
+    private volatile SocketTuner socketTuner = new SocketTuner(TransportProfile.AUTO);
+    private Impairment udpImpairment;       // 为 null 表示不启用 UDP 传输
+    private UdpServerSocket udpServerSocket;
+    private Thread udpThread;
+    private volatile TlsContext tlsContext;  // 为 null 表示只接受明文连接
+    private volatile boolean tlsRequired;
     private ExecutorService threadPool;
     private volatile boolean running;
     private Thread serverThread;
+    private final ExecutorService readAheadPool;   // 下载预读阶段使用的 I/O 线程
+    private volatile int readAheadDepth = 4;       // 预读缓冲区个数，0 表示不预读
+    private volatile int readAheadPackets = 8;     // 每个预读缓冲区包含的数据包数
+    private volatile int inlineThreshold = FileTransferProtocol.DEFAULT_INLINE_THRESHOLD; // 不超过此大小的文件内联到 FILE_INFO
+    private final ExecutorService diskWriterPool;  // 上传写盘阶段使用的 I/O 线程
+    private volatile int writeBehindDepth = 8;              // 写盘缓冲区个数，0 表示在请求线程中直接写盘
+    private volatile int writeBehindBufferSize = 64 * 1024; // 每个写盘缓冲区的大小
+    private volatile long directIoThreshold = -1;           // 不小于此大小的文件使用直接 I/O，负数表示不使用
+    private volatile Durability durability = Durability.NONE; // 上传文件的持久化策略
+    private volatile long groupCommitWindowMicros = 2000;     // 组提交的收集窗口
+    private GroupCommitter groupCommitter;
+    private ContentHashes contentHashes;
+    private ListingCatalog catalog;
+    private SmallFiles smallFiles;
+    private Path capturePath;                  // 捕获模式的请求记录文件，为 null 表示不捕获
+    private volatile TrafficCapture trafficCapture;
+    private String clusterSelf;             // 集群模式下本节点的地址，为 null 表示单机模式
+    private HashRing initialRing;
+    private String clusterSeed;
+    private volatile ClusterMember cluster;
 
     public FileTransferServer(int port) {
+        this(port, null);
+    }
+
+    /**
+     * @param storage 文件存储，为 null 时使用 uploads 目录下的哈希分片存储（并在线迁移原有的平铺文件）
+     */
+    public FileTransferServer(int port, StorageBackend storage) {
         this.port = port;
+        this.storage = storage;
+        this.ownsStorage = storage == null;
         this.threadPool = Executors.newCachedThreadPool();
+        this.readAheadPool = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "read-ahead");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.diskWriterPool = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "disk-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
         this.running = false;
     }
 
+    /**
+     * 命令行启动服务器（可在同一台机器的不同端口上启动多个进程组成集群）
+     * 用法: java com.networkdesign.server.FileTransferServer --port=8888
+     *        [--storage=default|memory|flat:目录|sharded:目录1,目录2]
+     *        [--node=主机:端口 (--cluster=节点1,节点2,... --replicas=1 | --join=种子节点) --vnodes=128]
+     *        [--udp=true --udp-loss=0.01 --udp-delay=毫秒 --udp-jitter=毫秒]
+     *        [--tls-keystore=密钥库 --tls-password=密码 --tls-required=false]
+     *        [--profile=auto|interactive|bulk-lan|bulk-wan]
+     *        [--inline-threshold=16384]
+     *        [--jfr=录制文件 --jfr-slow-frame=毫秒]
+     *        [--capture=请求记录文件]
+     */
+    public static void main(String[] args) throws IOException {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("无效参数: " + arg + "（格式: --名称=值）");
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        int port = Integer.parseInt(options.getOrDefault("port", "8888"));
+        FileTransferServer server = new FileTransferServer(port,
+                StorageBackends.fromSpec(options.getOrDefault("storage", "default")));
+
+        String node = options.getOrDefault("node", "localhost:" + port);
+        int virtualNodes = Integer.parseInt(options.getOrDefault("vnodes", String.valueOf(HashRing.DEFAULT_VIRTUAL_NODES)));
+        if (options.containsKey("cluster")) {
+            int replicas = Integer.parseInt(options.getOrDefault("replicas", "1"));
+            server.setCluster(node, Arrays.asList(options.get("cluster").split(",")), virtualNodes, replicas);
+        } else if (options.containsKey("join")) {
+            server.joinCluster(node, options.get("join"));
+        }
+
+        if (Boolean.parseBoolean(options.getOrDefault("udp", "false"))) {
+            server.enableUdp(new Impairment(
+                    Double.parseDouble(options.getOrDefault("udp-loss", "0")),
+                    Double.parseDouble(options.getOrDefault("udp-delay", "0")),
+                    Double.parseDouble(options.getOrDefault("udp-jitter", "0"))));
+        }
+
+        if (options.containsKey("tls-keystore")) {
+            server.enableTls(TlsContext.forServer(Paths.get(options.get("tls-keystore")),
+                    options.getOrDefault("tls-password", "").toCharArray()),
+                    Boolean.parseBoolean(options.getOrDefault("tls-required", "false")));
+        }
+
+        if (options.containsKey("profile")) {
+            server.setTransportProfile(TransportProfile.parse(options.get("profile")));
+        }
+
+        if (options.containsKey("inline-threshold")) {
+            server.setInlineThreshold(Integer.parseInt(options.get("inline-threshold")));
+        }
+
+        if (options.containsKey("capture")) {
+            server.setCapture(Paths.get(options.get("capture")));
+        }
+
+        if (options.containsKey("jfr")) {
+            // 录制文件在进程退出时写入
+            TransferEvents.startRecording(Paths.get(options.get("jfr")), Duration.ofMillis(Long.parseLong(
+                    options.getOrDefault("jfr-slow-frame", String.valueOf(TransferEvents.DEFAULT_SLOW_FRAME_THRESHOLD.toMillis())))));
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+        server.start();
+    }
+
+    /**
+     * 设置下载预读参数
+     * @param depth 预读缓冲区个数，0 表示在请求线程中直接读取
+     * @param packetsPerBuffer 每个缓冲区包含的数据包数（每次磁盘读取的大小）
+     */
+    public void setReadAhead(int depth, int packetsPerBuffer) {
+        if (depth < 0 || packetsPerBuffer <= 0) {
+            throw new IllegalArgumentException("无效的预读参数");
+        }
+        this.readAheadDepth = depth;
+        this.readAheadPackets = packetsPerBuffer;
+    }
+
+    /**
+     * 设置小文件内联阈值：不超过该大小的文件，内容随文件信息在一个消息中发送，省去数据消息和传输完成消息；
+     * 列表请求也可以附带这些文件的内容（需要客户端支持）
+     * @param bytes 阈值（字节），0 表示关闭
+     */
+    public void setInlineThreshold(int bytes) {
+        if (bytes < 0 || bytes > FileTransferProtocol.MAX_INLINE_THRESHOLD) {
+            throw new IllegalArgumentException("内联阈值必须在 0 到 " + FileTransferProtocol.MAX_INLINE_THRESHOLD + " 之间");
+        }
+        this.inlineThreshold = bytes;
+    }
+
+    /**
+     * 启用捕获模式（在 start 之前调用）：每个请求的类型、文件名、大小和耗时写入请求记录日志，不记录文件内容，
+     * 用 TrafficReplay 在本地按原速或加速重放
+     * @param file 请求记录文件（gzip 压缩），服务器停止时关闭
+     */
+    public void setCapture(Path file) {
+        this.capturePath = file;
+    }
+
+    /**
+     * 设置上传写盘参数
+     * @param depth 写盘缓冲区个数，0 表示在请求线程中直接写盘
+     * @param bufferSize 每个缓冲区的大小（每次磁盘写入的大小）
+     */
+    public void setWriteBehind(int depth, int bufferSize) {
+        if (depth < 0 || bufferSize <= 0) {
+            throw new IllegalArgumentException("无效的写盘参数");
+        }
+        this.writeBehindDepth = depth;
+        this.writeBehindBufferSize = bufferSize;
+    }
+
+    /**
+     * 设置直接 I/O 阈值
+     * 不小于该大小的文件在下载和上传时绕过页缓存，避免一次性的大文件传输挤掉常用小文件的缓存；
+     * 存储或文件系统不支持直接 I/O 时自动改用普通读写
+     * @param bytes 阈值（字节），负数表示关闭（默认）
+     */
+    public void setDirectIoThreshold(long bytes) {
+        this.directIoThreshold = bytes;
+    }
+
+    /**
+     * 设置上传文件的持久化策略，服务器在策略的保证成立后才确认上传成功
+     * @param durability 持久化策略
+     * @param groupCommitWindowMicros GROUP_COMMIT 时收集一批刷盘请求的时间窗口（微秒）
+     */
+    public synchronized void setDurability(Durability durability, long groupCommitWindowMicros) {
+        if (groupCommitWindowMicros < 0) {
+            throw new IllegalArgumentException("无效的组提交窗口");
+        }
+        this.durability = durability;
+        if (groupCommitter != null && groupCommitWindowMicros != this.groupCommitWindowMicros) {
+            groupCommitter.close();
+            groupCommitter = null;
+        }
+        this.groupCommitWindowMicros = groupCommitWindowMicros;
+    }
+
+    /**
+     * 设置 TCP 套接字配置方案（在 start 之前调用，监听队列长度和继承的接收缓冲区在绑定端口时确定）
+     */
+    public void setTransportProfile(TransportProfile profile) {
+        this.socketTuner = new SocketTuner(profile);
+    }
+
+    /**
+     * 同时在相同端口号上监听 UDP 传输，协议消息不变，适合高带宽时延积、有随机丢包的长距离链路
+     * （集群内部的转发和复制仍然使用 TCP）
+     * @param impairment 服务器发出数据包的链路损伤（测试用），不需要时为 Impairment.NONE
+     */
+    public void enableUdp(Impairment impairment) {
+        this.udpImpairment = impairment;
+    }
+
+    /**
+     * 启用 TLS：同一端口上按连接的第一个字节区分 TLS 和明文连接（UDP 传输同样适用）
+     * @param required 为 true 时拒绝明文连接。集群节点之间的转发和复制使用明文连接，因此不能与集群模式同时使用
+     */
+    public void enableTls(TlsContext context, boolean required) {
+        this.tlsContext = context;
+        this.tlsRequired = required;
+    }
+
+    /**
+     * 以集群模式运行：成员固定为 nodes（必须包含 self），启动时即按哈希环划分文件
+     * @param self 本节点地址（主机:端口），客户端和其他节点通过它访问本节点
+     * @param nodes 所有节点地址
+     * @param virtualNodes 每个节点的虚拟节点数
+     */
+    public void setCluster(String self, List<String> nodes, int virtualNodes) {
+        setCluster(self, nodes, virtualNodes, 1);
+    }
+
+    /**
+     * 以集群模式运行，每个文件保存 replicas 份：上传沿副本链转发，下载可以从任一副本读取
+     * （副本数记录在哈希环中，之后加入的节点沿用）
+     * @param replicas 每个文件的副本数（包括归属节点）
+     */
+    public void setCluster(String self, List<String> nodes, int virtualNodes, int replicas) {
+        HashRing ring = new HashRing(nodes, virtualNodes, replicas, 1);
+        if (!ring.contains(self)) {
+            throw new IllegalArgumentException("集群节点列表中没有本节点: " + self);
+        }
+        this.clusterSelf = self;
+        this.initialRing = ring;
+        this.clusterSeed = null;
+    }
+
+    /**
+     * 以集群模式运行：启动后通过种子节点加入已有集群，原有节点随后在后台把归属本节点的文件迁移过来
+     * @param self 本节点地址（主机:端口）
+     * @param seed 任意一个现有节点的地址
+     */
+    public void joinCluster(String self, String seed) {
+        this.clusterSelf = self;
+        this.initialRing = null;
+        this.clusterSeed = seed;
+    }
+
     /**
      * 启动服务器
      */
@@ -40,23 +328,36 @@ public class FileTransferServer {
             return; // 服务器已经在运行
         }
 
-        // 创建上传目录
-        Files.createDirectories(Paths.get(UPLOAD_DIR));
+        if (tlsRequired && clusterSelf != null) {
+            throw new IllegalStateException("集群模式下不能要求所有连接使用 TLS");
+        }
+
+        // 创建默认存储
+        if (storage == null) {
+            storage = ShardedDirectoryStorage.inUploadDirectory(Paths.get(UPLOAD_DIR));
+        }
+        contentHashes = new ContentHashes(storage);
+        catalog = new ListingCatalog(storage);
+        smallFiles = new SmallFiles(storage);
+        if (capturePath != null) {
+            trafficCapture = new TrafficCapture(capturePath, storage);
+        }
 
         try {
-            serverSocket = new ServerSocket(port);
+            serverSocket = socketTuner.bind(port);
             running = true;
 
             // 在新线程中启动服务器
             serverThread = new Thread(() -> {
-                System.out.println("服务器已启动，监听端口: " + port);
+                System.out.println("服务器已启动，监听端口: " + port + "，" + socketTuner);
                 
                 // 接受客户端连接
                 while (running) {
                     try {
                         Socket clientSocket = serverSocket.accept();
                         System.out.println("接受新的客户端连接: " + clientSocket.getInetAddress());
-                        threadPool.execute(() -> handleClient(clientSocket));
+                        TransferEvents.ConnectionEvent event = TransferEvents.accepted("TCP", clientSocket.getInetAddress());
+                        threadPool.execute(() -> handleClient(clientSocket, event));
                     } catch (IOException e) {
                         if (running) {
                             System.err.println("接受客户端连接时发生错误: " + e.getMessage());
@@ -69,11 +370,26 @@ public class FileTransferServer {
             });
             
             serverThread.start();
+
+            if (udpImpairment != null) {
+                startUdp();
+            }
+
+            if (clusterSelf != null) {
+                ClusterMember member = new ClusterMember(clusterSelf, storage, contentHashes, catalog, initialRing);
+                cluster = member;
+                if (clusterSeed != null) {
+                    member.join(clusterSeed);
+                }
+            }
         } catch (IOException e) {
             running = false;
             if (serverSocket != null) {
                 serverSocket.close();
             }
+            if (udpServerSocket != null) {
+                udpServerSocket.close();
+            }
             throw e;
         } catch (Exception e) {
             System.err.println("启动服务器时发生意外错误: " + e.getMessage());
@@ -85,6 +401,27 @@ public class FileTransferServer {
         }
     }
 
+    private void startUdp() throws IOException {
+        udpServerSocket = new UdpServerSocket(port, udpImpairment);
+        udpThread = new Thread(() -> {
+            System.out.println("UDP 传输已启用，监听端口: " + port + "，链路损伤: " + udpImpairment);
+            while (running) {
+                try {
+                    UdpSocket clientSocket = udpServerSocket.accept();
+                    System.out.println("接受新的 UDP 客户端连接: " + clientSocket.getRemoteAddress());
+                    TransferEvents.ConnectionEvent event = TransferEvents.accepted("UDP", clientSocket.getRemoteAddress());
+                    threadPool.execute(() -> handleClient(clientSocket,
+                            clientSocket.getInputStream(), clientSocket.getOutputStream(), event));
+                } catch (IOException e) {
+                    if (running) {
+                        System.err.println("接受 UDP 客户端连接时发生错误: " + e.getMessage());
+                    }
+                }
+            }
+        }, "udp-accept");
+        udpThread.start();
+    }
+
     /**
      * 停止服务器
      */
@@ -102,6 +439,10 @@ public class FileTransferServer {
         } catch (IOException e) {
             System.err.println("关闭服务器时发生错误: " + e.getMessage());
         }
+        if (udpServerSocket != null) {
+            udpServerSocket.close();
+            udpServerSocket = null;
+        }
         
         // 等待服务器线程结束
         if (serverThread != null && serverThread.isAlive()) {
@@ -114,6 +455,31 @@ public class FileTransferServer {
         
         // 关闭线程池
         threadPool.shutdown();
+        readAheadPool.shutdown();
+        diskWriterPool.shutdown();
+        if (cluster != null) {
+            cluster.close();
+            cluster = null;
+        }
+        TrafficCapture capture = trafficCapture;
+        if (capture != null) {
+            trafficCapture = null;
+            capture.close();
+        }
+        synchronized (this) {
+            if (groupCommitter != null) {
+                groupCommitter.close();
+                groupCommitter = null;
+            }
+        }
+        if (ownsStorage) {
+            try {
+                storage.close();
+            } catch (IOException e) {
+                System.err.println("关闭存储时发生错误: " + e.getMessage());
+            }
+            storage = null;
+        }
         System.out.println("服务器已停止");
     }
 
@@ -127,147 +493,627 @@ public class FileTransferServer {
     /**
      * 处理客户端请求
      */
-    private void handleClient(Socket clientSocket) {
-        try (InputStream in = clientSocket.getInputStream();
-             OutputStream out = clientSocket.getOutputStream()) {
+    private void handleClient(Socket clientSocket, TransferEvents.ConnectionEvent event) {
+        InputStream in;
+        OutputStream out;
+        try {
+            socketTuner.configureAccepted(clientSocket);
+            in = clientSocket.getInputStream();
+            out = clientSocket.getOutputStream();
+        } catch (IOException e) {
+            System.err.println("处理客户端请求时发生错误: " + e.getMessage());
+            try { clientSocket.close(); } catch (IOException ignored) {}
+            event.closed();
+            return;
+        }
+        handleClient(clientSocket, in, out, event);
+    }
 
-            // 读取客户端请求
-            FileTransferProtocol.Message request = ProtocolUtil.readMessage(in);
-            
-            // 根据请求类型处理
-            switch (request.getType()) {
-                case FileTransferProtocol.REQUEST_FILE_LIST:
-                    handleFileListRequest(out);
-                    break;
-                case FileTransferProtocol.REQUEST_FILE:
-                    handleFileRequest(request.getPayload(), out);
-                    break;
-                case FileTransferProtocol.FILE_INFO:
-                    handleFileUpload(request.getPayload(), in, out);
-                    break;
-                case FileTransferProtocol.TRANSFER_COMPLETE:
-                    // 客户端发送的传输完成消息，服务器不需要额外处理，连接会关闭
-                    break;
-                default:
-                    sendError(out, "未知的请求类型");
+    /**
+     * 处理一个连接上的请求（TCP 或 UDP 传输），结束时关闭连接
+     */
+    private void handleClient(Closeable connection, InputStream input, OutputStream output,
+                              TransferEvents.ConnectionEvent event) {
+        event.started();
+        try {
+            serveClient(connection, input, output, event);
+        } finally {
+            event.closed();
+        }
+    }
+
+    private void serveClient(Closeable connection, InputStream input, OutputStream output,
+                             TransferEvents.ConnectionEvent event) {
+        TlsContext tls = tlsContext;
+        if (tls != null) {
+            try {
+                PushbackInputStream sniffed = new PushbackInputStream(input, 1);
+                int first = sniffed.read();
+                if (first == -1) {
+                    connection.close();
+                    return;
+                }
+                sniffed.unread(first);
+                input = sniffed;
+                if (first == TLS_HANDSHAKE_RECORD) {
+                    event.tls = true;
+                    TlsChannel channel = TlsChannel.accept(tls, sniffed, output);
+                    input = channel.getInputStream();
+                    output = channel.getOutputStream();
+                } else if (tlsRequired) {
+                    sendError(output, "服务器只接受 TLS 连接");
+                    connection.close();
+                    return;
+                }
+            } catch (IOException e) {
+                System.err.println("TLS 握手失败: " + e.getMessage());
+                try { connection.close(); } catch (IOException ignored) {}
+                return;
+            }
+        }
+        // 捕获模式下统计每个请求的收发字节数
+        TrafficCapture capture = trafficCapture;
+        TrafficCapture.CountingInputStream countedIn = null;
+        TrafficCapture.CountingOutputStream countedOut = null;
+        if (capture != null) {
+            input = countedIn = new TrafficCapture.CountingInputStream(input);
+            output = countedOut = new TrafficCapture.CountingOutputStream(output);
+        }
+        try (InputStream in = input;
+             OutputStream out = output) {
+
+            // 读取客户端请求，以 HELLO 开头的连接先协商协议版本（HELLO 本身总是使用版本 1 的消息头）
+            MessageFrame request = ProtocolUtil.readFrame(in, FileTransferProtocol.VERSION_1);
+            FileTransferProtocol.Hello protocol = VERSION_1;
+            long helloBytes = 0;
+            if (request.getType() == FileTransferProtocol.HELLO) {
+                protocol = SUPPORTED.negotiate(FileTransferProtocol.Hello.parse(request.toMessage()));
+                ProtocolUtil.writeMessage(out, protocol.toMessage());
+                if (countedIn != null) {
+                    helloBytes = countedIn.count;
+                    countedOut.reset();
+                }
+                request = ProtocolUtil.readFrame(in, protocol.getVersion());
+            }
+
+            // 根据请求类型处理，只读取已知请求的负载
+            TransferEvents.DispatchEvent dispatch = new TransferEvents.DispatchEvent();
+            dispatch.begin();
+            long requestStart = System.nanoTime();
+            byte[] payload = null;
+            boolean handled = false;
+            try {
+                switch (request.getType()) {
+                    case FileTransferProtocol.REQUEST_FILE_LIST:
+                        handleFileListRequest(payload = request.readPayload(), out, protocol);
+                        break;
+                    case FileTransferProtocol.REQUEST_FILE:
+                        handleFileRequest(payload = request.readPayload(), out, protocol);
+                        break;
+                    case FileTransferProtocol.REQUEST_FILE_RANGE:
+                        handleFileRangeRequest(payload = request.readPayload(), out, protocol);
+                        break;
+                    case FileTransferProtocol.FILE_INFO:
+                        handleFileUpload(payload = request.readPayload(), in, out, protocol);
+                        break;
+                    case FileTransferProtocol.REQUEST_RING:
+                    case FileTransferProtocol.RING_MAP:
+                        handleRingRequest(request.toMessage(), out, protocol);
+                        break;
+                    case FileTransferProtocol.TRANSFER_COMPLETE:
+                        // 客户端发送的传输完成消息，服务器不需要额外处理，连接会关闭
+                        break;
+                    default:
+                        sendError(out, "未知的请求类型", protocol);
+                }
+                handled = true;
+            } finally {
+                dispatch.end();
+                if (dispatch.shouldCommit()) {
+                    dispatch.requestType = request.getType();
+                    dispatch.protocolVersion = protocol.getVersion();
+                    dispatch.commit();
+                }
+                if (capture != null) {
+                    capture.record(requestStart, request.getType(), payload, protocol,
+                            countedIn.count - helloBytes, countedOut, handled);
+                }
             }
 
         } catch (IOException e) {
             System.err.println("处理客户端请求时发生错误: " + e.getMessage());
             // 可以发送错误响应给客户端，如果连接还开着的话
-            // try { sendError(clientSocket.getOutputStream(), e.getMessage()); } catch (IOException ignored) {}
+            // try { sendError(out, e.getMessage()); } catch (IOException ignored) {}
         } catch (Exception e) {
             System.err.println("处理客户端请求时发生意外错误: " + e.getMessage());
             e.printStackTrace();
              // 可以发送错误响应给客户端，如果连接还开着的话
-            // try { sendError(clientSocket.getOutputStream(), "服务器内部错误: " + e.getMessage()); } catch (IOException ignored) {}
+            // try { sendError(out, "服务器内部错误: " + e.getMessage()); } catch (IOException ignored) {}
         }
         finally {
             try {
-                if (!clientSocket.isClosed()) {
-                   clientSocket.close();
-                }
+                connection.close();
             } catch (IOException e) {
                 // 忽略关闭时的异常
             }
         }
     }
 
+    /**
+     * 处理哈希环请求：RING_MAP 为其他节点推送的新环，两种请求都以本节点当前的环作为响应
+     */
+    private void handleRingRequest(FileTransferProtocol.Message request, OutputStream out,
+                                   FileTransferProtocol.Hello protocol) throws IOException {
+        ClusterMember member = cluster;
+        if (member == null) {
+            sendError(out, "服务器未启用集群模式", protocol);
+            return;
+        }
+        if (request.getType() == FileTransferProtocol.RING_MAP) {
+            try {
+                member.install(HashRing.decode(decodeText(request.getPayload(), protocol)));
+            } catch (RuntimeException e) {
+                sendError(out, "无效的哈希环: " + e.getMessage(), protocol);
+                return;
+            }
+        }
+        HashRing ring = member.getRing();
+        if (ring == null) {
+            sendError(out, "本节点尚未加入集群", protocol);
+            return;
+        }
+        ProtocolUtil.writeMessage(out, new FileTransferProtocol.Message(
+            FileTransferProtocol.RING_MAP, encodeText(ring.encode(), protocol)), protocol.getVersion());
+    }
+
+    /**
+     * 集群模式下文件不归本节点所有时，返回当前哈希环让客户端重新路由
+     * @param anyReplica 为 true 时本节点只要保存该文件的副本即可（下载），否则必须是归属节点（上传）
+     * @return 是否已发送 NOT_OWNER
+     */
+    private boolean redirectIfNotOwner(String fileName, boolean anyReplica, OutputStream out,
+                                       FileTransferProtocol.Hello protocol) throws IOException {
+        ClusterMember member = cluster;
+        if (member == null || member.getRing() == null
+                || (anyReplica ? member.isReplica(fileName) : member.owns(fileName))) {
+            return false;
+        }
+        ProtocolUtil.writeMessage(out, new FileTransferProtocol.Message(
+            FileTransferProtocol.NOT_OWNER, encodeText(member.getRing().encode(), protocol)), protocol.getVersion());
+        return true;
+    }
+
     /**
      * 处理文件列表请求
+     * @param payload 客户端缓存的目录版本（ListingDelta），为 null 表示无条件请求
      */
-    private void handleFileListRequest(OutputStream out) throws IOException {
-        List<String> files = new ArrayList<>();
-        File uploadDir = new File(UPLOAD_DIR);
-        if (uploadDir.exists() && uploadDir.isDirectory()) {
-            File[] fileList = uploadDir.listFiles();
-            if (fileList != null) {
-                for (File file : fileList) {
-                    if (file.isFile()) {
-                        files.add(file.getName());
-                    }
-                }
+    private void handleFileListRequest(byte[] payload, OutputStream out, FileTransferProtocol.Hello protocol)
+            throws IOException {
+        boolean chunked = (protocol.getCapabilities() & FileTransferProtocol.CAP_CHUNKED_LIST) != 0;
+        if (payload != null) {
+            ListingDelta cached;
+            try {
+                cached = ListingDelta.decode(payload, protocol.getVersion());
+            } catch (IOException e) {
+                sendError(out, e.getMessage(), protocol);
+                return;
             }
+            ListingDelta delta = catalog.changesSince(cached);
+            Map<String, byte[]> contents = inlineContents(delta.getAdded(), payload, protocol);
+            if (!delta.isReset() && delta.getAdded().isEmpty() && delta.getRemoved().isEmpty()) {
+                ProtocolUtil.writeMessage(out, new FileTransferProtocol.Message(FileTransferProtocol.NOT_MODIFIED,
+                    ListingDelta.of(delta.getEpoch(), delta.getVersion()).encode(protocol.getVersion())),
+                    protocol.getVersion());
+            } else if (delta.isReset() && chunked) {
+                // 完整列表较大，先发送新版本，文件名按分块列表发送
+                ProtocolUtil.writeMessage(out, new FileTransferProtocol.Message(FileTransferProtocol.FILE_LIST_DELTA,
+                    new ListingDelta(delta.getEpoch(), delta.getVersion(), true, Collections.emptyList(),
+                        Collections.emptyList()).encode(protocol.getVersion())), protocol.getVersion());
+                sendChunkedList(delta.getAdded(), contents, out, protocol);
+            } else {
+                ProtocolUtil.writeMessage(out, new FileTransferProtocol.Message(FileTransferProtocol.FILE_LIST_DELTA,
+                    new ListingDelta(delta.getEpoch(), delta.getVersion(), delta.isReset(), delta.getAdded(),
+                        delta.getRemoved(), contents).encode(protocol.getVersion())), protocol.getVersion());
+            }
+            return;
         }
 
-        String fileListStr = String.join("|", files);
+        List<String> files = catalog.list();
+        if (chunked) {
+            sendChunkedList(files, Collections.emptyMap(), out, protocol);
+            return;
+        }
+
+        byte[] listPayload;
+        if (protocol.getVersion() >= FileTransferProtocol.VERSION_2) {
+            Tlv.Writer writer = new Tlv.Writer(files.size() * 24);
+            for (String file : files) {
+                writer.putString(FileTransferProtocol.TAG_NAME, file);
+            }
+            listPayload = writer.toByteArray();
+        } else {
+            listPayload = String.join("|", files).getBytes();
+        }
         FileTransferProtocol.Message response = new FileTransferProtocol.Message(
             FileTransferProtocol.FILE_LIST,
-            fileListStr.getBytes()
+            listPayload
         );
-        ProtocolUtil.writeMessage(out, response);
+        ProtocolUtil.writeMessage(out, response, protocol.getVersion());
+    }
+
+    /**
+     * 分块发送文件列表，双方内存中都只有一个块大小的负载，最后以 TRANSFER_COMPLETE 结束
+     * @param contents 附带内容的小文件，紧跟在文件名之后发送
+     */
+    private void sendChunkedList(List<String> files, Map<String, byte[]> contents, OutputStream out,
+                                 FileTransferProtocol.Hello protocol) throws IOException {
+        Tlv.Writer writer = new Tlv.Writer(FileTransferProtocol.LIST_CHUNK_SIZE + 256);
+        for (String file : files) {
+            writer.putString(FileTransferProtocol.TAG_NAME, file);
+            byte[] content = contents.get(file);
+            if (content != null) {
+                writer.putBytes(FileTransferProtocol.TAG_CONTENT, content);
+            }
+            if (writer.size() >= FileTransferProtocol.LIST_CHUNK_SIZE) {
+                ProtocolUtil.writeMessage(out, new FileTransferProtocol.Message(
+                    FileTransferProtocol.FILE_LIST, writer.toByteArray()), protocol.getVersion());
+                writer.reset();
+            }
+        }
+        if (writer.size() > 0) {
+            ProtocolUtil.writeMessage(out, new FileTransferProtocol.Message(
+                FileTransferProtocol.FILE_LIST, writer.toByteArray()), protocol.getVersion());
+        }
+        ProtocolUtil.writeMessage(out, new FileTransferProtocol.Message(
+            FileTransferProtocol.TRANSFER_COMPLETE, null), protocol.getVersion());
+    }
+
+    /**
+     * 客户端在条件列表请求中要求附带小文件内容（TAG_INLINE_LIMIT）时，取列表中前面一部分小文件的内容
+     * 只检查有限个文件、总量不超过 MAX_LIST_INLINE_BYTES，避免大目录的列表响应因此变慢
+     */
+    private Map<String, byte[]> inlineContents(List<String> names, byte[] request, FileTransferProtocol.Hello protocol)
+            throws IOException {
+        if ((protocol.getCapabilities() & FileTransferProtocol.CAP_INLINE_DATA) == 0 || names.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        long limit = 0;
+        Tlv.Reader reader = new Tlv.Reader(request);
+        while (reader.next()) {
+            if (reader.tag() == FileTransferProtocol.TAG_INLINE_LIMIT) {
+                limit = reader.longValue();
+            }
+        }
+        int maxSize = (int) Math.min(limit, inlineThreshold);
+        if (maxSize <= 0) {
+            return Collections.emptyMap();
+        }
+        Map<String, byte[]> contents = new HashMap<>();
+        long total = 0;
+        for (int i = 0; i < names.size() && i < MAX_LIST_INLINE_CANDIDATES; i++) {
+            SmallFiles.Entry small;
+            try {
+                small = smallFiles.get(names.get(i), maxSize);
+            } catch (NoSuchFileException | IllegalArgumentException e) {
+                continue;   // 列出之后被删除
+            }
+            if (small != null && total + small.content.length <= FileTransferProtocol.MAX_LIST_INLINE_BYTES) {
+                contents.put(names.get(i), small.content);
+                total += small.content.length;
+            }
+        }
+        return contents;
     }
 
     /**
      * 处理文件请求
      */
-    private void handleFileRequest(byte[] payload, OutputStream out) throws IOException {
-        String fileName = new String(payload);
-        Path filePath = Paths.get(UPLOAD_DIR, fileName);
+    private void handleFileRequest(byte[] payload, OutputStream out, FileTransferProtocol.Hello protocol)
+            throws IOException {
+        String fileName = null;
+        String cachedHash = null;   // 客户端缓存的内容哈希
+        if ((protocol.getCapabilities() & FileTransferProtocol.CAP_CONDITIONAL_FETCH) != 0) {
+            Tlv.Reader reader = new Tlv.Reader(payload);
+            while (reader.next()) {
+                if (reader.tag() == FileTransferProtocol.TAG_NAME) {
+                    fileName = reader.stringValue();
+                } else if (reader.tag() == FileTransferProtocol.TAG_HASH) {
+                    cachedHash = ContentHash.hex(reader.bytesValue());
+                }
+            }
+            if (fileName == null) {
+                sendError(out, "无效的下载请求: 缺少文件名", protocol);
+                return;
+            }
+        } else {
+            fileName = decodeText(payload, protocol);
+        }
 
-        if (!Files.exists(filePath)) {
-            sendError(out, "文件不存在: " + fileName);
+        SeekableByteChannel fileIn;
+        int alignment = 0;
+        try {
+            // 客户端的缓存仍然有效时不发送文件内容（没有记录哈希的文件读一遍计算，之后的请求直接命中）
+            if (cachedHash != null && cachedHash.equals(contentHashes.get(fileName))) {
+                ProtocolUtil.writeMessage(out, new FileTransferProtocol.Message(FileTransferProtocol.NOT_MODIFIED,
+                    new FileMetadata(fileName, storage.size(fileName), storage.lastModified(fileName), cachedHash,
+                        0, Collections.emptyList()).encode()), protocol.getVersion());
+                return;
+            }
+            // 小文件：内容直接放在文件信息中，一个消息完成下载
+            int threshold = inlineThreshold;
+            if (threshold > 0 && (protocol.getCapabilities() & FileTransferProtocol.CAP_INLINE_DATA) != 0) {
+                SmallFiles.Entry small = smallFiles.get(fileName, threshold);
+                if (small != null) {
+                    TransferEvents.TransferEvent transfer = TransferEvents.beginTransfer("server-download");
+                    ProtocolUtil.writeMessage(out, new FileTransferProtocol.Message(FileTransferProtocol.FILE_INFO,
+                        new FileMetadata(fileName, small.content.length, small.lastModified, small.hash, 0,
+                            Collections.emptyList(), small.content).encode()), protocol.getVersion());
+                    transfer.finish(fileName, small.content.length, true);
+                    return;
+                }
+            }
+            DirectChannel direct = useDirectIo(storage.size(fileName)) ? storage.openReadDirect(fileName) : null;
+            if (direct != null) {
+                fileIn = direct.getChannel();
+                alignment = direct.getAlignment();
+            } else {
+                fileIn = storage.openRead(fileName);
+            }
+        } catch (NoSuchFileException e) {
+            if (recoverMissingFile(fileName, out, protocol)) {
+                handleFileRequest(payload, out, protocol);
+            }
+            return;
+        } catch (IllegalArgumentException e) {
+            sendError(out, "文件不存在: " + fileName, protocol);
             return;
         }
 
-        // 发送文件信息
-        String fileInfo = fileName + "|" + Files.size(filePath);
-        FileTransferProtocol.Message infoMessage = new FileTransferProtocol.Message(
-            FileTransferProtocol.FILE_INFO,
-            fileInfo.getBytes()
-        );
-        ProtocolUtil.writeMessage(out, infoMessage);
+        TransferEvents.TransferEvent transfer = TransferEvents.beginTransfer("server-download");
+        long sent = 0;
+        boolean completed = false;
+        try (SeekableByteChannel channel = fileIn) {
+            // 发送文件信息（大小取自已打开的文件；版本 2 另带修改时间和已知的内容哈希）
+            byte[] fileInfo;
+            if (protocol.getVersion() >= FileTransferProtocol.VERSION_2) {
+                fileInfo = new FileMetadata(fileName, channel.size(), storage.lastModified(fileName),
+                        contentHashes.peek(fileName), 0, Collections.emptyList()).encode();
+            } else {
+                fileInfo = (fileName + "|" + channel.size()).getBytes();
+            }
+            FileTransferProtocol.Message infoMessage = new FileTransferProtocol.Message(
+                FileTransferProtocol.FILE_INFO,
+                fileInfo
+            );
+            ProtocolUtil.writeMessage(out, infoMessage, protocol.getVersion());
 
-        // 发送文件数据
-        try (InputStream fileIn = Files.newInputStream(filePath)) {
-            byte[] buffer = new byte[FileTransferProtocol.MAX_PACKET_SIZE - FileTransferProtocol.HEADER_SIZE];
-            int bytesRead;
+            // 发送文件数据
+            sent = sendFileData(channel, alignment, out, protocol);
 
-            while ((bytesRead = fileIn.read(buffer)) != -1) {
-                byte[] data = new byte[bytesRead];
-                System.arraycopy(buffer, 0, data, 0, bytesRead);
-                
-                FileTransferProtocol.Message dataMessage = new FileTransferProtocol.Message(
-                    FileTransferProtocol.FILE_DATA,
-                    data
-                );
-                ProtocolUtil.writeMessage(out, dataMessage);
+             // 文件数据发送完成，发送传输完成消息
+            FileTransferProtocol.Message completeMessage = new FileTransferProtocol.Message(
+                FileTransferProtocol.TRANSFER_COMPLETE,
+                null
+            );
+            ProtocolUtil.writeMessage(out, completeMessage, protocol.getVersion());
+            completed = true;
+        } finally {
+            transfer.finish(fileName, sent, completed);
+        }
+    }
+
+    /**
+     * 处理文件分段请求：多源下载的客户端从不同副本节点分别获取文件的不同部分
+     * 响应的文件信息为 文件名|大小|内容哈希，客户端据此排除内容不一致的副本并校验下载结果
+     */
+    private void handleFileRangeRequest(byte[] payload, OutputStream out, FileTransferProtocol.Hello protocol)
+            throws IOException {
+        String fileName = null;
+        long offset = -1;
+        long length = -1;
+        if (protocol.getVersion() >= FileTransferProtocol.VERSION_2) {
+            Tlv.Reader reader = new Tlv.Reader(payload);
+            while (reader.next()) {
+                switch (reader.tag()) {
+                    case FileTransferProtocol.TAG_NAME: fileName = reader.stringValue(); break;
+                    case FileTransferProtocol.TAG_OFFSET: offset = reader.longValue(); break;
+                    case FileTransferProtocol.TAG_LENGTH: length = reader.longValue(); break;
+                    default: break;
+                }
+            }
+            if (fileName == null) {
+                sendError(out, "无效的分段请求格式", protocol);
+                return;
+            }
+        } else {
+            // 文件名|起始位置|长度
+            String[] range = new String(payload).split("\\|");
+            if (range.length != 3) {
+                sendError(out, "无效的分段请求格式", protocol);
+                return;
+            }
+            fileName = range[0];
+            try {
+                offset = Long.parseLong(range[1]);
+                length = Long.parseLong(range[2]);
+            } catch (NumberFormatException e) {
+                sendError(out, "无效的分段位置", protocol);
+                return;
             }
         }
+        if (offset < 0 || length < 0) {
+            sendError(out, "无效的分段位置", protocol);
+            return;
+        }
 
-         // 文件数据发送完成，发送传输完成消息
-        FileTransferProtocol.Message completeMessage = new FileTransferProtocol.Message(
-            FileTransferProtocol.TRANSFER_COMPLETE,
-            null
-        );
-        ProtocolUtil.writeMessage(out, completeMessage);
+        SeekableByteChannel fileIn;
+        try {
+            fileIn = storage.openRead(fileName);
+        } catch (NoSuchFileException e) {
+            if (recoverMissingFile(fileName, out, protocol)) {
+                handleFileRangeRequest(payload, out, protocol);
+            }
+            return;
+        } catch (IllegalArgumentException e) {
+            sendError(out, "文件不存在: " + fileName, protocol);
+            return;
+        }
+
+        TransferEvents.TransferEvent transfer = TransferEvents.beginTransfer("server-range");
+        long sent = 0;
+        boolean completed = false;
+        try (SeekableByteChannel channel = fileIn) {
+            long size = channel.size();
+            byte[] fileInfo;
+            if (protocol.getVersion() >= FileTransferProtocol.VERSION_2) {
+                fileInfo = new FileMetadata(fileName, size, storage.lastModified(fileName),
+                        contentHashes.get(fileName), 0, Collections.emptyList()).encode();
+            } else {
+                fileInfo = (fileName + "|" + size + "|" + contentHashes.get(fileName)).getBytes();
+            }
+            ProtocolUtil.writeMessage(out, new FileTransferProtocol.Message(
+                FileTransferProtocol.FILE_INFO, fileInfo), protocol.getVersion());
+            if (offset < size) {
+                channel.position(offset);
+                sent = sendFileData(new RangeChannel(channel, Math.min(length, size - offset)), 0, out, protocol);
+            }
+            ProtocolUtil.writeMessage(out, new FileTransferProtocol.Message(FileTransferProtocol.TRANSFER_COMPLETE, null),
+                    protocol.getVersion());
+            completed = true;
+        } finally {
+            transfer.finish(fileName, sent, completed);
+        }
+    }
+
+    /**
+     * 处理本地没有的文件：集群模式下不由本节点保存时让客户端重新路由；
+     * 应由本节点保存但重新平衡或副本补齐尚未完成时，先从归属节点拉取
+     * @return 已拉取到本地，调用方应重新处理请求；否则已发送响应
+     */
+    private boolean recoverMissingFile(String fileName, OutputStream out, FileTransferProtocol.Hello protocol)
+            throws IOException {
+        if (redirectIfNotOwner(fileName, true, out, protocol)) {
+            return false;
+        }
+        ClusterMember member = cluster;
+        if (member != null && member.getRing() != null && member.handoff(fileName)) {
+            return true;
+        }
+        sendError(out, "文件不存在: " + fileName, protocol);
+        return false;
+    }
+
+    /**
+     * 发送文件数据
+     * 启用预读时磁盘读取在 I/O 线程中提前进行，本线程只负责把缓冲区切分成数据包写入套接字
+     * @param alignment 通道以直接 I/O 方式打开时的对齐大小，否则为0
+     * @return 发送的字节数
+     */
+    private long sendFileData(ReadableByteChannel channel, int alignment, OutputStream out,
+                              FileTransferProtocol.Hello protocol) throws IOException {
+        long sent = 0;
+        int version = protocol.getVersion();
+        int packetSize = FileTransferProtocol.MAX_PACKET_SIZE - FileTransferProtocol.HEADER_SIZE;
+        if (readAheadDepth <= 0 && alignment == 0) {
+            // 不预读：读一块发一块
+            ByteBuffer buffer = ByteBuffer.allocate(packetSize);
+            while (channel.read(buffer) != -1) {
+                if (buffer.position() > 0) {
+                    ProtocolUtil.writeMessage(out, FileTransferProtocol.FILE_DATA,
+                        buffer.array(), 0, buffer.position(), version, false);
+                    sent += buffer.position();
+                    buffer.clear();
+                }
+            }
+            out.flush();
+            return sent;
+        }
+
+        // 缓冲区大小取数据包大小的整数倍，保证线路上的数据包大小与不预读时一致
+        // （直接 I/O 需要对齐的缓冲区，容量会向上取整，偶尔多出一个较小的数据包）
+        int bufferSize = packetSize * readAheadPackets;
+        int depth = Math.max(1, readAheadDepth);
+        try (ReadAheadReader reader = new ReadAheadReader(channel, bufferSize, depth, alignment, readAheadPool)) {
+            byte[] packet = alignment > 0 ? new byte[packetSize] : null;
+            ByteBuffer buffer;
+            while ((buffer = reader.take()) != null) {
+                sent += buffer.remaining();
+                if (buffer.hasArray()) {
+                    byte[] array = buffer.array();
+                    for (int pos = buffer.position(); pos < buffer.limit(); pos += packetSize) {
+                        ProtocolUtil.writeMessage(out, FileTransferProtocol.FILE_DATA,
+                            array, pos, Math.min(packetSize, buffer.limit() - pos), version, false);
+                    }
+                } else {
+                    // 直接缓冲区没有底层数组，逐包复制出来再写入套接字
+                    while (buffer.hasRemaining()) {
+                        int length = Math.min(packetSize, buffer.remaining());
+                        buffer.get(packet, 0, length);
+                        ProtocolUtil.writeMessage(out, FileTransferProtocol.FILE_DATA, packet, 0, length, version, false);
+                    }
+                }
+                reader.release(buffer);
+            }
+        }
+        out.flush();
+        return sent;
     }
 
     /**
      * 处理文件上传
+     * 乐观上传（CAP_OPTIMISTIC_UPLOAD）时客户端不等待就绪信号，拒绝上传后丢弃客户端已经发出的数据，
+     * 成功时以 UPLOAD_COMMITTED 代替带哈希的 TRANSFER_COMPLETE
      */
-    private void handleFileUpload(byte[] payload, InputStream in, OutputStream out) throws IOException {
-        String[] fileInfo = new String(payload).split("\\|");
-        if (fileInfo.length != 2) {
-             sendError(out, "无效的文件信息格式");
+    private void handleFileUpload(byte[] payload, InputStream in, OutputStream out, FileTransferProtocol.Hello protocol)
+            throws IOException {
+        boolean optimistic = (protocol.getCapabilities() & FileTransferProtocol.CAP_OPTIMISTIC_UPLOAD) != 0;
+        FileMetadata info = parseUploadInfo(payload, out, protocol);
+        if (info == null) {
+            discardUpload(in, protocol);
+            return;
+        }
+        String fileName = info.getName();
+        long fileSize = info.getSize();
+        boolean replace = info.hasFlag(FileMetadata.FLAG_REPLACE);
+        boolean replica = info.hasFlag(FileMetadata.FLAG_REPLICA);
+        int version = protocol.getVersion();
+        if (!replica && redirectIfNotOwner(fileName, false, out, protocol)) {
+            discardUpload(in, protocol);
+            return;
+        }
+        // 需要继续转发的副本链：归属节点按自己的环计算，副本节点沿用上一级给出的
+        List<String> chain;
+        if (replica) {
+            chain = info.getReplicaChain();
+        } else {
+            ClusterMember member = cluster;
+            chain = member != null && member.getRing() != null ? member.replicaChain(fileName) : Collections.emptyList();
+        }
+        if (!replace && exists(fileName)) {
+             // 提前拒绝，避免白白传输；最终以发布时的原子检查为准
+             sendError(out, FILE_EXISTS_ERROR + fileName, protocol);
+             discardUpload(in, protocol);
              return;
         }
-        String fileName = fileInfo[0];
-        long fileSize;
+
+        // 数据写入临时文件，发布前对列表和下载都不可见
+        StagedFile staged;
         try {
-             fileSize = Long.parseLong(fileInfo[1]);
-        } catch (NumberFormatException e) {
-             sendError(out, "无效的文件大小格式");
+            staged = storage.stage(fileName, useDirectIo(fileSize));
+        } catch (IllegalArgumentException e) {
+             sendError(out, e.getMessage(), protocol);
+             discardUpload(in, protocol);
              return;
         }
-       
-
-        Path filePath = Paths.get(UPLOAD_DIR, fileName);
 
-        // 检查文件是否已存在，避免覆盖
-        if (Files.exists(filePath)) {
-             sendError(out, "文件已存在: " + fileName);
-             return;
+        // 按声明的大小预分配，空间不足时立即拒绝
+        try {
+            staged.preallocate(fileSize);
+        } catch (IOException e) {
+            staged.close();
+            sendError(out, e.getMessage(), protocol);
+            discardUpload(in, protocol);
+            return;
         }
 
          // 告知客户端服务器已准备好接收数据
@@ -275,58 +1121,288 @@ public class FileTransferServer {
              FileTransferProtocol.TRANSFER_COMPLETE, // 使用TRANSFER_COMPLETE作为准备就绪信号
              null
         );
-        ProtocolUtil.writeMessage(out, readyMessage);
 
-        try (OutputStream fileOut = Files.newOutputStream(filePath)) {
-            long totalBytesReceived = 0;
+        // 套接字读取与写盘解耦：磁盘短暂卡顿时继续接收，缓冲区全部占满才阻塞
+        // 直接 I/O 的对齐和补齐由写盘阶段处理，因此总是使用写盘阶段
+        SeekableByteChannel channel = staged.getChannel();
+        int depth = writeBehindDepth;
+        AsyncDiskWriter writer;
+        if (staged.getAlignment() > 0) {
+            writer = new AsyncDiskWriter((FileChannel) channel, Math.max(1, depth), writeBehindBufferSize,
+                    staged.getAlignment(), diskWriterPool);
+        } else {
+            writer = depth > 0 ? new AsyncDiskWriter(channel, depth, writeBehindBufferSize, diskWriterPool) : null;
+        }
+
+        // 连接副本链中的下一个节点，连接失败不影响本次上传，之后在后台补齐副本
+        ReplicaStream downstream = null;
+        boolean repair = false;
+        if (!chain.isEmpty()) {
+            try {
+                downstream = ReplicaStream.open(chain, fileName, fileSize, replace);
+            } catch (IOException e) {
+                System.err.println("连接副本节点 " + chain.get(0) + " 失败: " + e.getMessage());
+                repair = true;
+            }
+        }
+        MessageDigest digest = ContentHash.newDigest();
+        TransferEvents.TransferEvent transfer = TransferEvents.beginTransfer("server-upload");
+        long totalBytesReceived = 0;
+
+        // 未发布就关闭时临时文件被丢弃
+        try (StagedFile upload = staged) {
+            if (!optimistic) {
+                ProtocolUtil.writeMessage(out, readyMessage, version);
+            }
+            byte[] packet = new byte[FileTransferProtocol.MAX_PACKET_SIZE]; // 数据包读入同一个缓冲区，写盘阶段会复制
 
             while (totalBytesReceived < fileSize) {
-                FileTransferProtocol.Message dataMessage = ProtocolUtil.readMessage(in);
-                
-                if (dataMessage.getType() == FileTransferProtocol.FILE_DATA) {
+                MessageFrame dataMessage = ProtocolUtil.readFrame(in, version);
+
+                if (dataMessage.getType() == FileTransferProtocol.FILE_DATA && dataMessage.getLength() > 0) {
+                    int packetLength = dataMessage.readPayload(packet);
                     // 避免因接收到比预期更多的数据而导致的无限循环
-                    long bytesToRead = Math.min(dataMessage.getPayload().length, fileSize - totalBytesReceived);
-                    fileOut.write(dataMessage.getPayload(), 0, (int) bytesToRead);
+                    long bytesToRead = Math.min(packetLength, fileSize - totalBytesReceived);
+                    digest.update(packet, 0, (int) bytesToRead);
+                    if (downstream != null) {
+                        try {
+                            downstream.forward(packet, 0, (int) bytesToRead);
+                        } catch (IOException e) {
+                            System.err.println("向副本节点 " + downstream.getNode() + " 转发数据失败: " + e.getMessage());
+                            downstream.close();
+                            downstream = null;
+                            repair = true;
+                        }
+                    }
+                    if (writer != null) {
+                        writer.write(packet, 0, (int) bytesToRead);
+                    } else {
+                        ByteBuffer data = ByteBuffer.wrap(packet, 0, (int) bytesToRead);
+                        while (data.hasRemaining()) {
+                            channel.write(data);
+                        }
+                    }
                     totalBytesReceived += bytesToRead;
 
                      // 如果接收到的数据量不足预期，说明可能传输有问题
-                    if (bytesToRead < dataMessage.getPayload().length) {
+                    if (bytesToRead < packetLength) {
                          System.err.println("警告: 接收到的文件数据包大小超出预期，已截断");
                     }
 
                 } else if (dataMessage.getType() == FileTransferProtocol.ERROR) {
                     // 客户端发送错误消息，中断接收
-                    System.err.println("客户端报告错误: " + new String(dataMessage.getPayload()));
-                    Files.deleteIfExists(filePath); // 删除部分传输的文件
-                    throw new IOException("客户端传输错误: " + new String(dataMessage.getPayload()));
+                    String error = decodeText(dataMessage.readPayload(), protocol);
+                    System.err.println("客户端报告错误: " + error);
+                    throw new IOException("客户端传输错误: " + error);
                 } else {
                     // 接收到非数据或错误消息，中断接收
                      System.err.println("警告: 接收到非数据或错误消息 (类型: " + dataMessage.getType() + ")，中断文件上传");
-                     Files.deleteIfExists(filePath); // 删除部分传输的文件
                      throw new IOException("接收到意外消息类型，中断上传");
                 }
             }
 
-             // 接收到传输完成消息（可选，取决于客户端是否发送）
-            // FileTransferProtocol.Message completeMessage = ProtocolUtil.readMessage(in);
-            // if (completeMessage.getType() != FileTransferProtocol.TRANSFER_COMPLETE) {
-            //      System.err.println("警告: 未收到客户端的传输完成消息");
-            // }
+            // 接收客户端的传输完成消息
+            FileTransferProtocol.Message completeMessage = ProtocolUtil.readMessage(in, version);
+            if (completeMessage.getType() != FileTransferProtocol.TRANSFER_COMPLETE) {
+                 System.err.println("警告: 未收到客户端的传输完成消息");
+            }
+
+            // 等待剩余数据写盘完成后再发布
+            if (writer != null) {
+                writer.close();
+                transfer.diskStalls = writer.getProducerStalls();
+                transfer.networkStalls = writer.getWriterStalls();
+            }
+
+            // 原子发布，持久化完成后才发送最终确认
+            try {
+                publish(upload, replace);
+            } catch (FileAlreadyExistsException e) {
+                // 并发上传的同名文件先发布（副本链随之中断，副本节点丢弃这份数据）
+                if (downstream != null) {
+                    downstream.close();
+                }
+                sendError(out, FILE_EXISTS_ERROR + fileName, protocol);
+                transfer.finish(fileName, totalBytesReceived, false);
+                return;
+            }
 
         } catch (IOException e) {
-             Files.deleteIfExists(filePath); // 出现异常时删除部分传输的文件
+             if (writer != null) {
+                 writer.abort();
+             }
+             if (downstream != null) {
+                 downstream.close();
+             }
+             transfer.finish(fileName, totalBytesReceived, false);
              throw e; // 重新抛出异常以便上层处理和记录
         }
+        // 副本链的确认不计入传输时间
+        transfer.finish(fileName, totalBytesReceived, true);
+        String hash = ContentHash.hex(digest.digest());
+        contentHashes.put(fileName, hash);
+        catalog.added(fileName);
+        smallFiles.remove(fileName);
+
+        // 本地发布后等待副本链确认，并核对下一个节点计算的内容哈希
+        if (downstream != null) {
+            try {
+                String replicaHash = downstream.finish();
+                if (!hash.equals(replicaHash)) {
+                    System.err.println("副本节点 " + downstream.getNode() + " 上的文件 " + fileName + " 内容哈希不一致");
+                    repair = true;
+                }
+            } catch (IOException e) {
+                System.err.println("副本节点 " + downstream.getNode() + " 未确认文件 " + fileName + ": " + e.getMessage());
+                repair = true;
+            } finally {
+                downstream.close();
+            }
+        }
+        if (repair) {
+            ClusterMember member = cluster;
+            if (replica) {
+                // 中间节点无法替归属节点补齐，报告给上一级，最终由归属节点补齐
+                sendError(out, "副本链未完成: " + fileName, protocol);
+                return;
+            } else if (member != null) {
+                member.repairLater(fileName);
+            }
+        }
+
+        if (optimistic) {
+            ProtocolUtil.writeMessage(out, new FileTransferProtocol.Message(FileTransferProtocol.UPLOAD_COMMITTED,
+                new FileMetadata(fileName, fileSize, -1, hash, 0, Collections.emptyList()).encode()), version);
+            return;
+        }
+        // 文件已完整写入，确认上传成功（客户端在 uploadFile 末尾等待此确认），确认中带有内容哈希
+        byte[] ack = version >= FileTransferProtocol.VERSION_2
+                ? new Tlv.Writer().putBytes(FileTransferProtocol.TAG_HASH, ContentHash.unhex(hash)).toByteArray()
+                : hash.getBytes();
+        FileTransferProtocol.Message ackMessage = new FileTransferProtocol.Message(
+            FileTransferProtocol.TRANSFER_COMPLETE,
+            ack
+        );
+        ProtocolUtil.writeMessage(out, ackMessage, version);
+    }
+
+    /**
+     * 乐观上传被提前拒绝后，读取并丢弃客户端已经发出的数据，直到传输完成消息或连接关闭
+     * （直接关闭连接时未读的数据会使连接被重置，客户端可能收不到错误消息）
+     */
+    private static void discardUpload(InputStream in, FileTransferProtocol.Hello protocol) {
+        if ((protocol.getCapabilities() & FileTransferProtocol.CAP_OPTIMISTIC_UPLOAD) == 0) {
+            return;
+        }
+        try {
+            MessageFrame frame;
+            while ((frame = ProtocolUtil.readFrame(in, protocol.getVersion())).getType() == FileTransferProtocol.FILE_DATA) {
+                frame.skipPayload();
+            }
+        } catch (IOException e) {
+            // 客户端收到错误后关闭了连接
+        }
+    }
+
+    /**
+     * 解析上传请求的文件信息
+     * @return 格式错误时发送错误响应并返回 null
+     */
+    private FileMetadata parseUploadInfo(byte[] payload, OutputStream out, FileTransferProtocol.Hello protocol)
+            throws IOException {
+        if (protocol.getVersion() >= FileTransferProtocol.VERSION_2) {
+            try {
+                return FileMetadata.decode(payload);
+            } catch (IOException e) {
+                sendError(out, e.getMessage(), protocol);
+                return null;
+            }
+        }
+        // 版本 1 只接受 文件名|大小：替换、副本等选项只能通过版本 2 的 FileMetadata 传递，
+        // 否则含 '|' 的文件名会被误解析成选项
+        String[] fileInfo = new String(payload).split("\\|");
+        if (fileInfo.length != 2) {
+             sendError(out, "无效的文件信息格式");
+             return null;
+        }
+        long fileSize;
+        try {
+             fileSize = Long.parseLong(fileInfo[1]);
+        } catch (NumberFormatException e) {
+             sendError(out, "无效的文件大小格式");
+             return null;
+        }
+        return new FileMetadata(fileInfo[0], fileSize);
+    }
+
+    private boolean exists(String fileName) throws IOException {
+        try {
+            return storage.exists(fileName);
+        } catch (IllegalArgumentException e) {
+            return false; // 非法文件名在 stage 时报告
+        }
+    }
+
+    /**
+     * 按持久化策略发布上传的文件：文件数据在发布前刷盘，新的目录项在发布后刷盘
+     */
+    private void publish(StagedFile staged, boolean replace) throws IOException {
+        Durability policy = durability;
+        if (policy == Durability.NONE) {
+            staged.publish(replace);
+        } else if (policy == Durability.FSYNC) {
+            staged.force();
+            staged.publish(replace);
+            Path directory = staged.getDirectory();
+            if (directory != null) {
+                GroupCommitter.forceDirectory(directory);
+            }
+        } else {
+            groupCommitter().commit(staged, replace);
+        }
+    }
+
+    private synchronized GroupCommitter groupCommitter() {
+        if (groupCommitter == null) {
+            groupCommitter = new GroupCommitter(groupCommitWindowMicros);
+        }
+        return groupCommitter;
+    }
+
+    private boolean useDirectIo(long fileSize) {
+        long threshold = directIoThreshold;
+        return threshold >= 0 && fileSize >= threshold;
     }
 
     /**
      * 发送错误消息
      */
     private void sendError(OutputStream out, String errorMessage) throws IOException {
+        sendError(out, errorMessage, VERSION_1);
+    }
+
+    private void sendError(OutputStream out, String errorMessage, FileTransferProtocol.Hello protocol)
+            throws IOException {
         FileTransferProtocol.Message errorResponse = new FileTransferProtocol.Message(
             FileTransferProtocol.ERROR,
-            errorMessage.getBytes()
+            encodeText(errorMessage, protocol)
         );
-        ProtocolUtil.writeMessage(out, errorResponse);
+        ProtocolUtil.writeMessage(out, errorResponse, protocol.getVersion());
+    }
+
+    /**
+     * 文本负载的编码：版本 2 固定为 UTF-8，版本 1 沿用平台默认字符集
+     */
+    private static byte[] encodeText(String text, FileTransferProtocol.Hello protocol) {
+        return protocol.getVersion() >= FileTransferProtocol.VERSION_2
+                ? text.getBytes(StandardCharsets.UTF_8) : text.getBytes();
+    }
+
+    private static String decodeText(byte[] payload, FileTransferProtocol.Hello protocol) {
+        if (payload == null) {
+            return "";
+        }
+        return protocol.getVersion() >= FileTransferProtocol.VERSION_2
+                ? new String(payload, StandardCharsets.UTF_8) : new String(payload);
     }
 } 
\ No newline at end of file
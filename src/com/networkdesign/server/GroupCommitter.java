@@ -0,0 +1,191 @@
+package com.networkdesign.server;
+
+import com.networkdesign.server.storage.StagedFile;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 组提交刷盘
+ * 并发上传各自请求持久化时不立即 fsync，而是由刷盘线程在一个短时间窗口内收集一批请求，
+ * 刷写各文件并发布后每个目录只刷写一次，然后统一唤醒等待者。文件系统日志的提交也因此被合并，
+ * 高并发时刷盘次数远少于逐个 fsync，单个上传最多多等待一个窗口
+ */
+class GroupCommitter implements Closeable {
+    private static final int MAX_BATCH = 256;
+    private static final int SYNC_THREADS = 8;
+
+    private final long windowNanos;
+    private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private final Thread thread;
+    private final ExecutorService syncPool;
+    private volatile boolean closed;
+
+    /**
+     * @param windowMicros 收集一批请求的时间窗口（微秒）
+     */
+    GroupCommitter(long windowMicros) {
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+        // 空闲线程自动退出，关闭后仍在进行的批次可以正常完成
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(SYNC_THREADS, SYNC_THREADS, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread t = new Thread(r, "group-commit-sync");
+                    t.setDaemon(true);
+                    return t;
+                });
+        pool.allowCoreThreadTimeOut(true);
+        this.syncPool = pool;
+        this.thread = new Thread(this::commitLoop, "group-commit");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 刷写并发布上传的文件，阻塞到所在批次的目录项刷盘完成
+     * @param replace 发布时是否替换同名文件
+     */
+    void commit(StagedFile staged, boolean replace) throws IOException {
+        if (closed) {
+            throw new IOException("刷盘线程已停止");
+        }
+        Request request = new Request(staged, replace);
+        queue.add(request);
+        try {
+            while (true) {
+                try {
+                    request.done.get(100, TimeUnit.MILLISECONDS);
+                    break;
+                } catch (TimeoutException e) {
+                    // 刷盘线程在请求入队之前已经退出
+                    if (!thread.isAlive() && queue.remove(request)) {
+                        throw new IOException("刷盘线程已停止");
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("等待刷盘时被中断");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException("刷盘失败", cause);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        thread.interrupt();
+    }
+
+    private void commitLoop() {
+        List<Request> batch = new ArrayList<>();
+        try {
+            while (!closed) {
+                batch.add(queue.take());
+                // 第一个请求到达后再等待一个窗口，让同时完成的上传进入同一批
+                long deadline = System.nanoTime() + windowNanos;
+                long remaining;
+                while (batch.size() < MAX_BATCH && (remaining = deadline - System.nanoTime()) > 0) {
+                    Request next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                queue.drainTo(batch, MAX_BATCH - batch.size());
+                commitBatch(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            // 服务器关闭
+        } finally {
+            // 关闭前把已提交的请求刷完，不让等待者失败（commit 在关闭后不再接受新请求）
+            queue.drainTo(batch);
+            commitBatch(batch);
+        }
+    }
+
+    /**
+     * 提交一批请求：并发刷写并发布各文件，全部完成后每个目录刷写一次再唤醒等待者。
+     * 同时发出的 fsync 会被文件系统合并进同一次日志提交；刷盘在线程池中进行，
+     * 收集线程随即开始收集下一批，批与批之间可以重叠。
+     * 任何异常（包括运行时异常）都会结束对应的请求，等待者不会一直等下去
+     */
+    private void commitBatch(List<Request> batch) {
+        List<Request> requests = new ArrayList<>(batch);
+        CompletableFuture<?>[] forces = new CompletableFuture<?>[requests.size()];
+        for (int i = 0; i < forces.length; i++) {
+            Request request = requests.get(i);
+            forces[i] = CompletableFuture.runAsync(() -> {
+                try {
+                    request.staged.force();
+                    request.staged.publish(request.replace);
+                } catch (Throwable e) {
+                    request.done.completeExceptionally(e);
+                }
+            }, syncPool);
+        }
+        CompletableFuture.allOf(forces).thenRunAsync(() -> {
+            Map<Path, List<Request>> byDirectory = new HashMap<>();
+            for (Request request : requests) {
+                if (request.done.isDone()) {
+                    continue; // 刷写或发布失败
+                }
+                Path directory = request.staged.getDirectory();
+                if (directory == null) {
+                    request.done.complete(null);
+                } else {
+                    byDirectory.computeIfAbsent(directory, d -> new ArrayList<>()).add(request);
+                }
+            }
+            for (Map.Entry<Path, List<Request>> entry : byDirectory.entrySet()) {
+                try {
+                    forceDirectory(entry.getKey());
+                    entry.getValue().forEach(r -> r.done.complete(null));
+                } catch (Throwable e) {
+                    entry.getValue().forEach(r -> r.done.completeExceptionally(e));
+                }
+            }
+        }, syncPool).whenComplete((ignored, error) -> {
+            if (error != null) {
+                requests.forEach(r -> r.done.completeExceptionally(error));
+            }
+        });
+    }
+
+    /**
+     * 刷写目录，使其中新建文件的目录项持久化
+     */
+    static void forceDirectory(Path directory) throws IOException {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    private static final class Request {
+        final StagedFile staged;
+        final boolean replace;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Request(StagedFile staged, boolean replace) {
+            this.staged = staged;
+            this.replace = replace;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.networkdesign.server;
+
+import com.networkdesign.protocol.FileTransferProtocol;
+import com.networkdesign.protocol.ListingDelta;
+import com.networkdesign.server.storage.StorageBackend;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 文件列表的版本和变化日志，用于条件列表请求
+ * 服务器自己发布或删除文件时（上传、副本复制、集群接管和迁移）由调用方通知，版本号随之加一并记录变化，
+ * 列表请求直接使用内存中的文件名集合，不必每次遍历存储后端。
+ * 绕过服务器直接修改目录的变化由定期的完整遍历补上：距上一次遍历超过 RESCAN_INTERVAL 的请求重新列出文件并比较
+ */
+class ListingCatalog {
+    private static final int MAX_JOURNAL = 4096;    // 变化日志的最大条数，更早的缓存版本只能取完整列表
+    private static final long RESCAN_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    private final StorageBackend storage;
+    private final long epoch = new SecureRandom().nextLong() & Long.MAX_VALUE;
+    private final ArrayDeque<Change> journal = new ArrayDeque<>();
+    private final Set<String> names = new HashSet<>();
+    private List<String> listing;   // names 的只读快照，names 变化后置为 null，下次请求时重建
+    private long version;           // 0 表示尚未列出过
+    private long journalBase;       // 变化日志完整覆盖此版本之后的全部变化
+    private long listedAt;          // 最近一次目录遍历开始的时间（System.nanoTime）
+
+    ListingCatalog(StorageBackend storage) {
+        this.storage = storage;
+    }
+
+    /**
+     * 当前的文件列表
+     */
+    synchronized List<String> list() throws IOException {
+        refreshIfStale();
+        return snapshot();
+    }
+
+    /**
+     * 相对客户端缓存版本的变化
+     * @return 没有变化时 added 和 removed 都为空；缓存版本太旧、来自服务器的上一次运行或变化比列表本身还大时，
+     *         返回 reset 并以 added 给出完整列表
+     */
+    synchronized ListingDelta changesSince(ListingDelta cached) throws IOException {
+        refreshIfStale();
+        if (cached.getEpoch() != epoch || cached.getVersion() < journalBase || cached.getVersion() > version) {
+            return reset();
+        }
+        // 同一文件的多次变化只保留最后一次
+        Map<String, Boolean> changes = new LinkedHashMap<>();
+        for (Change change : journal) {
+            if (change.version > cached.getVersion()) {
+                changes.remove(change.name);
+                changes.put(change.name, change.added);
+            }
+        }
+        List<String> added = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        long bytes = 0;
+        for (Map.Entry<String, Boolean> change : changes.entrySet()) {
+            (change.getValue() ? added : removed).add(change.getKey());
+            bytes += change.getKey().length() + 2;
+        }
+        if (changes.size() > names.size() / 2 + 16 || bytes > FileTransferProtocol.LIST_CHUNK_SIZE) {
+            return reset();
+        }
+        return new ListingDelta(epoch, version, false, added, removed);
+    }
+
+    /**
+     * 服务器发布了一个文件（替换已有文件时列表不变）
+     */
+    synchronized void added(String name) {
+        if (version > 0 && names.add(name)) {
+            record(Collections.singletonList(new Change(version + 1, name, true)));
+        }
+    }
+
+    /**
+     * 服务器删除了一个文件
+     */
+    synchronized void removed(String name) {
+        if (version > 0 && names.remove(name)) {
+            record(Collections.singletonList(new Change(version + 1, name, false)));
+        }
+    }
+
+    /**
+     * 立即重新列出文件，发现绕过服务器的修改
+     */
+    synchronized void rescan() throws IOException {
+        long started = System.nanoTime();
+        List<String> current = storage.list();
+        if (version == 0) {
+            names.addAll(current);
+            version = 1;
+            journalBase = 1;
+        } else {
+            long next = version + 1;
+            Set<String> currentNames = new HashSet<>(current);
+            List<Change> changes = new ArrayList<>();
+            for (String name : currentNames) {
+                if (names.add(name)) {
+                    changes.add(new Change(next, name, true));
+                }
+            }
+            for (Iterator<String> it = names.iterator(); it.hasNext(); ) {
+                String name = it.next();
+                if (!currentNames.contains(name)) {
+                    it.remove();
+                    changes.add(new Change(next, name, false));
+                }
+            }
+            record(changes);
+        }
+        listing = null;
+        listedAt = started;
+    }
+
+    private void refreshIfStale() throws IOException {
+        if (version == 0 || System.nanoTime() - listedAt > RESCAN_INTERVAL_NANOS) {
+            rescan();
+        }
+    }
+
+    /**
+     * 以一个新版本记录一组变化（names 已更新）
+     */
+    private void record(List<Change> changes) {
+        if (changes.isEmpty()) {
+            return;
+        }
+        version++;
+        journal.addAll(changes);
+        while (journal.size() > MAX_JOURNAL) {
+            journalBase = Math.max(journalBase, journal.poll().version);
+        }
+        listing = null;
+    }
+
+    private List<String> snapshot() {
+        if (listing == null) {
+            listing = Collections.unmodifiableList(new ArrayList<>(names));
+        }
+        return listing;
+    }
+
+    private ListingDelta reset() {
+        return new ListingDelta(epoch, version, true, snapshot(), Collections.emptyList());
+    }
+
+    private static final class Change {
+        final long version;
+        final String name;
+        final boolean added;
+
+        Change(long version, String name, boolean added) {
+            this.version = version;
+            this.name = name;
+            this.added = added;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.networkdesign.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * 只读出底层通道当前位置之后的 length 个字节，用于发送文件的一段
+ * 关闭时不关闭底层通道
+ */
+class RangeChannel implements ReadableByteChannel {
+    private final ReadableByteChannel source;
+    private long remaining;
+
+    RangeChannel(ReadableByteChannel source, long length) {
+        this.source = source;
+        this.remaining = length;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (remaining <= 0) {
+            return -1;
+        }
+        int limit = dst.limit();
+        if (dst.remaining() > remaining) {
+            dst.limit(dst.position() + (int) remaining);
+        }
+        try {
+            int n = source.read(dst);
+            if (n > 0) {
+                remaining -= n;
+            }
+            return n;
+        } finally {
+            dst.limit(limit);
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return source.isOpen();
+    }
+
+    @Override
+    public void close() {
+    }
+}
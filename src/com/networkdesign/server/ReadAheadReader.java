@@ -0,0 +1,127 @@
+package com.networkdesign.server;
+
+import com.networkdesign.server.storage.DirectChannel;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * 预读流水线
+ * 读取阶段在独立的 I/O 线程中提前把文件数据读入一组缓冲区（最多领先 depth 个），
+ * 网络阶段从中取出已填满的缓冲区发送，发送完成后归还。磁盘读取和套接字写入因此可以重叠进行，
+ * 吞吐量接近两者中较慢的一个，而不是受两者延迟之和限制
+ */
+class ReadAheadReader implements Closeable {
+    private static final Object END_OF_FILE = new Object();
+
+    private final ReadableByteChannel source;
+    private final BlockingQueue<ByteBuffer> free;
+    private final BlockingQueue<Object> filled;
+    private final Future<?> readerTask;
+    private final boolean direct;
+    private boolean finished;
+
+    /**
+     * @param source 数据来源
+     * @param bufferSize 每个缓冲区的大小
+     * @param depth 预读深度（缓冲区个数）
+     * @param alignment 直接 I/O 的对齐大小，大于0时使用对齐的直接缓冲区（容量向上取整），0 表示普通读取
+     * @param ioExecutor 执行读取阶段的线程池
+     */
+    ReadAheadReader(ReadableByteChannel source, int bufferSize, int depth, int alignment, ExecutorService ioExecutor) {
+        this.source = source;
+        this.direct = alignment > 0;
+        this.free = new ArrayBlockingQueue<>(depth);
+        this.filled = new ArrayBlockingQueue<>(depth + 1);
+        for (int i = 0; i < depth; i++) {
+            free.add(direct ? DirectChannel.allocate(bufferSize, alignment) : ByteBuffer.allocate(bufferSize));
+        }
+        this.readerTask = ioExecutor.submit(this::readLoop);
+    }
+
+    /**
+     * 读取阶段：不断取空闲缓冲区填满后交给网络阶段
+     */
+    private void readLoop() {
+        try {
+            while (true) {
+                ByteBuffer buffer = free.take();
+                buffer.clear();
+                int n = 0;
+                // 尽量填满缓冲区，减少网络阶段的交接次数
+                while (buffer.hasRemaining() && (n = source.read(buffer)) != -1) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        return;
+                    }
+                    // 直接 I/O 读到文件末尾时位置不再对齐，不能继续读，短读即视为结束
+                    if (direct && buffer.hasRemaining()) {
+                        n = -1;
+                        break;
+                    }
+                }
+                buffer.flip();
+                if (buffer.hasRemaining()) {
+                    filled.put(buffer);
+                }
+                if (n == -1) {
+                    filled.put(END_OF_FILE);
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            // 网络阶段已关闭流水线
+        } catch (IOException e) {
+            filled.offer(e);
+        } catch (RuntimeException e) {
+            filled.offer(new IOException("预读文件时发生错误", e));
+        }
+    }
+
+    /**
+     * 网络阶段：取出下一个已填满的缓冲区
+     * @return 可读的缓冲区，文件结束时返回 null
+     */
+    ByteBuffer take() throws IOException {
+        if (finished) {
+            return null;
+        }
+        Object next;
+        try {
+            next = filled.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("等待预读数据时被中断");
+        }
+        if (next == END_OF_FILE) {
+            finished = true;
+            return null;
+        }
+        if (next instanceof IOException) {
+            finished = true;
+            throw (IOException) next;
+        }
+        return (ByteBuffer) next;
+    }
+
+    /**
+     * 归还已发送完的缓冲区，供读取阶段复用
+     */
+    void release(ByteBuffer buffer) {
+        free.offer(buffer);
+    }
+
+    /**
+     * 停止读取阶段（不关闭数据来源）
+     */
+    @Override
+    public void close() {
+        readerTask.cancel(true);
+    }
+}
@@ -0,0 +1,95 @@
+package com.networkdesign.server;
+
+import com.networkdesign.protocol.FileMetadata;
+import com.networkdesign.protocol.FileTransferProtocol;
+import com.networkdesign.util.ProtocolUtil;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.List;
+
+/**
+ * 链式复制中通往下一个副本节点的上传流
+ * 本节点每收到一个数据包就原样转发给下一个节点，下一个节点再转发给它的下一个节点，
+ * 上传者只需发送一次数据。确认从链尾逐级返回，每一级在确认中带上自己计算的内容哈希。
+ * 节点之间使用协议版本 2，文件名和剩余的副本链以 FileMetadata 传递
+ */
+class ReplicaStream implements Closeable {
+    private final String node;
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+
+    private ReplicaStream(String node, Socket socket) throws IOException {
+        this.node = node;
+        this.socket = socket;
+        this.in = socket.getInputStream();
+        this.out = socket.getOutputStream();
+    }
+
+    /**
+     * 连接链中的下一个节点并发送文件信息
+     * @param chain 剩余的副本节点，第一个为下一个节点
+     * @return 不替换且对方已有同名文件时返回 null
+     */
+    static ReplicaStream open(List<String> chain, String name, long size, boolean replace) throws IOException {
+        String node = chain.get(0);
+        ReplicaStream stream = new ReplicaStream(node, ClusterMember.connectPeer(node));
+        try {
+            int flags = FileMetadata.FLAG_REPLICA | (replace ? FileMetadata.FLAG_REPLACE : 0);
+            FileMetadata info = new FileMetadata(name, size, -1, null, flags, chain.subList(1, chain.size()));
+            ProtocolUtil.writeMessage(stream.out, new FileTransferProtocol.Message(
+                FileTransferProtocol.FILE_INFO, info.encode()), FileTransferProtocol.VERSION_2);
+            FileTransferProtocol.Message ready = ProtocolUtil.readMessage(stream.in, FileTransferProtocol.VERSION_2);
+            if (ready.getType() == FileTransferProtocol.ERROR) {
+                String error = ClusterMember.text(ready);
+                if (!replace && error.startsWith(FileTransferServer.FILE_EXISTS_ERROR)) {
+                    stream.close();
+                    return null;
+                }
+                throw new IOException(error);
+            }
+            return stream;
+        } catch (IOException e) {
+            stream.close();
+            throw e;
+        }
+    }
+
+    String getNode() {
+        return node;
+    }
+
+    void forward(byte[] data, int offset, int length) throws IOException {
+        ProtocolUtil.writeMessage(out, FileTransferProtocol.FILE_DATA, data, offset, length, FileTransferProtocol.VERSION_2);
+    }
+
+    /**
+     * 发送传输完成消息并等待下一个节点（及其后续节点）确认
+     * @return 下一个节点计算的内容哈希
+     */
+    String finish() throws IOException {
+        ProtocolUtil.writeMessage(out, new FileTransferProtocol.Message(FileTransferProtocol.TRANSFER_COMPLETE, null),
+            FileTransferProtocol.VERSION_2);
+        FileTransferProtocol.Message ack = ProtocolUtil.readMessage(in, FileTransferProtocol.VERSION_2);
+        if (ack.getType() != FileTransferProtocol.TRANSFER_COMPLETE) {
+            throw new IOException(ClusterMember.text(ack));
+        }
+        return ClusterMember.ackHash(ack);
+    }
+
+    /**
+     * 关闭连接；在 finish 之前关闭时下一个节点丢弃已接收的数据
+     */
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // 忽略关闭时的异常
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.networkdesign.server;
+
+import com.networkdesign.server.storage.StorageBackend;
+import com.networkdesign.util.ContentHash;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 小文件内容的内存缓存，用于把整个文件内联到一个响应消息中
+ * 条目记录读取时的大小和修改时间，每次使用前与存储后端核对，文件被替换后重新读取；
+ * 后端不记录修改时间时（内存存储）每次都重新读取。总大小超过上限时淘汰最久未使用的条目
+ */
+class SmallFiles {
+    private static final long MAX_CACHED_BYTES = 32 * 1024 * 1024;
+
+    private final StorageBackend storage;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes;
+
+    SmallFiles(StorageBackend storage) {
+        this.storage = storage;
+    }
+
+    /**
+     * 获取不超过 maxSize 的文件的内容
+     * @return 文件大于 maxSize 时返回 null
+     * @throws java.nio.file.NoSuchFileException 文件不存在
+     */
+    Entry get(String name, int maxSize) throws IOException {
+        long size = storage.size(name);
+        if (size > maxSize) {
+            return null;
+        }
+        long lastModified = storage.lastModified(name);
+        synchronized (this) {
+            Entry cached = entries.get(name);
+            if (cached != null && lastModified >= 0
+                    && cached.lastModified == lastModified && cached.content.length == size) {
+                return cached;
+            }
+        }
+        // 以打开的文件为准：核对大小之后文件可能已被替换
+        byte[] content;
+        try (SeekableByteChannel channel = storage.openRead(name)) {
+            if (channel.size() > maxSize) {
+                return null;
+            }
+            content = new byte[(int) channel.size()];
+            ByteBuffer buffer = ByteBuffer.wrap(content);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) == -1) {
+                    throw new EOFException("读取文件时遇到意外的结尾: " + name);
+                }
+            }
+        }
+        Entry entry = new Entry(content, lastModified, ContentHash.hex(ContentHash.newDigest().digest(content)));
+        if (lastModified >= 0) {
+            put(name, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * 文件被替换或删除时丢弃缓存的内容
+     */
+    synchronized void remove(String name) {
+        Entry entry = entries.remove(name);
+        if (entry != null) {
+            cachedBytes -= entry.content.length;
+        }
+    }
+
+    private synchronized void put(String name, Entry entry) {
+        remove(name);
+        entries.put(name, entry);
+        cachedBytes += entry.content.length;
+        Iterator<Entry> oldest = entries.values().iterator();
+        while (cachedBytes > MAX_CACHED_BYTES && oldest.hasNext()) {
+            cachedBytes -= oldest.next().content.length;
+            oldest.remove();
+        }
+    }
+
+    /**
+     * 一个小文件的内容
+     */
+    static final class Entry {
+        final byte[] content;
+        final long lastModified;
+        final String hash;
+
+        Entry(byte[] content, long lastModified, String hash) {
+            this.content = content;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package com.networkdesign.server;
+
+import com.networkdesign.protocol.FileMetadata;
+import com.networkdesign.protocol.FileTransferProtocol;
+import com.networkdesign.protocol.Tlv;
+import com.networkdesign.server.storage.StorageBackend;
+import com.networkdesign.util.TrafficLog;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+/**
+ * 捕获模式：把每个请求的类型、文件、大小和耗时写入请求记录日志（TrafficLog）
+ * 连接的输入输出流被包装为计数流，记录协议层的收发字节数和第一个响应消息的类型
+ */
+class TrafficCapture {
+    private final TrafficLog.Writer writer;
+    private final StorageBackend storage;
+
+    TrafficCapture(Path file, StorageBackend storage) throws IOException {
+        this.writer = new TrafficLog.Writer(file);
+        this.storage = storage;
+    }
+
+    /**
+     * 记录一个已处理的请求，写入失败只输出警告，不影响请求本身
+     * @param payload 请求负载，未读取时为 null
+     * @param bytesIn 该请求（不含 HELLO）收到的字节数
+     */
+    void record(long startNanos, byte type, byte[] payload, FileTransferProtocol.Hello protocol,
+                long bytesIn, CountingOutputStream out, boolean completed) {
+        long duration = (System.nanoTime() - startNanos) / 1000;
+        String name = "";
+        long size = -1;
+        long offset = 0;
+        int flags = 0;
+        boolean v2 = protocol.getVersion() >= FileTransferProtocol.VERSION_2;
+        try {
+            switch (type) {
+                case FileTransferProtocol.REQUEST_FILE_LIST:
+                    // 条件列表请求附带的内联大小上限
+                    if (v2 && payload != null) {
+                        Tlv.Reader reader = new Tlv.Reader(payload);
+                        while (reader.next()) {
+                            if (reader.tag() == FileTransferProtocol.TAG_INLINE_LIMIT) {
+                                size = reader.longValue();
+                            }
+                        }
+                    }
+                    break;
+                case FileTransferProtocol.REQUEST_FILE:
+                    if ((protocol.getCapabilities() & FileTransferProtocol.CAP_CONDITIONAL_FETCH) != 0) {
+                        name = tlvName(payload);
+                    } else {
+                        name = text(payload, v2);
+                    }
+                    size = fileSize(name);
+                    break;
+                case FileTransferProtocol.REQUEST_FILE_RANGE:
+                    if (v2) {
+                        Tlv.Reader reader = new Tlv.Reader(payload);
+                        while (reader.next()) {
+                            switch (reader.tag()) {
+                                case FileTransferProtocol.TAG_NAME: name = reader.stringValue(); break;
+                                case FileTransferProtocol.TAG_OFFSET: offset = reader.longValue(); break;
+                                case FileTransferProtocol.TAG_LENGTH: size = reader.longValue(); break;
+                                default: break;
+                            }
+                        }
+                    } else {
+                        String[] range = text(payload, false).split("\\|");
+                        name = range[0];
+                        offset = range.length > 1 ? Long.parseLong(range[1]) : 0;
+                        size = range.length > 2 ? Long.parseLong(range[2]) : -1;
+                    }
+                    break;
+                case FileTransferProtocol.FILE_INFO:
+                    if (v2) {
+                        FileMetadata info = FileMetadata.decode(payload);
+                        name = info.getName();
+                        size = info.getSize();
+                        flags = info.hasFlag(FileMetadata.FLAG_REPLACE) ? FileMetadata.FLAG_REPLACE : 0;
+                    } else {
+                        String[] info = text(payload, false).split("\\|");
+                        name = info[0];
+                        size = info.length > 1 ? Long.parseLong(info[1]) : -1;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        } catch (IOException | RuntimeException e) {
+            // 格式错误的请求只记录类型
+        }
+        try {
+            writer.append(new TrafficLog.Record(writer.micros(startNanos), type, protocol.getVersion(), name, size,
+                    offset, flags, duration, bytesIn, out.count, out.firstByte, completed));
+        } catch (IOException e) {
+            System.err.println("写入请求记录失败: " + e.getMessage());
+        }
+    }
+
+    void close() {
+        try {
+            writer.close();
+            System.out.println("请求记录已保存，共 " + writer.getRecords() + " 条");
+        } catch (IOException e) {
+            System.err.println("关闭请求记录日志失败: " + e.getMessage());
+        }
+    }
+
+    private long fileSize(String name) {
+        try {
+            return storage.size(name);
+        } catch (IOException | IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+    private static String tlvName(byte[] payload) throws IOException {
+        Tlv.Reader reader = new Tlv.Reader(payload);
+        while (reader.next()) {
+            if (reader.tag() == FileTransferProtocol.TAG_NAME) {
+                return reader.stringValue();
+            }
+        }
+        return "";
+    }
+
+    private static String text(byte[] payload, boolean utf8) {
+        if (payload == null) {
+            return "";
+        }
+        return utf8 ? new String(payload, StandardCharsets.UTF_8) : new String(payload);
+    }
+
+    /**
+     * 统计读取的字节数
+     */
+    static final class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = in.read(buffer, offset, length);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+    /**
+     * 统计写出的字节数，并记下 reset 之后写出的第一个字节（协议消息头的第一个字节就是消息类型）
+     */
+    static final class CountingOutputStream extends FilterOutputStream {
+        long count;
+        int firstByte = -1;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (firstByte < 0) {
+                firstByte = b & 0xFF;
+            }
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            if (firstByte < 0 && length > 0) {
+                firstByte = buffer[offset] & 0xFF;
+            }
+            out.write(buffer, offset, length);
+            count += length;
+        }
+
+        /**
+         * 开始统计下一个请求（HELLO 的响应不计入）
+         */
+        void reset() {
+            count = 0;
+            firstByte = -1;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.networkdesign.server.storage;
+
+import com.sun.nio.file.ExtendedOpenOption;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 以直接 I/O 方式（O_DIRECT，绕过页缓存）打开的文件
+ * 超大文件只会顺序读写一次，经过页缓存反而会把其他客户端频繁访问的小文件挤出去。
+ * 直接 I/O 要求缓冲区地址、读写长度和文件位置都按块大小对齐，alignment 即为该块大小
+ */
+public final class DirectChannel implements Closeable {
+    private static final Map<FileStore, Integer> ALIGNMENTS = new ConcurrentHashMap<>();
+
+    private final FileChannel channel;
+    private final int alignment;
+
+    private DirectChannel(FileChannel channel, int alignment) {
+        this.channel = channel;
+        this.alignment = alignment;
+    }
+
+    public FileChannel getChannel() {
+        return channel;
+    }
+
+    public int getAlignment() {
+        return alignment;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * 以直接 I/O 方式打开文件
+     * @param file 文件路径（所在目录必须已存在）
+     * @return 文件系统不支持直接 I/O 时返回 null
+     */
+    static DirectChannel open(Path file, OpenOption... options) throws IOException {
+        int alignment = alignment(file.toAbsolutePath().getParent());
+        if (alignment <= 0) {
+            return null;
+        }
+        OpenOption[] all = new OpenOption[options.length + 1];
+        System.arraycopy(options, 0, all, 0, options.length);
+        all[options.length] = ExtendedOpenOption.DIRECT;
+        return new DirectChannel(FileChannel.open(file, all), alignment);
+    }
+
+    /**
+     * 分配按 alignment 对齐的直接缓冲区，容量向上取整为 alignment 的整数倍
+     */
+    public static ByteBuffer allocate(int size, int alignment) {
+        int capacity = (size + alignment - 1) / alignment * alignment;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(capacity + alignment).alignedSlice(alignment);
+        buffer.limit(capacity);
+        return buffer.slice();
+    }
+
+    /**
+     * 获取目录所在文件系统的直接 I/O 对齐大小，不支持时返回 0
+     * 首次访问某个文件系统时用临时文件试探一次（例如较旧内核上的 tmpfs 会拒绝 O_DIRECT）
+     */
+    private static int alignment(Path directory) throws IOException {
+        FileStore store = Files.getFileStore(directory);
+        Integer cached = ALIGNMENTS.get(store);
+        if (cached != null) {
+            return cached;
+        }
+        int alignment = 0;
+        Path probe = Files.createTempFile(directory, ".direct-probe", null);
+        try {
+            FileChannel.open(probe, ExtendedOpenOption.DIRECT).close();
+            alignment = (int) store.getBlockSize();
+        } catch (IOException | UnsupportedOperationException e) {
+            System.err.println("文件系统 " + store + " 不支持直接 I/O，改用普通读写: " + e.getMessage());
+        } finally {
+            Files.deleteIfExists(probe);
+        }
+        ALIGNMENTS.put(store, alignment);
+        return alignment;
+    }
+}
@@ -0,0 +1,79 @@
+package com.networkdesign.server.storage;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 平铺目录存储
+ * 所有文件直接放在一个目录下（服务器原有的 uploads 布局），适合文件数量不多的场景
+ */
+public class FlatDirectoryStorage implements StorageBackend {
+    private final Path directory;
+    private final Path staging;
+
+    public FlatDirectoryStorage(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        this.staging = LocalFiles.prepareStaging(directory);
+    }
+
+    @Override
+    public List<String> list() throws IOException {
+        List<String> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, Files::isRegularFile)) {
+            for (Path path : stream) {
+                files.add(path.getFileName().toString());
+            }
+        }
+        return files;
+    }
+
+    @Override
+    public boolean exists(String name) {
+        return Files.exists(resolve(name));
+    }
+
+    @Override
+    public long size(String name) throws IOException {
+        return Files.size(resolve(name));
+    }
+
+    @Override
+    public long lastModified(String name) throws IOException {
+        return Files.getLastModifiedTime(resolve(name)).toMillis();
+    }
+
+    @Override
+    public SeekableByteChannel openRead(String name) throws IOException {
+        return FileChannel.open(resolve(name), StandardOpenOption.READ);
+    }
+
+    @Override
+    public DirectChannel openReadDirect(String name) throws IOException {
+        return DirectChannel.open(resolve(name), StandardOpenOption.READ);
+    }
+
+    @Override
+    public StagedFile stage(String name, boolean direct) throws IOException {
+        return LocalStagedFile.open(staging, resolve(name), direct);
+    }
+
+    @Override
+    public void delete(String name) throws IOException {
+        Files.deleteIfExists(resolve(name));
+    }
+
+    private Path resolve(String name) {
+        if (LocalFiles.STAGING_DIR.equals(name)) {
+            throw new IllegalArgumentException("非法的文件名: " + name);
+        }
+        return directory.resolve(StorageBackend.checkName(name));
+    }
+}
@@ -0,0 +1,183 @@
+package com.networkdesign.server.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonReadableChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 内存存储
+ * 文件内容保存在堆内存中，用于测试和排除磁盘影响的性能基准
+ */
+public class InMemoryStorage implements StorageBackend {
+    private final ConcurrentMap<String, byte[]> files = new ConcurrentHashMap<>();
+
+    @Override
+    public List<String> list() {
+        return new ArrayList<>(files.keySet());
+    }
+
+    @Override
+    public boolean exists(String name) {
+        return files.containsKey(StorageBackend.checkName(name));
+    }
+
+    @Override
+    public long size(String name) throws IOException {
+        return get(name).length;
+    }
+
+    @Override
+    public SeekableByteChannel openRead(String name) throws IOException {
+        return new MemoryChannel(get(name), false);
+    }
+
+    @Override
+    public StagedFile stage(String name, boolean direct) {
+        String checked = StorageBackend.checkName(name);
+        MemoryChannel channel = new MemoryChannel(new byte[0], true);
+        return new StagedFile() {
+            @Override
+            public SeekableByteChannel getChannel() {
+                return channel;
+            }
+
+            @Override
+            public void publish(boolean replace) throws IOException {
+                // 读取方持有的是发布时的数组，替换不会影响已打开的下载
+                byte[] data = channel.contents();
+                if (replace) {
+                    files.put(checked, data);
+                } else if (files.putIfAbsent(checked, data) != null) {
+                    throw new FileAlreadyExistsException(checked);
+                }
+            }
+
+            @Override
+            public void close() {
+                channel.close();
+            }
+        };
+    }
+
+    @Override
+    public void delete(String name) {
+        files.remove(StorageBackend.checkName(name));
+    }
+
+    private byte[] get(String name) throws NoSuchFileException {
+        byte[] data = files.get(StorageBackend.checkName(name));
+        if (data == null) {
+            throw new NoSuchFileException(name);
+        }
+        return data;
+    }
+
+    /**
+     * 基于字节数组的通道
+     */
+    private final class MemoryChannel implements SeekableByteChannel {
+        private final boolean writable;
+        private byte[] data;
+        private int size;
+        private int position;
+        private boolean open = true;
+
+        MemoryChannel(byte[] data, boolean writable) {
+            this.data = data;
+            this.size = data.length;
+            this.writable = writable;
+        }
+
+        synchronized byte[] contents() {
+            return Arrays.copyOf(data, size);
+        }
+
+        @Override
+        public synchronized int read(ByteBuffer dst) throws IOException {
+            ensureOpen();
+            if (writable) {
+                throw new NonReadableChannelException();
+            }
+            if (position >= size) {
+                return -1;
+            }
+            int count = Math.min(dst.remaining(), size - position);
+            dst.put(data, position, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public synchronized int write(ByteBuffer src) throws IOException {
+            ensureOpen();
+            if (!writable) {
+                throw new NonWritableChannelException();
+            }
+            int count = src.remaining();
+            int end = Math.addExact(position, count);
+            if (end > data.length) {
+                data = Arrays.copyOf(data, Math.max(end, data.length * 2));
+            }
+            src.get(data, position, count);
+            position = end;
+            size = Math.max(size, end);
+            return count;
+        }
+
+        @Override
+        public synchronized long position() throws IOException {
+            ensureOpen();
+            return position;
+        }
+
+        @Override
+        public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+            ensureOpen();
+            position = (int) Math.min(newPosition, Integer.MAX_VALUE);
+            return this;
+        }
+
+        @Override
+        public synchronized long size() throws IOException {
+            ensureOpen();
+            return size;
+        }
+
+        @Override
+        public synchronized SeekableByteChannel truncate(long newSize) throws IOException {
+            ensureOpen();
+            if (!writable) {
+                throw new NonWritableChannelException();
+            }
+            size = (int) Math.min(size, newSize);
+            position = Math.min(position, size);
+            return this;
+        }
+
+        @Override
+        public synchronized boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public synchronized void close() {
+            open = false;
+        }
+
+        private void ensureOpen() throws ClosedChannelException {
+            if (!open) {
+                throw new ClosedChannelException();
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.networkdesign.server.storage;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * 本地文件存储共用的辅助方法
+ */
+final class LocalFiles {
+    /** 上传临时文件所在的暂存目录名 */
+    static final String STAGING_DIR = ".staging";
+
+    private LocalFiles() {
+    }
+
+    /**
+     * 创建暂存目录，并清理上次异常退出时遗留的临时文件
+     */
+    static Path prepareStaging(Path root) throws IOException {
+        Path staging = root.resolve(STAGING_DIR);
+        Files.createDirectories(staging);
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(staging, "upload-*.tmp")) {
+            for (Path stale : stream) {
+                Files.deleteIfExists(stale);
+            }
+        }
+        return staging;
+    }
+
+    /**
+     * 把文件预先扩展到声明的大小
+     * 先检查可用空间，空间不足时立即失败，而不是在传输到一半时才失败；
+     * Java 没有 fallocate，这里只能用 setLength 一次性设定文件长度（在多数文件系统上是稀疏的），
+     * 省去追加写入过程中反复更新文件大小
+     */
+    static void preallocate(Path file, long size) throws IOException {
+        long usable = Files.getFileStore(file).getUsableSpace();
+        if (usable < size) {
+            throw new IOException("磁盘空间不足: 需要 " + size + " 字节, 可用 " + usable + " 字节");
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            if (raf.length() < size) {
+                raf.setLength(size);
+            }
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.networkdesign.server.storage;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 本地文件系统上的待发布文件
+ * 临时文件放在目标所在文件系统的暂存目录中，发布时用 rename 原子替换，
+ * 或用 link 原子地新建（目标已存在时 link 失败），整个过程不需要任何锁
+ */
+final class LocalStagedFile implements StagedFile {
+    private final Path temp;
+    private final Path target;
+    private final FileChannel channel;
+    private final int alignment;
+    private boolean published;
+
+    private LocalStagedFile(Path temp, Path target, FileChannel channel, int alignment) {
+        this.temp = temp;
+        this.target = target;
+        this.channel = channel;
+        this.alignment = alignment;
+    }
+
+    /**
+     * @param stagingDirectory 暂存目录，必须与 target 位于同一文件系统
+     * @param direct 是否尝试以直接 I/O 方式打开（不支持时使用普通方式）
+     */
+    static LocalStagedFile open(Path stagingDirectory, Path target, boolean direct) throws IOException {
+        Path temp = Files.createTempFile(stagingDirectory, "upload-", ".tmp");
+        try {
+            DirectChannel directChannel = direct ? DirectChannel.open(temp, StandardOpenOption.WRITE) : null;
+            if (directChannel != null) {
+                return new LocalStagedFile(temp, target, directChannel.getChannel(), directChannel.getAlignment());
+            }
+            return new LocalStagedFile(temp, target, FileChannel.open(temp, StandardOpenOption.WRITE), 0);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+    }
+
+    @Override
+    public SeekableByteChannel getChannel() {
+        return channel;
+    }
+
+    @Override
+    public int getAlignment() {
+        return alignment;
+    }
+
+    @Override
+    public void preallocate(long size) throws IOException {
+        LocalFiles.preallocate(temp, size);
+    }
+
+    @Override
+    public void force() throws IOException {
+        channel.force(true);
+    }
+
+    @Override
+    public Path getDirectory() {
+        return target.getParent();
+    }
+
+    @Override
+    public void publish(boolean replace) throws IOException {
+        Files.createDirectories(target.getParent());
+        if (replace) {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+        } else {
+            try {
+                Files.createLink(target, temp);
+            } catch (FileAlreadyExistsException e) {
+                throw e;
+            } catch (UnsupportedOperationException | FileSystemException e) {
+                // 文件系统不支持硬链接（FAT、部分网络文件系统等，通常报告为 FileSystemException）：
+                // 退化为不带 REPLACE_EXISTING 的移动，目标已存在时同样以 FileAlreadyExistsException 失败，
+                // 只是检查和重命名不是一个原子操作，两个上传恰好同时发布同名文件时后者仍可能覆盖前者
+                Files.move(temp, target);
+                published = true;
+                return;
+            }
+            Files.delete(temp);
+        }
+        published = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            channel.close();
+        } finally {
+            if (!published) {
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package com.networkdesign.server.storage;
+
+import com.networkdesign.util.HashRing;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * 哈希分片目录存储
+ * 按文件名哈希把文件分散到多级子目录（每级256个，默认两级共65536个叶子目录），
+ * 使单个目录的条目数保持在较小规模；可以配置多个根目录（例如不同磁盘的挂载点），
+ * 文件按哈希分布到各个根目录以并行利用多块磁盘。
+ *
+ * 可以指定一个旧的平铺目录：启动后后台线程逐个把其中的文件移动到分片位置，
+ * 迁移完成前访问尚未迁移的文件会立即迁移该文件，因此迁移期间服务不中断
+ */
+public class ShardedDirectoryStorage implements StorageBackend {
+    /** 默认布局中分片根目录相对于上传目录的名称 */
+    public static final String DEFAULT_SHARD_DIR = ".shards";
+    /** 迁移失败后重试的退避时间范围 */
+    private static final long MIGRATION_RETRY_MIN_MILLIS = 1000;
+    private static final long MIGRATION_RETRY_MAX_MILLIS = 60_000;
+
+    private final List<Path> roots;
+    private final int levels;
+    private final Path legacyDirectory;
+    private final Thread migrationThread;
+    private volatile boolean legacyPending;
+    private volatile boolean closed;
+
+    /**
+     * @param roots 分片根目录（可以位于不同磁盘）
+     * @param levels 目录层级数（1-4）
+     * @param legacyDirectory 需要在线迁移的旧平铺目录，可以为 null
+     */
+    public ShardedDirectoryStorage(List<Path> roots, int levels, Path legacyDirectory) throws IOException {
+        if (roots.isEmpty()) {
+            throw new IllegalArgumentException("至少需要一个根目录");
+        }
+        if (levels < 1 || levels > 4) {
+            throw new IllegalArgumentException("目录层级数必须在1到4之间");
+        }
+        this.roots = Collections.unmodifiableList(new ArrayList<>(roots));
+        this.levels = levels;
+        this.legacyDirectory = legacyDirectory;
+        for (Path root : roots) {
+            Files.createDirectories(root);
+            LocalFiles.prepareStaging(root);
+        }
+
+        this.legacyPending = legacyDirectory != null && Files.isDirectory(legacyDirectory);
+        if (legacyPending) {
+            migrationThread = new Thread(this::migrateLegacy, "storage-migration");
+            migrationThread.setDaemon(true);
+            migrationThread.start();
+        } else {
+            migrationThread = null;
+        }
+    }
+
+    /**
+     * 默认布局：分片放在 uploadDir/.shards 下，并在线迁移 uploadDir 中原有的平铺文件
+     */
+    public static ShardedDirectoryStorage inUploadDirectory(Path uploadDir) throws IOException {
+        return new ShardedDirectoryStorage(Collections.singletonList(uploadDir.resolve(DEFAULT_SHARD_DIR)), 2, uploadDir);
+    }
+
+    @Override
+    public List<String> list() throws IOException {
+        // 各个根目录可能位于不同磁盘，并行遍历
+        List<List<String>> perRoot;
+        try {
+            perRoot = roots.parallelStream().map(this::listRoot).collect(Collectors.toList());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        List<String> files = new ArrayList<>();
+        perRoot.forEach(files::addAll);
+
+        // 尚未迁移的旧文件
+        if (legacyPending) {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(legacyDirectory, Files::isRegularFile)) {
+                for (Path path : stream) {
+                    files.add(path.getFileName().toString());
+                }
+            }
+        }
+        return files;
+    }
+
+    private List<String> listRoot(Path root) {
+        try (Stream<Path> paths = Files.walk(root, levels + 1)) {
+            return paths.filter(p -> isShardFile(root.relativize(p)) && Files.isRegularFile(p))
+                    .map(p -> p.getFileName().toString())
+                    .collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private boolean isShardFile(Path relative) {
+        return relative.getNameCount() == levels + 1 && !relative.getName(0).toString().equals(LocalFiles.STAGING_DIR);
+    }
+
+    @Override
+    public boolean exists(String name) throws IOException {
+        return Files.exists(locate(name));
+    }
+
+    @Override
+    public long size(String name) throws IOException {
+        return Files.size(locate(name));
+    }
+
+    @Override
+    public long lastModified(String name) throws IOException {
+        return Files.getLastModifiedTime(locate(name)).toMillis();
+    }
+
+    @Override
+    public SeekableByteChannel openRead(String name) throws IOException {
+        return FileChannel.open(locate(name), StandardOpenOption.READ);
+    }
+
+    @Override
+    public DirectChannel openReadDirect(String name) throws IOException {
+        return DirectChannel.open(locate(name), StandardOpenOption.READ);
+    }
+
+    @Override
+    public StagedFile stage(String name, boolean direct) throws IOException {
+        Path target = locate(name);
+        Files.createDirectories(target.getParent());
+        // 暂存在目标所在根目录下，保证发布时的 rename 不跨文件系统
+        Path root = target;
+        for (int i = 0; i <= levels; i++) {
+            root = root.getParent();
+        }
+        return LocalStagedFile.open(root.resolve(LocalFiles.STAGING_DIR), target, direct);
+    }
+
+    @Override
+    public void delete(String name) throws IOException {
+        Files.deleteIfExists(locate(name));
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        if (migrationThread != null) {
+            migrationThread.interrupt();
+        }
+    }
+
+    /**
+     * 计算文件的分片路径；迁移期间如果文件仍在旧目录中，先把它迁移过来
+     */
+    Path locate(String name) throws IOException {
+        Path path = shardPath(StorageBackend.checkName(name));
+        if (legacyPending && !Files.exists(path)) {
+            Path legacy = legacyDirectory.resolve(name);
+            if (Files.isRegularFile(legacy)) {
+                migrate(legacy, path);
+            }
+        }
+        return path;
+    }
+
+    /**
+     * 根据文件名哈希计算分片路径: root/ab/cd/name
+     */
+    Path shardPath(String name) {
+        long hash = HashRing.hash(name);
+        Path path = roots.get((int) Long.remainderUnsigned(hash >>> 32, roots.size()));
+        for (int i = 0; i < levels; i++) {
+            path = path.resolve(String.format("%02x", (hash >>> (8 * i)) & 0xff));
+        }
+        return path.resolve(name);
+    }
+
+    /**
+     * 后台迁移旧目录中的所有文件；有文件迁移失败或遍历出错时退避后重试，
+     * 直到旧目录中没有可以迁移的文件为止（文件名无效的文件无法迁移，不再等待）
+     */
+    private void migrateLegacy() {
+        int migrated = 0;
+        long backoffMillis = MIGRATION_RETRY_MIN_MILLIS;
+        while (!closed) {
+            int failed = 0;
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(legacyDirectory, Files::isRegularFile)) {
+                for (Path legacy : stream) {
+                    if (closed) {
+                        return;
+                    }
+                    String name = legacy.getFileName().toString();
+                    try {
+                        migrate(legacy, shardPath(StorageBackend.checkName(name)));
+                        migrated++;
+                    } catch (IllegalArgumentException e) {
+                        System.err.println("跳过无法迁移的文件: " + name + " - " + e.getMessage());
+                    } catch (IOException e) {
+                        failed++;
+                        System.err.println("迁移文件失败: " + name + " - " + e.getMessage());
+                    }
+                }
+            } catch (IOException | DirectoryIteratorException e) {
+                failed++;
+                System.err.println("遍历旧存储目录时发生错误: " + e.getMessage());
+            }
+            if (failed == 0) {
+                legacyPending = false;
+                if (migrated > 0) {
+                    System.out.println("存储迁移完成，共迁移 " + migrated + " 个文件到分片目录");
+                }
+                return;
+            }
+            System.err.println("存储迁移未完成，" + (backoffMillis / 1000) + " 秒后重试");
+            try {
+                Thread.sleep(backoffMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            backoffMillis = Math.min(backoffMillis * 2, MIGRATION_RETRY_MAX_MILLIS);
+        }
+    }
+
+    /**
+     * 把单个旧文件移动到分片位置；与其它线程并发迁移同一文件时只有一个会成功
+     */
+    private void migrate(Path legacy, Path target) throws IOException {
+        Files.createDirectories(target.getParent());
+        try {
+            Files.move(legacy, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            // 分片目录在其它磁盘上，先复制再删除
+            try {
+                Files.copy(legacy, target);
+                Files.delete(legacy);
+            } catch (FileAlreadyExistsException | NoSuchFileException ignored) {
+                // 已被其它线程迁移
+            }
+        } catch (NoSuchFileException ignored) {
+            // 已被其它线程迁移
+        }
+    }
+}
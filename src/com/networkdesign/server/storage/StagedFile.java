@@ -0,0 +1,54 @@
+package com.networkdesign.server.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Path;
+
+/**
+ * 正在上传、尚未发布的文件
+ * 数据先写入临时位置，对列表和下载都不可见；publish 时原子地新建或替换目标文件，
+ * 已经打开该文件的下载继续读取它打开时的版本，不会看到写了一半的数据。
+ * 未发布就关闭时丢弃临时数据
+ */
+public interface StagedFile extends Closeable {
+
+    /**
+     * 写入数据的通道
+     */
+    SeekableByteChannel getChannel();
+
+    /**
+     * 直接 I/O 的对齐大小，以普通方式打开时为 0
+     */
+    default int getAlignment() {
+        return 0;
+    }
+
+    /**
+     * 预先扩展到声明的大小，写入时不再逐步增长；不支持时忽略
+     * @throws IOException 空间不足等错误
+     */
+    default void preallocate(long size) throws IOException {
+    }
+
+    /**
+     * 把已写入的数据刷到磁盘（发布之前调用）
+     */
+    default void force() throws IOException {
+    }
+
+    /**
+     * 发布后需要刷写的目录，用于持久化新的目录项；不是本地文件时为 null
+     */
+    default Path getDirectory() {
+        return null;
+    }
+
+    /**
+     * 原子地发布为正式文件
+     * @param replace 为 true 时替换已存在的同名文件，否则同名文件存在时失败
+     * @throws java.nio.file.FileAlreadyExistsException replace 为 false 且文件已存在
+     */
+    void publish(boolean replace) throws IOException;
+}
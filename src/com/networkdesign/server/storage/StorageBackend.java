@@ -0,0 +1,80 @@
+package com.networkdesign.server.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.List;
+
+/**
+ * 文件存储接口
+ * 服务器的列表、下载和上传处理都通过此接口访问文件，具体的目录布局由实现决定
+ */
+public interface StorageBackend extends Closeable {
+
+    /**
+     * 列出所有文件名
+     */
+    List<String> list() throws IOException;
+
+    /**
+     * 文件是否存在
+     */
+    boolean exists(String name) throws IOException;
+
+    /**
+     * 获取文件大小
+     * @throws java.nio.file.NoSuchFileException 文件不存在
+     */
+    long size(String name) throws IOException;
+
+    /**
+     * 获取文件的修改时间（Unix 毫秒）
+     * @return 后端不记录修改时间时返回 -1
+     * @throws java.nio.file.NoSuchFileException 文件不存在
+     */
+    default long lastModified(String name) throws IOException {
+        return -1;
+    }
+
+    /**
+     * 打开文件用于读取
+     * @throws java.nio.file.NoSuchFileException 文件不存在
+     */
+    SeekableByteChannel openRead(String name) throws IOException;
+
+    /**
+     * 开始上传一个文件：数据写入临时位置，发布前对列表和下载都不可见
+     * @param direct 是否尝试以直接 I/O 方式写入（后端或文件系统不支持时使用普通方式）
+     */
+    StagedFile stage(String name, boolean direct) throws IOException;
+
+    /**
+     * 以直接 I/O 方式（绕过页缓存）打开文件用于读取
+     * @return 后端或文件系统不支持时返回 null，调用方应改用 openRead
+     * @throws java.nio.file.NoSuchFileException 文件不存在
+     */
+    default DirectChannel openReadDirect(String name) throws IOException {
+        return null;
+    }
+
+    /**
+     * 删除文件，不存在时忽略
+     */
+    void delete(String name) throws IOException;
+
+    @Override
+    default void close() throws IOException {
+    }
+
+    /**
+     * 检查文件名是否合法：不能为空，不能包含路径分隔符，不能是 "." 或 ".."
+     * @throws IllegalArgumentException 文件名不合法
+     */
+    static String checkName(String name) {
+        if (name == null || name.isEmpty() || name.equals(".") || name.equals("..")
+                || name.indexOf('/') >= 0 || name.indexOf('\\') >= 0 || name.indexOf('\0') >= 0) {
+            throw new IllegalArgumentException("非法的文件名: " + name);
+        }
+        return name;
+    }
+}
@@ -0,0 +1,41 @@
+package com.networkdesign.server.storage;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 根据命令行描述创建存储
+ */
+public final class StorageBackends {
+
+    private StorageBackends() {
+    }
+
+    /**
+     * default | memory | flat:目录 | sharded:目录1,目录2,...
+     * @return default 时返回 null（由服务器使用 uploads 目录下的默认存储）
+     * @throws IllegalArgumentException 未知的存储类型
+     */
+    public static StorageBackend fromSpec(String spec) throws IOException {
+        if (spec.equals("default")) {
+            return null;
+        }
+        if (spec.equals("memory")) {
+            return new InMemoryStorage();
+        }
+        if (spec.startsWith("flat:")) {
+            return new FlatDirectoryStorage(Paths.get(spec.substring(5)));
+        }
+        if (spec.startsWith("sharded:")) {
+            List<Path> roots = new ArrayList<>();
+            for (String dir : spec.substring(8).split(",")) {
+                roots.add(Paths.get(dir));
+            }
+            return new ShardedDirectoryStorage(roots, 2, null);
+        }
+        throw new IllegalArgumentException("未知的存储类型: " + spec);
+    }
+}
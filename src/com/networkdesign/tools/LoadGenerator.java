@@ -0,0 +1,684 @@
+package com.networkdesign.tools;
+
+import com.networkdesign.client.DownloadCache;
+import com.networkdesign.client.FileTransferClient;
+import com.networkdesign.protocol.FileTransferProtocol;
+import com.networkdesign.server.Durability;
+import com.networkdesign.server.FileTransferServer;
+import com.networkdesign.server.storage.StorageBackends;
+import com.networkdesign.transport.Impairment;
+import com.networkdesign.transport.SocketTuner;
+import com.networkdesign.transport.TlsContext;
+import com.networkdesign.transport.Transport;
+import com.networkdesign.transport.TransportProfile;
+import com.networkdesign.util.LatencyHistogram;
+import com.networkdesign.util.TransferEvents;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+/**
+ * 无界面负载生成器
+ * 基于 FileTransferClient 模拟大量并发客户端，按开环到达速率向服务器发起列表、上传、下载请求，
+ * 用于在单机上找出 FileTransferServer 的饱和点。
+ *
+ * 延迟从“计划开始时间”起算而不是从实际开始时间起算，因此工作线程排队造成的等待同样计入延迟，
+ * 避免协调遗漏（coordinated omission）导致分位数被低估。
+ *
+ * 用法示例:
+ *   java com.networkdesign.tools.LoadGenerator --port=8888 --clients=2000 --rate=500 --ramp=30 --duration=120
+ *        --mix=list=10,upload=30,download=60 --size=lognormal:64k:1.5 --embedded=true --storage=memory
+ *        --durability=group_commit:2000
+ *   UDP 传输并在两个方向各注入 1% 丢包和 50 毫秒延迟:
+ *        --transport=udp --udp-loss=0.01 --udp-delay=50 --udp-jitter=5 --embedded=true
+ *   TLS（所有客户端共用一个会话缓存，重连时恢复会话）:
+ *        --tls-truststore=trust.p12 --tls-keystore=server.p12 --tls-password=changeit --embedded=true
+ *   套接字配置方案（客户端和嵌入式服务器）:
+ *        --profile=auto|interactive|bulk-lan|bulk-wan
+ *   下载缓存（所有客户端共用，服务器上的文件没有变化时不重新传输）:
+ *        --cache=/tmp/dlcache --cache-size=1g
+ *   小文件内联（嵌入式服务器的内联阈值，列表响应附带的文件大小上限）:
+ *        --inline-threshold=16k --list-inline=4k
+ *   JFR 录制（连接、请求、传输和慢消息事件，进程退出时写入文件）:
+ *        --jfr=loadgen.jfr --jfr-slow-frame=20
+ */
+public class LoadGenerator {
+
+    /**
+     * 操作类型
+     */
+    enum Operation { LIST, UPLOAD, DOWNLOAD }
+
+    private static final FileTransferClient.ProgressCallback NO_PROGRESS = new FileTransferClient.ProgressCallback() {
+        @Override
+        public void onProgress(long bytesTransferred, long totalBytes) {
+        }
+
+        @Override
+        public void onComplete() {
+        }
+
+        @Override
+        public void onError(String error) {
+        }
+    };
+
+    private final Options options;
+    private final PrintStream console;
+    private final String runId = Long.toString(System.currentTimeMillis(), 36);
+    private final Map<Operation, OperationStats> stats = new EnumMap<>(Operation.class);
+    private final Map<String, LongAdder> errorMessages = new ConcurrentHashMap<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong uploadSequence = new AtomicLong();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final List<Path> payloadFiles = new ArrayList<>();
+    private final List<String> seedNames = new ArrayList<>();
+    private final Map<String, Long> seedSizes = new HashMap<>();
+    private Path workDir;
+    private ThreadLocal<Path> downloadDir;
+    private volatile double currentTargetRate;
+    private TlsContext clientTls;
+    private DownloadCache downloadCache;
+    private volatile SocketTuner.Settings socketSettings;  // 最近一次 TCP 连接的套接字设置
+
+    public LoadGenerator(Options options) {
+        this.options = options;
+        this.console = System.out;
+        for (Operation op : Operation.values()) {
+            stats.put(op, new OperationStats());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = Options.parse(args);
+        new LoadGenerator(options).run();
+    }
+
+    /**
+     * 执行一次完整的负载测试：准备数据 -> 按计划发起请求 -> 输出报告
+     */
+    public void run() throws Exception {
+        if (options.jfrFile != null) {
+            TransferEvents.startRecording(Paths.get(options.jfrFile), Duration.ofMillis(options.jfrSlowFrameMillis));
+        }
+        FileTransferServer server = null;
+        if (options.embedded) {
+            server = new FileTransferServer(options.port, StorageBackends.fromSpec(options.storage));
+            server.setDurability(options.durability, options.groupCommitWindowMicros);
+            server.setTransportProfile(options.profile);
+            server.setInlineThreshold(options.inlineThreshold);
+            if (options.transport == Transport.UDP) {
+                server.enableUdp(options.impairment());
+            }
+            if (options.tlsKeyStore != null) {
+                server.enableTls(TlsContext.forServer(Paths.get(options.tlsKeyStore), options.tlsPassword.toCharArray()), false);
+            }
+            server.start();
+        }
+        if (options.tlsTrustStore != null) {
+            clientTls = TlsContext.forClient(Paths.get(options.tlsTrustStore), options.tlsPassword.toCharArray());
+        }
+        if (options.cacheDirectory != null) {
+            downloadCache = new DownloadCache(Paths.get(options.cacheDirectory), options.cacheSize);
+        }
+
+        workDir = Files.createTempDirectory("loadgen-" + runId);
+        downloadDir = ThreadLocal.withInitial(() -> {
+            try {
+                return Files.createTempDirectory(workDir, "dl");
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+
+        PrintStream originalErr = System.err;
+        try {
+            preparePayloads();
+            seedServer();
+
+            // 客户端库在每次操作中都会打印大量日志，压测期间将其静默
+            PrintStream silent = new PrintStream(OutputStream.nullOutputStream());
+            System.setOut(silent);
+            System.setErr(silent);
+
+            console.printf("开始压测: 目标速率 %.1f ops/s, 并发客户端 %d, 爬升 %ds (%s), 持续 %ds, 到达过程 %s%n",
+                    options.rate, options.clients, options.rampSeconds, options.rampProfile,
+                    options.durationSeconds, options.arrival);
+            long elapsedNanos = drive();
+            System.setOut(console);
+            System.setErr(originalErr);
+            printReport(elapsedNanos);
+        } finally {
+            System.setOut(console);
+            System.setErr(originalErr);
+            if (server != null) {
+                server.stop();
+            }
+            if (downloadCache != null) {
+                try {
+                    downloadCache.close();
+                } catch (IOException e) {
+                    System.err.println("保存下载缓存索引失败: " + e.getMessage());
+                }
+            }
+            deleteRecursively(workDir);
+        }
+    }
+
+    /**
+     * 生成上传时使用的本地数据文件，大小按配置的分布抽样
+     */
+    private void preparePayloads() throws IOException {
+        Random random = new Random(options.randomSeed);
+        byte[] chunk = new byte[64 * 1024];
+        for (int i = 0; i < options.payloadFiles; i++) {
+            long size = options.sizeDistribution.sample(random);
+            Path file = workDir.resolve("payload-" + i);
+            try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+                long remaining = size;
+                while (remaining > 0) {
+                    random.nextBytes(chunk);
+                    int n = (int) Math.min(chunk.length, remaining);
+                    raf.write(chunk, 0, n);
+                    remaining -= n;
+                }
+            }
+            payloadFiles.add(file);
+        }
+    }
+
+    /**
+     * 预先上传若干文件，供下载操作使用
+     */
+    private void seedServer() throws IOException {
+        if (options.weights.getOrDefault(Operation.DOWNLOAD, 0) == 0) {
+            return;
+        }
+        console.println("正在上传 " + options.seedFiles + " 个种子文件...");
+        for (int i = 0; i < options.seedFiles; i++) {
+            Path payload = payloadFiles.get(i % payloadFiles.size());
+            Path seed = workDir.resolve("lg-seed-" + runId + "-" + i);
+            linkOrCopy(payload, seed);
+            newClient().uploadFile(seed.toString(), NO_PROGRESS);
+            seedNames.add(seed.getFileName().toString());
+            seedSizes.put(seed.getFileName().toString(), Files.size(seed));
+            Files.delete(seed);
+        }
+    }
+
+    /**
+     * 开环调度：按计划时间发起请求，不等待前一个请求完成
+     * @return 实际运行时长（纳秒）
+     */
+    private long drive() throws InterruptedException {
+        ExecutorService workers = Executors.newFixedThreadPool(options.clients, daemonThreads("loadgen-client"));
+        ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(daemonThreads("loadgen-report"));
+
+        long start = System.nanoTime();
+        long totalNanos = TimeUnit.SECONDS.toNanos(options.rampSeconds + options.durationSeconds);
+        long end = start + totalNanos;
+        ticker.scheduleAtFixedRate(new IntervalReporter(start), 1, 1, TimeUnit.SECONDS);
+
+        Random random = new Random(options.randomSeed);
+        double t = 0;
+        while (true) {
+            double rate = targetRate(t);
+            currentTargetRate = rate;
+            double gap = options.arrival.equals("poisson")
+                    ? -Math.log(1.0 - random.nextDouble()) / rate
+                    : 1.0 / rate;
+            t += gap;
+            long intendedStart = start + (long) (t * 1_000_000_000L);
+            if (intendedStart >= end) {
+                break;
+            }
+            long wait;
+            while ((wait = intendedStart - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+
+            // 积压过多时直接丢弃，避免压测进程自身耗尽内存
+            if (pending.get() >= options.maxBacklog) {
+                dropped.increment();
+                continue;
+            }
+            pending.incrementAndGet();
+            Operation op = options.pickOperation(random);
+            workers.execute(() -> execute(op, intendedStart));
+        }
+
+        workers.shutdown();
+        if (!workers.awaitTermination(options.drainSeconds, TimeUnit.SECONDS)) {
+            workers.shutdownNow();
+        }
+        ticker.shutdownNow();
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * 计算时刻 t（秒）的目标到达速率
+     */
+    private double targetRate(double t) {
+        if (options.rampSeconds <= 0 || t >= options.rampSeconds) {
+            return options.rate;
+        }
+        double fraction = t / options.rampSeconds;
+        if (options.rampProfile.startsWith("step")) {
+            int steps = options.rampSteps;
+            fraction = Math.ceil(fraction * steps) / steps;
+        }
+        // 保留一个最低速率，避免爬升初期的间隔无限大
+        return Math.max(options.rate * fraction, Math.min(1.0, options.rate));
+    }
+
+    /**
+     * 执行单个操作并记录结果
+     */
+    private void execute(Operation op, long intendedStart) {
+        long begin = System.nanoTime();
+        long bytes = 0;
+        boolean success = false;
+        try {
+            FileTransferClient client = newClient();
+            switch (op) {
+                case LIST:
+                    client.getFileList();
+                    break;
+                case UPLOAD:
+                    bytes = upload(client);
+                    break;
+                case DOWNLOAD:
+                    bytes = download(client);
+                    break;
+            }
+            success = true;
+            if (client.getSocketSettings() != null) {
+                socketSettings = client.getSocketSettings();
+            }
+        } catch (Exception e) {
+            String message = e.getClass().getSimpleName() + ": " + e.getMessage();
+            errorMessages.computeIfAbsent(message, k -> new LongAdder()).increment();
+        } finally {
+            long done = System.nanoTime();
+            stats.get(op).record(success, done - intendedStart, done - begin, bytes);
+            completed.increment();
+            pending.decrementAndGet();
+        }
+    }
+
+    private long upload(FileTransferClient client) throws IOException {
+        Path payload = payloadFiles.get(ThreadLocalRandom.current().nextInt(payloadFiles.size()));
+        // 服务器拒绝同名文件，每次上传使用唯一文件名（硬链接到数据文件，避免复制）
+        Path file = workDir.resolve("lg-" + runId + "-" + uploadSequence.incrementAndGet());
+        linkOrCopy(payload, file);
+        try {
+            long size = Files.size(file);
+            client.uploadFile(file.toString(), NO_PROGRESS);
+            return size;
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private long download(FileTransferClient client) throws IOException {
+        String name = seedNames.get(ThreadLocalRandom.current().nextInt(seedNames.size()));
+        client.downloadSpecificFile(name, downloadDir.get().toString(), NO_PROGRESS);
+        return seedSizes.get(name);
+    }
+
+    /**
+     * 输出最终报告
+     */
+    private void printReport(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        console.println();
+        console.printf("压测结束, 运行 %.1fs, 丢弃(积压超限) %d, 未完成 %d%n", seconds, dropped.sum(), pending.get());
+        console.println();
+        console.printf("%-9s %9s %7s %7s %10s %9s | %s%n", "操作", "完成", "错误", "错误率",
+                "ops/s", "MB/s", "延迟(含排队,ms) p50 / p90 / p99 / p99.9 / max");
+        LatencyHistogram allLatency = new LatencyHistogram();
+        LatencyHistogram allService = new LatencyHistogram();
+        for (Operation op : Operation.values()) {
+            OperationStats s = stats.get(op);
+            long total = s.latency.getCount();
+            if (total == 0) {
+                continue;
+            }
+            allLatency.add(s.latency);
+            allService.add(s.serviceTime);
+            long errors = s.errors.sum();
+            console.printf("%-9s %9d %7d %6.2f%% %10.1f %9.2f | %s%n", op, total, errors, 100.0 * errors / total,
+                    s.successes.sum() / seconds, s.bytes.sum() / seconds / (1024 * 1024), formatPercentiles(s.latency));
+        }
+        console.println();
+        console.println("全部操作 延迟(含排队,ms): " + formatPercentiles(allLatency));
+        console.println("全部操作 服务时间(ms):    " + formatPercentiles(allService));
+        if (socketSettings != null) {
+            console.println("套接字配置: " + socketSettings);
+        }
+        if (clientTls != null) {
+            console.printf("TLS 握手: 完整 %d 次, 恢复会话 %d 次%n",
+                    clientTls.getFullHandshakes(), clientTls.getResumedHandshakes());
+        }
+
+        if (!errorMessages.isEmpty()) {
+            console.println();
+            console.println("错误分布:");
+            errorMessages.entrySet().stream()
+                    .sorted(Comparator.comparingLong((Map.Entry<String, LongAdder> e) -> e.getValue().sum()).reversed())
+                    .limit(10)
+                    .forEach(e -> console.printf("  %8d  %s%n", e.getValue().sum(), e.getKey()));
+        }
+    }
+
+    private static String formatPercentiles(LatencyHistogram h) {
+        return String.format("%.2f / %.2f / %.2f / %.2f / %.2f",
+                h.getPercentileMicros(50) / 1000.0, h.getPercentileMicros(90) / 1000.0,
+                h.getPercentileMicros(99) / 1000.0, h.getPercentileMicros(99.9) / 1000.0,
+                h.getMaxMicros() / 1000.0);
+    }
+
+    private static void linkOrCopy(Path source, Path target) throws IOException {
+        try {
+            Files.createLink(target, source);
+        } catch (UnsupportedOperationException | IOException e) {
+            Files.copy(source, target);
+        }
+    }
+
+    private static void deleteRecursively(Path root) {
+        if (root == null) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        } catch (IOException ignored) {
+            // 清理失败不影响报告
+        }
+    }
+
+    private static java.util.concurrent.ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, prefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * 每秒输出一次区间统计
+     */
+    private class IntervalReporter implements Runnable {
+        private final long start;
+        private long lastCompleted;
+        private long lastErrors;
+
+        IntervalReporter(long start) {
+            this.start = start;
+        }
+
+        @Override
+        public void run() {
+            long done = completed.sum();
+            long errors = 0;
+            for (OperationStats s : stats.values()) {
+                errors += s.errors.sum();
+            }
+            console.printf("[%5.1fs] 目标 %8.1f ops/s  完成 %7d ops/s  错误 %5d  积压 %6d%n",
+                    (System.nanoTime() - start) / 1e9, currentTargetRate,
+                    done - lastCompleted, errors - lastErrors, pending.get());
+            lastCompleted = done;
+            lastErrors = errors;
+        }
+    }
+
+    /**
+     * 单个操作类型的统计
+     */
+    private static class OperationStats {
+        final LatencyHistogram latency = new LatencyHistogram();      // 从计划开始时间起算
+        final LatencyHistogram serviceTime = new LatencyHistogram();  // 从实际开始时间起算
+        final LongAdder successes = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+
+        void record(boolean success, long latencyNanos, long serviceNanos, long transferred) {
+            latency.recordNanos(latencyNanos);
+            serviceTime.recordNanos(serviceNanos);
+            if (success) {
+                successes.increment();
+                bytes.add(transferred);
+            } else {
+                errors.increment();
+            }
+        }
+    }
+
+    /**
+     * 文件大小分布
+     */
+    interface SizeDistribution {
+        long sample(Random random);
+
+        /**
+         * 解析大小分布配置
+         * fixed:64k | uniform:1k:4m | lognormal:64k:1.5（中位数:sigma）
+         */
+        static SizeDistribution parse(String spec) {
+            String[] parts = spec.split(":");
+            switch (parts[0]) {
+                case "fixed": {
+                    long size = parseSize(parts[1]);
+                    return random -> size;
+                }
+                case "uniform": {
+                    long min = parseSize(parts[1]);
+                    long max = parseSize(parts[2]);
+                    return random -> min + (long) (random.nextDouble() * (max - min + 1));
+                }
+                case "lognormal": {
+                    double median = parseSize(parts[1]);
+                    double sigma = Double.parseDouble(parts[2]);
+                    return random -> Math.max(1, (long) (median * Math.exp(sigma * random.nextGaussian())));
+                }
+                default:
+                    throw new IllegalArgumentException("未知的大小分布: " + spec);
+            }
+        }
+    }
+
+    static long parseSize(String text) {
+        String value = text.trim().toLowerCase();
+        long unit = 1;
+        char suffix = value.charAt(value.length() - 1);
+        if (suffix == 'k') {
+            unit = 1024;
+        } else if (suffix == 'm') {
+            unit = 1024 * 1024;
+        } else if (suffix == 'g') {
+            unit = 1024L * 1024 * 1024;
+        }
+        if (unit != 1) {
+            value = value.substring(0, value.length() - 1);
+        }
+        return (long) (Double.parseDouble(value) * unit);
+    }
+
+    private FileTransferClient newClient() {
+        FileTransferClient client = new FileTransferClient(options.host, options.port);
+        client.setTransport(options.transport);
+        client.setImpairment(options.impairment());
+        client.setTls(clientTls);
+        client.setTransportProfile(options.profile);
+        client.setDownloadCache(downloadCache);
+        client.setListInlineLimit(options.listInlineLimit);
+        return client;
+    }
+
+    /**
+     * 命令行参数
+     */
+    static class Options {
+        String host = "localhost";
+        int port = 8888;
+        int clients = 200;
+        double rate = 100;
+        int rampSeconds = 10;
+        String rampProfile = "linear";
+        int rampSteps = 5;
+        int durationSeconds = 60;
+        int drainSeconds = 30;
+        String arrival = "poisson";
+        Map<Operation, Integer> weights = new EnumMap<>(Operation.class);
+        int totalWeight;
+        SizeDistribution sizeDistribution = SizeDistribution.parse("lognormal:64k:1.0");
+        int payloadFiles = 16;
+        int seedFiles = 20;
+        int maxBacklog = 100_000;
+        long randomSeed = 42;
+        boolean embedded;
+        String storage = "default";
+        Durability durability = Durability.NONE;
+        long groupCommitWindowMicros = 2000;
+        Transport transport = Transport.TCP;
+        double udpLoss;
+        double udpDelayMillis;
+        double udpJitterMillis;
+        String tlsTrustStore;
+        String tlsKeyStore;
+        String tlsPassword = "";
+        TransportProfile profile = TransportProfile.AUTO;
+        String cacheDirectory;
+        long cacheSize = 1024L * 1024 * 1024;
+        int inlineThreshold = FileTransferProtocol.DEFAULT_INLINE_THRESHOLD;
+        int listInlineLimit;
+        String jfrFile;
+        long jfrSlowFrameMillis = TransferEvents.DEFAULT_SLOW_FRAME_THRESHOLD.toMillis();
+
+        static Options parse(String[] args) {
+            Options o = new Options();
+            o.setMix("list=10,upload=30,download=60");
+            for (String arg : args) {
+                if (!arg.startsWith("--") || !arg.contains("=")) {
+                    throw new IllegalArgumentException("无效参数: " + arg + "（格式: --名称=值）");
+                }
+                String key = arg.substring(2, arg.indexOf('='));
+                String value = arg.substring(arg.indexOf('=') + 1);
+                switch (key) {
+                    case "host": o.host = value; break;
+                    case "port": o.port = Integer.parseInt(value); break;
+                    case "clients": o.clients = Integer.parseInt(value); break;
+                    case "rate": o.rate = Double.parseDouble(value); break;
+                    case "ramp": o.rampSeconds = Integer.parseInt(value); break;
+                    case "ramp-profile":
+                        // linear 或 step:N
+                        o.rampProfile = value;
+                        if (value.startsWith("step:")) {
+                            o.rampSteps = Integer.parseInt(value.substring(5));
+                        }
+                        break;
+                    case "duration": o.durationSeconds = Integer.parseInt(value); break;
+                    case "drain": o.drainSeconds = Integer.parseInt(value); break;
+                    case "arrival": o.arrival = value; break;
+                    case "mix": o.setMix(value); break;
+                    case "size": o.sizeDistribution = SizeDistribution.parse(value); break;
+                    case "payload-files": o.payloadFiles = Integer.parseInt(value); break;
+                    case "seed-files": o.seedFiles = Integer.parseInt(value); break;
+                    case "max-backlog": o.maxBacklog = Integer.parseInt(value); break;
+                    case "random-seed": o.randomSeed = Long.parseLong(value); break;
+                    case "embedded": o.embedded = Boolean.parseBoolean(value); break;
+                    case "storage": o.storage = value; break;
+                    case "durability":
+                        // none、fsync 或 group_commit[:窗口微秒]
+                        String[] parts = value.split(":");
+                        o.durability = Durability.valueOf(parts[0].toUpperCase());
+                        if (parts.length > 1) {
+                            o.groupCommitWindowMicros = Long.parseLong(parts[1]);
+                        }
+                        break;
+                    case "transport": o.transport = Transport.parse(value); break;
+                    case "udp-loss": o.udpLoss = Double.parseDouble(value); break;
+                    case "udp-delay": o.udpDelayMillis = Double.parseDouble(value); break;
+                    case "udp-jitter": o.udpJitterMillis = Double.parseDouble(value); break;
+                    case "tls-truststore": o.tlsTrustStore = value; break;
+                    case "tls-keystore": o.tlsKeyStore = value; break;
+                    case "tls-password": o.tlsPassword = value; break;
+                    case "profile": o.profile = TransportProfile.parse(value); break;
+                    case "cache": o.cacheDirectory = value; break;
+                    case "cache-size": o.cacheSize = parseSize(value); break;
+                    case "inline-threshold": o.inlineThreshold = (int) parseSize(value); break;
+                    case "list-inline": o.listInlineLimit = (int) parseSize(value); break;
+                    case "jfr": o.jfrFile = value; break;
+                    case "jfr-slow-frame": o.jfrSlowFrameMillis = Long.parseLong(value); break;
+                    default:
+                        throw new IllegalArgumentException("未知参数: " + key);
+                }
+            }
+            if (!o.arrival.equals("poisson") && !o.arrival.equals("constant")) {
+                throw new IllegalArgumentException("到达过程只支持 poisson 或 constant");
+            }
+            return o;
+        }
+
+        /**
+         * UDP 传输的链路损伤，客户端和内嵌服务器使用相同的参数
+         */
+        Impairment impairment() {
+            return new Impairment(udpLoss, udpDelayMillis, udpJitterMillis);
+        }
+
+        /**
+         * 解析操作比例，例如 list=10,upload=30,download=60
+         */
+        void setMix(String spec) {
+            weights.clear();
+            totalWeight = 0;
+            for (String item : spec.split(",")) {
+                String[] kv = item.split("=");
+                int weight = Integer.parseInt(kv[1].trim());
+                weights.put(Operation.valueOf(kv[0].trim().toUpperCase()), weight);
+                totalWeight += weight;
+            }
+            if (totalWeight <= 0) {
+                throw new IllegalArgumentException("操作比例之和必须大于0");
+            }
+        }
+
+        Operation pickOperation(Random random) {
+            int r = random.nextInt(totalWeight);
+            for (Map.Entry<Operation, Integer> e : weights.entrySet()) {
+                r -= e.getValue();
+                if (r < 0) {
+                    return e.getKey();
+                }
+            }
+            return Operation.LIST;
+        }
+    }
+}
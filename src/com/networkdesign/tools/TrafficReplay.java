@@ -0,0 +1,594 @@
+package com.networkdesign.tools;
+
+import com.networkdesign.client.FileTransferClient;
+import com.networkdesign.protocol.FileMetadata;
+import com.networkdesign.protocol.FileTransferProtocol;
+import com.networkdesign.server.FileTransferServer;
+import com.networkdesign.server.storage.StorageBackends;
+import com.networkdesign.util.LatencyHistogram;
+import com.networkdesign.util.TrafficLog;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+/**
+ * 请求记录重放工具
+ * 读取服务器捕获模式（--capture）记录的请求序列，用 FileTransferClient 按原速、按倍速或尽可能快地重新发起，
+ * 得到可重复的真实负载，用于对比两个版本的吞吐量和延迟分布。
+ *
+ * 记录中只有文件名和大小，重放前先把被下载但没有被上传过的文件以确定的内容上传到服务器，
+ * 上传使用同样确定的内容，因此同一份记录每次重放传输的数据完全相同。
+ * 按时间重放时为开环调度，延迟从计划开始时间起算（与 LoadGenerator 相同）；尽快重放时延迟为服务时间。
+ * 下载等待记录中更早的同名上传完成，尽快重放时也不会先于上传发起。
+ *
+ * 用法示例:
+ *   java com.networkdesign.tools.TrafficReplay --log=traffic.gz --speed=1 --embedded=true --storage=memory
+ *        --report=new.tsv --compare=old.tsv
+ *   --speed=2 为两倍速，--speed=max 为不保留请求间隔；--clients 为并发连接数上限
+ */
+public class TrafficReplay {
+
+    /**
+     * 可重放的请求
+     */
+    enum Operation { LIST, DOWNLOAD, RANGE, UPLOAD }
+
+    private static final FileTransferClient.ProgressCallback NO_PROGRESS = new FileTransferClient.ProgressCallback() {
+        @Override
+        public void onProgress(long bytesTransferred, long totalBytes) {
+        }
+
+        @Override
+        public void onComplete() {
+        }
+
+        @Override
+        public void onError(String error) {
+        }
+    };
+
+    private final Options options;
+    private final PrintStream console;
+    private final Map<Operation, OperationStats> stats = new EnumMap<>(Operation.class);
+    private final Map<String, LongAdder> errorMessages = new ConcurrentHashMap<>();
+    private final AtomicLong uploadSequence = new AtomicLong();
+    private Path workDir;
+    private ThreadLocal<Path> downloadDir;
+
+    public TrafficReplay(Options options) {
+        this.options = options;
+        this.console = System.out;
+        for (Operation op : Operation.values()) {
+            stats.put(op, new OperationStats());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        new TrafficReplay(Options.parse(args)).run();
+    }
+
+    /**
+     * 读取记录 -> 准备服务器上的文件 -> 重放 -> 输出报告（并与基线比较）
+     */
+    public void run() throws Exception {
+        List<TrafficLog.Record> records = TrafficLog.read(Paths.get(options.log));
+        console.println("读取请求记录 " + records.size() + " 条: " + options.log);
+        FileTransferServer server = null;
+        if (options.embedded) {
+            server = new FileTransferServer(options.port, StorageBackends.fromSpec(options.storage));
+            server.start();
+        }
+        workDir = Files.createTempDirectory("replay-");
+        downloadDir = ThreadLocal.withInitial(() -> {
+            try {
+                return Files.createTempDirectory(workDir, "dl");
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+
+        PrintStream originalErr = System.err;
+        try {
+            seedServer(records);
+
+            // 客户端库在每次操作中都会打印日志，重放期间将其静默
+            PrintStream silent = new PrintStream(OutputStream.nullOutputStream());
+            System.setOut(silent);
+            System.setErr(silent);
+            long elapsedNanos = replay(records);
+            System.setOut(console);
+            System.setErr(originalErr);
+
+            printReport(records, elapsedNanos);
+            if (options.report != null) {
+                writeReport(Paths.get(options.report), elapsedNanos);
+                console.println("报告已保存: " + options.report);
+            }
+            if (options.compare != null) {
+                compare(readReport(Paths.get(options.compare)), summarize(elapsedNanos));
+            }
+        } finally {
+            System.setOut(console);
+            System.setErr(originalErr);
+            if (server != null) {
+                server.stop();
+            }
+            deleteRecursively(workDir);
+        }
+    }
+
+    /**
+     * 上传被下载或分段读取、但在记录中没有先被上传的文件，大小取记录中需要的最大值
+     */
+    private void seedServer(List<TrafficLog.Record> records) throws IOException {
+        Map<String, Long> seeds = new LinkedHashMap<>();
+        Set<String> uploaded = new HashSet<>();
+        for (TrafficLog.Record record : records) {
+            Operation op = operationOf(record);
+            if (op == Operation.UPLOAD) {
+                uploaded.add(record.name);
+            } else if ((op == Operation.DOWNLOAD || op == Operation.RANGE) && record.size >= 0
+                    && !uploaded.contains(record.name)) {
+                long size = op == Operation.RANGE ? record.offset + record.size : record.size;
+                seeds.merge(record.name, size, Math::max);
+            }
+        }
+        if (seeds.isEmpty()) {
+            return;
+        }
+        console.println("正在上传 " + seeds.size() + " 个记录中引用的文件...");
+        for (Map.Entry<String, Long> seed : seeds.entrySet()) {
+            Path file = payload(seed.getKey(), seed.getValue());
+            try {
+                newClient(FileTransferProtocol.LATEST_VERSION).uploadFile(file.toString(), true, NO_PROGRESS);
+            } finally {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    /**
+     * 按记录的时间（或尽快）发起全部请求，等待完成
+     * @return 实际运行时长（纳秒）
+     */
+    private long replay(List<TrafficLog.Record> records) throws InterruptedException {
+        ExecutorService workers = Executors.newFixedThreadPool(options.clients, daemonThreads("replay-client"));
+        Map<String, CountDownLatch> pendingUploads = new HashMap<>();
+        if (options.speed > 0) {
+            console.printf("开始重放: %.2f 倍速, 记录时长 %.1fs, 并发连接上限 %d%n", options.speed,
+                    records.isEmpty() ? 0.0 : records.get(records.size() - 1).startMicros / 1e6, options.clients);
+        } else {
+            console.printf("开始重放: 尽快发起, 并发连接上限 %d%n", options.clients);
+        }
+
+        long start = System.nanoTime();
+        long origin = records.isEmpty() ? 0 : records.get(0).startMicros;
+        for (TrafficLog.Record record : records) {
+            Operation op = operationOf(record);
+            if (op == null) {
+                continue;
+            }
+            long intendedStart = start;
+            if (options.speed > 0) {
+                intendedStart = start + (long) ((record.startMicros - origin) * 1000 / options.speed);
+                long wait;
+                while ((wait = intendedStart - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+            // 线程池按提交顺序取任务，上传总是先于等待它的下载开始执行，不会死锁
+            CountDownLatch after = op == Operation.UPLOAD ? null : pendingUploads.get(record.name);
+            CountDownLatch done = null;
+            if (op == Operation.UPLOAD) {
+                done = new CountDownLatch(1);
+                pendingUploads.put(record.name, done);
+            }
+            long scheduled = intendedStart;
+            CountDownLatch finished = done;
+            workers.execute(() -> execute(op, record, scheduled, after, finished));
+        }
+
+        workers.shutdown();
+        if (!workers.awaitTermination(options.drainSeconds, TimeUnit.SECONDS)) {
+            workers.shutdownNow();
+        }
+        return System.nanoTime() - start;
+    }
+
+    private void execute(Operation op, TrafficLog.Record record, long intendedStart,
+                         CountDownLatch after, CountDownLatch finished) {
+        long begin = System.nanoTime();
+        long bytes = 0;
+        boolean success = false;
+        try {
+            if (after != null) {
+                after.await();
+                begin = System.nanoTime();
+            }
+            FileTransferClient client = newClient(record.protocolVersion);
+            switch (op) {
+                case LIST:
+                    client.setListInlineLimit((int) Math.max(0, record.size));
+                    client.getFileList();
+                    break;
+                case DOWNLOAD:
+                    client.downloadSpecificFile(record.name, downloadDir.get().toString(), NO_PROGRESS);
+                    bytes = Math.max(0, record.size);
+                    break;
+                case RANGE:
+                    bytes = range(client, record);
+                    break;
+                case UPLOAD:
+                    bytes = upload(client, record);
+                    break;
+            }
+            success = true;
+        } catch (Exception e) {
+            String message = e.getClass().getSimpleName() + ": " + e.getMessage();
+            errorMessages.computeIfAbsent(message, k -> new LongAdder()).increment();
+        } finally {
+            if (finished != null) {
+                finished.countDown();
+            }
+            long done = System.nanoTime();
+            stats.get(op).record(success, done - intendedStart, done - begin, bytes);
+        }
+    }
+
+    private long range(FileTransferClient client, TrafficLog.Record record) throws IOException {
+        Path target = downloadDir.get().resolve("range");
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            FileTransferClient.RemoteFile file = client.downloadRange(record.name, record.offset, record.size, channel);
+            return Math.max(0, Math.min(record.size, file.getSize() - record.offset));
+        }
+    }
+
+    private long upload(FileTransferClient client, TrafficLog.Record record) throws IOException {
+        Path file = payload(record.name, Math.max(0, record.size));
+        try {
+            client.uploadFile(file.toString(), (record.flags & FileMetadata.FLAG_REPLACE) != 0, NO_PROGRESS);
+            return Files.size(file);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * 生成名为 name 的本地文件，内容由文件名和大小确定
+     */
+    private Path payload(String name, long size) throws IOException {
+        Path dir = Files.createDirectory(workDir.resolve("up-" + uploadSequence.incrementAndGet()));
+        Path file = dir.resolve(name);
+        Random random = new Random(name.hashCode() * 31L + size);
+        byte[] chunk = new byte[(int) Math.min(64 * 1024, Math.max(1, size))];
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            long remaining = size;
+            while (remaining > 0) {
+                random.nextBytes(chunk);
+                int n = (int) Math.min(chunk.length, remaining);
+                raf.write(chunk, 0, n);
+                remaining -= n;
+            }
+        }
+        return file;
+    }
+
+    private static Operation operationOf(TrafficLog.Record record) {
+        switch (record.type) {
+            case FileTransferProtocol.REQUEST_FILE_LIST:
+                return Operation.LIST;
+            case FileTransferProtocol.REQUEST_FILE:
+                return Operation.DOWNLOAD;
+            case FileTransferProtocol.REQUEST_FILE_RANGE:
+                return Operation.RANGE;
+            case FileTransferProtocol.FILE_INFO:
+                return Operation.UPLOAD;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * 输出本次重放的结果，并列出捕获时服务器一侧的处理耗时作为参照
+     */
+    private void printReport(List<TrafficLog.Record> records, long elapsedNanos) {
+        Map<Operation, LatencyHistogram> captured = new EnumMap<>(Operation.class);
+        Map<Operation, Integer> capturedErrors = new EnumMap<>(Operation.class);
+        for (TrafficLog.Record record : records) {
+            Operation op = operationOf(record);
+            if (op != null) {
+                captured.computeIfAbsent(op, k -> new LatencyHistogram()).recordMicros(record.durationMicros);
+                if (!record.completed || record.responseType == FileTransferProtocol.ERROR
+                        || record.responseType == FileTransferProtocol.NOT_OWNER) {
+                    capturedErrors.merge(op, 1, Integer::sum);
+                }
+            }
+        }
+        console.println();
+        console.printf("重放结束, 运行 %.1fs%n", elapsedNanos / 1e9);
+        console.println();
+        console.printf("%-9s %7s %7s %10s %9s | %s%n", "操作", "完成", "错误", "ops/s", "MB/s",
+                (options.speed > 0 ? "延迟(含排队,ms)" : "服务时间(ms)") + " p50 / p90 / p99 / p99.9 / max");
+        for (Summary s : summarize(elapsedNanos).values()) {
+            console.printf("%-9s %7d %7d %10.1f %9.2f | %.2f / %.2f / %.2f / %.2f / %.2f%n", s.operation, s.count,
+                    s.errors, s.opsPerSecond, s.megabytesPerSecond, s.p50, s.p90, s.p99, s.p999, s.max);
+        }
+        console.println();
+        console.println("捕获时服务器处理耗时(ms) p50 / p99 / max, 捕获时错误:");
+        for (Map.Entry<Operation, LatencyHistogram> e : captured.entrySet()) {
+            LatencyHistogram h = e.getValue();
+            console.printf("  %-9s %.2f / %.2f / %.2f, %d%n", e.getKey(), h.getPercentileMicros(50) / 1000.0,
+                    h.getPercentileMicros(99) / 1000.0, h.getMaxMicros() / 1000.0,
+                    capturedErrors.getOrDefault(e.getKey(), 0));
+        }
+        if (!errorMessages.isEmpty()) {
+            console.println();
+            console.println("错误分布:");
+            errorMessages.entrySet().stream()
+                    .sorted(Comparator.comparingLong((Map.Entry<String, LongAdder> e) -> e.getValue().sum()).reversed())
+                    .limit(10)
+                    .forEach(e -> console.printf("  %8d  %s%n", e.getValue().sum(), e.getKey()));
+        }
+    }
+
+    /**
+     * 各操作的统计摘要，按时间重放时为含排队的延迟，尽快重放时为服务时间
+     */
+    private Map<String, Summary> summarize(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        Map<String, Summary> summaries = new LinkedHashMap<>();
+        LatencyHistogram all = new LatencyHistogram();
+        long allErrors = 0;
+        long allBytes = 0;
+        long allSuccesses = 0;
+        for (Operation op : Operation.values()) {
+            OperationStats s = stats.get(op);
+            LatencyHistogram h = options.speed > 0 ? s.latency : s.serviceTime;
+            if (h.getCount() == 0) {
+                continue;
+            }
+            all.add(h);
+            allErrors += s.errors.sum();
+            allBytes += s.bytes.sum();
+            allSuccesses += s.successes.sum();
+            summaries.put(op.name(), new Summary(op.name(), h, s.errors.sum(), s.successes.sum() / seconds,
+                    s.bytes.sum() / seconds / (1024 * 1024)));
+        }
+        if (all.getCount() > 0) {
+            summaries.put("ALL", new Summary("ALL", all, allErrors, allSuccesses / seconds,
+                    allBytes / seconds / (1024 * 1024)));
+        }
+        return summaries;
+    }
+
+    private void writeReport(Path file, long elapsedNanos) throws IOException {
+        try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            out.write("# op\tcount\terrors\tops/s\tMB/s\tp50\tp90\tp99\tp99.9\tmax");
+            out.newLine();
+            for (Summary s : summarize(elapsedNanos).values()) {
+                out.write(s.format());
+                out.newLine();
+            }
+        }
+    }
+
+    private static Map<String, Summary> readReport(Path file) throws IOException {
+        Map<String, Summary> summaries = new LinkedHashMap<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            if (!line.isEmpty() && !line.startsWith("#")) {
+                Summary s = Summary.parse(line);
+                summaries.put(s.operation, s);
+            }
+        }
+        return summaries;
+    }
+
+    /**
+     * 与基线报告比较，变化为相对基线的百分比（吞吐量为正、延迟为负表示变好）
+     */
+    private void compare(Map<String, Summary> baseline, Map<String, Summary> current) {
+        console.println();
+        console.println("与基线比较: " + options.compare);
+        console.printf("%-9s %10s %10s %10s %10s %10s %8s%n", "操作", "ops/s", "MB/s", "p50", "p99", "p99.9", "错误");
+        for (Summary now : current.values()) {
+            Summary base = baseline.get(now.operation);
+            if (base == null) {
+                console.printf("%-9s 基线中没有此操作%n", now.operation);
+                continue;
+            }
+            console.printf("%-9s %10s %10s %10s %10s %10s %+8d%n", now.operation,
+                    change(base.opsPerSecond, now.opsPerSecond), change(base.megabytesPerSecond, now.megabytesPerSecond),
+                    change(base.p50, now.p50), change(base.p99, now.p99), change(base.p999, now.p999),
+                    now.errors - base.errors);
+        }
+    }
+
+    private static String change(double base, double now) {
+        if (base == 0) {
+            return now == 0 ? "0.0%" : "-";
+        }
+        return String.format("%+.1f%%", (now - base) * 100 / base);
+    }
+
+    private static void deleteRecursively(Path root) {
+        if (root == null) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        } catch (IOException ignored) {
+            // 清理失败不影响报告
+        }
+    }
+
+    private static java.util.concurrent.ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, prefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private FileTransferClient newClient(int protocolVersion) {
+        FileTransferClient client = new FileTransferClient(options.host, options.port);
+        client.setProtocolVersion(Math.max(FileTransferProtocol.VERSION_1,
+                Math.min(FileTransferProtocol.LATEST_VERSION, protocolVersion)));
+        return client;
+    }
+
+    /**
+     * 单个操作类型的统计
+     */
+    private static class OperationStats {
+        final LatencyHistogram latency = new LatencyHistogram();      // 从计划开始时间起算
+        final LatencyHistogram serviceTime = new LatencyHistogram();  // 从实际开始时间起算
+        final LongAdder successes = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+
+        void record(boolean success, long latencyNanos, long serviceNanos, long transferred) {
+            latency.recordNanos(latencyNanos);
+            serviceTime.recordNanos(serviceNanos);
+            if (success) {
+                successes.increment();
+                bytes.add(transferred);
+            } else {
+                errors.increment();
+            }
+        }
+    }
+
+    /**
+     * 报告中的一行（延迟单位为毫秒）
+     */
+    private static class Summary {
+        final String operation;
+        final long count;
+        final long errors;
+        final double opsPerSecond;
+        final double megabytesPerSecond;
+        final double p50;
+        final double p90;
+        final double p99;
+        final double p999;
+        final double max;
+
+        Summary(String operation, long count, long errors, double opsPerSecond, double megabytesPerSecond,
+                double p50, double p90, double p99, double p999, double max) {
+            this.operation = operation;
+            this.count = count;
+            this.errors = errors;
+            this.opsPerSecond = opsPerSecond;
+            this.megabytesPerSecond = megabytesPerSecond;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.p999 = p999;
+            this.max = max;
+        }
+
+        Summary(String operation, LatencyHistogram h, long errors, double opsPerSecond, double megabytesPerSecond) {
+            this(operation, h.getCount(), errors, opsPerSecond, megabytesPerSecond,
+                    h.getPercentileMicros(50) / 1000.0, h.getPercentileMicros(90) / 1000.0,
+                    h.getPercentileMicros(99) / 1000.0, h.getPercentileMicros(99.9) / 1000.0,
+                    h.getMaxMicros() / 1000.0);
+        }
+
+        String format() {
+            return String.format("%s\t%d\t%d\t%.2f\t%.3f\t%.3f\t%.3f\t%.3f\t%.3f\t%.3f", operation, count, errors,
+                    opsPerSecond, megabytesPerSecond, p50, p90, p99, p999, max);
+        }
+
+        static Summary parse(String line) throws IOException {
+            String[] f = line.split("\t");
+            if (f.length != 10) {
+                throw new IOException("无效的报告行: " + line);
+            }
+            try {
+                return new Summary(f[0], Long.parseLong(f[1]), Long.parseLong(f[2]), Double.parseDouble(f[3]),
+                        Double.parseDouble(f[4]), Double.parseDouble(f[5]), Double.parseDouble(f[6]),
+                        Double.parseDouble(f[7]), Double.parseDouble(f[8]), Double.parseDouble(f[9]));
+            } catch (NumberFormatException e) {
+                throw new IOException("无效的报告行: " + line);
+            }
+        }
+    }
+
+    /**
+     * 命令行参数
+     */
+    static class Options {
+        String log;
+        String host = "localhost";
+        int port = 8888;
+        double speed = 1;          // 0 表示尽快发起
+        int clients = 64;
+        int drainSeconds = 60;
+        boolean embedded = true;
+        String storage = "memory";
+        String report;
+        String compare;
+
+        static Options parse(String[] args) {
+            Options o = new Options();
+            for (String arg : args) {
+                if (!arg.startsWith("--") || !arg.contains("=")) {
+                    throw new IllegalArgumentException("无效参数: " + arg + "（格式: --名称=值）");
+                }
+                String key = arg.substring(2, arg.indexOf('='));
+                String value = arg.substring(arg.indexOf('=') + 1);
+                switch (key) {
+                    case "log": o.log = value; break;
+                    case "host": o.host = value; break;
+                    case "port": o.port = Integer.parseInt(value); break;
+                    case "speed": o.speed = value.equals("max") ? 0 : Double.parseDouble(value); break;
+                    case "clients": o.clients = Integer.parseInt(value); break;
+                    case "drain": o.drainSeconds = Integer.parseInt(value); break;
+                    case "embedded": o.embedded = Boolean.parseBoolean(value); break;
+                    case "storage": o.storage = value; break;
+                    case "report": o.report = value; break;
+                    case "compare": o.compare = value; break;
+                    default:
+                        throw new IllegalArgumentException("未知参数: " + key);
+                }
+            }
+            if (o.log == null) {
+                throw new IllegalArgumentException("缺少参数: --log=请求记录文件");
+            }
+            if (o.speed < 0 || o.clients <= 0) {
+                throw new IllegalArgumentException("--speed 不能为负数，--clients 必须大于0");
+            }
+            return o;
+        }
+    }
+}
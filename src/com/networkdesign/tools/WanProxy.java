@@ -0,0 +1,489 @@
+package com.networkdesign.tools;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 广域网模拟代理：在本机回环上位于客户端和服务器之间转发 TCP 连接，注入延迟、抖动、带宽限制、
+ * 周期性停顿和（近似的）丢包，不需要 root 权限或 netem。可以在进程内使用，也可以单独运行。
+ *
+ * 每个方向模拟一条链路（同一方向的所有连接共用带宽）：数据块按带宽依次发送，再经过单向延迟和随机抖动后写给对端，
+ * 写出顺序与读入顺序相同（TCP 不会乱序交付，抖动只增加延迟）。停顿时段内链路不发送任何数据。
+ * 代理立即从发送端读取数据，发送端自身的拥塞窗口看不到模拟的往返时间，因此每个方向另外限制在途字节数
+ * （window，相当于接收窗口）：数据块在送达并再经过一个单向延迟（确认返回）之前一直占用窗口。
+ * 丢包近似为一次快速重传：被“丢弃”的数据块及其后的数据多等待一个往返。
+ * 回环上的 TCP 握手不经过代理，握手的往返计入每个连接第一块上行数据的延迟
+ * （SocketTuner 用连接耗时测量往返时间，经过代理时测得的仍是回环的往返时间）。
+ *
+ * 用法示例:
+ *   java com.networkdesign.tools.WanProxy --listen=9999 --target=localhost:8888 --profile=wan
+ *   java com.networkdesign.tools.WanProxy --listen=9999 --target=localhost:8888
+ *        --profile=delay=40,jitter=5,bandwidth=20,loss=0.005,stall=300/5000,window=4m
+ */
+public class WanProxy implements Closeable {
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    private final String targetHost;
+    private final int targetPort;
+    private final ServerSocket serverSocket;
+    private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final long epoch = System.nanoTime();     // 停顿时段从这一刻起算
+    private long upstreamFree;      // 上行链路空闲的时刻（所有连接共用带宽）
+    private long downstreamFree;
+    private volatile Link link;
+    private volatile boolean running;
+
+    /**
+     * @param listenPort 监听端口，0 表示由系统分配（用 getPort 获取）
+     */
+    public WanProxy(int listenPort, String targetHost, int targetPort, Link link) throws IOException {
+        this.targetHost = targetHost;
+        this.targetPort = targetPort;
+        this.link = link;
+        this.serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress("localhost", listenPort));
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public Link getLink() {
+        return link;
+    }
+
+    /**
+     * 更换链路参数，之后发送的数据块使用新参数
+     */
+    public void setLink(Link link) {
+        this.link = link;
+    }
+
+    public void start() {
+        running = true;
+        Thread acceptor = new Thread(this::acceptLoop, "wan-proxy-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException ignored) {
+            // 关闭时的错误可以忽略
+        }
+        for (Socket socket : sockets) {
+            closeQuietly(socket);
+        }
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            Socket client;
+            try {
+                client = serverSocket.accept();
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("代理接受连接失败: " + e.getMessage());
+                }
+                return;
+            }
+            int id = connections.incrementAndGet();
+            Thread connector = new Thread(() -> open(client, id), "wan-proxy-" + id);
+            connector.setDaemon(true);
+            connector.start();
+        }
+    }
+
+    private void open(Socket client, int id) {
+        Socket server;
+        try {
+            server = new Socket(targetHost, targetPort);
+            client.setTcpNoDelay(true);
+            server.setTcpNoDelay(true);
+        } catch (IOException e) {
+            System.err.println("代理连接目标服务器失败: " + e.getMessage());
+            closeQuietly(client);
+            return;
+        }
+        sockets.add(client);
+        sockets.add(server);
+        AtomicInteger open = new AtomicInteger(2);
+        Runnable closed = () -> {
+            if (open.decrementAndGet() == 0) {
+                sockets.remove(client);
+                sockets.remove(server);
+                closeQuietly(client);
+                closeQuietly(server);
+            }
+        };
+        new Pipe(client, server, true, closed).start("wan-proxy-" + id + "-up");
+        new Pipe(server, client, false, closed).start("wan-proxy-" + id + "-down");
+    }
+
+    /**
+     * 在链路上占用 transmissionNanos 的发送时间，同一方向的所有连接排队共用
+     * @return 发送完毕的时刻
+     */
+    private synchronized long occupy(boolean upstream, long earliest, long transmissionNanos, Link current) {
+        long start = current.afterStall(Math.max(earliest, upstream ? upstreamFree : downstreamFree), epoch);
+        long end = start + transmissionNanos;
+        if (upstream) {
+            upstreamFree = end;
+        } else {
+            downstreamFree = end;
+        }
+        return end;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // 关闭时的错误可以忽略
+        }
+    }
+
+    /**
+     * 一个方向的模拟链路：读线程计算每个数据块的送达时刻，写线程到时写出
+     */
+    private final class Pipe {
+        private final Socket from;
+        private final Socket to;
+        private final boolean upstream;
+        private final Runnable closed;
+        private final LinkedBlockingQueue<Chunk> queue = new LinkedBlockingQueue<>();
+        private final ArrayDeque<long[]> inFlight = new ArrayDeque<>();   // {释放窗口的时刻, 字节数}
+        private final Random random = new Random();
+        private long inFlightBytes;
+        private long lastRelease;
+        private boolean first = true;
+
+        Pipe(Socket from, Socket to, boolean upstream, Runnable closed) {
+            this.from = from;
+            this.to = to;
+            this.upstream = upstream;
+            this.closed = closed;
+        }
+
+        void start(String name) {
+            Thread reader = new Thread(this::readLoop, name + "-read");
+            Thread writer = new Thread(this::writeLoop, name + "-write");
+            reader.setDaemon(true);
+            writer.setDaemon(true);
+            reader.start();
+            writer.start();
+        }
+
+        private void readLoop() {
+            try {
+                InputStream in = from.getInputStream();
+                while (true) {
+                    byte[] buffer = new byte[CHUNK_SIZE];
+                    int n = in.read(buffer);
+                    if (n < 0) {
+                        break;
+                    }
+                    queue.put(new Chunk(buffer, n, schedule(n)));
+                }
+            } catch (IOException | InterruptedException e) {
+                // 连接被对端或代理关闭
+            }
+            // 结束标记在最后一个数据块之后送达
+            queue.add(new Chunk(null, 0, lastRelease));
+        }
+
+        private void writeLoop() {
+            try {
+                OutputStream out = to.getOutputStream();
+                while (true) {
+                    Chunk chunk = queue.take();
+                    long wait;
+                    while ((wait = chunk.release - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                    if (chunk.data == null) {
+                        to.shutdownOutput();
+                        break;
+                    }
+                    out.write(chunk.data, 0, chunk.length);
+                }
+            } catch (IOException | InterruptedException e) {
+                // 对端已关闭，另一个方向随之结束
+                closeQuietly(from);
+            } finally {
+                closed.run();
+            }
+        }
+
+        /**
+         * 计算刚读到的 n 字节的送达时刻，窗口已满时等待确认返回
+         */
+        private long schedule(int n) {
+            Link current = link;
+            long now = System.nanoTime();
+            while (!inFlight.isEmpty()) {
+                long[] oldest = inFlight.peekFirst();
+                if (oldest[0] <= now) {
+                    inFlight.pollFirst();
+                    inFlightBytes -= oldest[1];
+                } else if (inFlightBytes + n > current.windowBytes) {
+                    LockSupport.parkNanos(oldest[0] - now);
+                    now = System.nanoTime();
+                } else {
+                    break;
+                }
+            }
+
+            long release = occupy(upstream, now, current.transmissionNanos(n), current) + current.delayNanos(random);
+            if (first && upstream) {
+                release += 2 * current.delayNanos;  // TCP 握手的往返
+            }
+            if (current.lossRate > 0 && random.nextDouble() < current.lossRate) {
+                release += 2 * current.delayNanos + current.transmissionNanos(n);  // 重传
+            }
+            first = false;
+            release = Math.max(release, lastRelease);
+            lastRelease = release;
+            inFlight.addLast(new long[] {release + current.delayNanos, n});
+            inFlightBytes += n;
+            return release;
+        }
+    }
+
+    /**
+     * 读到的一块数据和它的送达时刻，data 为 null 表示发送端已关闭输出
+     */
+    private static final class Chunk {
+        final byte[] data;
+        final int length;
+        final long release;
+
+        Chunk(byte[] data, int length, long release) {
+            this.data = data;
+            this.length = length;
+            this.release = release;
+        }
+    }
+
+    /**
+     * 一个方向的链路参数（两个方向使用相同的参数）
+     */
+    public static final class Link {
+        private static final Map<String, String> PRESETS = new LinkedHashMap<>();
+
+        static {
+            PRESETS.put("lan", "delay=0.05,window=8m");
+            PRESETS.put("metro", "delay=5,jitter=0.5,bandwidth=100,window=8m");
+            PRESETS.put("wan", "delay=40,jitter=2,bandwidth=50,window=4m");
+            PRESETS.put("intercontinental", "delay=100,jitter=5,bandwidth=20,loss=0.001,window=4m");
+            PRESETS.put("mobile", "delay=60,jitter=20,bandwidth=5,loss=0.01,stall=300/5000,window=1m");
+        }
+
+        private final String name;
+        final long delayNanos;
+        final long jitterNanos;
+        final double bytesPerSecond;    // 0 表示不限制
+        final double lossRate;
+        final long stallNanos;
+        final long stallEveryNanos;
+        final long windowBytes;
+
+        private Link(String name, double delayMillis, double jitterMillis, double megabitsPerSecond, double lossRate,
+                     double stallMillis, double stallEveryMillis, long windowBytes) {
+            if (delayMillis < 0 || jitterMillis < 0 || megabitsPerSecond < 0 || lossRate < 0 || lossRate >= 1
+                    || stallMillis < 0 || (stallMillis > 0 && stallEveryMillis <= stallMillis) || windowBytes <= 0) {
+                throw new IllegalArgumentException("无效的链路参数: " + name);
+            }
+            this.name = name;
+            this.delayNanos = (long) (delayMillis * 1_000_000);
+            this.jitterNanos = (long) (jitterMillis * 1_000_000);
+            this.bytesPerSecond = megabitsPerSecond * 1_000_000 / 8;
+            this.lossRate = lossRate;
+            this.stallNanos = (long) (stallMillis * 1_000_000);
+            this.stallEveryNanos = (long) (stallEveryMillis * 1_000_000);
+            this.windowBytes = windowBytes;
+        }
+
+        /**
+         * 预设名称（lan、metro、wan、intercontinental、mobile），或逗号分隔的参数:
+         * delay=单向延迟毫秒, jitter=抖动毫秒, bandwidth=Mbit/s（0 为不限）, loss=丢包率,
+         * stall=停顿毫秒/周期毫秒, window=在途字节上限（可带 k/m 后缀，默认 4m）
+         */
+        public static Link parse(String spec) {
+            String preset = PRESETS.get(spec.trim().toLowerCase());
+            String name = preset != null ? spec.trim().toLowerCase() : spec;
+            Map<String, String> values = new HashMap<>();
+            for (String item : (preset != null ? preset : spec).split(",")) {
+                String[] kv = item.split("=", 2);
+                if (kv.length != 2) {
+                    throw new IllegalArgumentException("无效的链路参数: " + item + "（格式: 名称=值）");
+                }
+                values.put(kv[0].trim(), kv[1].trim());
+            }
+            double stall = 0;
+            double stallEvery = 0;
+            if (values.containsKey("stall")) {
+                String[] parts = values.remove("stall").split("/");
+                stall = Double.parseDouble(parts[0]);
+                stallEvery = parts.length > 1 ? Double.parseDouble(parts[1]) : 0;
+            }
+            Link link = new Link(name,
+                    Double.parseDouble(values.getOrDefault("delay", "0")),
+                    Double.parseDouble(values.getOrDefault("jitter", "0")),
+                    Double.parseDouble(values.getOrDefault("bandwidth", "0")),
+                    Double.parseDouble(values.getOrDefault("loss", "0")),
+                    stall, stallEvery,
+                    LoadGenerator.parseSize(values.getOrDefault("window", "4m")));
+            values.keySet().removeAll(Arrays.asList("delay", "jitter", "bandwidth", "loss", "window"));
+            if (!values.isEmpty()) {
+                throw new IllegalArgumentException("未知的链路参数: " + values.keySet());
+            }
+            return link;
+        }
+
+        public static Set<String> presets() {
+            return PRESETS.keySet();
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * 往返时间（毫秒，不含抖动）
+         */
+        public double getRttMillis() {
+            return 2 * delayNanos / 1e6;
+        }
+
+        /**
+         * 带宽上限（字节/秒），0 表示不限制
+         */
+        public double getBytesPerSecond() {
+            return bytesPerSecond;
+        }
+
+        /**
+         * 每个连接每个方向的在途字节上限
+         */
+        public long getWindowBytes() {
+            return windowBytes;
+        }
+
+        /**
+         * 抖动上限（毫秒）
+         */
+        public double getJitterMillis() {
+            return jitterNanos / 1e6;
+        }
+
+        /**
+         * 每个数据块被“丢弃”（多等待一个往返）的概率
+         */
+        public double getLossRate() {
+            return lossRate;
+        }
+
+        /**
+         * 每次停顿的时长（毫秒），0 表示没有停顿
+         */
+        public double getStallMillis() {
+            return stallNanos / 1e6;
+        }
+
+        /**
+         * 链路处于停顿时段的时间比例
+         */
+        public double getStallFraction() {
+            return stallNanos > 0 ? (double) stallNanos / stallEveryNanos : 0;
+        }
+
+        /**
+         * 代理转发的数据块大小，丢包按数据块计
+         */
+        public static int getChunkSize() {
+            return CHUNK_SIZE;
+        }
+
+        long transmissionNanos(int bytes) {
+            return bytesPerSecond > 0 ? (long) (bytes * 1e9 / bytesPerSecond) : 0;
+        }
+
+        long delayNanos(Random random) {
+            return jitterNanos > 0 ? delayNanos + (long) (random.nextDouble() * jitterNanos) : delayNanos;
+        }
+
+        /**
+         * 落在停顿时段（每个周期的最后 stall 毫秒）内的时刻推迟到停顿结束
+         */
+        long afterStall(long time, long epoch) {
+            if (stallNanos <= 0) {
+                return time;
+            }
+            long phase = (time - epoch) % stallEveryNanos;
+            return phase >= stallEveryNanos - stallNanos ? time + stallEveryNanos - phase : time;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(name).append(": 往返 ")
+                    .append(String.format("%.1f", getRttMillis())).append(" ms");
+            if (jitterNanos > 0) {
+                sb.append(String.format(", 抖动 %.1f ms", jitterNanos / 1e6));
+            }
+            sb.append(bytesPerSecond > 0 ? String.format(", 带宽 %.1f Mbit/s", bytesPerSecond * 8 / 1e6) : ", 带宽不限");
+            if (lossRate > 0) {
+                sb.append(String.format(", 丢包 %.2f%%", lossRate * 100));
+            }
+            if (stallNanos > 0) {
+                sb.append(String.format(", 每 %d ms 停顿 %d ms", TimeUnit.NANOSECONDS.toMillis(stallEveryNanos),
+                        TimeUnit.NANOSECONDS.toMillis(stallNanos)));
+            }
+            return sb.append(", 窗口 ").append(windowBytes / 1024).append(" KB").toString();
+        }
+    }
+
+    /**
+     * 单独运行代理
+     * 用法: java com.networkdesign.tools.WanProxy --listen=端口 --target=主机:端口 --profile=预设或参数
+     */
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("无效参数: " + arg + "（格式: --名称=值）");
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        String target = options.getOrDefault("target", "localhost:8888");
+        int colon = target.lastIndexOf(':');
+        Link link = Link.parse(options.getOrDefault("profile", "wan"));
+        WanProxy proxy = new WanProxy(Integer.parseInt(options.getOrDefault("listen", "9999")),
+                target.substring(0, colon), Integer.parseInt(target.substring(colon + 1)), link);
+        proxy.start();
+        System.out.println("广域网模拟代理已启动: localhost:" + proxy.getPort() + " -> " + target + "，" + link);
+        Runtime.getRuntime().addShutdownHook(new Thread(proxy::close));
+        Thread.currentThread().join();
+    }
+}
@@ -0,0 +1,301 @@
+package com.networkdesign.tools;
+
+import com.networkdesign.client.FileTransferClient;
+import com.networkdesign.server.FileTransferServer;
+import com.networkdesign.server.storage.StorageBackends;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * 广域网场景测试：经 WanProxy 在各个链路预设下运行标准传输负载，检查吞吐量不低于下限
+ * 负载:
+ *   small    顺序下载小文件（ops/s），每次操作至少需要握手和请求两个往返
+ *   download 下载一个大文件（MB/s）
+ *   upload   上传一个大文件（MB/s）
+ * 下限是按链路参数估计的耗时所对应吞吐量的一半（小文件最多 50 ops/s，大文件最多 20 MB/s），再乘以 --floor-scale。
+ * 每次操作的耗时 = 固定的往返次数（小文件 2 次，大文件 3 次，往返时间计入抖动上限）+ 5ms 本地开销
+ *   + 数据量 / min(带宽, 窗口 / 往返时间) + 丢包的数据块各多等待一个往返；
+ * 停顿使可用时间按比例减少，整个负载另外计入一次完整的停顿。
+ * 因此短传输的固定开销不会使下限过高。测量前每个场景先把各个负载运行一次（JIT 编译、连接参数估计）。
+ * 有任何一项低于下限时以退出码 1 结束，可以放进构建流水线
+ *
+ * 用法示例:
+ *   java com.networkdesign.tools.WanScenarios --profiles=lan,wan,intercontinental,mobile --size=4m --small=20
+ *   自定义链路（多个场景以分号分隔）:
+ *        --profiles="delay=25,bandwidth=100;delay=150,bandwidth=10,loss=0.01" --floor-scale=0.8
+ */
+public class WanScenarios {
+    private static final double MAX_SMALL_FLOOR = 50;
+    private static final double MAX_BULK_FLOOR = 20 * 1024 * 1024;
+    private static final double LOCAL_OVERHEAD_SECONDS = 0.005;  // 每次操作在本机的开销（建立客户端、连接、打开文件等）
+    private static final int SMALL_ROUND_TRIPS = 2;   // 握手、请求（HELLO 与请求一起发送）
+    private static final int BULK_ROUND_TRIPS = 3;    // 握手、请求或就绪信号、最后的数据或确认
+    private static final long WARMUP_SIZE = 256 * 1024;
+    private static final String BULK_NAME = "wan-bulk";
+    private static final String WARMUP_NAME = "wan-warmup";
+    private static final String SMALL_PREFIX = "wan-small-";
+
+    private static final FileTransferClient.ProgressCallback NO_PROGRESS = new FileTransferClient.ProgressCallback() {
+        @Override
+        public void onProgress(long bytesTransferred, long totalBytes) {
+        }
+
+        @Override
+        public void onComplete() {
+        }
+
+        @Override
+        public void onError(String error) {
+        }
+    };
+
+    private final Options options;
+    private final PrintStream console = System.out;
+    private final List<Outcome> outcomes = new ArrayList<>();
+    private Path workDir;
+
+    public WanScenarios(Options options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean passed = new WanScenarios(Options.parse(args)).run();
+        System.exit(passed ? 0 : 1);
+    }
+
+    /**
+     * 启动嵌入式服务器，依次在每个链路预设下运行全部负载
+     * @return 全部负载都达到下限
+     */
+    public boolean run() throws Exception {
+        FileTransferServer server = new FileTransferServer(options.port, StorageBackends.fromSpec(options.storage));
+        server.start();
+        workDir = Files.createTempDirectory("wan-");
+        PrintStream originalErr = System.err;
+        try {
+            seed();
+            for (String spec : options.profiles) {
+                WanProxy.Link link = WanProxy.Link.parse(spec);
+                console.println("场景 " + link);
+                try (WanProxy proxy = new WanProxy(0, "localhost", options.port, link)) {
+                    proxy.start();
+                    // 客户端库在每次操作中都会打印日志，测量期间将其静默
+                    PrintStream silent = new PrintStream(OutputStream.nullOutputStream());
+                    System.setOut(silent);
+                    System.setErr(silent);
+                    try {
+                        runProfile(link, proxy.getPort());
+                    } finally {
+                        System.setOut(console);
+                        System.setErr(originalErr);
+                    }
+                }
+            }
+        } finally {
+            System.setOut(console);
+            System.setErr(originalErr);
+            server.stop();
+            deleteRecursively(workDir);
+        }
+        return printReport();
+    }
+
+    /**
+     * 直接（不经过代理）上传负载使用的文件
+     */
+    private void seed() throws IOException {
+        Random random = new Random(42);
+        Path bulk = workDir.resolve(BULK_NAME);
+        writeRandom(bulk, options.bulkSize, random);
+        newClient(options.port).uploadFile(bulk.toString(), true, NO_PROGRESS);
+        Path warmup = workDir.resolve(WARMUP_NAME);
+        writeRandom(warmup, Math.min(options.bulkSize, WARMUP_SIZE), random);
+        newClient(options.port).uploadFile(warmup.toString(), true, NO_PROGRESS);
+        for (int i = 0; i < options.smallCount; i++) {
+            Path small = workDir.resolve(SMALL_PREFIX + i);
+            writeRandom(small, options.smallSize, random);
+            newClient(options.port).uploadFile(small.toString(), true, NO_PROGRESS);
+        }
+    }
+
+    private void runProfile(WanProxy.Link link, int port) throws IOException {
+        // 预热：第一次连接等待 HELLO 响应，之后的请求与 HELLO 一起发送；
+        // 每种负载先以较小的数据运行一次，JIT 编译和连接参数的估计不计入测量
+        newClient(port).getFileList();
+        Path warmup = Files.createTempDirectory(workDir, "warmup");
+        newClient(port).downloadSpecificFile(SMALL_PREFIX + 0, warmup.toString(), NO_PROGRESS);
+        newClient(port).downloadSpecificFile(WARMUP_NAME, warmup.toString(), NO_PROGRESS);
+        newClient(port).uploadFile(workDir.resolve(WARMUP_NAME).toString(), true, NO_PROGRESS);
+
+        Path downloads = Files.createTempDirectory(workDir, "dl");
+        long start = System.nanoTime();
+        for (int i = 0; i < options.smallCount; i++) {
+            newClient(port).downloadSpecificFile(SMALL_PREFIX + i, downloads.toString(), NO_PROGRESS);
+        }
+        record(link, "small", options.smallCount / seconds(start), smallFloor(link), "ops/s");
+
+        start = System.nanoTime();
+        newClient(port).downloadSpecificFile(BULK_NAME, downloads.toString(), NO_PROGRESS);
+        record(link, "download", options.bulkSize / seconds(start), bulkFloor(link), "MB/s");
+
+        Path upload = Files.createDirectory(workDir.resolve("up-" + outcomes.size())).resolve(BULK_NAME + "-up");
+        Files.copy(workDir.resolve(BULK_NAME), upload);
+        start = System.nanoTime();
+        newClient(port).uploadFile(upload.toString(), true, NO_PROGRESS);
+        record(link, "upload", options.bulkSize / seconds(start), bulkFloor(link), "MB/s");
+    }
+
+    private double smallFloor(WanProxy.Link link) {
+        double seconds = expectedSeconds(link, options.smallCount, options.smallSize, SMALL_ROUND_TRIPS);
+        return Math.min(MAX_SMALL_FLOOR, 0.5 * options.smallCount / seconds) * options.floorScale;
+    }
+
+    private double bulkFloor(WanProxy.Link link) {
+        double seconds = expectedSeconds(link, 1, options.bulkSize, BULK_ROUND_TRIPS);
+        return Math.min(MAX_BULK_FLOOR, 0.5 * options.bulkSize / seconds) * options.floorScale;
+    }
+
+    /**
+     * 按链路参数估计一项负载的耗时（秒）
+     * @param operations 顺序执行的操作数
+     * @param bytes 每次操作传输的数据量
+     * @param roundTrips 每次操作固定的往返次数
+     */
+    private static double expectedSeconds(WanProxy.Link link, int operations, long bytes, int roundTrips) {
+        double rtt = (link.getRttMillis() + link.getJitterMillis()) / 1000;
+        double windowLimit = link.getRttMillis() > 0 ? link.getWindowBytes() / (link.getRttMillis() / 1000)
+                : Double.MAX_VALUE;
+        double rate = Math.min(link.getBytesPerSecond() > 0 ? link.getBytesPerSecond() : Double.MAX_VALUE,
+                windowLimit);
+        long chunks = (bytes + WanProxy.Link.getChunkSize() - 1) / WanProxy.Link.getChunkSize();
+        double perOperation = LOCAL_OVERHEAD_SECONDS + roundTrips * rtt + bytes / rate
+                + link.getLossRate() * chunks * rtt;
+        return operations * perOperation / (1 - link.getStallFraction()) + link.getStallMillis() / 1000;
+    }
+
+    private void record(WanProxy.Link link, String workload, double value, double floor, String unit) {
+        outcomes.add(new Outcome(link.getName(), workload, value, floor, unit));
+    }
+
+    /**
+     * @return 全部负载都达到下限
+     */
+    private boolean printReport() {
+        console.println();
+        console.printf("%-18s %-9s %12s %12s %-6s %s%n", "场景", "负载", "结果", "下限", "单位", "");
+        boolean passed = true;
+        for (Outcome o : outcomes) {
+            boolean ok = o.value >= o.floor;
+            passed &= ok;
+            double scale = o.unit.equals("MB/s") ? 1024 * 1024 : 1;
+            console.printf("%-18s %-9s %12.2f %12.2f %-6s %s%n", o.profile, o.workload, o.value / scale,
+                    o.floor / scale, o.unit, ok ? "通过" : "低于下限");
+        }
+        console.println();
+        console.println(passed ? "全部场景通过" : "有场景低于吞吐量下限");
+        return passed;
+    }
+
+    private static double seconds(long startNanos) {
+        return Math.max(1, System.nanoTime() - startNanos) / 1e9;
+    }
+
+    private static void writeRandom(Path file, long size, Random random) throws IOException {
+        byte[] chunk = new byte[64 * 1024];
+        try (OutputStream out = Files.newOutputStream(file)) {
+            long remaining = size;
+            while (remaining > 0) {
+                random.nextBytes(chunk);
+                int n = (int) Math.min(chunk.length, remaining);
+                out.write(chunk, 0, n);
+                remaining -= n;
+            }
+        }
+    }
+
+    private static void deleteRecursively(Path root) {
+        if (root == null) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        } catch (IOException ignored) {
+            // 清理失败不影响报告
+        }
+    }
+
+    private static FileTransferClient newClient(int port) {
+        return new FileTransferClient("localhost", port);
+    }
+
+    /**
+     * 一项负载的结果（吞吐量为每秒操作数或每秒字节数）
+     */
+    private static final class Outcome {
+        final String profile;
+        final String workload;
+        final double value;
+        final double floor;
+        final String unit;
+
+        Outcome(String profile, String workload, double value, double floor, String unit) {
+            this.profile = profile;
+            this.workload = workload;
+            this.value = value;
+            this.floor = floor;
+            this.unit = unit;
+        }
+    }
+
+    /**
+     * 命令行参数
+     */
+    static class Options {
+        List<String> profiles = new ArrayList<>(WanProxy.Link.presets());
+        int port = 18890;
+        String storage = "memory";
+        long bulkSize = 4 * 1024 * 1024;
+        int smallCount = 20;
+        int smallSize = 4 * 1024;
+        double floorScale = 1.0;
+
+        static Options parse(String[] args) {
+            Options o = new Options();
+            for (String arg : args) {
+                if (!arg.startsWith("--") || !arg.contains("=")) {
+                    throw new IllegalArgumentException("无效参数: " + arg + "（格式: --名称=值）");
+                }
+                String key = arg.substring(2, arg.indexOf('='));
+                String value = arg.substring(arg.indexOf('=') + 1);
+                switch (key) {
+                    // 预设名称以逗号分隔；自定义参数本身含逗号，以分号分隔多个场景
+                    case "profiles":
+                        o.profiles = Arrays.asList(value.contains("=") ? value.split(";") : value.split(","));
+                        break;
+                    case "port": o.port = Integer.parseInt(value); break;
+                    case "storage": o.storage = value; break;
+                    case "size": o.bulkSize = LoadGenerator.parseSize(value); break;
+                    case "small": o.smallCount = Integer.parseInt(value); break;
+                    case "small-size": o.smallSize = (int) LoadGenerator.parseSize(value); break;
+                    case "floor-scale": o.floorScale = Double.parseDouble(value); break;
+                    default:
+                        throw new IllegalArgumentException("未知参数: " + key);
+                }
+            }
+            if (o.bulkSize <= 0 || o.smallCount <= 0 || o.smallSize <= 0) {
+                throw new IllegalArgumentException("--size、--small 和 --small-size 必须大于0");
+            }
+            return o;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.networkdesign.transport;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 按容量分类的缓冲区池
+ * TLS 连接的网络缓冲区和明文缓冲区大小固定（由 SSLSession 决定），每次操作都重新连接时
+ * 反复分配会给垃圾回收带来持续压力，因此连接关闭时归还、下一个连接复用
+ */
+final class BufferPool {
+    private static final int MAX_POOLED_PER_SIZE = 256;
+
+    private final Map<Integer, Pool> pools = new ConcurrentHashMap<>();
+
+    /**
+     * 取得一个容量恰好为 capacity 的缓冲区（已清空）
+     */
+    ByteBuffer acquire(int capacity) {
+        ByteBuffer buffer = pool(capacity).buffers.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocate(capacity);
+        }
+        pool(capacity).size.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * 归还缓冲区，归还后调用方不能再使用它
+     */
+    void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        Pool pool = pool(buffer.capacity());
+        if (pool.size.incrementAndGet() <= MAX_POOLED_PER_SIZE) {
+            pool.buffers.add(buffer);
+        } else {
+            pool.size.decrementAndGet();
+        }
+    }
+
+    private Pool pool(int capacity) {
+        return pools.computeIfAbsent(capacity, c -> new Pool());
+    }
+
+    private static final class Pool {
+        final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+        final AtomicInteger size = new AtomicInteger();
+    }
+}
@@ -0,0 +1,114 @@
+package com.networkdesign.transport;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 基于延迟的速率控制
+ * 以往返时间相对最小往返时间的增量（排队延迟）作为拥塞信号，而不是丢包：长距离链路上的随机丢包
+ * 会让基于丢包的控制（TCP）持续退让，而排队延迟只在瓶颈缓冲区开始积压时上升。
+ * 启动阶段每轮（约一个往返时间）把发送速率翻倍，直到排队延迟超过目标值；之后按排队延迟与目标值的差距
+ * 成比例地调整速率（类似 LEDBAT）。超时和单轮内的大量丢包仍视为拥塞
+ */
+final class DelayBasedController {
+    static final double MIN_RATE = 64 * 1024;                // 最低发送速率（字节/秒）
+    static final double MAX_RATE = 1.25e9;                   // 最高发送速率（10 Gbit/s）
+    private static final long MIN_ROUND_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long MIN_RTT_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final long MIN_TARGET_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+    private static final long MAX_TARGET_NANOS = TimeUnit.MILLISECONDS.toNanos(25);
+    private static final double GAIN = 0.25;                 // 每轮按排队延迟调整速率的最大比例
+    private static final double HEAVY_LOSS = 0.2;            // 单轮丢包率超过该值时视为拥塞
+
+    private double rate;
+    private boolean startup = true;
+    private long minRtt = Long.MAX_VALUE;
+    private long minRttStamp;
+    private long roundMinRtt = Long.MAX_VALUE;
+    private long roundStart;
+    private long roundBytes;
+    private long roundPackets;
+    private long roundLosses;
+
+    DelayBasedController(double initialRate, long now) {
+        this.rate = clamp(initialRate);
+        this.roundStart = now;
+        this.minRttStamp = now;
+    }
+
+    /**
+     * 当前发送速率（字节/秒）
+     */
+    double rate() {
+        return rate;
+    }
+
+    long minRtt() {
+        return minRtt;
+    }
+
+    void onRttSample(long rttNanos, long now) {
+        // 最小往返时间按窗口过期，路由变化后能重新测量
+        if (rttNanos <= minRtt || now - minRttStamp > MIN_RTT_WINDOW_NANOS) {
+            minRtt = rttNanos;
+            minRttStamp = now;
+        }
+        roundMinRtt = Math.min(roundMinRtt, rttNanos);
+    }
+
+    void onAck(long bytes, int packets, long now, long srttNanos) {
+        roundBytes += bytes;
+        roundPackets += packets;
+        if (now - roundStart >= Math.max(srttNanos, MIN_ROUND_NANOS)) {
+            endRound(now);
+        }
+    }
+
+    void onLoss(int packets) {
+        roundLosses += packets;
+    }
+
+    /**
+     * 重传超时：速率减半并结束启动阶段
+     */
+    void onTimeout() {
+        rate = clamp(rate / 2);
+        startup = false;
+    }
+
+    private void endRound(long now) {
+        double seconds = (now - roundStart) / 1e9;
+        double delivered = roundBytes / seconds;
+        // 实际送达速率远低于发送速率时说明数据不够发（应用受限），此时不加速
+        boolean appLimited = delivered < rate * 0.5;
+        boolean heavyLoss = roundLosses > (roundPackets + roundLosses) * HEAVY_LOSS;
+        if (roundMinRtt != Long.MAX_VALUE && minRtt != Long.MAX_VALUE) {
+            long queueing = roundMinRtt - minRtt;
+            long target = Math.max(MIN_TARGET_NANOS, Math.min(MAX_TARGET_NANOS, minRtt / 4));
+            if (startup) {
+                if (queueing > target || heavyLoss) {
+                    startup = false;
+                    rate = clamp(Math.max(delivered, rate / 2));
+                } else if (!appLimited) {
+                    rate = clamp(rate * 2);
+                }
+            } else {
+                double offset = Math.max(-2, Math.min(1, (double) (target - queueing) / target));
+                if (offset < 0 || !appLimited) {
+                    rate = clamp(rate * (1 + GAIN * offset));
+                }
+                if (heavyLoss) {
+                    rate = clamp(rate * 0.75);
+                }
+            }
+        }
+        roundStart = now;
+        roundBytes = 0;
+        roundPackets = 0;
+        roundLosses = 0;
+        roundMinRtt = Long.MAX_VALUE;
+    }
+
+    private static double clamp(double value) {
+        return Math.max(MIN_RATE, Math.min(MAX_RATE, value));
+    }
+}
@@ -0,0 +1,52 @@
+package com.networkdesign.transport;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * UDP 传输的链路损伤注入：按概率丢弃发出的数据包，并给每个数据包加上固定延迟和随机抖动，
+ * 用于在本机回环上模拟高延迟、有丢包的长距离链路。只作用于本端发出的数据包，两个方向都需要损伤时两端分别设置
+ */
+public final class Impairment {
+    /** 不注入任何损伤 */
+    public static final Impairment NONE = new Impairment(0, 0, 0);
+
+    private final double lossRate;
+    private final long delayNanos;
+    private final long jitterNanos;
+
+    /**
+     * @param lossRate 丢包概率（0 到 1）
+     * @param delayMillis 固定单向延迟（毫秒）
+     * @param jitterMillis 在固定延迟之上均匀分布的随机抖动（毫秒），抖动会造成乱序
+     */
+    public Impairment(double lossRate, double delayMillis, double jitterMillis) {
+        if (lossRate < 0 || lossRate >= 1 || delayMillis < 0 || jitterMillis < 0) {
+            throw new IllegalArgumentException("无效的链路损伤参数");
+        }
+        this.lossRate = lossRate;
+        this.delayNanos = (long) (delayMillis * 1_000_000);
+        this.jitterNanos = (long) (jitterMillis * 1_000_000);
+    }
+
+    public boolean isNone() {
+        return lossRate == 0 && delayNanos == 0 && jitterNanos == 0;
+    }
+
+    boolean drop(Random random) {
+        return lossRate > 0 && random.nextDouble() < lossRate;
+    }
+
+    /**
+     * 本次发送应延迟的时间（纳秒）
+     */
+    long delay(Random random) {
+        return jitterNanos > 0 ? delayNanos + (long) (random.nextDouble() * jitterNanos) : delayNanos;
+    }
+
+    @Override
+    public String toString() {
+        return isNone() ? "无" : String.format("丢包 %.2f%%, 延迟 %d ms, 抖动 %d ms", lossRate * 100,
+                TimeUnit.NANOSECONDS.toMillis(delayNanos), TimeUnit.NANOSECONDS.toMillis(jitterNanos));
+    }
+}
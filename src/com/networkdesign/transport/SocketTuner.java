@@ -0,0 +1,250 @@
+package com.networkdesign.transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 按 TransportProfile 设置 TCP 套接字选项
+ *
+ * AUTO 方案用建立连接的耗时（一次往返）测量往返时间，取近期最小值以排除排队和调度造成的偏大；
+ * 用之前传输的实际速度估计带宽（至少按 1Gbit/s 估计，避免缓冲区偏小限制了速度、测得的速度又反过来
+ * 让缓冲区更小），缓冲区设为带宽时延积的两倍。
+ * 估计值按目的地址保存在进程内（类似内核的 TCP 路径指标缓存），客户端每次操作重新连接时沿用。
+ * 带宽时延积很小时不设置缓冲区：在 Linux 上显式设置 SO_RCVBUF 会关闭内核对接收缓冲区的自动调整
+ */
+public final class SocketTuner {
+    private static final double NOMINAL_BANDWIDTH = 125_000_000;   // 1Gbit/s（字节/秒）
+    private static final int MIN_EXPLICIT_BUFFER = 256 * 1024;
+    private static final int MAX_BUFFER = 64 * 1024 * 1024;
+    private static final long MIN_THROUGHPUT_SAMPLE_BYTES = 1024 * 1024;
+    private static final long RTT_WINDOW_NANOS = 10_000_000_000L;  // 最小往返时间的有效期，过期后接受更大的测量值
+    private static final Map<String, PathEstimate> PATHS = new ConcurrentHashMap<>();
+
+    private final TransportProfile profile;
+
+    public SocketTuner(TransportProfile profile) {
+        this.profile = profile;
+    }
+
+    public TransportProfile getProfile() {
+        return profile;
+    }
+
+    /**
+     * 按方案建立 TCP 连接
+     */
+    public Socket connect(String host, int port) throws IOException {
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        PathEstimate path = PATHS.computeIfAbsent(key(host, port), k -> new PathEstimate());
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            // 接收缓冲区在连接前设置，握手时才能协商出足够大的窗口扩大因子
+            int planned = bufferSize(path);
+            if (planned > 0) {
+                socket.setReceiveBufferSize(planned);
+                socket.setSendBufferSize(planned);
+            }
+            long start = System.nanoTime();
+            socket.connect(address);
+            path.onRtt(System.nanoTime() - start);
+            int tuned = bufferSize(path);
+            if (tuned > planned) {
+                socket.setSendBufferSize(tuned);
+                socket.setReceiveBufferSize(tuned);
+            }
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 按方案创建监听套接字
+     * 服务器无法在接受连接前测量往返时间，AUTO 方案下缓冲区交给内核自动调整
+     */
+    public ServerSocket bind(int port) throws IOException {
+        ServerSocket server = new ServerSocket();
+        try {
+            if (profile.bufferSize() > 0) {
+                server.setReceiveBufferSize(profile.bufferSize()); // 被接受的连接继承，必须在 bind 前设置
+            }
+            server.bind(new InetSocketAddress(port), profile.backlog());
+            return server;
+        } catch (IOException e) {
+            server.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 设置服务器接受的连接
+     */
+    public void configureAccepted(Socket socket) throws IOException {
+        socket.setTcpNoDelay(true);
+        socket.setKeepAlive(true);
+        if (profile.bufferSize() > 0) {
+            socket.setSendBufferSize(profile.bufferSize());
+        }
+    }
+
+    /**
+     * 记录一次传输的速度，用于 AUTO 方案估计带宽（太小的传输不能反映带宽，忽略）
+     */
+    public void recordThroughput(String host, int port, long bytes, long elapsedNanos) {
+        if (bytes < MIN_THROUGHPUT_SAMPLE_BYTES || elapsedNanos <= 0) {
+            return;
+        }
+        PATHS.computeIfAbsent(key(host, port), k -> new PathEstimate())
+             .onThroughput(bytes * 1e9 / elapsedNanos);
+    }
+
+    /**
+     * 连接实际生效的设置（缓冲区大小为操作系统报告的值，Linux 会将设置值加倍）
+     * @param host 对端，用于取得往返时间和带宽估计；为 null 表示未知（服务器端）
+     */
+    public Settings describe(Socket socket, String host, int port) throws IOException {
+        PathEstimate path = host != null ? PATHS.get(key(host, port)) : null;
+        long rtt = path != null ? path.rttNanos : -1;
+        long bdp = path != null && rtt > 0 ? (long) (path.bandwidth() * rtt / 1e9) : -1;
+        int requested = host != null ? bufferSize(path) : profile.bufferSize();
+        return new Settings(profile, socket.getTcpNoDelay(), socket.getKeepAlive(),
+                socket.getSendBufferSize(), socket.getReceiveBufferSize(), requested, rtt, bdp);
+    }
+
+    /**
+     * 缓冲区大小，0 表示不设置
+     */
+    private int bufferSize(PathEstimate path) {
+        if (profile != TransportProfile.AUTO) {
+            return profile.bufferSize();
+        }
+        if (path == null || path.rttNanos <= 0) {
+            return 0;
+        }
+        double size = 2 * path.bandwidth() * path.rttNanos / 1e9;
+        return size < MIN_EXPLICIT_BUFFER ? 0 : (int) Math.min(MAX_BUFFER, size);
+    }
+
+    private static String key(String host, int port) {
+        return host + ":" + port;
+    }
+
+    /**
+     * 到一个目的地址的往返时间和带宽估计
+     */
+    private static final class PathEstimate {
+        volatile long rttNanos = -1;
+        volatile double observedBandwidth;
+        private long rttStamp;
+
+        synchronized void onRtt(long sample) {
+            long now = System.nanoTime();
+            if (rttNanos < 0 || sample <= rttNanos || now - rttStamp > RTT_WINDOW_NANOS) {
+                rttNanos = sample;
+                rttStamp = now;
+            }
+        }
+
+        synchronized void onThroughput(double bytesPerSecond) {
+            // 取近期最大值并缓慢衰减：单次传输常常受限于磁盘或对端，不代表链路带宽
+            observedBandwidth = Math.max(observedBandwidth * 0.9, bytesPerSecond);
+        }
+
+        double bandwidth() {
+            return Math.max(NOMINAL_BANDWIDTH, observedBandwidth);
+        }
+    }
+
+    /**
+     * 一个连接实际使用的套接字设置，用于输出到传输指标中
+     */
+    public static final class Settings {
+        private final TransportProfile profile;
+        private final boolean noDelay;
+        private final boolean keepAlive;
+        private final int sendBuffer;
+        private final int receiveBuffer;
+        private final int requestedBuffer;
+        private final long rttNanos;
+        private final long bdpBytes;
+
+        Settings(TransportProfile profile, boolean noDelay, boolean keepAlive, int sendBuffer, int receiveBuffer,
+                 int requestedBuffer, long rttNanos, long bdpBytes) {
+            this.profile = profile;
+            this.noDelay = noDelay;
+            this.keepAlive = keepAlive;
+            this.sendBuffer = sendBuffer;
+            this.receiveBuffer = receiveBuffer;
+            this.requestedBuffer = requestedBuffer;
+            this.rttNanos = rttNanos;
+            this.bdpBytes = bdpBytes;
+        }
+
+        public TransportProfile getProfile() {
+            return profile;
+        }
+
+        public int getSendBuffer() {
+            return sendBuffer;
+        }
+
+        public int getReceiveBuffer() {
+            return receiveBuffer;
+        }
+
+        /**
+         * 往返时间估计（纳秒），-1 表示未知
+         */
+        public long getRttNanos() {
+            return rttNanos;
+        }
+
+        /**
+         * 带宽时延积估计（字节），-1 表示未知
+         */
+        public long getBdpBytes() {
+            return bdpBytes;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("配置 ").append(profile)
+                    .append(": TCP_NODELAY=").append(noDelay ? "开" : "关")
+                    .append(", 保活=").append(keepAlive ? "开" : "关")
+                    .append(", SO_SNDBUF=").append(formatBytes(sendBuffer))
+                    .append(", SO_RCVBUF=").append(formatBytes(receiveBuffer));
+            if (requestedBuffer == 0) {
+                sb.append("（内核自动调整）");
+            } else if (Math.min(sendBuffer, receiveBuffer) < requestedBuffer) {
+                sb.append("（请求 ").append(formatBytes(requestedBuffer))
+                  .append("，受系统上限 net.core.wmem_max/rmem_max 限制）");
+            }
+            if (rttNanos > 0) {
+                sb.append(String.format(", 往返 %.2f ms", rttNanos / 1e6));
+            }
+            if (bdpBytes >= 0) {
+                sb.append(", 带宽时延积 ").append(formatBytes(bdpBytes));
+            }
+            return sb.toString();
+        }
+
+        private static String formatBytes(long bytes) {
+            if (bytes >= 1024 * 1024) {
+                return String.format("%.1fMB", bytes / (1024.0 * 1024));
+            }
+            return String.format("%.0fKB", bytes / 1024.0);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "套接字配置方案 " + profile;
+    }
+}
@@ -0,0 +1,632 @@
+package com.networkdesign.transport;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 基于 SSLEngine 的 TLS 通道
+ * 同一套实现同时用于阻塞连接（FileTransferClient、FileTransferServer，通过 getInputStream/getOutputStream）
+ * 和非阻塞 SocketChannel（AsyncTransfer）：底层通道非阻塞时 handshake、read、write 在无法继续时返回，
+ * 由调用方在通道就绪后再次调用。
+ *
+ * 缓冲区从 TlsContext 的缓冲区池中取得，关闭时归还；协议消息按帧写出，
+ * 每次刷新产生一个 TLS 记录（一个 8KB 数据包正好是一个记录），服务器发送文件数据时只在最后刷新，
+ * 相邻的数据包合并成 16KB 的记录；非阻塞写入时多个排队的帧合并成不超过 16KB 的记录
+ */
+public final class TlsChannel implements ByteChannel {
+    private static final ByteBuffer[] NO_DATA = {ByteBuffer.allocate(0)};
+    private static final int MAX_RECORD_PLAINTEXT = 16 * 1024;
+
+    private final TlsContext context;
+    private final SSLEngine engine;
+    private final ReadableByteChannel source;
+    private final WritableByteChannel sink;
+    private ByteBuffer netIn;       // 读模式：已收到尚未解密的数据
+    private ByteBuffer netOut;      // 读模式：已加密尚未发出的数据
+    private ByteBuffer appIn;       // 读模式：已解密尚未交付的数据
+    private ByteBuffer plainOut;    // 输出流的明文缓冲区（写模式），首次使用时分配
+    private long handshakeStart;
+    private boolean handshakeDone;
+    private boolean resumed;
+    private boolean inboundClosed;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final AtomicBoolean released = new AtomicBoolean();
+    private final AtomicInteger users = new AtomicInteger();  // 正在使用缓冲区的调用数，归零后才能归还缓冲区
+
+    private TlsChannel(TlsContext context, SSLEngine engine, ReadableByteChannel source, WritableByteChannel sink) {
+        this.context = context;
+        this.engine = engine;
+        this.source = source;
+        this.sink = sink;
+        SSLSession session = engine.getSession();
+        BufferPool pool = context.buffers();
+        this.netIn = pool.acquire(session.getPacketBufferSize()).flip();
+        this.netOut = pool.acquire(session.getPacketBufferSize()).flip();
+        this.appIn = pool.acquire(session.getApplicationBufferSize()).flip();
+    }
+
+    /**
+     * 客户端通道，握手由 handshake 完成
+     * @param host 服务器主机名，用于恢复会话和校验证书
+     */
+    public static TlsChannel client(TlsContext context, String host, int port,
+                                    ReadableByteChannel source, WritableByteChannel sink) {
+        return new TlsChannel(context, context.newEngine(host, port, true), source, sink);
+    }
+
+    /**
+     * 服务器端通道，握手由 handshake 完成
+     */
+    public static TlsChannel server(TlsContext context, ReadableByteChannel source, WritableByteChannel sink) {
+        return new TlsChannel(context, context.newEngine(null, -1, false), source, sink);
+    }
+
+    /**
+     * 在已建立的阻塞连接（TCP 套接字或 UdpSocket 的输入输出流）上作为客户端完成握手
+     */
+    public static TlsChannel connect(TlsContext context, InputStream in, OutputStream out,
+                                     String host, int port) throws IOException {
+        StreamChannel stream = new StreamChannel(in, out);
+        return handshakeOrRelease(client(context, host, port, stream, stream));
+    }
+
+    /**
+     * 在已接受的阻塞连接上作为服务器完成握手
+     * @param in 连接的输入流（服务器可能已经从中预读了一个字节，见 FileTransferServer）
+     */
+    public static TlsChannel accept(TlsContext context, InputStream in, OutputStream out) throws IOException {
+        StreamChannel stream = new StreamChannel(in, out);
+        return handshakeOrRelease(server(context, stream, stream));
+    }
+
+    private static TlsChannel handshakeOrRelease(TlsChannel channel) throws IOException {
+        try {
+            channel.handshake();
+            return channel;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * 推进握手
+     * @return 握手已完成时返回 true；底层通道非阻塞且暂时无法读写时返回 false，
+     *         此时 hasPendingOutput 为 true 表示等待可写，否则等待可读
+     */
+    public boolean handshake() throws IOException {
+        enter();
+        try {
+            return doHandshake();
+        } finally {
+            exit();
+        }
+    }
+
+    private boolean doHandshake() throws IOException {
+        if (handshakeDone) {
+            return true;
+        }
+        if (handshakeStart == 0) {
+            handshakeStart = System.currentTimeMillis();
+            engine.beginHandshake();
+        }
+        // 同一轮的多条握手消息积累在 netOut 中一起发出，只在需要等待对端时才发送，避免小包
+        while (true) {
+            switch (engine.getHandshakeStatus()) {
+                case NEED_TASK:
+                    runDelegatedTasks();
+                    break;
+                case NEED_WRAP:
+                    SSLEngineResult result = wrap(NO_DATA);
+                    if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        throw new SSLException("TLS 握手时连接被关闭");
+                    }
+                    if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW && !flushPending()) {
+                        return false;
+                    }
+                    break;
+                case NEED_UNWRAP:
+                case NEED_UNWRAP_AGAIN:
+                    if (inboundClosed) {
+                        throw new SSLException("TLS 握手时连接被关闭");
+                    }
+                    if (!unwrap()) {
+                        if (!flushPending()) {
+                            return false;
+                        }
+                        int n = fill();
+                        if (n < 0) {
+                            throw new EOFException("TLS 握手时连接被对端关闭");
+                        }
+                        if (n == 0) {
+                            return false;
+                        }
+                    }
+                    break;
+                default:
+                    if (!flushPending()) {
+                        return false;
+                    }
+                    handshakeDone = true;
+                    SSLSession session = engine.getSession();
+                    // 恢复的会话沿用原会话的创建时间
+                    resumed = session.getCreationTime() < handshakeStart;
+                    context.recordHandshake(resumed);
+                    return true;
+            }
+        }
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        enter();
+        try {
+            if (!doHandshake()) {
+                return 0;
+            }
+            while (!appIn.hasRemaining()) {
+                if (inboundClosed) {
+                    return -1;
+                }
+                if (netIn.hasRemaining() && unwrap()) {
+                    handlePostHandshake();
+                    continue;
+                }
+                int n = fill();
+                if (n < 0) {
+                    return -1; // 对端没有发送 close_notify 就关闭了连接
+                }
+                if (n == 0) {
+                    return 0;
+                }
+            }
+            int count = Math.min(appIn.remaining(), dst.remaining());
+            ByteBuffer chunk = appIn.duplicate();
+            chunk.limit(chunk.position() + count);
+            dst.put(chunk);
+            appIn.position(appIn.position() + count);
+            return count;
+        } finally {
+            exit();
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        return (int) write(new ByteBuffer[] {src});
+    }
+
+    /**
+     * 加密并发送多个缓冲区中的数据，相邻的小缓冲区合并到同一个记录中
+     * @return 已加密的明文字节数；底层通道非阻塞时可能只写入一部分，剩余的密文由 flush 继续发送
+     */
+    public long write(ByteBuffer[] srcs) throws IOException {
+        enter();
+        try {
+            return doWrite(srcs);
+        } finally {
+            exit();
+        }
+    }
+
+    private long doWrite(ByteBuffer[] srcs) throws IOException {
+        if (!doHandshake()) {
+            return 0;
+        }
+        long total = 0;
+        while (hasRemaining(srcs) && flushPending()) {
+            SSLEngineResult result = wrap(srcs);
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new SSLException("TLS 连接已关闭");
+            }
+            total += result.bytesConsumed();
+        }
+        flushPending();
+        return total;
+    }
+
+    /**
+     * 继续发送已加密的数据
+     * @return 全部发出时返回 true
+     */
+    public boolean flush() throws IOException {
+        enter();
+        try {
+            return flushPending();
+        } finally {
+            exit();
+        }
+    }
+
+    public boolean hasPendingOutput() {
+        return netOut.hasRemaining();
+    }
+
+    /**
+     * 是否还有已从底层通道读入、尚未交付的数据
+     * 非阻塞读取时这部分数据不会再触发选择器，调用方需要继续读取
+     */
+    public boolean hasBufferedInput() {
+        return appIn.hasRemaining() || netIn.hasRemaining();
+    }
+
+    public boolean isHandshakeComplete() {
+        return handshakeDone;
+    }
+
+    /**
+     * 握手是否恢复了之前的会话
+     */
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !closed.get();
+    }
+
+    /**
+     * 发送 close_notify 并归还缓冲区，不关闭底层通道
+     * 其他线程正在读写时（中止传输）不发送 close_notify，缓冲区在它们退出后归还
+     */
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        if (users.incrementAndGet() == 1 && handshakeDone) {
+            try {
+                if (plainOut != null && plainOut.position() > 0) {
+                    drainPlainOut();
+                }
+                engine.closeOutbound();
+                while (!engine.isOutboundDone() && flushPending()) {
+                    wrap(NO_DATA);
+                }
+                flushPending();
+            } catch (IOException e) {
+                // 对端可能已经关闭连接
+            }
+        }
+        if (users.decrementAndGet() == 0) {
+            releaseBuffers();
+        }
+    }
+
+    @Override
+    public String toString() {
+        SSLSession session = engine.getSession();
+        return session.getProtocol() + " " + session.getCipherSuite() + (resumed ? "（恢复会话）" : "（完整握手）");
+    }
+
+    /**
+     * 阻塞方式读取的输入流
+     */
+    public InputStream getInputStream() {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                int n;
+                do {
+                    n = TlsChannel.this.read(ByteBuffer.wrap(b, off, len));
+                } while (n == 0);
+                return n;
+            }
+
+            /**
+             * 已解密的数据读完时，先解密底层流中已经到达的记录（不阻塞），
+             * 否则不主动读取的调用方（乐观上传检查提前拒绝）永远看不到对端发来的消息
+             */
+            @Override
+            public int available() throws IOException {
+                if (!isOpen()) {
+                    return 0;
+                }
+                decryptArrived();
+                return appIn.remaining();
+            }
+
+            @Override
+            public void close() {
+                TlsChannel.this.close();
+            }
+        };
+    }
+
+    /**
+     * 阻塞方式写入的输出流
+     * 写入的数据先积累在明文缓冲区中，缓冲区满（一个最大记录）或 flush 时才加密发送，
+     * 避免消息头和消息数据各自成为一个记录
+     */
+    public OutputStream getOutputStream() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                enter();
+                try {
+                    if (plainOut == null) {
+                        plainOut = context.buffers().acquire(MAX_RECORD_PLAINTEXT);
+                    }
+                    if (plainOut.position() == 0 && len >= MAX_RECORD_PLAINTEXT) {
+                        writeFully(ByteBuffer.wrap(b, off, len)); // 大块数据直接加密，省去一次复制
+                        return;
+                    }
+                    while (len > 0) {
+                        int n = Math.min(len, plainOut.remaining());
+                        plainOut.put(b, off, n);
+                        off += n;
+                        len -= n;
+                        if (!plainOut.hasRemaining()) {
+                            drainPlainOut();
+                        }
+                    }
+                } finally {
+                    exit();
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                enter();
+                try {
+                    if (plainOut != null && plainOut.position() > 0) {
+                        drainPlainOut();
+                    }
+                } finally {
+                    exit();
+                }
+            }
+
+            @Override
+            public void close() {
+                TlsChannel.this.close();
+            }
+        };
+    }
+
+    /**
+     * 解密底层阻塞流中已经到达的数据，直到得到明文或没有更多已到达的数据
+     */
+    private void decryptArrived() throws IOException {
+        enter();
+        try {
+            while (handshakeDone && !appIn.hasRemaining() && !inboundClosed) {
+                if (netIn.hasRemaining() && unwrap()) {
+                    handlePostHandshake();
+                    continue;
+                }
+                if (!(source instanceof StreamChannel) || ((StreamChannel) source).available() <= 0 || fill() <= 0) {
+                    return;
+                }
+            }
+        } finally {
+            exit();
+        }
+    }
+
+    private void drainPlainOut() throws IOException {
+        plainOut.flip();
+        try {
+            writeFully(plainOut);
+        } finally {
+            plainOut.clear();
+        }
+    }
+
+    private void writeFully(ByteBuffer data) throws IOException {
+        ByteBuffer[] srcs = {data};
+        while (data.hasRemaining()) {
+            if (doWrite(srcs) == 0 && data.hasRemaining()) {
+                throw new IOException("TLS 写入没有进展（输出流只能用于阻塞通道）");
+            }
+        }
+    }
+
+    /**
+     * 解密 netIn 中的一个记录
+     * @return 需要更多网络数据时返回 false
+     */
+    private boolean unwrap() throws IOException {
+        SSLEngineResult result;
+        appIn.compact();
+        try {
+            result = engine.unwrap(netIn, appIn);
+        } finally {
+            appIn.flip();
+        }
+        switch (result.getStatus()) {
+            case BUFFER_UNDERFLOW:
+                return false;
+            case BUFFER_OVERFLOW:
+                // 会话协商出更大的记录：只在 appIn 为空时才会发生（先交付再解密）
+                appIn = grow(appIn, engine.getSession().getApplicationBufferSize() + appIn.remaining());
+                return true;
+            case CLOSED:
+                inboundClosed = true;
+                return true;
+            default:
+                return true;
+        }
+    }
+
+    private SSLEngineResult wrap(ByteBuffer[] srcs) throws IOException {
+        SSLEngineResult result;
+        netOut.compact();
+        try {
+            result = engine.wrap(srcs, netOut);
+        } finally {
+            netOut.flip();
+        }
+        if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW && !netOut.hasRemaining()) {
+            // 没有待发数据仍然放不下：会话协商出了更大的记录
+            netOut = grow(netOut, engine.getSession().getPacketBufferSize());
+        }
+        return result;
+    }
+
+    /**
+     * 从底层通道读入更多密文
+     * @return 读到的字节数，-1 表示连接已关闭
+     */
+    private int fill() throws IOException {
+        int packetSize = engine.getSession().getPacketBufferSize();
+        if (netIn.capacity() < packetSize) {
+            netIn = grow(netIn, packetSize);
+        }
+        netIn.compact();
+        try {
+            return source.read(netIn);
+        } finally {
+            netIn.flip();
+        }
+    }
+
+    private boolean flushPending() throws IOException {
+        while (netOut.hasRemaining()) {
+            if (sink.write(netOut) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 握手完成后对端发起的消息（TLS 1.3 密钥更新等）
+     */
+    private void handlePostHandshake() throws IOException {
+        SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+        if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+            runDelegatedTasks();
+        }
+        if (engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+            wrap(NO_DATA);
+            flushPending();
+        }
+    }
+
+    private void runDelegatedTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * 换成更大的缓冲区（保留读模式下的未读数据），旧缓冲区不归还给池
+     */
+    private static ByteBuffer grow(ByteBuffer buffer, int capacity) {
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(capacity, buffer.capacity()));
+        larger.put(buffer).flip();
+        return larger;
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] buffers) {
+        for (ByteBuffer buffer : buffers) {
+            if (buffer.hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void enter() throws IOException {
+        users.incrementAndGet();
+        if (closed.get()) {
+            exit();
+            throw new ClosedChannelException();
+        }
+    }
+
+    private void exit() {
+        if (users.decrementAndGet() == 0 && closed.get()) {
+            releaseBuffers();
+        }
+    }
+
+    private void releaseBuffers() {
+        if (!released.compareAndSet(false, true)) {
+            return;
+        }
+        BufferPool pool = context.buffers();
+        pool.release(netIn);
+        pool.release(netOut);
+        pool.release(appIn);
+        pool.release(plainOut);
+    }
+
+    /**
+     * 阻塞连接的输入输出流适配为通道，直接读写缓冲区的底层数组
+     */
+    private static final class StreamChannel implements ByteChannel {
+        private final InputStream in;
+        private final OutputStream out;
+
+        StreamChannel(InputStream in, OutputStream out) {
+            this.in = in;
+            this.out = out;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            int n = in.read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+            if (n > 0) {
+                dst.position(dst.position() + n);
+            }
+            return n;
+        }
+
+        /**
+         * 不阻塞即可读取的字节数（TCP 套接字和 UdpSocket 的输入流都按已到达的数据计算）
+         */
+        int available() throws IOException {
+            return in.available();
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int n = src.remaining();
+            out.write(src.array(), src.arrayOffset() + src.position(), n);
+            out.flush(); // UdpSocket 的输出流在刷新时才发出不满一个数据包的数据
+            src.position(src.limit());
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.networkdesign.transport;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * TLS 配置，整个进程共用一个实例
+ * 会话缓存保存在其中：客户端每次操作都重新连接，只有共用同一个 TlsContext，
+ * 重连时才能恢复之前的会话（TLS 1.3 会话票据 / TLS 1.2 会话 ID），省去证书交换和签名验证。
+ * 加密套件优先选择 AES-GCM，在支持 AES-NI 的处理器上由硬件指令完成
+ */
+public final class TlsContext {
+    private static final String[] PROTOCOLS = {"TLSv1.3", "TLSv1.2"};
+    private static final String[] PREFERRED_CIPHER_SUITES = {
+            "TLS_AES_128_GCM_SHA256",
+            "TLS_AES_256_GCM_SHA384",
+            "TLS_CHACHA20_POLY1305_SHA256",
+            "TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256",
+            "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256",
+            "TLS_ECDHE_ECDSA_WITH_AES_256_GCM_SHA384",
+            "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384",
+    };
+    private static final int SESSION_TIMEOUT_SECONDS = 3600;
+    private static final int SESSION_CACHE_SIZE = 10_000;
+
+    private final SSLContext context;
+    private final String[] cipherSuites;
+    private final BufferPool buffers = new BufferPool();
+    private final AtomicLong fullHandshakes = new AtomicLong();
+    private final AtomicLong resumedHandshakes = new AtomicLong();
+
+    private TlsContext(SSLContext context) {
+        this.context = context;
+        context.getClientSessionContext().setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+        context.getClientSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
+        context.getServerSessionContext().setSessionTimeout(SESSION_TIMEOUT_SECONDS);
+        context.getServerSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
+        List<String> supported = Arrays.asList(context.getSupportedSSLParameters().getCipherSuites());
+        List<String> preferred = new ArrayList<>();
+        for (String suite : PREFERRED_CIPHER_SUITES) {
+            if (supported.contains(suite)) {
+                preferred.add(suite);
+            }
+        }
+        this.cipherSuites = preferred.toArray(new String[0]);
+    }
+
+    /**
+     * 服务器端配置
+     * @param keyStore 保存服务器私钥和证书的密钥库（PKCS12 或 JKS）
+     */
+    public static TlsContext forServer(Path keyStore, char[] password) throws IOException {
+        return create(keyStore, password, null, null);
+    }
+
+    /**
+     * 客户端配置
+     * @param trustStore 信任的证书库，为 null 时使用 JDK 默认的 CA 证书
+     */
+    public static TlsContext forClient(Path trustStore, char[] password) throws IOException {
+        return create(null, null, trustStore, password);
+    }
+
+    /**
+     * @param keyStore 本端证书，为 null 表示不提供证书（客户端）
+     * @param trustStore 信任的证书库，为 null 时使用 JDK 默认的 CA 证书
+     */
+    public static TlsContext create(Path keyStore, char[] keyPassword, Path trustStore, char[] trustPassword)
+            throws IOException {
+        try {
+            KeyManagerFactory keyManagers = null;
+            if (keyStore != null) {
+                keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+                keyManagers.init(KeyStore.getInstance(keyStore.toFile(), keyPassword), keyPassword);
+            }
+            TrustManagerFactory trustManagers = null;
+            if (trustStore != null) {
+                trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+                trustManagers.init(KeyStore.getInstance(trustStore.toFile(), trustPassword));
+            }
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keyManagers != null ? keyManagers.getKeyManagers() : null,
+                    trustManagers != null ? trustManagers.getTrustManagers() : null, null);
+            return new TlsContext(context);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("无法初始化 TLS: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 创建 SSLEngine
+     * 客户端按对端主机和端口创建，JSSE 据此在会话缓存中查找可以恢复的会话，并校验证书中的主机名
+     */
+    SSLEngine newEngine(String host, int port, boolean client) {
+        SSLEngine engine = client ? context.createSSLEngine(host, port) : context.createSSLEngine();
+        engine.setUseClientMode(client);
+        SSLParameters parameters = engine.getSSLParameters();
+        parameters.setProtocols(PROTOCOLS);
+        if (cipherSuites.length > 0) {
+            parameters.setCipherSuites(cipherSuites);
+        }
+        parameters.setUseCipherSuitesOrder(true);
+        if (client) {
+            parameters.setEndpointIdentificationAlgorithm("HTTPS");
+        }
+        engine.setSSLParameters(parameters);
+        return engine;
+    }
+
+    BufferPool buffers() {
+        return buffers;
+    }
+
+    void recordHandshake(boolean resumed) {
+        (resumed ? resumedHandshakes : fullHandshakes).incrementAndGet();
+    }
+
+    /**
+     * 完整握手次数
+     */
+    public long getFullHandshakes() {
+        return fullHandshakes.get();
+    }
+
+    /**
+     * 恢复会话的握手次数
+     */
+    public long getResumedHandshakes() {
+        return resumedHandshakes.get();
+    }
+}
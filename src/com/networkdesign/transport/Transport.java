@@ -0,0 +1,22 @@
+package com.networkdesign.transport;
+
+/**
+ * 客户端与服务器之间的传输方式
+ */
+public enum Transport {
+    /** 普通 TCP 连接 */
+    TCP,
+    /** 基于 UDP 的可靠传输（见 UdpSocket），适合高延迟、有随机丢包的长距离链路 */
+    UDP;
+
+    /**
+     * 解析命令行参数中的传输方式（不区分大小写）
+     */
+    public static Transport parse(String value) {
+        try {
+            return valueOf(value.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("无效的传输方式: " + value + "（可选 tcp、udp）");
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.networkdesign.transport;
+
+/**
+ * TCP 套接字配置方案
+ * 所有方案都关闭 Nagle 算法：协议消息在写完一帧后立即刷新，FILE_INFO、TRANSFER_COMPLETE 等小消息
+ * 若被 Nagle 扣住，会与对端的延迟确认叠加出约 40ms 的停顿；数据帧本身已经足够大，合并没有收益
+ */
+public enum TransportProfile {
+    /** 交互式：小请求为主，使用系统默认缓冲区（Linux 下由内核自动调整） */
+    INTERACTIVE(0, 50),
+    /** 局域网批量传输：1MB 缓冲区，约为 10Gbit/s、0.4ms 往返时间的带宽时延积的两倍 */
+    BULK_LAN(1024 * 1024, 1024),
+    /** 广域网批量传输：32MB 缓冲区，约为 1Gbit/s、120ms 往返时间的带宽时延积的两倍 */
+    BULK_WAN(32 * 1024 * 1024, 1024),
+    /** 按连接时测得的往返时间和观测到的带宽估算带宽时延积，再据此设置缓冲区 */
+    AUTO(0, 1024);
+
+    private final int bufferSize;
+    private final int backlog;
+
+    TransportProfile(int bufferSize, int backlog) {
+        this.bufferSize = bufferSize;
+        this.backlog = backlog;
+    }
+
+    /**
+     * 固定的收发缓冲区大小，0 表示不设置（AUTO 方案在连接时计算）
+     */
+    int bufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * 服务器的连接队列长度
+     */
+    int backlog() {
+        return backlog;
+    }
+
+    /**
+     * 解析命令行参数中的方案名，例如 interactive、bulk-lan、bulk-wan、auto
+     */
+    public static TransportProfile parse(String value) {
+        try {
+            return valueOf(value.trim().toUpperCase().replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("无效的传输配置方案: " + value + "（可选 interactive、bulk-lan、bulk-wan、auto）");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name().toLowerCase().replace('_', '-');
+    }
+}
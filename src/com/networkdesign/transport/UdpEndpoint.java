@@ -0,0 +1,283 @@
+package com.networkdesign.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 一个 UDP 端口及其 I/O 线程
+ * 端口上的所有连接共用一个线程：接收数据包并按 (对端地址, 连接号) 分发给连接，驱动各连接的定时器，
+ * 并按各连接的发送速率（步调）发出数据包。应用线程只读写连接的缓冲区，从不直接收发数据包
+ */
+final class UdpEndpoint implements Closeable {
+    private static final long MAX_IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final int SOCKET_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final Impairment impairment;
+    private final Random random = new Random();
+    private final Map<Key, UdpSocket> connections = new ConcurrentHashMap<>();
+    private final BlockingQueue<UdpSocket> acceptQueue;  // 为 null 表示客户端端口
+    private final PriorityQueue<DelayedPacket> delayed = new PriorityQueue<>();
+    private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(UdpPacket.MAX_DATAGRAM + 64);
+    private final Thread thread;
+    private volatile boolean open = true;
+
+    /**
+     * @param bind 绑定地址，为 null 时绑定临时端口
+     * @param accept 是否接受对端发起的连接（服务器）
+     */
+    UdpEndpoint(InetSocketAddress bind, boolean accept, Impairment impairment) throws IOException {
+        this.channel = DatagramChannel.open();
+        try {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER_SIZE);
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_BUFFER_SIZE);
+            channel.bind(bind);
+            channel.configureBlocking(false);
+            this.selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        this.impairment = impairment;
+        this.acceptQueue = accept ? new LinkedBlockingQueue<>() : null;
+        this.thread = new Thread(this::run, "udp-endpoint-" + getLocalPort());
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    int getLocalPort() {
+        try {
+            return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    void register(UdpSocket socket) {
+        connections.put(new Key(socket.getRemoteAddress(), socket.getConnectionId()), socket);
+        wakeup();
+    }
+
+    /**
+     * 等待对端发起的连接
+     */
+    UdpSocket accept() throws IOException {
+        try {
+            while (open) {
+                UdpSocket socket = acceptQueue.poll(100, TimeUnit.MILLISECONDS);
+                if (socket != null) {
+                    return socket;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        throw new IOException("UDP 端口已关闭");
+    }
+
+    /**
+     * 有新数据待发送时唤醒 I/O 线程
+     */
+    void wakeup() {
+        selector.wakeup();
+    }
+
+    /**
+     * 发送一个数据包（只在 I/O 线程中调用），按链路损伤设置丢弃或延迟
+     */
+    void send(ByteBuffer packet, SocketAddress to) throws IOException {
+        if (impairment.drop(random)) {
+            return;
+        }
+        long delay = impairment.delay(random);
+        if (delay > 0) {
+            ByteBuffer copy = ByteBuffer.allocate(packet.remaining());
+            copy.put(packet).flip();
+            delayed.add(new DelayedPacket(System.nanoTime() + delay, copy, to));
+            return;
+        }
+        // 发送缓冲区满时 send 返回0，与链路丢包一样由重传处理
+        channel.send(packet, to);
+    }
+
+    /**
+     * I/O 线程中发送用的缓冲区
+     */
+    ByteBuffer sendBuffer() {
+        sendBuffer.clear();
+        return sendBuffer;
+    }
+
+    boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() {
+        if (!open) {
+            return;
+        }
+        open = false;
+        selector.wakeup();
+        if (Thread.currentThread() != thread) {
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void run() {
+        ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(64 * 1024);
+        try {
+            while (open) {
+                long now = System.nanoTime();
+                long next = now + MAX_IDLE_NANOS;
+                for (Map.Entry<Key, UdpSocket> entry : connections.entrySet()) {
+                    UdpSocket socket = entry.getValue();
+                    next = Math.min(next, socket.onTimer(now));
+                    if (socket.isFinished()) {
+                        connections.remove(entry.getKey());
+                        if (acceptQueue == null && connections.isEmpty()) {
+                            open = false; // 客户端端口随唯一的连接一起关闭
+                        }
+                    }
+                }
+                next = Math.min(next, flushDelayed(now));
+
+                long wait = next - System.nanoTime();
+                if (wait > TimeUnit.MILLISECONDS.toNanos(1)) {
+                    selector.select(TimeUnit.NANOSECONDS.toMillis(wait));
+                } else {
+                    selector.selectNow();
+                    if (wait > 0) {
+                        LockSupport.parkNanos(Math.min(wait, SPIN_NANOS));
+                    }
+                }
+                selector.selectedKeys().clear();
+
+                SocketAddress from;
+                while ((from = channel.receive(receiveBuffer)) != null) {
+                    receiveBuffer.flip();
+                    dispatch(receiveBuffer, from, System.nanoTime());
+                    receiveBuffer.clear();
+                }
+            }
+        } catch (IOException e) {
+            if (open) {
+                System.err.println("UDP 端口 I/O 错误: " + e.getMessage());
+            }
+        } finally {
+            open = false;
+            for (UdpSocket socket : connections.values()) {
+                socket.fail(new IOException("UDP 端口已关闭"));
+            }
+            connections.clear();
+            try {
+                selector.close();
+                channel.close();
+            } catch (IOException e) {
+                // 忽略关闭时的异常
+            }
+        }
+    }
+
+    private void dispatch(ByteBuffer packet, SocketAddress from, long now) throws IOException {
+        if (packet.remaining() < UdpPacket.HEADER_SIZE) {
+            return;
+        }
+        byte type = packet.get();
+        int connectionId = packet.getInt();
+        Key key = new Key(from, connectionId);
+        UdpSocket socket = connections.get(key);
+        if (socket == null) {
+            if (type == UdpPacket.SYN && acceptQueue != null) {
+                socket = new UdpSocket(this, from, connectionId, false, now);
+                connections.put(key, socket);
+                acceptQueue.add(socket);
+            } else {
+                if (type != UdpPacket.RST) {
+                    ByteBuffer reset = sendBuffer();
+                    reset.put(UdpPacket.RST).putInt(connectionId).flip();
+                    send(reset, from);
+                }
+                return;
+            }
+        }
+        socket.onPacket(type, packet, now);
+    }
+
+    /**
+     * 发出到期的延迟数据包
+     * @return 下一个延迟数据包的到期时间
+     */
+    private long flushDelayed(long now) throws IOException {
+        DelayedPacket head;
+        while ((head = delayed.peek()) != null && head.due <= now) {
+            delayed.poll();
+            channel.send(head.packet, head.to);
+        }
+        return head != null ? head.due : Long.MAX_VALUE;
+    }
+
+    private static final class Key {
+        private final SocketAddress address;
+        private final int connectionId;
+
+        Key(SocketAddress address, int connectionId) {
+            this.address = address;
+            this.connectionId = connectionId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return connectionId == other.connectionId && address.equals(other.address);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(address, connectionId);
+        }
+    }
+
+    private static final class DelayedPacket implements Comparable<DelayedPacket> {
+        final long due;
+        final ByteBuffer packet;
+        final SocketAddress to;
+
+        DelayedPacket(long due, ByteBuffer packet, SocketAddress to) {
+            this.due = due;
+            this.packet = packet;
+            this.to = to;
+        }
+
+        @Override
+        public int compareTo(DelayedPacket other) {
+            return Long.compare(due, other.due);
+        }
+    }
+}
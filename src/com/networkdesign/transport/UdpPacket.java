@@ -0,0 +1,37 @@
+package com.networkdesign.transport;
+
+/**
+ * UDP 传输的数据包格式
+ * 所有数据包以 类型(1字节) + 连接号(4字节) 开头，其后按类型：
+ * <pre>
+ * SYN      发送时间(8)                                    客户端发起连接
+ * SYN_ACK  回显的 SYN 发送时间(8)                          服务器接受连接
+ * DATA     标志(1) 序号(8) 发送时间(8) 数据                 FIN 标志表示发送方向结束，随数据按序可靠送达；
+ *                                                         RETRANSMIT 标志表示重传，接收方据此区分乱序和重传
+ * ACK      累计确认(8) 回显发送时间(8) 确认延迟(4) 接收窗口(4) 区间数(1) [起(8) 止(8)]...
+ * NAK      区间数(2) [起(8) 止(8)]...                      请求重传的序号区间（左闭右开）
+ * RST      （无）                                          连接不存在或已中止
+ * </pre>
+ * 时间均为发送方本地的微秒时钟，只用于计算往返时间，两端时钟无需同步
+ */
+final class UdpPacket {
+    static final byte SYN = 1;
+    static final byte SYN_ACK = 2;
+    static final byte DATA = 3;
+    static final byte ACK = 4;
+    static final byte NAK = 5;
+    static final byte RST = 6;
+
+    static final byte FLAG_FIN = 1;
+    static final byte FLAG_RETRANSMIT = 2;
+
+    static final int HEADER_SIZE = 5;                        // 类型 + 连接号
+    static final int DATA_HEADER_SIZE = HEADER_SIZE + 17;    // 标志 + 序号 + 发送时间
+    static final int MAX_PAYLOAD = 1200;                     // 每个数据包的数据量，保证不超过常见路径的 MTU
+    static final int MAX_ACK_RANGES = 16;                    // ACK 中携带的选择确认区间数上限
+    static final int MAX_NAK_RANGES = 64;                    // NAK 中携带的区间数上限
+    static final int MAX_DATAGRAM = DATA_HEADER_SIZE + MAX_PAYLOAD;
+
+    private UdpPacket() {
+    }
+}
@@ -0,0 +1,39 @@
+package com.networkdesign.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+/**
+ * UDP 传输的监听端口，用法与 ServerSocket 相同
+ */
+public final class UdpServerSocket implements Closeable {
+    private final UdpEndpoint endpoint;
+
+    /**
+     * @param impairment 服务器发出数据包的链路损伤（测试用），不需要时为 Impairment.NONE
+     */
+    public UdpServerSocket(int port, Impairment impairment) throws IOException {
+        this.endpoint = new UdpEndpoint(new InetSocketAddress(port), true, impairment);
+    }
+
+    /**
+     * 等待客户端连接，端口关闭时抛出 IOException
+     */
+    public UdpSocket accept() throws IOException {
+        return endpoint.accept();
+    }
+
+    public int getLocalPort() {
+        return endpoint.getLocalPort();
+    }
+
+    public boolean isClosed() {
+        return !endpoint.isOpen();
+    }
+
+    @Override
+    public void close() {
+        endpoint.close();
+    }
+}
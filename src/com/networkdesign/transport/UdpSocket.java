@@ -0,0 +1,882 @@
+package com.networkdesign.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 基于 UDP 的可靠字节流连接，对应用表现为与 TCP 套接字相同的输入输出流，
+ * 因此文件传输协议的消息（包括 FILE_DATA）原样在其上传输。
+ *
+ * 发送端按拥塞控制给出的速率均匀地发出数据包（步调），而不是像 TCP 那样按窗口成批发送；
+ * 接收端每 10 毫秒发送一次带选择确认区间的 ACK，发现序号空洞时发送 NAK（链路有乱序时
+ * 先等待一个根据实测乱序程度调整的时间窗口，避免把乱序当作丢包），
+ * 并在空洞持续存在时每个往返时间重发一次 NAK。发送端收到 NAK 后只重传缺失的数据包，
+ * 长时间没有任何确认时按超时重传。速率控制见 DelayBasedController。
+ *
+ * 所有状态由对象锁保护：I/O 线程处理数据包和定时器，应用线程读写缓冲区并在需要时等待
+ */
+public final class UdpSocket implements Closeable {
+    private static final long ACK_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final int ACK_EVERY_PACKETS = 64;
+    private static final long MIN_NAK_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+    private static final long MAX_REORDER_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final long MIN_RTO_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+    private static final long MAX_RTO_NANOS = TimeUnit.SECONDS.toNanos(4);
+    private static final long INITIAL_RTT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long SYN_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+    private static final long CONNECT_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final long PEER_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(15);
+    private static final long CLOSE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final long MAX_BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+    private static final int MAX_PACKETS_PER_TICK = 64;
+    private static final int SEND_BUFFER_SIZE = 16 * 1024 * 1024;
+    private static final int RECEIVE_BUFFER_SIZE = 16 * 1024 * 1024;
+    private static final int INITIAL_PACKETS_PER_RTT = 32;
+
+    private enum State { CONNECTING, ESTABLISHED, FAILED }
+
+    private final UdpEndpoint endpoint;
+    private final SocketAddress remote;
+    private final int connectionId;
+    private final boolean ownsEndpoint;
+    private final InputStream input = new Input();
+    private final OutputStream output = new Output();
+    private State state;
+    private IOException failure;
+    private long stateSince;
+    private long lastSynNanos;
+
+    // 发送方向
+    private final TreeMap<Long, Outgoing> outstanding = new TreeMap<>();  // 已排队但未确认的数据包
+    private final TreeSet<Long> lossList = new TreeSet<>();               // 待重传的序号
+    private long nextSeq;           // 下一个新数据包的序号
+    private long nextToSend;        // 尚未发送过的最小序号
+    private int inFlight;           // 已发送未确认的数据包数
+    private long bufferedBytes;     // outstanding 中的数据量
+    private final byte[] partial = new byte[UdpPacket.MAX_PAYLOAD];
+    private int partialLength;
+    private boolean outputShutdown;
+    private boolean finAcked;
+    private long peerWindow = RECEIVE_BUFFER_SIZE / UdpPacket.MAX_PAYLOAD;
+    private long nextSendNanos;
+    private long lastProgressNanos;
+    private int rtoBackoff;
+    private DelayBasedController controller;
+    private long srtt = -1;
+    private long rttVar;
+
+    // 接收方向
+    private final TreeMap<Long, Incoming> outOfOrder = new TreeMap<>();
+    private final ArrayDeque<byte[]> readable = new ArrayDeque<>();
+    private int readOffset;
+    private long readableBytes;
+    private long expected;          // 下一个按序交付的序号
+    private long highestReceived = -1;
+    private boolean remoteFin;
+    private long lastPacketTimestamp;
+    private long lastPacketNanos;
+    private boolean ackPending;
+    private int packetsSinceAck;
+    private long lastAckNanos;
+    private long lastNakNanos;
+    private final ArrayDeque<long[]> pendingGaps = new ArrayDeque<>(); // 等待乱序窗口到期的空洞 {起, 止, 发现时间}
+    private long reorderNanos;      // 乱序窗口，0 表示发现空洞立即 NAK
+    private long lastReceiveNanos;
+
+    // 关闭
+    private boolean closed;
+    private long closedNanos;
+    private long lingerUntil = Long.MAX_VALUE;
+
+    // 统计
+    private long packetsSent;
+    private long retransmissions;
+    private long packetsReceived;
+    private long duplicates;
+
+    UdpSocket(UdpEndpoint endpoint, SocketAddress remote, int connectionId, boolean client, long now) {
+        this.endpoint = endpoint;
+        this.remote = remote;
+        this.connectionId = connectionId;
+        this.ownsEndpoint = client;
+        this.state = client ? State.CONNECTING : State.ESTABLISHED;
+        this.stateSince = now;
+        this.lastReceiveNanos = now;
+        this.lastProgressNanos = now;
+        this.controller = new DelayBasedController(initialRate(INITIAL_RTT_NANOS), now);
+    }
+
+    /**
+     * 连接到 UDP 服务器
+     * @param impairment 本端发出数据包的链路损伤（测试用），不需要时为 Impairment.NONE
+     */
+    public static UdpSocket connect(InetSocketAddress address, Impairment impairment) throws IOException {
+        UdpEndpoint endpoint = new UdpEndpoint(null, false, impairment);
+        UdpSocket socket = new UdpSocket(endpoint, address, ThreadLocalRandom.current().nextInt(), true, System.nanoTime());
+        endpoint.register(socket);
+        try {
+            socket.awaitEstablished();
+        } catch (IOException e) {
+            endpoint.close();
+            throw e;
+        }
+        return socket;
+    }
+
+    public InputStream getInputStream() {
+        return input;
+    }
+
+    public OutputStream getOutputStream() {
+        return output;
+    }
+
+    public SocketAddress getRemoteAddress() {
+        return remote;
+    }
+
+    int getConnectionId() {
+        return connectionId;
+    }
+
+    /**
+     * 关闭连接：已写入的数据（连同结束标志）继续在后台可靠发送，之后收到的数据被丢弃
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        closedNanos = System.nanoTime();
+        if (state == State.ESTABLISHED) {
+            shutdownOutput();
+        }
+        readable.clear();
+        readableBytes = 0;
+        notifyAll();
+        endpoint.wakeup();
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("UDP 连接 %s: 发送 %d 包（重传 %d）, 接收 %d 包（重复 %d）, 往返时间 %.1f ms, 速率 %.2f MB/s",
+                remote, packetsSent, retransmissions, packetsReceived, duplicates,
+                srtt / 1e6, controller.rate() / (1024 * 1024));
+    }
+
+    // ---- I/O 线程调用 ----
+
+    synchronized void onPacket(byte type, ByteBuffer packet, long now) throws IOException {
+        if (state == State.FAILED) {
+            return;
+        }
+        lastReceiveNanos = now;
+        switch (type) {
+            case UdpPacket.SYN:
+                // 服务器端：首个 SYN 或 SYN_ACK 丢失后客户端的重发
+                sendSynAck(packet.getLong());
+                break;
+            case UdpPacket.SYN_ACK:
+                if (state == State.CONNECTING) {
+                    long rtt = now - TimeUnit.MICROSECONDS.toNanos(packet.getLong());
+                    updateRtt(Math.max(rtt, 1), now);
+                    controller = new DelayBasedController(initialRate(srtt), now);
+                    state = State.ESTABLISHED;
+                    lastProgressNanos = now;
+                    notifyAll();
+                }
+                break;
+            case UdpPacket.DATA:
+                if (state == State.CONNECTING) {
+                    state = State.ESTABLISHED; // SYN_ACK 丢失，但服务器的数据已经到达
+                    notifyAll();
+                }
+                onData(packet, now);
+                break;
+            case UdpPacket.ACK:
+                onAck(packet, now);
+                break;
+            case UdpPacket.NAK:
+                onNak(packet, now);
+                break;
+            case UdpPacket.RST:
+                fail(new IOException("连接被对端重置"));
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * 驱动定时器并按步调发送
+     * @return 下一次需要调用的时间
+     */
+    synchronized long onTimer(long now) throws IOException {
+        if (state == State.FAILED) {
+            return Long.MAX_VALUE;
+        }
+        if (state == State.CONNECTING) {
+            if (now - stateSince > CONNECT_TIMEOUT_NANOS) {
+                fail(new IOException("连接 UDP 服务器超时: " + remote));
+                return Long.MAX_VALUE;
+            }
+            if (now - lastSynNanos >= SYN_INTERVAL_NANOS) {
+                ByteBuffer syn = endpoint.sendBuffer();
+                syn.put(UdpPacket.SYN).putInt(connectionId).putLong(micros(now)).flip();
+                endpoint.send(syn, remote);
+                lastSynNanos = now;
+            }
+            return lastSynNanos + SYN_INTERVAL_NANOS;
+        }
+
+        // 对端失联
+        if (inFlight > 0 && now - lastProgressNanos > PEER_TIMEOUT_NANOS) {
+            fail(new IOException("UDP 连接超时，对端无响应: " + remote));
+            return Long.MAX_VALUE;
+        }
+        if (closed && lingerUntil == Long.MAX_VALUE
+                && ((finAcked && (remoteFin || now - closedNanos > rto()))
+                    || (now - closedNanos > CLOSE_TIMEOUT_NANOS && now - lastProgressNanos > CLOSE_TIMEOUT_NANOS))) {
+            // 数据已全部送达：再停留一段时间，以便确认对端重传的结束标志
+            lingerUntil = now + 2 * rto();
+        }
+
+        long next = Long.MAX_VALUE;
+
+        // 接收方向：ACK 和周期性 NAK
+        if (ackPending && (packetsSinceAck >= ACK_EVERY_PACKETS || now - lastAckNanos >= ACK_INTERVAL_NANOS)) {
+            sendAck(now);
+        }
+        if (ackPending) {
+            next = Math.min(next, lastAckNanos + ACK_INTERVAL_NANOS);
+        }
+        if (!pendingGaps.isEmpty()) {
+            next = Math.min(next, nakDueGaps(now));
+        }
+        if (!outOfOrder.isEmpty()) {
+            long nakInterval = Math.max(MIN_NAK_INTERVAL_NANOS, srtt > 0 ? srtt : INITIAL_RTT_NANOS);
+            if (now - lastNakNanos >= nakInterval) {
+                sendNak(gaps(), now);
+            }
+            next = Math.min(next, lastNakNanos + nakInterval);
+        }
+
+        // 发送方向：超时重传。只在确认完全停止推进时触发，个别包的丢失（包括重传再次丢失）由 NAK 处理
+        if (inFlight > 0) {
+            Map.Entry<Long, Outgoing> oldest = outstanding.firstEntry();
+            long deadline = Math.max(lastProgressNanos, oldest.getValue().lastSentNanos) + rto();
+            if (oldest.getKey() < nextToSend && now >= deadline) {
+                onRetransmitTimeout(now);
+            } else if (oldest.getKey() < nextToSend) {
+                next = Math.min(next, deadline);
+            }
+        }
+
+        // 按步调发送
+        if (hasSendable()) {
+            if (nextSendNanos < now - MAX_BURST_NANOS) {
+                nextSendNanos = now - MAX_BURST_NANOS; // 空闲期间不积累发送额度
+            }
+            int sent = 0;
+            while (nextSendNanos <= now && sent < MAX_PACKETS_PER_TICK && hasSendable()) {
+                int length = sendNext(now);
+                nextSendNanos += (long) (length * 1e9 / controller.rate());
+                sent++;
+            }
+            if (hasSendable()) {
+                next = Math.min(next, Math.max(nextSendNanos, now));
+            }
+        }
+        return next;
+    }
+
+    synchronized boolean isFinished() {
+        return state == State.FAILED || System.nanoTime() >= lingerUntil;
+    }
+
+    /**
+     * 连接失败：唤醒所有等待的应用线程
+     */
+    synchronized void fail(IOException cause) {
+        if (state == State.FAILED) {
+            return;
+        }
+        state = State.FAILED;
+        failure = cause;
+        notifyAll();
+        if (ownsEndpoint) {
+            endpoint.wakeup();
+        }
+    }
+
+    // ---- 接收方向 ----
+
+    private void onData(ByteBuffer packet, long now) throws IOException {
+        byte flags = packet.get();
+        long seq = packet.getLong();
+        long timestamp = packet.getLong();
+        byte[] data = new byte[packet.remaining()];
+        packet.get(data);
+        boolean fin = (flags & UdpPacket.FLAG_FIN) != 0;
+        boolean retransmit = (flags & UdpPacket.FLAG_RETRANSMIT) != 0;
+        packetsReceived++;
+
+        lastPacketTimestamp = timestamp;
+        lastPacketNanos = now;
+        ackPending = true;
+        packetsSinceAck++;
+
+        if (seq < expected || outOfOrder.containsKey(seq)) {
+            duplicates++;
+            return;
+        }
+        if (seq < highestReceived && !retransmit) {
+            measureReorder(seq, now);
+        }
+        if (seq > highestReceived + 1 && seq > expected) {
+            // 出现空洞：没有观察到乱序时立即请求重传，否则等乱序窗口到期
+            long[] gap = {Math.max(highestReceived + 1, expected), seq, now};
+            if (reorderNanos == 0) {
+                List<long[]> missing = new ArrayList<>();
+                missing.add(gap);
+                sendNak(missing, now);
+            } else {
+                pendingGaps.add(gap);
+            }
+        }
+        highestReceived = Math.max(highestReceived, seq);
+
+        if (seq == expected) {
+            deliver(data, fin);
+            expected++;
+            Incoming next;
+            while ((next = outOfOrder.remove(expected)) != null) {
+                deliver(next.data, next.fin);
+                expected++;
+            }
+            notifyAll();
+        } else if (receiveWindow() > 0) {
+            outOfOrder.put(seq, new Incoming(data, fin));
+        }
+        if (fin) {
+            ackPending = true;
+            packetsSinceAck = ACK_EVERY_PACKETS; // 结束标志立即确认
+        }
+    }
+
+    /**
+     * 原始（非重传）数据包晚于更大的序号到达：按它晚到的时间调整乱序窗口
+     */
+    private void measureReorder(long seq, long now) {
+        for (long[] gap : pendingGaps) {
+            if (seq >= gap[0] && seq < gap[1]) {
+                observeReorder(now - gap[2]);
+                return;
+            }
+        }
+        // 空洞已经 NAK 过（乱序窗口偏小）：至少按最小 NAK 间隔放大窗口
+        observeReorder(Math.max(reorderNanos * 2, TimeUnit.MILLISECONDS.toNanos(1)));
+    }
+
+    private void observeReorder(long lateNanos) {
+        long limit = Math.min(MAX_REORDER_NANOS, srtt > 0 ? srtt / 2 : MAX_REORDER_NANOS);
+        reorderNanos = Math.min(limit, Math.max(reorderNanos * 7 / 8, lateNanos * 5 / 4));
+    }
+
+    /**
+     * NAK 乱序窗口已到期且仍然缺失的空洞
+     * @return 下一个空洞的到期时间
+     */
+    private long nakDueGaps(long now) throws IOException {
+        List<long[]> missing = new ArrayList<>();
+        long[] gap;
+        while ((gap = pendingGaps.peek()) != null && gap[2] + reorderNanos <= now) {
+            pendingGaps.poll();
+            long cursor = Math.max(gap[0], expected);
+            if (cursor >= gap[1]) {
+                continue;
+            }
+            for (long seq : outOfOrder.subMap(cursor, gap[1]).keySet()) {
+                if (seq > cursor) {
+                    missing.add(new long[] {cursor, seq});
+                }
+                cursor = seq + 1;
+            }
+            if (cursor < gap[1]) {
+                missing.add(new long[] {cursor, gap[1]});
+            }
+            if (missing.size() >= UdpPacket.MAX_NAK_RANGES) {
+                break;
+            }
+        }
+        if (!missing.isEmpty()) {
+            sendNak(missing.subList(0, Math.min(missing.size(), UdpPacket.MAX_NAK_RANGES)), now);
+        }
+        return gap != null ? gap[2] + reorderNanos : Long.MAX_VALUE;
+    }
+
+    private void deliver(byte[] data, boolean fin) {
+        if (data.length > 0 && !closed) {
+            readable.add(data);
+            readableBytes += data.length;
+        }
+        if (fin) {
+            remoteFin = true;
+        }
+    }
+
+    private long receiveWindow() {
+        return Math.max(0, (RECEIVE_BUFFER_SIZE - readableBytes) / UdpPacket.MAX_PAYLOAD - outOfOrder.size());
+    }
+
+    private void sendAck(long now) throws IOException {
+        ByteBuffer ack = endpoint.sendBuffer();
+        ack.put(UdpPacket.ACK).putInt(connectionId)
+           .putLong(expected)
+           .putLong(lastPacketTimestamp)
+           .putInt((int) Math.min(Integer.MAX_VALUE, TimeUnit.NANOSECONDS.toMicros(now - lastPacketNanos)))
+           .putInt((int) Math.min(Integer.MAX_VALUE, receiveWindow()));
+        List<long[]> ranges = receivedRanges();
+        ack.put((byte) ranges.size());
+        for (long[] range : ranges) {
+            ack.putLong(range[0]).putLong(range[1]);
+        }
+        ack.flip();
+        endpoint.send(ack, remote);
+        ackPending = false;
+        packetsSinceAck = 0;
+        lastAckNanos = now;
+    }
+
+    /**
+     * 乱序收到的序号区间（选择确认）
+     */
+    private List<long[]> receivedRanges() {
+        List<long[]> ranges = new ArrayList<>();
+        long start = -1;
+        long end = -1;
+        for (long seq : outOfOrder.keySet()) {
+            if (seq == end) {
+                end++;
+                continue;
+            }
+            if (start >= 0) {
+                ranges.add(new long[] {start, end});
+                if (ranges.size() == UdpPacket.MAX_ACK_RANGES) {
+                    return ranges;
+                }
+            }
+            start = seq;
+            end = seq + 1;
+        }
+        if (start >= 0) {
+            ranges.add(new long[] {start, end});
+        }
+        return ranges;
+    }
+
+    /**
+     * 已交付位置与已收到的最大序号之间的空洞
+     */
+    private List<long[]> gaps() {
+        List<long[]> gaps = new ArrayList<>();
+        long cursor = expected;
+        for (long seq : outOfOrder.keySet()) {
+            if (seq > cursor) {
+                gaps.add(new long[] {cursor, seq});
+                if (gaps.size() == UdpPacket.MAX_NAK_RANGES) {
+                    break;
+                }
+            }
+            cursor = seq + 1;
+        }
+        return gaps;
+    }
+
+    private void sendNak(List<long[]> ranges, long now) throws IOException {
+        lastNakNanos = now;
+        if (ranges.isEmpty()) {
+            return;
+        }
+        ByteBuffer nak = endpoint.sendBuffer();
+        nak.put(UdpPacket.NAK).putInt(connectionId).putShort((short) ranges.size());
+        for (long[] range : ranges) {
+            nak.putLong(range[0]).putLong(range[1]);
+        }
+        nak.flip();
+        endpoint.send(nak, remote);
+    }
+
+    // ---- 发送方向 ----
+
+    private void onAck(ByteBuffer packet, long now) {
+        long cumulative = packet.getLong();
+        long echoed = packet.getLong();
+        long ackDelay = TimeUnit.MICROSECONDS.toNanos(packet.getInt());
+        peerWindow = packet.getInt();
+        int rangeCount = packet.get() & 0xff;
+
+        if (echoed != 0) {
+            long rtt = now - TimeUnit.MICROSECONDS.toNanos(echoed) - ackDelay;
+            if (rtt > 0) {
+                updateRtt(rtt, now);
+            }
+        }
+
+        long ackedBytes = 0;
+        int ackedPackets = 0;
+        while (!outstanding.isEmpty() && outstanding.firstKey() < cumulative) {
+            Outgoing acked = remove(outstanding.firstKey());
+            ackedBytes += acked.data.length;
+            ackedPackets++;
+        }
+        for (int i = 0; i < rangeCount; i++) {
+            long start = packet.getLong();
+            long end = packet.getLong();
+            for (Long seq : new ArrayList<>(outstanding.subMap(start, end).keySet())) {
+                Outgoing acked = remove(seq);
+                ackedBytes += acked.data.length;
+                ackedPackets++;
+            }
+        }
+        if (ackedPackets > 0) {
+            lastProgressNanos = now;
+            rtoBackoff = 0;
+            controller.onAck(ackedBytes, ackedPackets, now, srtt);
+            notifyAll();
+        }
+    }
+
+    private void onNak(ByteBuffer packet, long now) {
+        int rangeCount = packet.getShort() & 0xffff;
+        int lost = 0;
+        long guard = srtt > 0 ? srtt / 2 : 0;
+        for (int i = 0; i < rangeCount; i++) {
+            long start = packet.getLong();
+            long end = Math.min(packet.getLong(), nextToSend);
+            for (Map.Entry<Long, Outgoing> entry : outstanding.subMap(start, Math.max(start, end)).entrySet()) {
+                // 同一个空洞的重复 NAK：距上次发送不足半个往返时间的不重传
+                if (now - entry.getValue().lastSentNanos >= guard && lossList.add(entry.getKey())) {
+                    lost++;
+                }
+            }
+        }
+        if (lost > 0) {
+            controller.onLoss(lost);
+        }
+    }
+
+    private void onRetransmitTimeout(long now) {
+        long timeout = rto();
+        int marked = 0;
+        for (Map.Entry<Long, Outgoing> entry : outstanding.headMap(nextToSend).entrySet()) {
+            if (now - entry.getValue().lastSentNanos >= timeout) {
+                lossList.add(entry.getKey());
+                if (++marked == 1024) {
+                    break;
+                }
+            }
+        }
+        rtoBackoff = Math.min(rtoBackoff + 1, 5);
+        controller.onTimeout();
+    }
+
+    private Outgoing remove(long seq) {
+        Outgoing packet = outstanding.remove(seq);
+        lossList.remove(seq);
+        bufferedBytes -= packet.data.length;
+        if (seq < nextToSend) {
+            inFlight--;
+        }
+        if (packet.fin) {
+            finAcked = true;
+        }
+        return packet;
+    }
+
+    private boolean hasSendable() {
+        return !lossList.isEmpty() || (nextToSend < nextSeq && inFlight < maxInFlight());
+    }
+
+    /**
+     * 允许同时在途的数据包数：不超过对端接收窗口，也不超过两倍的速率与确认周期（往返时间加 ACK 间隔）之积，
+     * 避免速率估计偏高时在瓶颈处无限积压
+     */
+    private long maxInFlight() {
+        double rtt = ((srtt > 0 ? srtt : INITIAL_RTT_NANOS) + ACK_INTERVAL_NANOS) / 1e9;
+        long bdp = (long) (2 * controller.rate() * rtt / UdpPacket.MAX_PAYLOAD) + 16;
+        return Math.max(1, Math.min(peerWindow, bdp));
+    }
+
+    /**
+     * 发送一个数据包：优先重传
+     * @return 发送的字节数
+     */
+    private int sendNext(long now) throws IOException {
+        long seq;
+        boolean retransmit = !lossList.isEmpty();
+        if (retransmit) {
+            seq = lossList.pollFirst();
+            retransmissions++;
+        } else {
+            seq = nextToSend++;
+            inFlight++;
+        }
+        Outgoing packet = outstanding.get(seq);
+        ByteBuffer datagram = endpoint.sendBuffer();
+        datagram.put(UdpPacket.DATA).putInt(connectionId)
+                .put((byte) ((packet.fin ? UdpPacket.FLAG_FIN : 0) | (retransmit ? UdpPacket.FLAG_RETRANSMIT : 0)))
+                .putLong(seq)
+                .putLong(micros(now))
+                .put(packet.data)
+                .flip();
+        int length = datagram.remaining();
+        endpoint.send(datagram, remote);
+        packet.lastSentNanos = now;
+        packetsSent++;
+        return length;
+    }
+
+    private void sendSynAck(long echoed) throws IOException {
+        ByteBuffer synAck = endpoint.sendBuffer();
+        synAck.put(UdpPacket.SYN_ACK).putInt(connectionId).putLong(echoed).flip();
+        endpoint.send(synAck, remote);
+    }
+
+    private void updateRtt(long sample, long now) {
+        if (srtt < 0) {
+            srtt = sample;
+            rttVar = sample / 2;
+        } else {
+            rttVar = (3 * rttVar + Math.abs(srtt - sample)) / 4;
+            srtt = (7 * srtt + sample) / 8;
+        }
+        controller.onRttSample(sample, now);
+    }
+
+    private long rto() {
+        long base = srtt > 0 ? srtt + 4 * rttVar : INITIAL_RTT_NANOS * 3;
+        return Math.min(MAX_RTO_NANOS, Math.max(MIN_RTO_NANOS, base) << rtoBackoff);
+    }
+
+    private static double initialRate(long rttNanos) {
+        return INITIAL_PACKETS_PER_RTT * UdpPacket.MAX_PAYLOAD / (rttNanos / 1e9);
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    // ---- 应用线程调用 ----
+
+    private synchronized void awaitEstablished() throws IOException {
+        try {
+            while (state == State.CONNECTING) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("连接被中断");
+        }
+        if (state == State.FAILED) {
+            throw failure;
+        }
+    }
+
+    /**
+     * 把数据放入发送缓冲区，缓冲区已满时等待确认腾出空间
+     */
+    private synchronized void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            checkWritable();
+            while (bufferedBytes >= SEND_BUFFER_SIZE) {
+                awaitChange();
+                checkWritable();
+            }
+            int n = Math.min(len, partial.length - partialLength);
+            System.arraycopy(b, off, partial, partialLength, n);
+            partialLength += n;
+            off += n;
+            len -= n;
+            if (partialLength == partial.length) {
+                enqueue(false);
+            }
+        }
+    }
+
+    private synchronized void flush() throws IOException {
+        checkWritable();
+        if (partialLength > 0) {
+            enqueue(false);
+        }
+    }
+
+    private synchronized void shutdownOutput() {
+        if (outputShutdown || state == State.FAILED) {
+            return;
+        }
+        if (partialLength > 0) {
+            enqueue(false);
+        }
+        enqueue(true);
+        outputShutdown = true;
+    }
+
+    private void enqueue(boolean fin) {
+        byte[] data = new byte[partialLength];
+        System.arraycopy(partial, 0, data, 0, partialLength);
+        partialLength = 0;
+        boolean wasIdle = nextToSend == nextSeq;
+        outstanding.put(nextSeq++, new Outgoing(data, fin));
+        bufferedBytes += data.length;
+        if (wasIdle) {
+            endpoint.wakeup();
+        }
+    }
+
+    private void checkWritable() throws IOException {
+        if (state == State.FAILED) {
+            throw failure;
+        }
+        if (closed || outputShutdown) {
+            throw new IOException("连接已关闭");
+        }
+    }
+
+    private synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (readable.isEmpty()) {
+            if (closed) {
+                throw new IOException("连接已关闭");
+            }
+            if (state == State.FAILED) {
+                throw failure;
+            }
+            if (remoteFin) {
+                return -1;
+            }
+            awaitChange();
+        }
+        long windowBefore = receiveWindow();
+        int total = 0;
+        while (total < len && !readable.isEmpty()) {
+            byte[] head = readable.peek();
+            int n = Math.min(len - total, head.length - readOffset);
+            System.arraycopy(head, readOffset, b, off + total, n);
+            total += n;
+            readOffset += n;
+            if (readOffset == head.length) {
+                readable.poll();
+                readOffset = 0;
+            }
+        }
+        readableBytes -= total;
+        if (windowBefore < RECEIVE_BUFFER_SIZE / UdpPacket.MAX_PAYLOAD / 4) {
+            // 接收窗口曾接近关闭，尽快通告新窗口
+            ackPending = true;
+            endpoint.wakeup();
+        }
+        return total;
+    }
+
+    private synchronized int available() {
+        return (int) Math.min(Integer.MAX_VALUE, readableBytes);
+    }
+
+    private void awaitChange() throws IOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("等待 UDP 数据时被中断");
+        }
+    }
+
+    private final class Input extends InputStream {
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return UdpSocket.this.read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return UdpSocket.this.read(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            return UdpSocket.this.available();
+        }
+
+        @Override
+        public void close() {
+            UdpSocket.this.close();
+        }
+    }
+
+    private final class Output extends OutputStream {
+        @Override
+        public void write(int b) throws IOException {
+            UdpSocket.this.write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            UdpSocket.this.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            UdpSocket.this.flush();
+        }
+
+        @Override
+        public void close() {
+            UdpSocket.this.close();
+        }
+    }
+
+    private static final class Outgoing {
+        final byte[] data;
+        final boolean fin;
+        long lastSentNanos;
+
+        Outgoing(byte[] data, boolean fin) {
+            this.data = data;
+            this.fin = fin;
+        }
+    }
+
+    private static final class Incoming {
+        final byte[] data;
+        final boolean fin;
+
+        Incoming(byte[] data, boolean fin) {
+            this.data = data;
+            this.fin = fin;
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package com.networkdesign.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 异步磁盘写入器
+ * 套接字读取线程（生产者）把收到的数据复制进缓冲区，填满后通过无锁环形队列交给独立的写盘线程，
+ * 写盘线程写完后把缓冲区经另一个环形队列归还。磁盘暂时卡顿（fsync、回写限流、慢速U盘等）时
+ * 套接字仍能继续被读取，只有所有缓冲区都在等待写盘时生产者才会阻塞。
+ *
+ * 同时统计两端各自等待的次数：生产者等待说明磁盘是瓶颈，写盘线程等待说明网络是瓶颈
+ */
+public class AsyncDiskWriter implements Closeable {
+    private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(200);  // 防止唤醒丢失的兜底等待时间
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final WritableByteChannel target;
+    private final int alignment;            // 直接 I/O 的对齐大小，0 表示普通写入
+    private final SpscRingBuffer<ByteBuffer> filled;
+    private final SpscRingBuffer<ByteBuffer> free;
+    private final AtomicLong producerStalls = new AtomicLong();
+    private final AtomicLong writerStalls = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final Object done = new Object();
+    private ByteBuffer current;
+    private volatile Thread producerThread;
+    private volatile Thread writerThread;
+    private volatile boolean writerWaiting;
+    private volatile boolean producerWaiting;
+    private volatile boolean aborted;
+    private volatile boolean finished;
+    private volatile IOException failure;
+    private boolean closed;
+
+    /**
+     * @param target 写入目标
+     * @param depth 缓冲区个数（环形队列容量）
+     * @param bufferSize 每个缓冲区的大小，也是每次写盘的最大字节数
+     * @param executor 运行写盘线程的线程池
+     */
+    public AsyncDiskWriter(WritableByteChannel target, int depth, int bufferSize, Executor executor) {
+        this(target, depth, bufferSize, 0, executor);
+    }
+
+    /**
+     * 写入以直接 I/O 方式打开的文件
+     * 使用按 alignment 对齐的直接缓冲区（容量向上取整为 alignment 的整数倍）；
+     * 最后一块不足对齐大小时补零写满，写完后再把文件截断到实际长度
+     * @param alignment 直接 I/O 的对齐大小
+     */
+    public AsyncDiskWriter(FileChannel target, int depth, int bufferSize, int alignment, Executor executor) {
+        this((WritableByteChannel) target, depth, bufferSize, alignment, executor);
+    }
+
+    private AsyncDiskWriter(WritableByteChannel target, int depth, int bufferSize, int alignment, Executor executor) {
+        this.target = target;
+        this.alignment = alignment;
+        this.filled = new SpscRingBuffer<>(depth + 1);
+        this.free = new SpscRingBuffer<>(depth);
+        for (int i = 0; i < free.capacity(); i++) {
+            free.offer(alignment > 0 ? allocateAligned(bufferSize, alignment) : ByteBuffer.allocate(bufferSize));
+        }
+        this.current = free.poll();
+        executor.execute(this::writeLoop);
+    }
+
+    /**
+     * 写入数据（只能由同一个生产者线程调用）
+     */
+    public void write(byte[] data, int offset, int length) throws IOException {
+        checkFailure();
+        while (length > 0) {
+            int count = Math.min(length, current.remaining());
+            current.put(data, offset, count);
+            offset += count;
+            length -= count;
+            if (!current.hasRemaining()) {
+                publish(current);
+                current = takeFreeBuffer();
+            }
+        }
+    }
+
+    /**
+     * 把剩余数据交给写盘线程，等待全部写入完成
+     * @throws IOException 写盘过程中发生的错误
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (!aborted) {
+            if (current.position() > 0) {
+                publish(current);
+            }
+            publish(END);
+            awaitWriter();
+        }
+        checkFailure();
+    }
+
+    /**
+     * 放弃尚未写入的数据并停止写盘线程（用于传输失败时）
+     */
+    public void abort() {
+        aborted = true;
+        closed = true;
+        Thread writer = writerThread;
+        if (writer != null) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    public long getProducerStalls() {
+        return producerStalls.get();
+    }
+
+    public long getWriterStalls() {
+        return writerStalls.get();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("写盘 %d 字节, 接收端等待磁盘 %d 次, 写盘端等待网络 %d 次",
+                bytesWritten.get(), producerStalls.get(), writerStalls.get());
+    }
+
+    private void publish(ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        // filled 的容量比缓冲区个数多一个，结束标记总能放入
+        while (!filled.offer(buffer)) {
+            checkFailure();
+            Thread.onSpinWait();
+        }
+        if (writerWaiting) {
+            LockSupport.unpark(writerThread);
+        }
+    }
+
+    /**
+     * 取一个空闲缓冲区；全部在等待写盘时阻塞（背压）
+     */
+    private ByteBuffer takeFreeBuffer() throws IOException {
+        ByteBuffer buffer = free.poll();
+        if (buffer != null) {
+            return buffer;
+        }
+        producerStalls.incrementAndGet();
+        producerThread = Thread.currentThread();
+        while (true) {
+            producerWaiting = true;
+            buffer = free.poll();
+            if (buffer != null) {
+                producerWaiting = false;
+                return buffer;
+            }
+            checkFailure();
+            LockSupport.parkNanos(this, PARK_NANOS);
+            if (Thread.interrupted()) {
+                producerWaiting = false;
+                throw new InterruptedIOException("等待写盘时被中断");
+            }
+        }
+    }
+
+    /**
+     * 写盘线程
+     */
+    private void writeLoop() {
+        writerThread = Thread.currentThread();
+        try {
+            while (!aborted) {
+                ByteBuffer buffer = filled.poll();
+                if (buffer == null) {
+                    writerStalls.incrementAndGet();
+                    buffer = awaitFilled();
+                    if (buffer == null) {
+                        break; // 已放弃
+                    }
+                }
+                if (buffer == END) {
+                    break;
+                }
+                int length = buffer.remaining();
+                int padding = alignment > 0 ? (alignment - length % alignment) % alignment : 0;
+                if (padding > 0) {
+                    // 只有最后一块可能不足对齐大小
+                    buffer.position(buffer.limit()).limit(buffer.limit() + padding);
+                    while (buffer.hasRemaining()) {
+                        buffer.put((byte) 0);
+                    }
+                    buffer.flip();
+                }
+                while (buffer.hasRemaining()) {
+                    target.write(buffer);
+                }
+                bytesWritten.addAndGet(length);
+                if (padding > 0) {
+                    ((FileChannel) target).truncate(bytesWritten.get());
+                }
+                buffer.clear();
+                free.offer(buffer);
+                if (producerWaiting) {
+                    LockSupport.unpark(producerThread);
+                }
+            }
+        } catch (IOException e) {
+            failure = e;
+        } catch (RuntimeException e) {
+            failure = new IOException("写盘时发生错误", e);
+        } finally {
+            writerThread = null;
+            synchronized (done) {
+                finished = true;
+                done.notifyAll();
+            }
+            Thread producer = producerThread;
+            if (producer != null) {
+                LockSupport.unpark(producer);
+            }
+        }
+    }
+
+    private ByteBuffer awaitFilled() {
+        while (!aborted) {
+            writerWaiting = true;
+            ByteBuffer buffer = filled.poll();
+            if (buffer != null) {
+                writerWaiting = false;
+                return buffer;
+            }
+            LockSupport.parkNanos(this, PARK_NANOS);
+        }
+        return null;
+    }
+
+    private void awaitWriter() throws IOException {
+        synchronized (done) {
+            while (!finished) {
+                try {
+                    done.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    abort();
+                    throw new InterruptedIOException("等待写盘完成时被中断");
+                }
+            }
+        }
+    }
+
+    private static ByteBuffer allocateAligned(int size, int alignment) {
+        int capacity = (size + alignment - 1) / alignment * alignment;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(capacity + alignment).alignedSlice(alignment);
+        buffer.limit(capacity);
+        return buffer.slice();
+    }
+
+    private void checkFailure() throws IOException {
+        IOException e = failure;
+        if (e != null) {
+            throw new IOException("写盘失败: " + e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.networkdesign.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * 一致性哈希环
+ * 每个节点（"主机:端口"）在环上放置若干虚拟节点，文件归属于其名称哈希顺时针方向的第一个节点。
+ * 增加节点时只有约 1/N 的文件改变归属。环是不可变的，epoch 越大表示越新，
+ * 节点之间以 epoch 判断应采用哪个版本。每个文件保存在顺时针方向的前 replicas 个节点上（副本数随环一起分发）
+ */
+public final class HashRing {
+    /** 每个节点的默认虚拟节点数 */
+    public static final int DEFAULT_VIRTUAL_NODES = 128;
+
+    private final long epoch;
+    private final int virtualNodes;
+    private final int replicas;
+    private final List<String> nodes;
+    private final NavigableMap<Long, String> ring = new TreeMap<>();
+
+    /**
+     * @param nodes 节点地址（主机:端口）
+     * @param virtualNodes 每个节点的虚拟节点数
+     * @param epoch 版本号
+     */
+    public HashRing(Collection<String> nodes, int virtualNodes, long epoch) {
+        this(nodes, virtualNodes, 1, epoch);
+    }
+
+    /**
+     * @param nodes 节点地址（主机:端口）
+     * @param virtualNodes 每个节点的虚拟节点数
+     * @param replicas 每个文件的副本数（包括归属节点）
+     * @param epoch 版本号
+     */
+    public HashRing(Collection<String> nodes, int virtualNodes, int replicas, long epoch) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("哈希环至少需要一个节点");
+        }
+        if (virtualNodes <= 0) {
+            throw new IllegalArgumentException("虚拟节点数必须大于0");
+        }
+        if (replicas <= 0) {
+            throw new IllegalArgumentException("副本数必须大于0");
+        }
+        this.epoch = epoch;
+        this.virtualNodes = virtualNodes;
+        this.replicas = replicas;
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(new TreeSet<>(nodes)));
+        for (String node : this.nodes) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.put(hash(node + "#" + i), node);
+            }
+        }
+    }
+
+    /**
+     * 文件的归属节点
+     */
+    public String owner(String name) {
+        Map.Entry<Long, String> entry = ring.ceilingEntry(hash(name));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    /**
+     * 保存文件副本的节点，第一个为归属节点（节点数少于副本数时为所有节点）
+     */
+    public List<String> owners(String name) {
+        return owners(name, replicas);
+    }
+
+    /**
+     * 沿环顺时针方向的前 count 个不同节点（第一个即归属节点）
+     */
+    public List<String> owners(String name, int count) {
+        int limit = Math.min(count, nodes.size());
+        List<String> owners = new ArrayList<>(limit);
+        long h = hash(name);
+        for (String node : ring.tailMap(h, true).values()) {
+            if (owners.size() == limit) {
+                return owners;
+            }
+            if (!owners.contains(node)) {
+                owners.add(node);
+            }
+        }
+        for (String node : ring.headMap(h, false).values()) {
+            if (owners.size() == limit) {
+                break;
+            }
+            if (!owners.contains(node)) {
+                owners.add(node);
+            }
+        }
+        return owners;
+    }
+
+    /**
+     * 加入一个节点后的新环（epoch 加一）
+     */
+    public HashRing withNode(String node) {
+        List<String> expanded = new ArrayList<>(nodes);
+        expanded.add(node);
+        return new HashRing(expanded, virtualNodes, replicas, epoch + 1);
+    }
+
+    public boolean contains(String node) {
+        return nodes.contains(node);
+    }
+
+    public List<String> getNodes() {
+        return nodes;
+    }
+
+    public int getReplicas() {
+        return replicas;
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * 编码为 RING_MAP 消息的负载: epoch|虚拟节点数|节点1,节点2,...|副本数
+     */
+    public String encode() {
+        return epoch + "|" + virtualNodes + "|" + String.join(",", nodes) + "|" + replicas;
+    }
+
+    /**
+     * 解析 encode 生成的字符串
+     * @throws IllegalArgumentException 格式错误
+     */
+    public static HashRing decode(String encoded) {
+        String[] parts = encoded.split("\\|");
+        if (parts.length != 3 && parts.length != 4) {
+            throw new IllegalArgumentException("无效的哈希环格式: " + encoded);
+        }
+        List<String> nodes = new ArrayList<>();
+        for (String node : parts[2].split(",")) {
+            if (!node.isEmpty()) {
+                nodes.add(node);
+            }
+        }
+        int replicas = parts.length == 4 ? Integer.parseInt(parts[3]) : 1;
+        return new HashRing(nodes, Integer.parseInt(parts[1]), replicas, Long.parseLong(parts[0]));
+    }
+
+    /**
+     * 节点地址中的主机部分
+     */
+    public static String host(String node) {
+        return node.substring(0, separator(node));
+    }
+
+    /**
+     * 节点地址中的端口部分
+     */
+    public static int port(String node) {
+        return Integer.parseInt(node.substring(separator(node) + 1));
+    }
+
+    private static int separator(String node) {
+        int index = node.lastIndexOf(':');
+        if (index <= 0 || index == node.length() - 1) {
+            throw new IllegalArgumentException("无效的节点地址（应为 主机:端口）: " + node);
+        }
+        return index;
+    }
+
+    /**
+     * 64位 FNV-1a 哈希，再做一次混合以打散低位
+     */
+    public static long hash(String name) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : name.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        return "HashRing[epoch=" + epoch + ", replicas=" + replicas + ", nodes=" + nodes + "]";
+    }
+}
@@ -1,7 +1,10 @@
 package com.networkdesign.util;
 
 import com.networkdesign.protocol.FileTransferProtocol;
+import com.networkdesign.protocol.MessageFrame;
+import com.networkdesign.protocol.Varint;
 import java.io.*;
+import java.net.ProtocolException;
 
 /**
  * 协议工具类
@@ -9,6 +12,9 @@ import java.io.*;
  * @author spring
  */
 public class ProtocolUtil {
+    // 不超过此大小的消息把消息头和数据合并为一次写入，小消息只占一个 TCP 报文段
+    private static final int COALESCE_LIMIT = FileTransferProtocol.MAX_CONTROL_PAYLOAD;
+    private static final ThreadLocal<byte[]> COALESCE_BUFFER = new ThreadLocal<>();
     
     /**
      * 将协议消息序列化为字节数组
@@ -85,6 +91,86 @@ public class ProtocolUtil {
         dataOut.flush();
     }
 
+    /**
+     * 写入协议消息，消息数据直接取自缓冲区的一段，避免为每个数据包复制一次
+     * @param out 输出流
+     * @param type 消息类型
+     * @param data 数据所在的数组
+     * @param offset 数据起始位置
+     * @param length 数据长度
+     * @throws IOException 如果写入过程中发生错误
+     */
+    public static void writeMessage(OutputStream out, byte type, byte[] data, int offset, int length) throws IOException {
+        writeMessage(out, type, data, offset, length, FileTransferProtocol.VERSION_1);
+    }
+
+    /**
+     * 按协议版本写入协议消息（版本 2 的消息长度为变长整数）
+     * @param version 连接协商的协议版本
+     */
+    public static void writeMessage(OutputStream out, byte type, byte[] data, int offset, int length, int version)
+            throws IOException {
+        writeMessage(out, type, data, offset, length, version, true);
+    }
+
+    /**
+     * 按协议版本写入协议消息
+     * @param flush 为 false 时不刷新输出流，连续写出多个数据包时由调用方在最后刷新
+     *              （TLS 输出流据此把相邻的数据包合并成最大长度的记录）
+     */
+    public static void writeMessage(OutputStream out, byte type, byte[] data, int offset, int length, int version,
+                                    boolean flush) throws IOException {
+        // 消息头一次写出（DataOutputStream.writeInt 会逐字节写入底层流）
+        byte[] header;
+        if (version >= FileTransferProtocol.VERSION_2) {
+            header = new byte[1 + Varint.size(length)];
+            Varint.write(length, header, 1);
+        } else {
+            header = new byte[FileTransferProtocol.HEADER_SIZE];
+            header[1] = (byte) (length >>> 24);
+            header[2] = (byte) (length >>> 16);
+            header[3] = (byte) (length >>> 8);
+            header[4] = (byte) length;
+        }
+        header[0] = type;
+        TransferEvents.SlowFrameEvent event = new TransferEvents.SlowFrameEvent();
+        event.begin();
+        if (length > 0 && length <= COALESCE_LIMIT) {
+            byte[] buffer = COALESCE_BUFFER.get();
+            if (buffer == null || buffer.length < header.length + length) {
+                buffer = new byte[Math.max(header.length + length, FileTransferProtocol.MAX_PACKET_SIZE + 16)];
+                COALESCE_BUFFER.set(buffer);
+            }
+            System.arraycopy(header, 0, buffer, 0, header.length);
+            System.arraycopy(data, offset, buffer, header.length, length);
+            out.write(buffer, 0, header.length + length);
+        } else {
+            out.write(header);
+            if (length > 0) {
+                out.write(data, offset, length);
+            }
+        }
+        if (flush) {
+            out.flush();
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.write = true;
+            event.messageType = type;
+            event.length = length;
+            event.commit();
+        }
+    }
+
+    /**
+     * 按协议版本写入协议消息
+     */
+    public static void writeMessage(OutputStream out, FileTransferProtocol.Message message, int version)
+            throws IOException {
+        byte[] payload = message.getPayload();
+        writeMessage(out, message.getType(), payload, 0, payload != null ? payload.length : 0, version);
+    }
+
     /**
      * 读取协议消息
      * @param in 输入流
@@ -92,28 +178,69 @@ public class ProtocolUtil {
      * @throws IOException 如果读取过程中发生错误
      */
     public static FileTransferProtocol.Message readMessage(InputStream in) throws IOException {
-        DataInputStream dataIn = new DataInputStream(in);
-        
-        // 读取消息类型
-        byte type = dataIn.readByte();
-        
-        // 读取消息长度
-        int length = dataIn.readInt();
-        
-        // 读取消息数据
-        byte[] payload = null;
-        if (length > 0) {
-            payload = new byte[length];
-            int bytesRead = 0;
-            while (bytesRead < length) {
-                int count = dataIn.read(payload, bytesRead, length - bytesRead);
-                if (count == -1) {
-                    throw new IOException("流已结束");
+        return readMessage(in, FileTransferProtocol.VERSION_1);
+    }
+
+    /**
+     * 按协议版本读取协议消息（负载整体读入内存，长度受消息类型的上限约束）
+     * @param version 连接协商的协议版本
+     */
+    public static FileTransferProtocol.Message readMessage(InputStream in, int version) throws IOException {
+        return readFrame(in, version).toMessage();
+    }
+
+    /**
+     * 读取消息头，负载留在连接中由调用方通过 MessageFrame 读取
+     * @param version 连接协商的协议版本
+     * @throws ProtocolException 消息长度超过该类型的上限（此时连接已无法继续使用）
+     */
+    public static MessageFrame readFrame(InputStream in, int version) throws IOException {
+        // 版本 1 的消息头一次读入；版本 2 的消息头至少 2 字节，长度超过 127 时再逐字节读取
+        TransferEvents.SlowFrameEvent event = new TransferEvents.SlowFrameEvent();
+        byte[] header = new byte[FileTransferProtocol.HEADER_SIZE];
+        boolean varint = version >= FileTransferProtocol.VERSION_2;
+        readHeader(in, header, varint ? 2 : FileTransferProtocol.HEADER_SIZE, event);
+        byte type = header[0];
+        long length;
+        if (varint) {
+            length = header[1] & 0x7F;
+            for (int shift = 7, b = header[1]; (b & 0x80) != 0; shift += 7) {
+                if (shift > 28) {
+                    throw new ProtocolException("无效的消息长度");
                 }
-                bytesRead += count;
+                b = in.read();
+                if (b == -1) {
+                    throw new EOFException("流已结束");
+                }
+                length |= (long) (b & 0x7F) << shift;
             }
+        } else {
+            length = ((header[1] & 0xFFL) << 24) | ((header[2] & 0xFF) << 16)
+                    | ((header[3] & 0xFF) << 8) | (header[4] & 0xFF);
+        }
+        int limit = FileTransferProtocol.maxPayloadSize(type);
+        if (length > limit) {
+            throw new ProtocolException("消息过大: 类型 " + type + " 的负载为 " + length + " 字节，上限 " + limit + " 字节");
+        }
+        // 计时在负载读完时结束：慢的通常是 FILE_DATA 的负载，而不是消息头
+        return new MessageFrame(type, (int) length, in, event);
+    }
+
+    /**
+     * 读取消息头的前 count 个字节，读到第一部分后才开始计时：等待对端发送下一个消息的时间不算慢
+     */
+    private static void readHeader(InputStream in, byte[] header, int count, TransferEvents.SlowFrameEvent event)
+            throws IOException {
+        int read = 0;
+        while (read < count) {
+            int n = in.read(header, read, count - read);
+            if (n == -1) {
+                throw read == 0 ? new EOFException() : new EOFException("流已结束");
+            }
+            if (read == 0) {
+                event.begin();
+            }
+            read += n;
         }
-        
-        return new FileTransferProtocol.Message(type, payload);
     }
-} 
\ No newline at end of file
+}
\ No newline at end of file
@@ -0,0 +1,76 @@
+package com.networkdesign.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 单生产者单消费者的无锁环形队列
+ * 只允许一个线程调用 offer、另一个线程调用 poll；
+ * 两端各自只写自己的下标，通过 lazySet 发布，不需要加锁或 CAS
+ */
+public final class SpscRingBuffer<E> {
+    private final Object[] slots;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong();   // 下一个读取位置，只由消费者写
+    private final AtomicLong tail = new AtomicLong();   // 下一个写入位置，只由生产者写
+
+    /**
+     * @param capacity 容量，会向上取整为2的幂
+     */
+    public SpscRingBuffer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("容量必须大于0");
+        }
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        if (capacity == 1) {
+            size = 1;
+        }
+        this.slots = new Object[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * 放入元素（只能由生产者线程调用）
+     * @return 队列已满时返回 false
+     */
+    public boolean offer(E element) {
+        long t = tail.get();
+        if (t - head.get() == slots.length) {
+            return false;
+        }
+        slots[(int) t & mask] = element;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    /**
+     * 取出元素（只能由消费者线程调用）
+     * @return 队列为空时返回 null
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long h = head.get();
+        if (h == tail.get()) {
+            return null;
+        }
+        int index = (int) h & mask;
+        E element = (E) slots[index];
+        slots[index] = null;
+        head.lazySet(h + 1);
+        return element;
+    }
+
+    public int capacity() {
+        return slots.length;
+    }
+
+    /**
+     * 当前元素个数（并发读取时只是近似值）
+     */
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+}
@@ -0,0 +1,163 @@
+package com.networkdesign.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 请求记录日志：服务器在捕获模式下记录的请求序列，供 TrafficReplay 在本地重放
+ * 只记录消息类型、大小、时间和文件名，不记录文件内容。
+ * 文件为 gzip 压缩的文本，首行为格式标识，之后每行一个请求，字段以制表符分隔:
+ * 开始时间(微秒，相对捕获开始) 请求类型 协议版本 文件名 大小 起始位置 上传选项 耗时(微秒) 收到字节 发送字节 响应类型 是否完成
+ */
+public final class TrafficLog {
+    private static final String HEADER = "# networkdesign traffic v1";
+
+    private TrafficLog() {
+    }
+
+    /**
+     * 一个请求
+     */
+    public static final class Record {
+        public final long startMicros;
+        public final byte type;            // 请求消息类型
+        public final int protocolVersion;
+        public final String name;          // 文件名，列表请求为空字符串
+        public final long size;            // 下载时为文件大小，上传时为声明的大小，分段请求为分段长度，
+                                           // 列表请求为内联大小上限；未知时为 -1
+        public final long offset;          // 分段请求的起始位置，其他请求为 0
+        public final int flags;            // 上传选项（FileMetadata.FLAG_*）
+        public final long durationMicros;
+        public final long bytesIn;         // 服务器从该请求收到的字节数（协议层，不含 TLS 开销）
+        public final long bytesOut;        // 服务器为该请求发送的字节数
+        public final int responseType;     // 服务器第一个响应消息的类型，没有响应时为 -1
+        public final boolean completed;    // 服务器处理过程中没有发生异常
+
+        public Record(long startMicros, byte type, int protocolVersion, String name, long size, long offset, int flags,
+                      long durationMicros, long bytesIn, long bytesOut, int responseType, boolean completed) {
+            this.startMicros = startMicros;
+            this.type = type;
+            this.protocolVersion = protocolVersion;
+            this.name = name;
+            this.size = size;
+            this.offset = offset;
+            this.flags = flags;
+            this.durationMicros = durationMicros;
+            this.bytesIn = bytesIn;
+            this.bytesOut = bytesOut;
+            this.responseType = responseType;
+            this.completed = completed;
+        }
+
+        String format() {
+            return startMicros + "\t" + type + "\t" + protocolVersion + "\t" + escape(name) + "\t" + size + "\t"
+                    + offset + "\t" + flags + "\t" + durationMicros + "\t" + bytesIn + "\t" + bytesOut + "\t"
+                    + responseType + "\t" + (completed ? 1 : 0);
+        }
+
+        static Record parse(String line) throws IOException {
+            String[] f = line.split("\t", -1);
+            if (f.length != 12) {
+                throw new IOException("无效的请求记录: " + line);
+            }
+            try {
+                return new Record(Long.parseLong(f[0]), Byte.parseByte(f[1]), Integer.parseInt(f[2]), unescape(f[3]),
+                        Long.parseLong(f[4]), Long.parseLong(f[5]), Integer.parseInt(f[6]), Long.parseLong(f[7]),
+                        Long.parseLong(f[8]), Long.parseLong(f[9]), Integer.parseInt(f[10]), f[11].equals("1"));
+            } catch (NumberFormatException e) {
+                throw new IOException("无效的请求记录: " + line);
+            }
+        }
+    }
+
+    /**
+     * 写入请求记录，多个线程可以同时调用 append
+     */
+    public static final class Writer implements Closeable {
+        private final BufferedWriter out;
+        private final long startNanos = System.nanoTime();
+        private long records;
+
+        public Writer(Path file) throws IOException {
+            out = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(Files.newOutputStream(file), 64 * 1024),
+                    StandardCharsets.UTF_8), 64 * 1024);
+            out.write(HEADER);
+            out.newLine();
+        }
+
+        /**
+         * 把 System.nanoTime 的时刻换算为相对捕获开始的微秒数
+         */
+        public long micros(long nanoTime) {
+            return (nanoTime - startNanos) / 1000;
+        }
+
+        public synchronized void append(Record record) throws IOException {
+            out.write(record.format());
+            out.newLine();
+            records++;
+        }
+
+        public synchronized long getRecords() {
+            return records;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * 读取全部请求记录（按开始时间排序）
+     */
+    public static List<Record> read(Path file) throws IOException {
+        List<Record> records = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(Files.newInputStream(file)), StandardCharsets.UTF_8))) {
+            String line = in.readLine();
+            if (!HEADER.equals(line)) {
+                throw new IOException("不是请求记录日志: " + file);
+            }
+            while ((line = in.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    records.add(Record.parse(line));
+                }
+            }
+        }
+        records.sort((a, b) -> Long.compare(a.startMicros, b.startMicros));
+        return records;
+    }
+
+    private static String escape(String text) {
+        return text.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    private static String unescape(String text) {
+        if (text.indexOf('\\') < 0) {
+            return text;
+        }
+        StringBuilder sb = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\\' && i + 1 < text.length()) {
+                char next = text.charAt(++i);
+                sb.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,212 @@
+package com.networkdesign.util;
+
+import jdk.jfr.Category;
+import jdk.jfr.Configuration;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.time.Duration;
+
+/**
+ * Java Flight Recorder 自定义事件：连接、请求分派、文件传输和慢消息
+ * 事件默认关闭，关闭时只有一次是否启用的检查（事件对象经逃逸分析消除），可以留在热路径上。
+ * 用 startRecording 在进程内开始录制，或者在 JFR 配置文件中启用 com.networkdesign.* 事件，
+ * 录制文件用 JMC 打开，与 GC、线程和 I/O 事件放在同一时间轴上对照
+ */
+public final class TransferEvents {
+    public static final Duration DEFAULT_SLOW_FRAME_THRESHOLD = Duration.ofMillis(20);
+
+    private TransferEvents() {
+    }
+
+    /**
+     * 开始录制：JDK 默认配置加上本类的全部事件，停止录制或进程退出时写入 destination
+     * @param slowFrameThreshold 超过此耗时的消息读写才记录
+     */
+    public static Recording startRecording(Path destination, Duration slowFrameThreshold) throws IOException {
+        Recording recording;
+        try {
+            recording = new Recording(Configuration.getConfiguration("default"));
+        } catch (ParseException e) {
+            throw new IOException("无法读取 JFR 默认配置: " + e.getMessage(), e);
+        }
+        recording.setName("networkdesign");
+        recording.setToDisk(true);
+        recording.setDestination(destination);
+        recording.setDumpOnExit(true);
+        recording.enable(ConnectionEvent.class);
+        recording.enable(DispatchEvent.class);
+        recording.enable(TransferEvent.class);
+        recording.enable(SlowFrameEvent.class).withThreshold(slowFrameThreshold);
+        recording.start();
+        return recording;
+    }
+
+    /**
+     * 开始一次文件传输的计时
+     * @param direction 例如 server-download、client-upload
+     */
+    public static TransferEvent beginTransfer(String direction) {
+        TransferEvent event = new TransferEvent();
+        event.direction = direction;
+        event.begin();
+        return event;
+    }
+
+    /**
+     * 记录一个刚被接受的连接，关闭时调用 closed
+     * @param remoteAddress 对端地址，事件启用时才转换为字符串
+     */
+    public static ConnectionEvent accepted(String transport, Object remoteAddress) {
+        ConnectionEvent event = new ConnectionEvent();
+        if (event.isEnabled()) {
+            event.transport = transport;
+            event.remoteAddress = String.valueOf(remoteAddress);
+            event.acceptedAt = System.nanoTime();
+        }
+        event.begin();
+        return event;
+    }
+
+    /**
+     * 一个连接从被接受到关闭，queued 为接受之后等待工作线程的时间
+     */
+    @Name("com.networkdesign.Connection")
+    @Label("连接")
+    @Category({"网络设计", "文件传输"})
+    @Description("服务器接受的连接，从接受到关闭")
+    @Enabled(false)
+    @StackTrace(false)
+    public static final class ConnectionEvent extends Event {
+        @Label("对端地址")
+        public String remoteAddress;
+
+        @Label("传输方式")
+        public String transport;
+
+        @Label("TLS")
+        public boolean tls;
+
+        @Label("排队时间")
+        @Timespan(Timespan.NANOSECONDS)
+        public long queued;
+
+        private transient long acceptedAt;
+
+        /**
+         * 工作线程开始处理连接
+         */
+        public void started() {
+            if (acceptedAt != 0) {
+                queued = System.nanoTime() - acceptedAt;
+            }
+        }
+
+        /**
+         * 连接已关闭，提交事件
+         */
+        public void closed() {
+            end();
+            if (shouldCommit()) {
+                commit();
+            }
+        }
+    }
+
+    /**
+     * 一个请求的处理（从读到请求消息头到处理结束）
+     */
+    @Name("com.networkdesign.Dispatch")
+    @Label("请求分派")
+    @Category({"网络设计", "文件传输"})
+    @Description("服务器处理一个请求")
+    @Enabled(false)
+    @StackTrace(false)
+    public static final class DispatchEvent extends Event {
+        @Label("请求类型")
+        public int requestType;
+
+        @Label("协议版本")
+        public int protocolVersion;
+    }
+
+    /**
+     * 一次文件传输（客户端或服务器一侧）
+     */
+    @Name("com.networkdesign.Transfer")
+    @Label("文件传输")
+    @Category({"网络设计", "文件传输"})
+    @Description("一次上传或下载，从开始发送或接收到结束")
+    @Enabled(false)
+    @StackTrace(false)
+    public static final class TransferEvent extends Event {
+        @Label("方向")
+        @Description("client 或 server 一侧的 upload、download 或 range")
+        public String direction;
+
+        @Label("文件名")
+        public String fileName;
+
+        @Label("字节数")
+        @DataAmount
+        public long bytes;
+
+        @Label("成功")
+        public boolean success;
+
+        @Label("等待磁盘次数")
+        @Description("服务器上传使用写盘阶段时，接收端因缓冲区全部占满而等待写盘的次数")
+        public long diskStalls;
+
+        @Label("等待网络次数")
+        @Description("服务器上传使用写盘阶段时，写盘端因没有已接收的数据而等待的次数")
+        public long networkStalls;
+
+        /**
+         * 结束并提交（事件未启用时不做任何事）
+         */
+        public void finish(String fileName, long bytes, boolean success) {
+            end();
+            if (shouldCommit()) {
+                this.fileName = fileName;
+                this.bytes = bytes;
+                this.success = success;
+                commit();
+            }
+        }
+    }
+
+    /**
+     * 耗时超过阈值的消息读写（ProtocolUtil），读取从消息头开始到达时计时、到负载读完（MessageFrame）为止，
+     * 不包括等待对端发送消息的时间
+     */
+    @Name("com.networkdesign.SlowFrame")
+    @Label("慢消息")
+    @Category({"网络设计", "文件传输"})
+    @Description("耗时超过阈值的协议消息读写")
+    @Enabled(false)
+    @Threshold("20 ms")
+    @StackTrace(false)
+    public static final class SlowFrameEvent extends Event {
+        @Label("写入")
+        public boolean write;
+
+        @Label("消息类型")
+        public int messageType;
+
+        @Label("负载长度")
+        @DataAmount
+        public int length;
+    }
+}